@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
+import org.apache.nifi.reporting.azmonitor.api.ComponentFilter;
+import org.apache.nifi.reporting.azmonitor.api.ComponentMetricsCollector;
+import org.apache.nifi.reporting.azmonitor.api.DerivedMetrics;
+import org.apache.nifi.reporting.azmonitor.metrics.Metric;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Collection cost of one report over synthetic flows of increasing size: the per group object model
+ * built by {@link AzMonitorMetricsFactory#createNifiMetrics}, the same group metrics written to a
+ * {@link MetricBatch}, and the component series collected by {@link ComponentMetricsCollector}, also
+ * with {@link DerivedMetrics} evaluated alongside.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CollectionBenchmark {
+
+    @Param({"10", "1000", "10000", "50000"})
+    public int components;
+
+    private List<ProcessGroupStatus> groups;
+    private OffsetDateTime eventTime;
+    private MetricBatch batch;
+    private ComponentMetricsCollector collector;
+    private ComponentMetricsCollector derivedCollector;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final ProcessGroupStatus root = StatusTrees.build(components);
+        groups = new ArrayList<>();
+        flatten(root, groups);
+        eventTime = OffsetDateTime.of(2019, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        batch = new MetricBatch();
+        collector = new ComponentMetricsCollector(Runtime.getRuntime().availableProcessors());
+        derivedCollector = new ComponentMetricsCollector(Runtime.getRuntime().availableProcessors(), null,
+                ComponentFilter.ALL, DerivedMetrics.compile("QueueFillRatio = QueuedCount / BackPressureObjectThreshold\n"
+                        + "BytesPerActiveThread = (BytesRead + BytesWritten) / ActiveThreads\n"
+                        + "Imbalance = InputCount - OutputCount"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        collector.close();
+        derivedCollector.close();
+    }
+
+    @Benchmark
+    public void createNifiMetrics(Blackhole blackhole) {
+        for (ProcessGroupStatus group : groups) {
+            final List<Metric> metrics = AzMonitorMetricsFactory.createNifiMetrics(group, eventTime);
+            blackhole.consume(metrics);
+        }
+    }
+
+    @Benchmark
+    public MetricBatch collectNifiMetrics() {
+        batch.clear("2019-06-01T00:00:00Z");
+        for (ProcessGroupStatus group : groups) {
+            AzMonitorMetricsFactory.collectNifiMetrics(group, batch);
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public MetricBatch collectComponentMetrics() {
+        batch.clear("2019-06-01T00:00:00Z");
+        collector.collect(groups.get(0), null, batch);
+        return batch;
+    }
+
+    @Benchmark
+    public MetricBatch collectComponentMetricsWithDerived() {
+        batch.clear("2019-06-01T00:00:00Z");
+        derivedCollector.collect(groups.get(0), null, batch);
+        return batch;
+    }
+
+    private static void flatten(ProcessGroupStatus group, List<ProcessGroupStatus> target) {
+        target.add(group);
+        for (ProcessGroupStatus child : group.getProcessGroupStatus()) {
+            flatten(child, target);
+        }
+    }
+}
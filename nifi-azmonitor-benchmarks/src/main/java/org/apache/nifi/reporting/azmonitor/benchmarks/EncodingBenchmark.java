@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
+import org.apache.nifi.reporting.azmonitor.api.ComponentMetricsCollector;
+import org.apache.nifi.reporting.azmonitor.api.NdjsonMetricEncoder;
+import org.apache.nifi.reporting.azmonitor.api.PayloadBuffer;
+import org.apache.nifi.reporting.azmonitor.api.PrometheusTextEncoder;
+import org.apache.nifi.reporting.azmonitor.metrics.Metric;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding throughput of one report. The Gson benchmark is the original approach of serializing
+ * each {@link Metric} to a string; the NDJSON benchmarks write the object model and the batch straight
+ * into a reused {@link PayloadBuffer}, with and without gzip. The Prometheus benchmark renders the scrape
+ * snapshot of the report. Run with the GC profiler to compare the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    @Param({"1000", "10000"})
+    public int components;
+
+    private MetricBatch batch;
+    private MetricBatch[] batches;
+    private List<Metric> metrics;
+    private Gson gson;
+    private NdjsonMetricEncoder plain;
+    private NdjsonMetricEncoder gzip;
+    private PrometheusTextEncoder prometheus;
+    private PayloadBuffer target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        final ComponentMetricsCollector collector = new ComponentMetricsCollector(1);
+        try {
+            collector.collect(StatusTrees.build(components), null, batch);
+        } finally {
+            collector.close();
+        }
+        metrics = AzMonitorMetricsFactory.toMetrics(batch);
+        gson = new Gson();
+        plain = new NdjsonMetricEncoder(false);
+        gzip = new NdjsonMetricEncoder(true);
+        batches = new MetricBatch[]{batch};
+        prometheus = new PrometheusTextEncoder();
+        target = new PayloadBuffer(64 * 1024);
+    }
+
+    @Benchmark
+    public byte[] gson() {
+        final StringBuilder body = new StringBuilder();
+        for (Metric metric : metrics) {
+            body.append(gson.toJson(metric)).append('\n');
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public PayloadBuffer ndjsonMetrics() {
+        plain.encode(metrics, target);
+        return target;
+    }
+
+    @Benchmark
+    public PayloadBuffer ndjsonBatch() {
+        plain.encode(batch, target);
+        return target;
+    }
+
+    @Benchmark
+    public PayloadBuffer ndjsonBatchGzip() {
+        gzip.encode(batch, target);
+        return target;
+    }
+
+    @Benchmark
+    public PayloadBuffer prometheusText() {
+        prometheus.encode(batches, 0, target);
+        return target;
+    }
+}
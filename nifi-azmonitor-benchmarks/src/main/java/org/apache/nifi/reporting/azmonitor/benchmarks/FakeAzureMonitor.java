@@ -0,0 +1,630 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * In-process stand-in for Azure AD and the Azure Monitor custom metrics endpoint.
+ * <p>
+ * The authority serves the client credentials grant on {@code /{tenant}/oauth2/token} over https, since
+ * ADAL refuses other schemes, with a certificate for 127.0.0.1 that is generated and self-signed on startup
+ * and that {@link #clientSslContext()} trusts. The metrics endpoint accepts NDJSON posts to {@code {resourceId}/metrics} over plain http and
+ * rejects them as Azure Monitor would: 401 for unknown or expired tokens, 413 for bodies over 1 MB and
+ * 400 for lines that are not a valid metric or lie outside the accepted time window.
+ * <p>
+ * Latency, throttling with Retry-After, server errors and connection resets can be injected into both
+ * endpoints at any time through the setters.
+ */
+public class FakeAzureMonitor implements AutoCloseable {
+
+    static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+    static final int MAX_DIMENSIONS = 10;
+    static final long MAX_PAST_MILLIS = TimeUnit.MINUTES.toMillis(20);
+    static final long MAX_FUTURE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String HOST = "127.0.0.1";
+    private static final long CERTIFICATE_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final HttpsServer authority;
+    private final HttpServer metrics;
+    private final ExecutorService executor;
+    private final SSLContext serverContext;
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+
+    private volatile String clientSecret;
+    private volatile long tokenLifetimeMillis = TimeUnit.HOURS.toMillis(1);
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile double errorRate;
+    private volatile double resetRate;
+
+    private final AtomicLong tokensIssued = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong acceptedPayloads = new AtomicLong();
+    private final AtomicLong acceptedMetrics = new AtomicLong();
+    private final AtomicLong acceptedSeries = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> acceptedSeriesByResource = new ConcurrentHashMap<>();
+    private final AtomicLong acceptedBytes = new AtomicLong();
+    private final AtomicLong unauthorized = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final LatencySamples deliveryDelays = new LatencySamples();
+
+    /**
+     * Starts both endpoints on ephemeral ports of the loopback interface.
+     *
+     * @param threads number of requests handled at once, including the ones delayed by injected latency
+     */
+    public FakeAzureMonitor(int threads) throws IOException, GeneralSecurityException {
+        // the key never leaves this instance, so its password only has to match between here and the key managers
+        final char[] password = UUID.randomUUID().toString().toCharArray();
+        final KeyStore keyStore = selfSignedKeyStore(password);
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "FakeAzureMonitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        authority = HttpsServer.create(new InetSocketAddress(HOST, 0), 0);
+        authority.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        authority.setExecutor(executor);
+        authority.createContext("/", this::handleToken);
+        metrics = HttpServer.create(new InetSocketAddress(HOST, 0), 0);
+        metrics.setExecutor(executor);
+        metrics.createContext("/", this::handleMetrics);
+        authority.start();
+        metrics.start();
+    }
+
+    /**
+     * @return a keystore holding a new key pair and a certificate for {@value #HOST} signed with it
+     */
+    private static KeyStore selfSignedKeyStore(char[] password) throws IOException, GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keyPair = generator.generateKeyPair();
+        final X500Name subject = new X500Name("CN=" + HOST);
+        final long now = System.currentTimeMillis();
+        final X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(now),
+                new Date(now - CERTIFICATE_VALIDITY_MILLIS), new Date(now + CERTIFICATE_VALIDITY_MILLIS), subject, keyPair.getPublic())
+                // clients verify the IP address they connect to against the subject alternative names
+                .addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName(GeneralName.iPAddress, HOST)));
+        final X509Certificate certificate;
+        try {
+            certificate = new JcaX509CertificateConverter()
+                    .getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException("Failed signing the certificate of the fake authority", e);
+        }
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("fake-azure-monitor", keyPair.getPrivate(), password, new Certificate[]{certificate});
+        return keyStore;
+    }
+
+    /**
+     * @return the value for the Azure AD Authority property
+     */
+    public String getAuthority() {
+        return "https://" + HOST + ":" + authority.getAddress().getPort();
+    }
+
+    /**
+     * @return the value for the Azure Monitor Endpoint property
+     */
+    public String getEndpoint() {
+        return "http://" + HOST + ":" + metrics.getAddress().getPort();
+    }
+
+    /**
+     * @return a client context that trusts the certificate of the authority
+     */
+    public SSLContext clientSslContext() {
+        return serverContext;
+    }
+
+    /**
+     * Only issues tokens for this client secret; any secret is accepted if null.
+     */
+    public void setClientSecret(String clientSecret) {
+        this.clientSecret = clientSecret;
+    }
+
+    public void setTokenLifetime(long duration, TimeUnit unit) {
+        this.tokenLifetimeMillis = unit.toMillis(duration);
+    }
+
+    /**
+     * Delays every response by {@code latency} plus a uniformly distributed jitter of up to {@code jitter}.
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+        this.latencyJitterMillis = unit.toMillis(jitter);
+    }
+
+    /**
+     * Answers this fraction of the requests with 429 and the given Retry-After.
+     */
+    public void setThrottling(double rate, int retryAfterSeconds) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Answers this fraction of the requests with 500 or 503.
+     */
+    public void setErrorRate(double rate) {
+        this.errorRate = rate;
+    }
+
+    /**
+     * Closes the connection of this fraction of the requests without answering.
+     */
+    public void setResetRate(double rate) {
+        this.resetRate = rate;
+    }
+
+    public long getTokensIssued() {
+        return tokensIssued.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAcceptedPayloads() {
+        return acceptedPayloads.get();
+    }
+
+    /**
+     * @return number of accepted NDJSON lines, i.e. metric documents
+     */
+    public long getAcceptedMetrics() {
+        return acceptedMetrics.get();
+    }
+
+    public long getAcceptedSeries() {
+        return acceptedSeries.get();
+    }
+
+    /**
+     * @return the accepted series by the resource ID they were posted for
+     */
+    public Map<String, Long> getAcceptedSeriesByResource() {
+        final Map<String, Long> series = new TreeMap<>();
+        acceptedSeriesByResource.forEach((resource, count) -> series.put(resource, count.get()));
+        return series;
+    }
+
+    /**
+     * @return number of accepted bytes as sent, i.e. compressed if the payload was
+     */
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    public long getUnauthorized() {
+        return unauthorized.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    /**
+     * @return delays in milliseconds between the time of the oldest metric of each accepted payload and its
+     * acceptance
+     */
+    LatencySamples getDeliveryDelays() {
+        return deliveryDelays;
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        try {
+            if (injectFault(exchange)) {
+                return;
+            }
+            final String[] path = exchange.getRequestURI().getPath().split("/");
+            if (!"POST".equals(exchange.getRequestMethod()) || path.length != 4 || !"oauth2".equals(path[2])
+                    || !"token".equals(path[3])) {
+                respond(exchange, 404, error("invalid_request", "Expected POST /{tenant}/oauth2/token"));
+                return;
+            }
+            final Map<String, String> form = parseForm(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            if (!"client_credentials".equals(form.get("grant_type")) || form.get("client_id") == null
+                    || form.get("resource") == null) {
+                respond(exchange, 400, error("invalid_request", "Expected a client_credentials grant with client_id and resource"));
+                return;
+            }
+            final String secret = clientSecret;
+            if (secret != null && !secret.equals(form.get("client_secret"))) {
+                respond(exchange, 401, error("invalid_client", "Invalid client secret"));
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final long expiresIn = TimeUnit.MILLISECONDS.toSeconds(tokenLifetimeMillis);
+            final String token = "fake-" + UUID.randomUUID();
+            tokens.put(token, now + tokenLifetimeMillis);
+            tokensIssued.incrementAndGet();
+
+            final JsonObject response = new JsonObject();
+            response.addProperty("token_type", "Bearer");
+            response.addProperty("expires_in", String.valueOf(expiresIn));
+            response.addProperty("ext_expires_in", String.valueOf(expiresIn));
+            response.addProperty("expires_on", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(now) + expiresIn));
+            response.addProperty("not_before", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(now)));
+            response.addProperty("resource", form.get("resource"));
+            response.addProperty("access_token", token);
+            respond(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (injectFault(exchange)) {
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod()) || !exchange.getRequestURI().getPath().endsWith("/metrics")) {
+                respond(exchange, 404, error("NotFound", "Expected POST {resourceId}/metrics"));
+                return;
+            }
+            final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            final Long expiry = authorization != null && authorization.startsWith("Bearer ")
+                    ? tokens.get(authorization.substring("Bearer ".length()))
+                    : null;
+            if (expiry == null || expiry <= System.currentTimeMillis()) {
+                unauthorized.incrementAndGet();
+                respond(exchange, 401, error("InvalidToken", "Missing, unknown or expired bearer token"));
+                return;
+            }
+
+            final byte[] body = readAll(exchange.getRequestBody());
+            if (body.length > MAX_PAYLOAD_BYTES) {
+                rejected.incrementAndGet();
+                respond(exchange, 413, error("RequestEntityTooLarge", "Payload exceeds " + MAX_PAYLOAD_BYTES + " bytes"));
+                return;
+            }
+            final boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            final String ndjson;
+            try {
+                ndjson = new String(gzip ? readAll(new GZIPInputStream(new ByteArrayInputStream(body))) : body,
+                        StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                rejected.incrementAndGet();
+                respond(exchange, 400, error("InvalidPayload", "Body is not valid gzip: " + e.getMessage()));
+                return;
+            }
+
+            final Validation validation = new Validation(System.currentTimeMillis());
+            final String problem = validation.validate(ndjson);
+            if (problem != null) {
+                rejected.incrementAndGet();
+                respond(exchange, 400, error("InvalidPayload", problem));
+                return;
+            }
+            acceptedPayloads.incrementAndGet();
+            acceptedMetrics.addAndGet(validation.metrics);
+            acceptedSeries.addAndGet(validation.series);
+            final String path = exchange.getRequestURI().getPath();
+            acceptedSeriesByResource.computeIfAbsent(path.substring(0, path.length() - "/metrics".length()),
+                    resource -> new AtomicLong()).addAndGet(validation.series);
+            acceptedBytes.addAndGet(body.length);
+            deliveryDelays.record(validation.now - validation.oldest);
+            respond(exchange, 200, new JsonObject());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return true if the request was answered with a fault or its connection was reset
+     */
+    private boolean injectFault(HttpExchange exchange) throws IOException {
+        final long jitter = latencyJitterMillis;
+        final long delay = latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < resetRate) {
+            resets.incrementAndGet();
+            // closing the exchange before any response was sent closes the connection
+            exchange.close();
+            return true;
+        }
+        if (random.nextDouble() < throttleRate) {
+            throttled.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+            respond(exchange, 429, error("TooManyRequests", "Throttled"));
+            return true;
+        }
+        if (random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            respond(exchange, random.nextBoolean() ? 500 : 503, error("InternalServerError", "Injected error"));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks every line of a payload against the custom metrics schema and counts its series.
+     */
+    private static final class Validation {
+        final long now;
+        long oldest = Long.MAX_VALUE;
+        int metrics;
+        int series;
+
+        Validation(long now) {
+            this.now = now;
+        }
+
+        /**
+         * @return a description of the first problem, or null if the payload is valid
+         */
+        String validate(String ndjson) {
+            int start = 0;
+            int line = 1;
+            while (start < ndjson.length()) {
+                int end = ndjson.indexOf('\n', start);
+                if (end < 0) {
+                    end = ndjson.length();
+                }
+                if (end > start) {
+                    final String problem = validateLine(ndjson.substring(start, end));
+                    if (problem != null) {
+                        return "Line " + line + ": " + problem;
+                    }
+                    metrics++;
+                }
+                start = end + 1;
+                line++;
+            }
+            return metrics == 0 ? "Payload holds no metrics" : null;
+        }
+
+        private String validateLine(String line) {
+            final JsonObject metric;
+            try {
+                final JsonElement element = new JsonParser().parse(line);
+                if (!element.isJsonObject()) {
+                    return "not a JSON object";
+                }
+                metric = element.getAsJsonObject();
+            } catch (JsonParseException e) {
+                return "invalid JSON: " + e.getMessage();
+            }
+
+            final String timeValue = string(metric, "time");
+            if (timeValue == null) {
+                return "missing time";
+            }
+            final long time;
+            try {
+                time = OffsetDateTime.parse(timeValue).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return "invalid time " + timeValue;
+            }
+            if (time < now - MAX_PAST_MILLIS || time > now + MAX_FUTURE_MILLIS) {
+                return "time is more than 20 minutes in the past or 5 minutes in the future";
+            }
+            oldest = Math.min(oldest, time);
+
+            final JsonObject baseData = object(object(metric, "data"), "baseData");
+            if (baseData == null) {
+                return "missing data.baseData";
+            }
+            if (string(baseData, "metric") == null || string(baseData, "namespace") == null) {
+                return "missing metric or namespace";
+            }
+            final JsonArray dimNames = array(baseData, "dimNames");
+            final int dimensions = dimNames == null ? 0 : dimNames.size();
+            if (dimensions > MAX_DIMENSIONS) {
+                return "more than " + MAX_DIMENSIONS + " dimensions";
+            }
+            final JsonArray entries = array(baseData, "series");
+            if (entries == null || entries.size() == 0) {
+                return "missing series";
+            }
+            for (JsonElement entry : entries) {
+                if (!entry.isJsonObject()) {
+                    return "series entry is not an object";
+                }
+                final JsonObject values = entry.getAsJsonObject();
+                final JsonArray dimValues = array(values, "dimValues");
+                if ((dimValues == null ? 0 : dimValues.size()) != dimensions) {
+                    return "dimValues do not match dimNames";
+                }
+                try {
+                    final double min = member(values, "min").getAsDouble();
+                    final double max = member(values, "max").getAsDouble();
+                    member(values, "sum").getAsDouble();
+                    final long count = member(values, "count").getAsLong();
+                    if (count < 1 || min > max) {
+                        return "count below 1 or min above max";
+                    }
+                } catch (RuntimeException e) {
+                    return "missing or invalid min, max, sum or count";
+                }
+                series++;
+            }
+            return null;
+        }
+
+        /**
+         * Azure Monitor matches property names case-insensitively.
+         */
+        private static JsonElement member(JsonObject parent, String name) {
+            final JsonElement element = parent.get(name);
+            if (element != null) {
+                return element;
+            }
+            for (Map.Entry<String, JsonElement> entry : parent.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        private static JsonObject object(JsonObject parent, String name) {
+            final JsonElement element = parent == null ? null : member(parent, name);
+            return element != null && element.isJsonObject() ? element.getAsJsonObject() : null;
+        }
+
+        private static JsonArray array(JsonObject parent, String name) {
+            final JsonElement element = member(parent, name);
+            return element != null && element.isJsonArray() ? element.getAsJsonArray() : null;
+        }
+
+        private static String string(JsonObject parent, String name) {
+            final JsonElement element = member(parent, name);
+            return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+        }
+    }
+
+    private static JsonObject error(String code, String message) {
+        final JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        final JsonObject response = new JsonObject();
+        response.add("error", error);
+        return response;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+        final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        final Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            final int equals = pair.indexOf('=');
+            if (equals > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        metrics.stop(0);
+        authority.stop(0);
+        executor.shutdownNow();
+    }
+}
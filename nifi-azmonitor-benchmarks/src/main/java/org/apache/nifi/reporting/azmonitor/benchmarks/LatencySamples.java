@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and computes percentiles over them. Kept exact rather than sketched since
+ * a soak run records at most one sample per report or payload.
+ */
+final class LatencySamples {
+
+    private long[] samples = new long[1024];
+    private int size;
+
+    synchronized void record(long value) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = value;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the sample at the given percentile, or 0 if there are none
+     */
+    synchronized long percentile(double percentile) {
+        if (size == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    synchronized void clear() {
+        size = 0;
+    }
+}
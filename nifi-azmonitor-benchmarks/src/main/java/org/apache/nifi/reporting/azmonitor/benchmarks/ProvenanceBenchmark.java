@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.reporting.azmonitor.api.ProvenanceLatencyCollector;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.util.MockComponentLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Provenance events per second that {@link ProvenanceLatencyCollector} records into its latency sketches,
+ * reading one page of {@link #PAGE_SIZE} events per invocation, including creating the events as the
+ * repository would. Every {@link #PAGES_PER_REPORT} pages the sketches are drained into a batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProvenanceBenchmark {
+
+    static final int PAGE_SIZE = 10000;
+    static final int PAGES_PER_REPORT = 100;
+
+    @Param({"10", "1000", "10000"})
+    public int components;
+
+    private ProvenanceEvents events;
+    private ProvenanceLatencyCollector collector;
+    private MetricBatch batch;
+    private int pages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        events = new ProvenanceEvents(components);
+        collector = new ProvenanceLatencyCollector(0, PAGE_SIZE, Math.min(components, 1000),
+                new MockComponentLog("provenance", this));
+        batch = new MetricBatch();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        collector.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public MetricBatch consumePage() throws IOException {
+        events.append(PAGE_SIZE);
+        collector.consume(events);
+        if (++pages % PAGES_PER_REPORT == 0) {
+            batch.clear("2019-06-01T00:00:00Z");
+            collector.collect(batch);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.provenance.ProvenanceEventBuilder;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventRepository;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.util.MockEventAccess;
+
+/**
+ * An event access whose provenance repository holds synthetic events of a fixed number of components.
+ * Events are created when they are read, like a real repository deserializes them, and their ids run up
+ * to a head that the caller moves forward.
+ */
+final class ProvenanceEvents extends MockEventAccess implements ProvenanceEventRepository {
+
+    private static final long START_MILLIS = 1559347200000L;
+
+    private final String[] componentIds;
+    private volatile long head = -1;
+
+    ProvenanceEvents(int components) {
+        componentIds = new String[components];
+        for (int c = 0; c < components; c++) {
+            componentIds[c] = String.format("00000000-0000-0000-0000-%012d", c);
+        }
+    }
+
+    /**
+     * Makes {@code events} more events available.
+     */
+    void append(long events) {
+        head += events;
+    }
+
+    @Override
+    public ProvenanceEventRepository getProvenanceRepository() {
+        return this;
+    }
+
+    @Override
+    public List<ProvenanceEventRecord> getProvenanceEvents(long firstEventId, int max) {
+        return getEvents(firstEventId, max);
+    }
+
+    @Override
+    public List<ProvenanceEventRecord> getEvents(long firstRecordId, int maxRecords) {
+        final long last = Math.min(head, firstRecordId + maxRecords - 1);
+        if (last < firstRecordId) {
+            return Collections.emptyList();
+        }
+        final List<ProvenanceEventRecord> events = new ArrayList<>((int) (last - firstRecordId + 1));
+        for (long id = firstRecordId; id <= last; id++) {
+            events.add(new Event(id, componentIds[(int) (id % componentIds.length)]));
+        }
+        return events;
+    }
+
+    @Override
+    public Long getMaxEventId() {
+        return head < 0 ? null : head;
+    }
+
+    @Override
+    public ProvenanceEventRecord getEvent(long id) {
+        return id <= head ? new Event(id, componentIds[(int) (id % componentIds.length)]) : null;
+    }
+
+    /**
+     * @return null, since events are synthesized from their ids rather than built
+     */
+    @Override
+    public ProvenanceEventBuilder eventBuilder() {
+        return null;
+    }
+
+    /**
+     * Moves the head forward; a registered event is read back as a synthetic one.
+     */
+    @Override
+    public void registerEvent(ProvenanceEventRecord event) {
+        append(1);
+    }
+
+    @Override
+    public void registerEvents(Iterable<ProvenanceEventRecord> events) {
+        for (ProvenanceEventRecord event : events) {
+            registerEvent(event);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * A ROUTE event with a duration and lineage age that vary with its id.
+     */
+    private static final class Event implements ProvenanceEventRecord {
+
+        private final long id;
+        private final String componentId;
+
+        Event(long id, String componentId) {
+            this.id = id;
+            this.componentId = componentId;
+        }
+
+        @Override
+        public long getEventId() {
+            return id;
+        }
+
+        @Override
+        public long getEventTime() {
+            return START_MILLIS + id;
+        }
+
+        @Override
+        public long getFlowFileEntryDate() {
+            return getLineageStartDate();
+        }
+
+        @Override
+        public long getLineageStartDate() {
+            return getEventTime() - id % 60000;
+        }
+
+        @Override
+        public long getFileSize() {
+            return 1024;
+        }
+
+        @Override
+        public Long getPreviousFileSize() {
+            return null;
+        }
+
+        @Override
+        public long getEventDuration() {
+            return id % 997;
+        }
+
+        @Override
+        public ProvenanceEventType getEventType() {
+            return ProvenanceEventType.ROUTE;
+        }
+
+        @Override
+        public Map<String, String> getAttributes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, String> getPreviousAttributes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, String> getUpdatedAttributes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public String getComponentType() {
+            return "RouteOnAttribute";
+        }
+
+        @Override
+        public String getTransitUri() {
+            return null;
+        }
+
+        @Override
+        public String getSourceSystemFlowFileIdentifier() {
+            return null;
+        }
+
+        @Override
+        public String getFlowFileUuid() {
+            return null;
+        }
+
+        @Override
+        public List<String> getParentUuids() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> getChildUuids() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getAlternateIdentifierUri() {
+            return null;
+        }
+
+        @Override
+        public String getDetails() {
+            return null;
+        }
+
+        @Override
+        public String getRelationship() {
+            return "matched";
+        }
+
+        @Override
+        public String getSourceQueueIdentifier() {
+            return null;
+        }
+
+        @Override
+        public String getContentClaimSection() {
+            return null;
+        }
+
+        @Override
+        public String getPreviousContentClaimSection() {
+            return null;
+        }
+
+        @Override
+        public String getContentClaimContainer() {
+            return null;
+        }
+
+        @Override
+        public String getPreviousContentClaimContainer() {
+            return null;
+        }
+
+        @Override
+        public String getContentClaimIdentifier() {
+            return null;
+        }
+
+        @Override
+        public String getPreviousContentClaimIdentifier() {
+            return null;
+        }
+
+        @Override
+        public Long getContentClaimOffset() {
+            return null;
+        }
+
+        @Override
+        public Long getPreviousContentClaimOffset() {
+            return null;
+        }
+
+        @Override
+        public String getBestEventIdentifier() {
+            return Long.toString(id);
+        }
+    }
+}
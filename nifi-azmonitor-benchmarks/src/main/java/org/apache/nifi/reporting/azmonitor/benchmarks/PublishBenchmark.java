@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorDispatcher;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorPublisher;
+import org.apache.nifi.reporting.azmonitor.api.ComponentMetricsCollector;
+import org.apache.nifi.reporting.azmonitor.api.NdjsonMetricEncoder;
+import org.apache.nifi.reporting.azmonitor.api.PayloadBuffer;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.util.MockComponentLog;
+import org.asynchttpclient.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of publishing one report against an in-process HTTP stub that accepts every
+ * request, so the numbers cover encoding, compression, dispatching and the HTTP client but not the
+ * network or Azure Monitor itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+
+    private static final int MAX_CONCURRENCY = 8;
+
+    @Param({"1000", "10000"})
+    public int components;
+
+    @Param({"true", "false"})
+    public boolean gzip;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String endpoint;
+    private AzMonitorPublisher publisher;
+    private AzMonitorDispatcher dispatcher;
+    private NdjsonMetricEncoder encoder;
+    private MetricBatch batch;
+    private PayloadBuffer payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverExecutor = Executors.newFixedThreadPool(MAX_CONCURRENCY);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", PublishBenchmark::accept);
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/metrics";
+
+        publisher = new AzMonitorPublisher(MAX_CONCURRENCY + 1);
+        dispatcher = new AzMonitorDispatcher(publisher, () -> "token", MAX_CONCURRENCY, new ReporterHealth(),
+                new MockComponentLog("benchmark", this));
+        encoder = new NdjsonMetricEncoder(gzip);
+
+        batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        final ComponentMetricsCollector collector = new ComponentMetricsCollector(1);
+        try {
+            collector.collect(StatusTrees.build(components), null, batch);
+        } finally {
+            collector.close();
+        }
+        payload = publisher.newBuffer();
+        encoder.encode(batch, payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dispatcher.close();
+        publisher.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * A single post of a pre-encoded payload.
+     */
+    @Benchmark
+    public Response post() throws Exception {
+        return publisher.post(endpoint, "token", payload).get();
+    }
+
+    /**
+     * Encodes the batch into size-bounded payloads and dispatches them, as one report does.
+     */
+    @Benchmark
+    public int report() throws Exception {
+        final List<CompletableFuture<Response>> responses = new ArrayList<>();
+        encoder.encode(batch, dispatcher.getMaxPayloadBytes(), publisher::newBuffer,
+                body -> responses.add(dispatcher.dispatch(endpoint, body)));
+        int accepted = 0;
+        for (CompletableFuture<Response> response : responses) {
+            if (AzMonitorPublisher.isSuccess(response.get())) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private static void accept(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            final byte[] discard = new byte[8192];
+            while (body.read(discard) >= 0) {
+                // drain the request so the connection can be reused
+            }
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.registry.VariableRegistry;
+import org.apache.nifi.reporting.azmonitor.AzMonitorReportingTask;
+import org.apache.nifi.state.MockStateManager;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.apache.nifi.util.MockReportingContext;
+import org.apache.nifi.util.MockReportingInitializationContext;
+
+/**
+ * Runs {@link AzMonitorReportingTask} against a {@link FakeAzureMonitor} on an accelerated schedule over
+ * a synthetic flow, and prints the sustained series per second, the report and delivery latencies and
+ * the heap growth.
+ * <p>
+ * Options are given as {@code --name=value}:
+ * <ul>
+ * <li>components: size of the synthetic flow, 20000 by default</li>
+ * <li>period: milliseconds between reports, 1000 by default</li>
+ * <li>duration: seconds to run, 300 by default; the first tenth is warm-up</li>
+ * <li>compress, concurrency, counterMode, maxComponents: the corresponding task properties</li>
+ * <li>spread: the Dispatch Spread in milliseconds, unset by default</li>
+ * <li>destinations: routes the series of this many child groups of the root group to their own resource</li>
+ * <li>heartbeat: enables Suppress Unchanged Series with this Heartbeat Interval in milliseconds</li>
+ * <li>metrics and excludeTypes: the Metric Names and Exclude Component Types</li>
+ * <li>derived: the Derived Metrics, separated by ';'; suppressInputs: Suppress Derived Inputs</li>
+ * <li>overflow: the Overflow Policy, DROP_OLDEST, SPOOL or COALESCE</li>
+ * <li>sinks: the Metric Sinks, e.g. azure-monitor,noop; fileDirectory: the NDJSON File Directory; scrapePort:
+ * the Scrape Port</li>
+ * <li>latency and jitter: milliseconds added to every response</li>
+ * <li>throttle, errors and resets: fraction of the requests answered with 429, 5xx or a closed connection</li>
+ * <li>retryAfter: seconds sent with the 429 responses</li>
+ * <li>tokenLifetime: seconds an access token is valid, to exercise token refreshes</li>
+ * </ul>
+ * For example: {@code java -cp target/benchmarks.jar org.apache.nifi.reporting.azmonitor.benchmarks.SoakDriver
+ * --components=50000 --period=500 --throttle=0.05 --resets=0.01}
+ */
+public final class SoakDriver {
+
+    private static final String SUBJECT = "/subscriptions/00000000-0000-0000-0000-000000000000/resourceGroups/soak"
+            + "/providers/Microsoft.Compute/virtualMachines/nifi";
+    private static final String CLIENT_SECRET = "soak-secret";
+    private static final long PROGRESS_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private SoakDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        final int components = Integer.parseInt(options.getOrDefault("components", "20000"));
+        final long periodMillis = Long.parseLong(options.getOrDefault("period", "1000"));
+        final long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "300")));
+        final long warmupMillis = durationMillis / 10;
+
+        try (FakeAzureMonitor azure = new FakeAzureMonitor(64)) {
+            azure.setClientSecret(CLIENT_SECRET);
+            azure.setTokenLifetime(Long.parseLong(options.getOrDefault("tokenLifetime", "3600")), TimeUnit.SECONDS);
+            azure.setLatency(Long.parseLong(options.getOrDefault("latency", "20")),
+                    Long.parseLong(options.getOrDefault("jitter", "30")), TimeUnit.MILLISECONDS);
+            azure.setThrottling(Double.parseDouble(options.getOrDefault("throttle", "0")),
+                    Integer.parseInt(options.getOrDefault("retryAfter", "1")));
+            azure.setErrorRate(Double.parseDouble(options.getOrDefault("errors", "0")));
+            azure.setResetRate(Double.parseDouble(options.getOrDefault("resets", "0")));
+            // ADAL posts to the authority with HttpsURLConnection
+            HttpsURLConnection.setDefaultSSLSocketFactory(azure.clientSslContext().getSocketFactory());
+
+            final AzMonitorReportingTask task = new AzMonitorReportingTask();
+            task.initialize(new MockReportingInitializationContext("soak", "Soak", new MockComponentLog("soak", task)));
+
+            final Map<PropertyDescriptor, String> properties = new HashMap<>();
+            properties.put(property(task, "Azure AD Tenant"), "soak-tenant");
+            properties.put(property(task, "Custom Metrics Subject"), SUBJECT);
+            properties.put(property(task, "AAD Application ID"), "soak-client");
+            properties.put(property(task, "AAD Client Secrets"), CLIENT_SECRET);
+            properties.put(property(task, "Azure AD Authority"), azure.getAuthority());
+            properties.put(property(task, "Azure Monitor Endpoint"), azure.getEndpoint());
+            properties.put(property(task, "Instance ID"), "soak");
+            properties.put(property(task, "Report Component Metrics"), "true");
+            properties.put(property(task, "Send JVM-metrics"), "true");
+            properties.put(property(task, "Compress Payload"), options.getOrDefault("compress", "true"));
+            properties.put(property(task, "Max Concurrent Requests"), options.getOrDefault("concurrency", "8"));
+            properties.put(property(task, "Counter Mode"), options.getOrDefault("counterMode", "Delta"));
+            if (options.containsKey("maxComponents")) {
+                properties.put(property(task, "Max Reported Components"), options.get("maxComponents"));
+            }
+            final int destinations = Integer.parseInt(options.getOrDefault("destinations", "0"));
+            for (int d = 1; d <= destinations; d++) {
+                properties.put(task.getPropertyDescriptor("tenant" + d + ".groups"), "group-" + d);
+                properties.put(task.getPropertyDescriptor("tenant" + d + ".subject"), SUBJECT + "-tenant" + d);
+            }
+            if (options.containsKey("heartbeat")) {
+                properties.put(property(task, "Suppress Unchanged Series"), "true");
+                properties.put(property(task, "Heartbeat Interval"), options.get("heartbeat") + " millis");
+            }
+            if (options.containsKey("metrics")) {
+                properties.put(property(task, "Metric Names"), options.get("metrics"));
+            }
+            if (options.containsKey("derived")) {
+                properties.put(property(task, "Derived Metrics"), options.get("derived").replace(';', '\n'));
+                properties.put(property(task, "Suppress Derived Inputs"), options.getOrDefault("suppressInputs", "false"));
+            }
+            if (options.containsKey("excludeTypes")) {
+                properties.put(property(task, "Exclude Component Types"), options.get("excludeTypes"));
+            }
+            if (options.containsKey("overflow")) {
+                properties.put(property(task, "Overflow Policy"), options.get("overflow"));
+            }
+            if (options.containsKey("sinks")) {
+                properties.put(property(task, "Metric Sinks"), options.get("sinks"));
+            }
+            if (options.containsKey("fileDirectory")) {
+                properties.put(property(task, "NDJSON File Directory"), options.get("fileDirectory"));
+            }
+            if (options.containsKey("scrapePort")) {
+                properties.put(property(task, "Scrape Port"), options.get("scrapePort"));
+            }
+            if (options.containsKey("spread")) {
+                properties.put(property(task, "Dispatch Spread"), options.get("spread") + " millis");
+            }
+
+            final MockReportingContext reportingContext = new MockReportingContext(Collections.emptyMap(),
+                    new MockStateManager(task), VariableRegistry.EMPTY_REGISTRY);
+            reportingContext.setProperties(properties);
+            reportingContext.getEventAccess().setProcessGroupStatus(StatusTrees.build(components));
+
+            task.onScheduled(new MockConfigurationContext(properties, reportingContext, VariableRegistry.EMPTY_REGISTRY) {
+                @Override
+                public Long getSchedulingPeriod(TimeUnit timeUnit) {
+                    // the mock reports 0, which would never count a report as overrunning
+                    return timeUnit.convert(periodMillis, TimeUnit.MILLISECONDS);
+                }
+            });
+            final Soak soak = new Soak(azure);
+            try {
+                soak.run(task, reportingContext, periodMillis, warmupMillis, durationMillis);
+            } finally {
+                task.onUnscheduled();
+                task.onStopped();
+            }
+            soak.printSummary();
+        }
+    }
+
+    /**
+     * Triggers the task at a fixed rate and tracks the results after the warm-up.
+     */
+    private static final class Soak {
+        private final FakeAzureMonitor azure;
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final LatencySamples reportMillis = new LatencySamples();
+        private long measuredMillis;
+        private long baselineSeries;
+        private long baselineHeap;
+        private long finalHeap;
+        private long peakHeap;
+        private long reports;
+
+        Soak(FakeAzureMonitor azure) {
+            this.azure = azure;
+        }
+
+        void run(AzMonitorReportingTask task, MockReportingContext context, long periodMillis, long warmupMillis,
+                 long durationMillis) throws InterruptedException {
+            final long start = System.currentTimeMillis();
+            long measureStart = -1;
+            long nextProgress = start + PROGRESS_INTERVAL_MILLIS;
+            long next = start;
+            while (next - start < durationMillis) {
+                final long wait = next - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                if (measureStart < 0 && next - start >= warmupMillis) {
+                    baselineHeap = usedHeapAfterGc();
+                    baselineSeries = azure.getAcceptedSeries();
+                    azure.getDeliveryDelays().clear();
+                    measureStart = System.currentTimeMillis();
+                }
+
+                final long triggerStart = System.nanoTime();
+                task.onTrigger(context);
+                final long triggerMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - triggerStart);
+                if (measureStart >= 0) {
+                    reportMillis.record(triggerMillis);
+                    reports++;
+                    peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                }
+
+                if (System.currentTimeMillis() >= nextProgress) {
+                    printProgress(start);
+                    nextProgress += PROGRESS_INTERVAL_MILLIS;
+                }
+                next += periodMillis;
+            }
+            measuredMillis = System.currentTimeMillis() - measureStart;
+            finalHeap = usedHeapAfterGc();
+        }
+
+        private void printProgress(long start) {
+            System.out.printf("%4ds  series=%d  requests=%d  throttled=%d  errors=%d  resets=%d  rejected=%d  "
+                            + "unauthorized=%d  report p99=%dms  delivery p99=%dms  heap=%dMB%n",
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start),
+                    azure.getAcceptedSeries(), azure.getRequests(), azure.getThrottled(), azure.getErrors(),
+                    azure.getResets(), azure.getRejected(), azure.getUnauthorized(),
+                    reportMillis.percentile(99), azure.getDeliveryDelays().percentile(99),
+                    memory.getHeapMemoryUsage().getUsed() >> 20);
+        }
+
+        void printSummary() {
+            final double seconds = Math.max(1, measuredMillis) / 1000.0;
+            System.out.println();
+            System.out.printf("reports:             %d in %.0f s after warm-up%n", reports, seconds);
+            System.out.printf("series/sec:          %.0f%n", (azure.getAcceptedSeries() - baselineSeries) / seconds);
+            System.out.printf("report latency:      p50=%dms p99=%dms max=%dms%n",
+                    reportMillis.percentile(50), reportMillis.percentile(99), reportMillis.percentile(100));
+            final LatencySamples delivery = azure.getDeliveryDelays();
+            System.out.printf("delivery latency:    p50=%dms p99=%dms max=%dms over %d payloads%n",
+                    delivery.percentile(50), delivery.percentile(99), delivery.percentile(100), delivery.size());
+            System.out.printf("heap after GC:       %dMB -> %dMB (growth %+dKB), peak %dMB%n",
+                    baselineHeap >> 20, finalHeap >> 20, (finalHeap - baselineHeap) >> 10, peakHeap >> 20);
+            System.out.printf("requests:            %d, tokens %d, throttled %d, errors %d, resets %d, rejected %d, "
+                            + "unauthorized %d%n",
+                    azure.getRequests(), azure.getTokensIssued(), azure.getThrottled(), azure.getErrors(),
+                    azure.getResets(), azure.getRejected(), azure.getUnauthorized());
+            final Map<String, Long> byResource = azure.getAcceptedSeriesByResource();
+            if (byResource.size() > 1) {
+                byResource.forEach((resource, series) -> System.out.printf("  %-20s %d series%n",
+                        resource.substring(resource.lastIndexOf('/') + 1), series));
+            }
+        }
+
+        private long usedHeapAfterGc() {
+            System.gc();
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    private static PropertyDescriptor property(AzMonitorReportingTask task, String name) {
+        for (PropertyDescriptor descriptor : task.getPropertyDescriptors()) {
+            if (descriptor.getName().equals(name)) {
+                return descriptor;
+            }
+        }
+        throw new IllegalArgumentException("Unknown property " + name);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+}
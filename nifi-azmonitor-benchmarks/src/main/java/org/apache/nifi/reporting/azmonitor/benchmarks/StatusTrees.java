@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.PortStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+
+/**
+ * Builds synthetic status trees shaped like a typical flow: nested process groups, each holding a
+ * handful of processors, the connections between them and an input port.
+ */
+final class StatusTrees {
+
+    static final int PROCESSORS_PER_GROUP = 8;
+    static final int CHILD_GROUPS = 4;
+    // the group itself, its processors, one connection per processor and an input port
+    static final int COMPONENTS_PER_GROUP = 1 + 2 * PROCESSORS_PER_GROUP + 1;
+
+    private StatusTrees() {
+    }
+
+    /**
+     * @return the root of a tree with about {@code components} components
+     */
+    static ProcessGroupStatus build(int components) {
+        final Random random = new Random(components);
+        final int groups = Math.max(1, components / COMPONENTS_PER_GROUP);
+        final ProcessGroupStatus root = group(0, random);
+        final Queue<ProcessGroupStatus> parents = new ArrayDeque<>();
+        parents.add(root);
+        int created = 1;
+        while (created < groups) {
+            final ProcessGroupStatus parent = parents.poll();
+            final List<ProcessGroupStatus> children = new ArrayList<>(CHILD_GROUPS);
+            for (int c = 0; c < CHILD_GROUPS && created < groups; c++) {
+                final ProcessGroupStatus child = group(created++, random);
+                children.add(child);
+                parents.add(child);
+            }
+            parent.setProcessGroupStatus(children);
+        }
+        return root;
+    }
+
+    private static ProcessGroupStatus group(int index, Random random) {
+        final String groupId = id("group", index);
+        final ProcessGroupStatus group = new ProcessGroupStatus();
+        group.setId(groupId);
+        group.setName("Group " + index);
+        group.setFlowFilesReceived(random.nextInt(10000));
+        group.setBytesReceived(random.nextInt(Integer.MAX_VALUE));
+        group.setInputCount(random.nextInt(10000));
+        group.setInputContentSize((long) random.nextInt(Integer.MAX_VALUE));
+        group.setOutputCount(random.nextInt(10000));
+        group.setOutputContentSize((long) random.nextInt(Integer.MAX_VALUE));
+        group.setQueuedCount(random.nextInt(1000));
+        group.setQueuedContentSize((long) random.nextInt(Integer.MAX_VALUE));
+        group.setActiveThreadCount(random.nextInt(8));
+
+        final List<ProcessorStatus> processors = new ArrayList<>(PROCESSORS_PER_GROUP);
+        final List<ConnectionStatus> connections = new ArrayList<>(PROCESSORS_PER_GROUP);
+        for (int p = 0; p < PROCESSORS_PER_GROUP; p++) {
+            final ProcessorStatus processor = new ProcessorStatus();
+            processor.setId(id(groupId + "-processor", p));
+            processor.setGroupId(groupId);
+            processor.setName("Processor " + p);
+            processor.setType(p % 2 == 0 ? "UpdateAttribute" : "RouteOnAttribute");
+            processor.setInputCount(random.nextInt(10000));
+            processor.setInputBytes(random.nextInt(Integer.MAX_VALUE));
+            processor.setOutputCount(random.nextInt(10000));
+            processor.setOutputBytes(random.nextInt(Integer.MAX_VALUE));
+            processor.setBytesRead(random.nextInt(Integer.MAX_VALUE));
+            processor.setBytesWritten(random.nextInt(Integer.MAX_VALUE));
+            processor.setInvocations(random.nextInt(100000));
+            processor.setProcessingNanos(random.nextInt(Integer.MAX_VALUE));
+            processor.setActiveThreadCount(random.nextInt(4));
+            processors.add(processor);
+
+            final ConnectionStatus connection = new ConnectionStatus();
+            connection.setId(id(groupId + "-connection", p));
+            connection.setGroupId(groupId);
+            connection.setName("success");
+            connection.setInputCount(random.nextInt(10000));
+            connection.setInputBytes(random.nextInt(Integer.MAX_VALUE));
+            connection.setOutputCount(random.nextInt(10000));
+            connection.setOutputBytes(random.nextInt(Integer.MAX_VALUE));
+            connection.setQueuedCount(random.nextInt(1000));
+            connection.setQueuedBytes(random.nextInt(Integer.MAX_VALUE));
+            connection.setBackPressureObjectThreshold(10_000);
+            connection.setBackPressureBytesThreshold(1L << 30);
+            connections.add(connection);
+        }
+        group.setProcessorStatus(processors);
+        group.setConnectionStatus(connections);
+
+        final PortStatus port = new PortStatus();
+        port.setId(id(groupId + "-input", 0));
+        port.setGroupId(groupId);
+        port.setName("in");
+        port.setInputCount(random.nextInt(10000));
+        port.setInputBytes((long) random.nextInt(Integer.MAX_VALUE));
+        port.setActiveThreadCount(0);
+        group.setInputPortStatus(Collections.singletonList(port));
+        group.setOutputPortStatus(Collections.emptyList());
+        group.setRemoteProcessGroupStatus(Collections.emptyList());
+        group.setProcessGroupStatus(Collections.emptyList());
+        return group;
+    }
+
+    private static String id(String prefix, int index) {
+        return prefix + "-" + index;
+    }
+}
@@ -16,41 +16,71 @@
  */
 package org.apache.nifi.reporting.azmonitor;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-import com.google.gson.Gson;
-import com.microsoft.aad.adal4j.AuthenticationContext;
-import com.microsoft.aad.adal4j.AuthenticationResult;
-import com.microsoft.aad.adal4j.ClientCredential;
-import com.yammer.metrics.core.VirtualMachineMetrics;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.configuration.DefaultSchedule;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.annotation.notification.OnPrimaryNodeStateChange;
+import org.apache.nifi.annotation.notification.PrimaryNodeState;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.controller.status.ProcessGroupStatus;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.AbstractReportingTask;
 import org.apache.nifi.reporting.ReportingContext;
 import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
-import org.apache.nifi.reporting.azmonitor.metrics.Metric;
+import org.apache.nifi.reporting.azmonitor.api.AzureTokenManager;
+import org.apache.nifi.reporting.azmonitor.api.CardinalityGuard;
+import org.apache.nifi.reporting.azmonitor.api.ChangeSuppressor;
+import org.apache.nifi.reporting.azmonitor.api.ComponentFilter;
+import org.apache.nifi.reporting.azmonitor.api.ComponentMetricsCollector;
+import org.apache.nifi.reporting.azmonitor.api.DerivedMetrics;
+import org.apache.nifi.reporting.azmonitor.api.CounterStateStore;
+import org.apache.nifi.reporting.azmonitor.api.JvmMetricsCollector;
+import org.apache.nifi.reporting.azmonitor.api.ProvenanceLatencyCollector;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReportPipeline;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.api.ReportingPlan;
+import org.apache.nifi.reporting.azmonitor.api.StatusSampler;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.apache.nifi.reporting.azmonitor.sink.MetricSink;
+import org.apache.nifi.reporting.azmonitor.sink.MetricSinkContext;
+import org.apache.nifi.reporting.azmonitor.sink.MetricSinks;
 import org.apache.nifi.scheduling.SchedulingStrategy;
 
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 
 
 /**
@@ -58,12 +88,25 @@ import java.time.ZoneOffset;
  */
 @Tags({"reporting", "azmonitor", "metrics"})
 @CapabilityDescription("Sends JVM-metrics as well as Nifi-metrics to a Azure Monitor." +
-        "Nifi-metrics can be either configured global or on process-group level.")
+        "Nifi-metrics can be either configured global or on process-group level. " +
+        "The same metrics can also be exported to other sinks, e.g. a rolling local NDJSON file.")
 @DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "1 min")
+@DynamicProperty(name = "<destination>.<field>", value = "The value of the field",
+        expressionLanguageScope = ExpressionLanguageScope.VARIABLE_REGISTRY,
+        description = "Routes the series of process groups to another Azure resource. The field '"
+                + AzMonitorReportingTask.DESTINATION_GROUPS + "' lists the process group IDs, separated by commas, and '"
+                + AzMonitorReportingTask.DESTINATION_SUBJECT + "' is the resource ID of the destination; both are required. "
+                + "Optional fields are '" + AzMonitorReportingTask.DESTINATION_REGION + "', '"
+                + AzMonitorReportingTask.DESTINATION_ENDPOINT + "', '" + AzMonitorReportingTask.DESTINATION_TENANT + "', '"
+                + AzMonitorReportingTask.DESTINATION_CLIENT_ID + "' and '" + AzMonitorReportingTask.DESTINATION_CLIENT_SECRET
+                + "', which default to the corresponding properties of the task. For example tenantA.groups and "
+                + "tenantA.subject send the series of tenantA's groups and the components below them to tenantA's resource, "
+                + "with its own bearer token and connections. Everything else goes to the Custom Metrics Subject")
+@Stateful(scopes = Scope.LOCAL, description = "When 'Persist Counter State' is enabled, the last reading of every "
+        + "counter series is stored so that deltas continue across restarts. When 'Report Provenance Latency' is enabled, "
+        + "the id of the next provenance event to read is stored so latencies continue where they left off.")
 public class AzMonitorReportingTask extends AbstractReportingTask {
 
-    private static final String JVM_JOB_NAME = "jvm_global";
-
     static final PropertyDescriptor AZURE_MONITOR_REGION = new PropertyDescriptor.Builder()
             .name("Azure Monitor Region")
             .description("the deployment region of the resource")
@@ -100,6 +143,25 @@ public class AzMonitorReportingTask extends AbstractReportingTask {
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)            
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+    static final PropertyDescriptor AAD_AUTHORITY = new PropertyDescriptor.Builder()
+            .name("Azure AD Authority")
+            .description("Base URL of the Azure AD authority the bearer token is requested from. The tenant and "
+                    + "/oauth2/token are appended. Change it for national clouds, e.g. https://login.microsoftonline.us, "
+                    + "or to point the task at a local stand-in. Azure AD requires https")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .defaultValue(AzureTokenManager.DEFAULT_AUTHORITY)
+            .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("https://[^/?#]+/?")))
+            .build();
+    static final PropertyDescriptor AZURE_MONITOR_ENDPOINT = new PropertyDescriptor.Builder()
+            .name("Azure Monitor Endpoint")
+            .description("Base URL of the metrics ingestion endpoint, e.g. https://eastus.monitoring.azure.com. The "
+                    + "Custom Metrics Subject and /metrics are appended. If not set, the endpoint of the Azure Monitor "
+                    + "Region is used")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .build();
     static final PropertyDescriptor APPLICATION_ID = new PropertyDescriptor.Builder()
             .name("Application ID")
             .description("The Application ID to be included in the metrics sent to Azure Monitor")
@@ -116,6 +178,32 @@ public class AzMonitorReportingTask extends AbstractReportingTask {
             .defaultValue("${hostname(true)}")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+    static final AllowableValue CLUSTER_EVERY_NODE = new AllowableValue("Every Node", "Every Node",
+            "Every node of a cluster sends the metrics of its own flow, with the node identifier as the '"
+                    + MetricNames.DIM_NODE + "' dimension so the series of the nodes don't collide. Cluster totals are "
+                    + "the Sum of a metric over all nodes");
+    static final AllowableValue CLUSTER_PRIMARY_NODE = new AllowableValue("Primary Node Only", "Primary Node Only",
+            "Only the primary node sends metrics, without a node dimension, so the series continue when another node "
+                    + "is elected. The other nodes send nothing, which keeps the number of requests and series independent "
+                    + "of the size of the cluster. NiFi hands reporting tasks the status of their own node only, so this "
+                    + "is the primary node's view of the flow");
+    static final PropertyDescriptor CLUSTER_REPORTING = new PropertyDescriptor.Builder()
+            .name("Cluster Reporting")
+            .description("Which nodes send metrics when NiFi runs as a cluster. Has no effect on a standalone instance")
+            .allowableValues(CLUSTER_EVERY_NODE, CLUSTER_PRIMARY_NODE)
+            .defaultValue(CLUSTER_EVERY_NODE.getValue())
+            .required(true)
+            .build();
+    static final PropertyDescriptor DISPATCH_SPREAD = new PropertyDescriptor.Builder()
+            .name("Dispatch Spread")
+            .description("If set, each report is held back by a fixed offset within this period before it is sent. The "
+                    + "offset is derived from the cluster node identifier, or from the Instance ID on a standalone "
+                    + "instance, so nodes that run on the same schedule send at different times instead of all at once "
+                    + "and are not throttled together. Should be well below the run schedule, e.g. 30 sec for a 1 min "
+                    + "schedule")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
     static final PropertyDescriptor PROCESS_GROUP_IDS = new PropertyDescriptor.Builder()
             .name("Process group ID(s)")
             .description("If specified, the reporting task will send metrics the configured ProcessGroup(s) only. Multiple IDs should be separated by a comma. If"
@@ -135,11 +223,336 @@ public class AzMonitorReportingTask extends AbstractReportingTask {
             .build();
     static final PropertyDescriptor SEND_JVM_METRICS = new PropertyDescriptor.Builder()
             .name("Send JVM-metrics")
-            .description("Send JVM-metrics in addition to the Nifi-metrics")
+            .description("Send JVM-metrics in addition to the Nifi-metrics: heap and non-heap usage, thread counts by "
+                    + "state, file descriptor usage and the garbage collections per collector since the previous report, "
+                    + "in the '" + AzMonitorMetricsFactory.JVM_METRICS_NAMESPACE + "' namespace")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    static final PropertyDescriptor SEND_HEALTH_METRICS = new PropertyDescriptor.Builder()
+            .name("Send Reporter Health Metrics")
+            .description("Send timings and counters of this reporting task in the '"
+                    + AzMonitorMetricsFactory.REPORTER_HEALTH_NAMESPACE + "' namespace: the duration of collecting, "
+                    + "encoding, waiting for the bearer token, each request and each whole report by Phase, the "
+                    + "responses by StatusCode, retries, bytes encoded, series sent and the number of spooled reports. "
+                    + "Independently of this setting, a warning bulletin names the slowest phase of reports that take "
+                    + "longer than the run schedule")
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .required(true)
+            .build();
+    static final AllowableValue OVERFLOW_DROP_OLDEST = new AllowableValue(ReportPipeline.OverflowPolicy.DROP_OLDEST.name(),
+            "Drop Oldest", "The oldest waiting report is dropped");
+    static final AllowableValue OVERFLOW_SPOOL = new AllowableValue(ReportPipeline.OverflowPolicy.SPOOL.name(),
+            "Spool", "The oldest waiting report is written to the Spool Directory and sent once the spool is replayed");
+    static final AllowableValue OVERFLOW_COALESCE = new AllowableValue(ReportPipeline.OverflowPolicy.COALESCE.name(),
+            "Coalesce", "The oldest waiting report is merged into the new one: every series is sent once with the Min, "
+                    + "Max, Sum and Count of both reports, so deltas are not lost but reported at a coarser resolution");
+    static final PropertyDescriptor METRIC_SINKS = new PropertyDescriptor.Builder()
+            .name("Metric Sinks")
+            .description("Names of the sinks every report is exported to, separated by commas. Each sink is fed by its own "
+                    + "thread and report queue, so a slow sink holds back neither the others nor the next report. Available: "
+                    + MetricSinks.load(AzMonitorReportingTask.class.getClassLoader()).values().stream()
+                            .map(sink -> sink.getName() + " " + sink.getDescription())
+                            .collect(Collectors.joining("; ")))
+            .required(true)
+            .defaultValue(AzMonitorSink.NAME)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor REPORT_QUEUE_SIZE = new PropertyDescriptor.Builder()
+            .name("Report Queue Size")
+            .description("Reports are encoded and sent on a separate thread per sink, so a slow Azure Monitor does not "
+                    + "hold the thread NiFi runs reporting tasks on. At most this many reports wait for each sink; when another "
+                    + "one comes, the Overflow Policy applies. The number of waiting and overflowed reports is sent in "
+                    + "the '" + AzMonitorMetricsFactory.REPORTER_HEALTH_NAMESPACE + "' namespace")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor OVERFLOW_POLICY = new PropertyDescriptor.Builder()
+            .name("Overflow Policy")
+            .description("What happens to the oldest waiting report when the report queue of a sink is full. Spool requires a "
+                    + "Spool Directory, and sinks other than " + AzMonitorSink.NAME + " drop the report instead")
+            .allowableValues(OVERFLOW_DROP_OLDEST, OVERFLOW_SPOOL, OVERFLOW_COALESCE)
+            .defaultValue(OVERFLOW_COALESCE.getValue())
+            .required(true)
+            .build();
+    static final PropertyDescriptor MAX_CONCURRENT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Requests")
+            .description("Maximum number of requests to Azure Monitor that may be in flight at once. The number is halved "
+                    + "while Azure Monitor throttles and grows back as requests succeed. Also bounds the number of pooled "
+                    + "keep-alive connections to the metrics endpoint")
+            .required(true)
+            .defaultValue("8")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor COMPRESS_PAYLOAD = new PropertyDescriptor.Builder()
+            .name("Compress Payload")
+            .description("Gzip the metrics payload and send it with Content-Encoding: gzip")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor REPORT_COMPONENT_METRICS = new PropertyDescriptor.Builder()
+            .name("Report Component Metrics")
+            .description("In addition to the totals of each process group, send metrics for every process group, processor, "
+                    + "connection, port and remote process group below it, with the component name, type, id and parent group "
+                    + "as dimensions")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    static final PropertyDescriptor INCLUDE_COMPONENT_NAMES = new PropertyDescriptor.Builder()
+            .name("Include Component Names")
+            .description("If set, only components whose whole name matches this regular expression are reported with "
+                    + "their own series when Report Component Metrics is enabled. The totals of process groups are "
+                    + "not affected")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    static final PropertyDescriptor EXCLUDE_COMPONENT_NAMES = new PropertyDescriptor.Builder()
+            .name("Exclude Component Names")
+            .description("If set, components whose whole name matches this regular expression are not reported with "
+                    + "their own series")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    static final PropertyDescriptor INCLUDE_COMPONENT_TYPES = new PropertyDescriptor.Builder()
+            .name("Include Component Types")
+            .description("If set, only components whose whole type matches this regular expression are reported with "
+                    + "their own series, e.g. 'Connection|ProcessGroup'. The type of a processor is its simple class "
+                    + "name; the other types are ProcessGroup, Connection, InputPort, OutputPort and RemoteProcessGroup")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    static final PropertyDescriptor EXCLUDE_COMPONENT_TYPES = new PropertyDescriptor.Builder()
+            .name("Exclude Component Types")
+            .description("If set, components whose whole type matches this regular expression are not reported with "
+                    + "their own series")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    static final PropertyDescriptor METRIC_NAMES = new PropertyDescriptor.Builder()
+            .name("Metric Names")
+            .description("If set, only these process group and component metrics are sent, e.g. "
+                    + "'FlowFilesReceived,QueuedCount'. Multiple names should be separated by a comma. A counter and its "
+                    + "PerSecond rate are sent together. JVM, latency and reporter health metrics are enabled by their "
+                    + "own properties")
+            .required(false)
+            .addValidator(StandardValidators.createListValidator(true, true, StandardValidators.NON_EMPTY_VALIDATOR))
+            .build();
+    static final PropertyDescriptor DERIVED_METRICS = new PropertyDescriptor.Builder()
+            .name("Derived Metrics")
+            .description("Metrics computed from the status of each process group and component, one per line in the form "
+                    + "'<name> = <expression>', e.g. 'QueueFillRatio = QueuedCount / BackPressureObjectThreshold' or "
+                    + "'Imbalance = InputCount - OutputCount'. Expressions combine numbers and the names of the process "
+                    + "group and component metrics with + - * /, parentheses, min(a, b), max(a, b) and abs(a). Connections "
+                    + "can also read " + MetricNames.BACK_PRESSURE_OBJECT_THRESHOLD + " and "
+                    + MetricNames.BACK_PRESSURE_BYTES_THRESHOLD + ", processors " + MetricNames.TERMINATED_THREADS + " and "
+                    + MetricNames.AVERAGE_LINEAGE_DURATION + ". A derived metric is sent as a gauge for every process group "
+                    + "and, when Report Component Metrics is enabled, every component that has all the values it reads. "
+                    + "Counters are read as the rolling-window totals reported by NiFi, whatever the Counter Mode. Nothing "
+                    + "is sent where an expression divides by zero, e.g. for a connection without a back pressure threshold")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SUPPRESS_DERIVED_INPUTS = new PropertyDescriptor.Builder()
+            .name("Suppress Derived Inputs")
+            .description("Do not send the process group and component metrics that Derived Metrics read, only the derived "
+                    + "metrics computed from them. A counter and its PerSecond rate are suppressed together")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor SAMPLING_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Sampling Interval")
+            .description("If set, status is sampled at this interval between reports and each report sends the "
+                    + "Min, Max, Sum and Count of the samples of every series, so spikes shorter than the reporting "
+                    + "period are not lost. Should be a fraction of the run schedule, e.g. 5 sec for a 1 min schedule")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final AllowableValue COUNTERS_RAW = new AllowableValue("Raw", "Raw",
+            "Send the rolling-window totals reported by NiFi as they are");
+    static final AllowableValue COUNTERS_DELTA = new AllowableValue("Delta", "Delta",
+            "Send the change of each counter since the previous report");
+    static final AllowableValue COUNTERS_DELTA_AND_RATE = new AllowableValue("Delta and Rate", "Delta and Rate",
+            "Send the change since the previous report and an additional <metric>PerSecond rate series");
+    static final PropertyDescriptor COUNTER_MODE = new PropertyDescriptor.Builder()
+            .name("Counter Mode")
+            .description("How counters such as FlowFilesReceived or BytesSent are sent. NiFi reports them as totals over "
+                    + "a rolling 5 minute window, so overlapping reports are double-counted by a Sum aggregation in Azure "
+                    + "Monitor unless they are sent as deltas. A delta is the window total less the earlier deltas still in "
+                    + "the window; a falling total is data leaving the window, never new data, so deltas are never negative. "
+                    + "They add up to exactly what arrived when the run schedule divides 5 minutes evenly and is at least "
+                    + "30 sec, and to somewhat less otherwise. The first report only primes the deltas; the total it reads "
+                    + "is taken to have arrived evenly over the window, so part of a burst just before it may be counted "
+                    + "within the next 5 minutes. Gauges such as QueuedCount are always sent as they are")
+            .allowableValues(COUNTERS_RAW, COUNTERS_DELTA, COUNTERS_DELTA_AND_RATE)
+            .defaultValue(COUNTERS_RAW.getValue())
+            .required(true)
+            .build();
+    static final PropertyDescriptor PERSIST_COUNTER_STATE = new PropertyDescriptor.Builder()
+            .name("Persist Counter State")
+            .description("Keep the last counter readings in local state so deltas continue across restarts of NiFi "
+                    + "or of this reporting task. Only applies when Counter Mode is not Raw")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor MAX_REPORTED_COMPONENTS = new PropertyDescriptor.Builder()
+            .name("Max Reported Components")
+            .description("If set, at most this many components are reported with their own series when Report Component "
+                    + "Metrics is enabled, keeping the flow under the Azure Monitor limit of time series per metric. The "
+                    + "series of all other components are summed up into one series per metric whose component "
+                    + "dimensions are 'Other'. The number of reported and rolled up series is sent in the "
+                    + "'" + AzMonitorMetricsFactory.REPORTER_HEALTH_NAMESPACE + "' namespace")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor RANK_COMPONENTS_BY = new PropertyDescriptor.Builder()
+            .name("Rank Components By")
+            .description("The metric that decides which components are reported when there are more than Max Reported "
+                    + "Components. Recent values weigh more than older ones. Components that do not report the metric, "
+                    + "e.g. connections when ranking by task time, are only reported while the limit is not exceeded")
+            .allowableValues(
+                    new AllowableValue(MetricNames.INPUT_CONTENT_SIZE, "Bytes In",
+                            "Rank by the size of the content received by the component"),
+                    new AllowableValue(MetricNames.QUEUED_COUNT, "Queued Count",
+                            "Rank by the number of queued FlowFiles"),
+                    new AllowableValue(MetricNames.TOTAL_TASK_DURATION_NANOS, "Task Time",
+                            "Rank by the time spent running tasks"))
+            .defaultValue(MetricNames.INPUT_CONTENT_SIZE)
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor SUPPRESS_UNCHANGED_SERIES = new PropertyDescriptor.Builder()
+            .name("Suppress Unchanged Series")
+            .description("Only send a series if its value changed since it was last sent, or if the Heartbeat Interval "
+                    + "passed since then, e.g. to skip the zeros of idle process groups. Works best with Counter Mode "
+                    + "Delta, where idle counters are 0. The number of suppressed series is sent in the '"
+                    + AzMonitorMetricsFactory.REPORTER_HEALTH_NAMESPACE + "' namespace")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    static final PropertyDescriptor HEARTBEAT_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Heartbeat Interval")
+            .description("When Suppress Unchanged Series is enabled, unchanged series are still sent once per this "
+                    + "interval so charts and alerts in Azure Monitor do not see them as missing")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor REPORT_PROVENANCE_LATENCY = new PropertyDescriptor.Builder()
+            .name("Report Provenance Latency")
+            .description("Follow the provenance repository and report the processing latency, i.e. the duration of the "
+                    + "events, and the lineage latency, i.e. the age of the FlowFiles, per component with their 50th, "
+                    + "95th and 99th percentile in the '" + AzMonitorMetricsFactory.LATENCY_METRICS_NAMESPACE + "' "
+                    + "namespace. Events are read on a separate thread; when they come faster than they can be read, "
+                    + "only a sample of them is read, and the sampling interval is sent in the '"
+                    + AzMonitorMetricsFactory.REPORTER_HEALTH_NAMESPACE + "' namespace")
             .allowableValues("true", "false")
             .defaultValue("false")
             .required(true)
             .build();
+    static final PropertyDescriptor PROVENANCE_PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Provenance Page Size")
+            .description("The maximum number of provenance events read at once when Report Provenance Latency is enabled")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    static final PropertyDescriptor MAX_LATENCY_COMPONENTS = new PropertyDescriptor.Builder()
+            .name("Max Latency Components")
+            .description("At most this many components are reported with their own latency series. The events of "
+                    + "all other components are reported in one series per metric whose component dimensions are 'Other'")
+            .required(true)
+            .defaultValue("500")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Spool Directory")
+            .description("If set, reports that cannot be sent because Azure Monitor or Azure AD is unreachable, throttling "
+                    + "or failing are stored in memory-mapped files below this directory, e.g. ./work/azmonitor-spool, and "
+                    + "replayed oldest first once they can be sent again. Each reporting task uses a subdirectory named "
+                    + "after its identifier. Replay is at least once: a replayed report whose response times out is sent "
+                    + "again, so Azure Monitor may ingest it twice")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SPOOL_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("Spool Max Size")
+            .description("Maximum disk space used by the spool. When it is full the oldest reports are overwritten")
+            .required(true)
+            .defaultValue("256 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SPOOL_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("Spool Max Age")
+            .description("Spooled reports older than this are dropped instead of replayed. Azure Monitor rejects metrics "
+                    + "more than 20 minutes in the past")
+            .required(true)
+            .defaultValue("20 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SPOOL_REPLAY_RATE = new PropertyDescriptor.Builder()
+            .name("Spool Replay Rate")
+            .description("Maximum number of spooled reports replayed per second. Replays are sent one at a time, so "
+                    + "they take at most one of the concurrent requests away from live reports")
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final String DEFAULT_DESTINATION = "default";
+    static final String PROVENANCE_CURSOR_STATE = "provenance.cursor";
+
+    static final String DESTINATION_GROUPS = "groups";
+    static final String DESTINATION_SUBJECT = "subject";
+    static final String DESTINATION_REGION = "region";
+    static final String DESTINATION_ENDPOINT = "endpoint";
+    static final String DESTINATION_TENANT = "tenant";
+    static final String DESTINATION_CLIENT_ID = "clientId";
+    static final String DESTINATION_CLIENT_SECRET = "clientSecret";
+    static final List<String> DESTINATION_FIELDS = Collections.unmodifiableList(Arrays.asList(DESTINATION_GROUPS,
+            DESTINATION_SUBJECT, DESTINATION_REGION, DESTINATION_ENDPOINT, DESTINATION_TENANT, DESTINATION_CLIENT_ID,
+            DESTINATION_CLIENT_SECRET));
+
+    // new instances for every task, since sinks keep state while they are open
+    private final Map<String, MetricSink> availableSinks = MetricSinks.load(AzMonitorReportingTask.class.getClassLoader());
+    private volatile ReportingPlan plan;
+    // the enabled sinks and the pipeline feeding each of them
+    private volatile List<MetricSink> sinks;
+    private volatile ReportPipeline[] pipelines;
+    // guard and suppressor of each route's series, or null if disabled
+    private volatile CardinalityGuard[] cardinalityGuards;
+    private volatile ChangeSuppressor[] changeSuppressors;
+    private volatile ComponentMetricsCollector componentCollector;
+    private volatile JvmMetricsCollector jvmCollector;
+    private volatile Long samplingIntervalMillis;
+    private volatile StatusSampler sampler;
+    private volatile CounterStateStore counterState;
+    private volatile boolean counterRates;
+    private volatile boolean persistCounterState;
+    private volatile boolean counterStateRestored;
+    private volatile boolean reportProvenanceLatency;
+    private volatile ProvenanceLatencyCollector provenanceCollector;
+    private volatile ReporterHealth health;
+    private volatile boolean sendHealthMetrics;
+    private volatile boolean primaryNodeOnly;
+    private volatile boolean primaryNode;
+    private volatile long dispatchSpreadMillis;
+    // only used by onTrigger
+    private boolean reportedAsPrimary;
   
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
@@ -149,125 +562,664 @@ public class AzMonitorReportingTask extends AbstractReportingTask {
         properties.add(AAD_TENANT);
         properties.add(OAUTH_CLIENT_ID);
         properties.add(OAUTH_CLIENT_SECRET);
+        properties.add(AAD_AUTHORITY);
+        properties.add(AZURE_MONITOR_ENDPOINT);
         properties.add(APPLICATION_ID);
         properties.add(INSTANCE_ID);
+        properties.add(CLUSTER_REPORTING);
+        properties.add(DISPATCH_SPREAD);
         properties.add(PROCESS_GROUP_IDS);
         properties.add(JOB_NAME);
-        properties.add(SEND_JVM_METRICS);       
+        properties.add(SEND_JVM_METRICS);
+        properties.add(SEND_HEALTH_METRICS);
+        properties.add(METRIC_SINKS);
+        properties.add(REPORT_QUEUE_SIZE);
+        properties.add(OVERFLOW_POLICY);
+        properties.add(MAX_CONCURRENT_REQUESTS);
+        properties.add(COMPRESS_PAYLOAD);
+        properties.add(REPORT_COMPONENT_METRICS);
+        properties.add(INCLUDE_COMPONENT_NAMES);
+        properties.add(EXCLUDE_COMPONENT_NAMES);
+        properties.add(INCLUDE_COMPONENT_TYPES);
+        properties.add(EXCLUDE_COMPONENT_TYPES);
+        properties.add(METRIC_NAMES);
+        properties.add(DERIVED_METRICS);
+        properties.add(SUPPRESS_DERIVED_INPUTS);
+        properties.add(SAMPLING_INTERVAL);
+        properties.add(COUNTER_MODE);
+        properties.add(PERSIST_COUNTER_STATE);
+        properties.add(MAX_REPORTED_COMPONENTS);
+        properties.add(RANK_COMPONENTS_BY);
+        properties.add(SUPPRESS_UNCHANGED_SERIES);
+        properties.add(HEARTBEAT_INTERVAL);
+        properties.add(REPORT_PROVENANCE_LATENCY);
+        properties.add(PROVENANCE_PAGE_SIZE);
+        properties.add(MAX_LATENCY_COMPONENTS);
+        properties.add(SPOOL_DIRECTORY);
+        properties.add(SPOOL_MAX_SIZE);
+        properties.add(SPOOL_MAX_AGE);
+        properties.add(SPOOL_REPLAY_RATE);
+        for (MetricSink sink : availableSinks.values()) {
+            properties.addAll(sink.getPropertyDescriptors());
+        }
         return properties;
     }
 
     @Override
-    public void onTrigger(final ReportingContext context) {
-       
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        final int dot = propertyDescriptorName.lastIndexOf('.');
+        final String field = dot > 0 ? propertyDescriptorName.substring(dot + 1) : "";
+        final PropertyDescriptor.Builder builder = new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .dynamic(true)
+                .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY);
+        switch (field) {
+            case DESTINATION_GROUPS:
+                builder.addValidator(PROCESS_GROUP_IDS.getValidators().get(0));
+                break;
+            case DESTINATION_ENDPOINT:
+                builder.addValidator(StandardValidators.URL_VALIDATOR);
+                break;
+            case DESTINATION_CLIENT_SECRET:
+                builder.sensitive(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR);
+                break;
+            case DESTINATION_SUBJECT:
+            case DESTINATION_REGION:
+            case DESTINATION_TENANT:
+            case DESTINATION_CLIENT_ID:
+                builder.addValidator(StandardValidators.NON_EMPTY_VALIDATOR);
+                break;
+            default:
+                builder.addValidator((subject, input, context) -> new ValidationResult.Builder()
+                        .subject(subject)
+                        .input(input)
+                        .valid(false)
+                        .explanation("expected a name of the form <destination>.<field> where field is one of " + DESTINATION_FIELDS)
+                        .build());
+        }
+        return builder.build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final Map<String, String> routedTo = new HashMap<>();
+        for (Map.Entry<String, Map<String, PropertyDescriptor>> route : destinationProperties(context.getProperties()).entrySet()) {
+            final String destination = route.getKey();
+            for (String required : Arrays.asList(DESTINATION_GROUPS, DESTINATION_SUBJECT)) {
+                if (!route.getValue().containsKey(required)) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(destination)
+                            .valid(false)
+                            .explanation("destination " + destination + " has no " + destination + "." + required + " property")
+                            .build());
+                }
+            }
+            final PropertyDescriptor groups = route.getValue().get(DESTINATION_GROUPS);
+            if (groups == null) {
+                continue;
+            }
+            final String groupIds = context.getProperty(groups).evaluateAttributeExpressions().getValue();
+            for (String groupId : splitGroupIds(groupIds == null ? "" : groupIds)) {
+                final String previous = routedTo.put(groupId, destination);
+                if (previous != null && !previous.equals(destination)) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(groups.getName())
+                            .input(groupId)
+                            .valid(false)
+                            .explanation("process group " + groupId + " is routed to both " + previous + " and " + destination)
+                            .build());
+                }
+            }
+        }
+        for (String name : splitNames(context.getProperty(METRIC_SINKS).getValue())) {
+            final MetricSink sink = availableSinks.get(name);
+            if (sink == null) {
+                results.add(new ValidationResult.Builder()
+                        .subject(METRIC_SINKS.getDisplayName())
+                        .input(name)
+                        .valid(false)
+                        .explanation("unknown sink " + name + "; expected one of " + availableSinks.keySet())
+                        .build());
+            } else {
+                results.addAll(sink.validate(context));
+            }
+        }
+        if (OVERFLOW_SPOOL.getValue().equals(context.getProperty(OVERFLOW_POLICY).getValue())
+                && !context.getProperty(SPOOL_DIRECTORY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(OVERFLOW_POLICY.getDisplayName())
+                    .input(OVERFLOW_SPOOL.getDisplayName())
+                    .valid(false)
+                    .explanation("spooling overflowing reports requires a " + SPOOL_DIRECTORY.getDisplayName())
+                    .build());
+        }
+        if (context.getProperty(METRIC_NAMES).isSet()) {
+            final Set<String> known = AzMonitorMetricsFactory.flowMetricNames();
+            for (String name : splitNames(context.getProperty(METRIC_NAMES).getValue())) {
+                if (!known.contains(name)) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(METRIC_NAMES.getDisplayName())
+                            .input(name)
+                            .valid(false)
+                            .explanation("unknown metric " + name + "; expected one of " + known)
+                            .build());
+                }
+            }
+        }
+        if (context.getProperty(DERIVED_METRICS).isSet()) {
+            try {
+                DerivedMetrics.parse(context.getProperty(DERIVED_METRICS).getValue());
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder()
+                        .subject(DERIVED_METRICS.getDisplayName())
+                        .input(context.getProperty(DERIVED_METRICS).getValue())
+                        .valid(false)
+                        .explanation(e.getMessage())
+                        .build());
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ConfigurationContext context) throws IOException {
+        health = new ReporterHealth();
+        sendHealthMetrics = context.getProperty(SEND_HEALTH_METRICS).asBoolean();
+        primaryNodeOnly = CLUSTER_PRIMARY_NODE.getValue().equals(context.getProperty(CLUSTER_REPORTING).getValue());
+        // not provided outside of a running NiFi, e.g. by the mock contexts
+        primaryNode = getNodeTypeProvider() != null && getNodeTypeProvider().isPrimary();
+        reportedAsPrimary = false;
+        dispatchSpreadMillis = context.getProperty(DISPATCH_SPREAD).isSet()
+                ? context.getProperty(DISPATCH_SPREAD).asTimePeriod(TimeUnit.MILLISECONDS)
+                : 0;
+        final ReportingPlan plan = plan(context);
+        this.plan = plan;
+        if (context.getProperty(REPORT_COMPONENT_METRICS).asBoolean()) {
+            componentCollector = new ComponentMetricsCollector(Runtime.getRuntime().availableProcessors(),
+                    plan.getEnabledMetrics(), plan.getComponentFilter(), plan.getDerivedMetrics());
+        }
+        jvmCollector = context.getProperty(SEND_JVM_METRICS).asBoolean() ? new JvmMetricsCollector() : null;
+        samplingIntervalMillis = context.getProperty(SAMPLING_INTERVAL).isSet()
+                ? context.getProperty(SAMPLING_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS)
+                : null;
+
+        final String counterMode = context.getProperty(COUNTER_MODE).getValue();
+        counterState = COUNTERS_RAW.getValue().equals(counterMode) ? null : new CounterStateStore(1024);
+        counterRates = COUNTERS_DELTA_AND_RATE.getValue().equals(counterMode);
+        persistCounterState = context.getProperty(PERSIST_COUNTER_STATE).asBoolean();
+        counterStateRestored = false;
+        reportProvenanceLatency = context.getProperty(REPORT_PROVENANCE_LATENCY).asBoolean();
+
+        final int routes = plan.getRoutes().size();
+        cardinalityGuards = context.getProperty(MAX_REPORTED_COMPONENTS).isSet() ? new CardinalityGuard[routes] : null;
+        changeSuppressors = context.getProperty(SUPPRESS_UNCHANGED_SERIES).asBoolean() ? new ChangeSuppressor[routes] : null;
+        for (int r = 0; r < routes; r++) {
+            if (cardinalityGuards != null) {
+                cardinalityGuards[r] = new CardinalityGuard(context.getProperty(MAX_REPORTED_COMPONENTS).asInteger(),
+                        context.getProperty(RANK_COMPONENTS_BY).getValue());
+            }
+            if (changeSuppressors != null) {
+                changeSuppressors[r] = new ChangeSuppressor(context.getProperty(HEARTBEAT_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), 1024);
+            }
+        }
+
+        // sinks are closed when the task stops, so they are known as soon as they are opened
+        final List<MetricSink> opened = new ArrayList<>();
+        sinks = opened;
+        final MetricSinkContext sinkContext = new MetricSinkContext(getIdentifier(), context, plan, health, getLogger());
+        for (String name : splitNames(context.getProperty(METRIC_SINKS).getValue())) {
+            final MetricSink sink = availableSinks.get(name);
+            if (sink != null && !opened.contains(sink)) {
+                sink.open(sinkContext);
+                opened.add(sink);
+            }
+        }
+        final ReportPipeline[] created = new ReportPipeline[opened.size()];
+        for (int s = 0; s < created.length; s++) {
+            created[s] = new ReportPipeline(opened.get(s).getName(), routes, context.getProperty(REPORT_QUEUE_SIZE).asInteger(),
+                    ReportPipeline.OverflowPolicy.valueOf(context.getProperty(OVERFLOW_POLICY).getValue()),
+                    opened.get(s)::publish, opened.get(s)::spill, health, getLogger());
+            created[s].start();
+        }
+        pipelines = created;
+    }
+
+    /**
+     * Resolves the properties into the plan that every report follows. Settings that are not given by a
+     * destination's dynamic properties are taken from the task's properties; the default destination takes
+     * everything that is not routed elsewhere.
+     */
+    static ReportingPlan plan(final ConfigurationContext context) {
+        final List<ReportingPlan.Route> routes = new ArrayList<>();
+        final String defaultGroups = context.getProperty(PROCESS_GROUP_IDS).evaluateAttributeExpressions().getValue();
+        routes.add(route(context, DEFAULT_DESTINATION, Collections.emptyMap(),
+                defaultGroups == null ? Collections.emptyList() : splitGroupIds(defaultGroups)));
+        for (Map.Entry<String, Map<String, PropertyDescriptor>> route : destinationProperties(context.getProperties()).entrySet()) {
+            final List<String> groupIds = splitGroupIds(context.getProperty(route.getValue().get(DESTINATION_GROUPS))
+                    .evaluateAttributeExpressions().getValue());
+            routes.add(route(context, route.getKey(), route.getValue(), groupIds));
+        }
+
+        // registers the derived metrics, so before the flags indexed by metric id are sized
+        final DerivedMetrics derivedMetrics = context.getProperty(DERIVED_METRICS).isSet()
+                ? DerivedMetrics.compile(context.getProperty(DERIVED_METRICS).getValue())
+                : DerivedMetrics.NONE;
+        boolean[] enabledMetrics = context.getProperty(METRIC_NAMES).isSet()
+                ? AzMonitorMetricsFactory.flowMetricIds(splitNames(context.getProperty(METRIC_NAMES).getValue()))
+                : null;
+        if (context.getProperty(SUPPRESS_DERIVED_INPUTS).asBoolean() && !derivedMetrics.getInputs().isEmpty()) {
+            final boolean[] inputs = AzMonitorMetricsFactory.flowMetricIds(derivedMetrics.getInputs());
+            if (enabledMetrics == null) {
+                enabledMetrics = new boolean[inputs.length];
+                Arrays.fill(enabledMetrics, true);
+            }
+            for (int id = 0; id < inputs.length; id++) {
+                enabledMetrics[id] &= !inputs[id];
+            }
+        }
+        final ComponentFilter componentFilter = new ComponentFilter(
+                context.getProperty(INCLUDE_COMPONENT_NAMES).getValue(),
+                context.getProperty(EXCLUDE_COMPONENT_NAMES).getValue(),
+                context.getProperty(INCLUDE_COMPONENT_TYPES).getValue(),
+                context.getProperty(EXCLUDE_COMPONENT_TYPES).getValue());
+        return new ReportingPlan(context.getProperty(AAD_AUTHORITY).evaluateAttributeExpressions().getValue(), routes,
+                context.getProperty(INSTANCE_ID).evaluateAttributeExpressions().getValue(),
+                enabledMetrics, componentFilter.isAll() ? ComponentFilter.ALL : componentFilter, derivedMetrics);
+    }
+
+    private static ReportingPlan.Route route(final ConfigurationContext context, final String name,
+                                             final Map<String, PropertyDescriptor> properties, final List<String> groupIds) {
+        final String subject = destinationValue(context, properties, DESTINATION_SUBJECT, CUSTOM_METRICS_SUBJECT);
+        // a destination's own region wins over the task's endpoint
+        final String endpointBase = properties.containsKey(DESTINATION_ENDPOINT) || !properties.containsKey(DESTINATION_REGION)
+                ? destinationValue(context, properties, DESTINATION_ENDPOINT, AZURE_MONITOR_ENDPOINT)
+                : null;
+        final String endpoint = endpointBase != null
+                ? trimTrailingSlash(endpointBase) + subject + "/metrics"
+                : MessageFormat.format("https://{0}.monitoring.azure.com{1}/metrics",
+                        destinationValue(context, properties, DESTINATION_REGION, AZURE_MONITOR_REGION), subject);
+        return new ReportingPlan.Route(name, groupIds, endpoint, subject,
+                destinationValue(context, properties, DESTINATION_TENANT, AAD_TENANT),
+                destinationValue(context, properties, DESTINATION_CLIENT_ID, OAUTH_CLIENT_ID),
+                destinationValue(context, properties, DESTINATION_CLIENT_SECRET, OAUTH_CLIENT_SECRET));
+    }
+
+    private static String destinationValue(final ConfigurationContext context, final Map<String, PropertyDescriptor> properties,
+                                           final String field, final PropertyDescriptor fallback) {
+        final PropertyDescriptor property = properties.get(field);
+        return context.getProperty(property != null ? property : fallback).evaluateAttributeExpressions().getValue();
+    }
+
+    /**
+     * @return the dynamic properties of each routed destination by destination name and field
+     */
+    private static Map<String, Map<String, PropertyDescriptor>> destinationProperties(final Map<PropertyDescriptor, String> properties) {
+        final Map<String, Map<String, PropertyDescriptor>> routes = new TreeMap<>();
+        for (PropertyDescriptor property : properties.keySet()) {
+            if (!property.isDynamic()) {
+                continue;
+            }
+            final String name = property.getName();
+            final int dot = name.lastIndexOf('.');
+            if (dot > 0 && DESTINATION_FIELDS.contains(name.substring(dot + 1))) {
+                routes.computeIfAbsent(name.substring(0, dot), destination -> new HashMap<>())
+                        .put(name.substring(dot + 1), property);
+            }
+        }
+        return routes;
+    }
+
+    @OnPrimaryNodeStateChange
+    public void onPrimaryNodeStateChange(final PrimaryNodeState state) {
+        primaryNode = state == PrimaryNodeState.ELECTED_PRIMARY_NODE;
+    }
+
+    /**
+     * Stops sampling status and reading provenance events. A report that is being collected may still
+     * be submitted; it is sent when the task is stopped.
+     */
+    @OnUnscheduled
+    public void onUnscheduled() {
+        if (sampler != null) {
+            sampler.close();
+            sampler = null;
+        }
+        if (provenanceCollector != null) {
+            provenanceCollector.close();
+            provenanceCollector = null;
+        }
+    }
+
+    /**
+     * Once the last report is submitted, lets the publishers hand the queued reports to their sinks, then
+     * closes the sinks, which send or keep what they still hold, and everything else.
+     */
+    @OnStopped
+    public void onStopped() throws IOException {
+        onUnscheduled();
+        final ReportPipeline[] stopping = pipelines;
+        pipelines = null;
+        if (stopping != null) {
+            try {
+                // one after the other, so each sink gets the full drain time
+                for (ReportPipeline pipeline : stopping) {
+                    pipeline.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final List<MetricSink> stopped = sinks;
+        sinks = null;
+        if (stopped != null) {
+            for (MetricSink sink : stopped) {
+                try {
+                    sink.close();
+                } catch (IOException | RuntimeException e) {
+                    getLogger().warn("Failed closing sink {} due to {}", new Object[]{sink.getName(), e});
+                }
+            }
+        }
+        if (componentCollector != null) {
+            componentCollector.close();
+            componentCollector = null;
+        }
+    }
 
-        final String applicationId = context.getProperty(APPLICATION_ID).evaluateAttributeExpressions().getValue();
-        final String azureRegion = context.getProperty(AZURE_MONITOR_REGION).evaluateAttributeExpressions().getValue();
-        final String customMetricResourceId = context.getProperty(CUSTOM_METRICS_SUBJECT).evaluateAttributeExpressions().getValue();
-        final String tenantId = context.getProperty(AAD_TENANT).evaluateAttributeExpressions().getValue();
-        final String aadClientId = context.getProperty(OAUTH_CLIENT_ID).evaluateAttributeExpressions().getValue();
-        final String aadClientSecret = context.getProperty(OAUTH_CLIENT_SECRET).evaluateAttributeExpressions().getValue();
+    /**
+     * Collects a report and hands it to the publisher thread of every sink; exporting happens there.
+     */
+    @Override
+    public void onTrigger(final ReportingContext context) {
+        final ReportPipeline[] pipelines = this.pipelines;
+        if (pipelines == null || pipelines.length == 0 || !isReportingNode(context)) {
+            return;
+        }
 
-        // Get Bearer Token
-        ExecutorService service = null;
+        final PendingReport report = pipelines[0].acquire();
         try
         {
+            final long reportStart = System.nanoTime();
 
             ZoneOffset zoneOffSet= ZoneOffset.of("+00:00");
             OffsetDateTime offsetDateTime = OffsetDateTime.now(zoneOffSet);
-            
-            service = Executors.newFixedThreadPool(1);
-            final String authority = MessageFormat.format("https://login.microsoftonline.com/{0}/oauth2/token", tenantId);
-            AuthenticationContext authContext = new AuthenticationContext(authority, true, service);
-            ClientCredential credential = new ClientCredential(aadClientId, aadClientSecret);
-
-            Future<AuthenticationResult> future = authContext.acquireToken(customMetricResourceId, credential, null);
-            AuthenticationResult result = future.get();
-
-            String azureMonitorEndpoint = MessageFormat.format("https://{0}.monitoring.azure.com{1}/metrics", azureRegion, customMetricResourceId);
-            URL url = new URL(azureMonitorEndpoint);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Bearer " + result.getAccessToken());
-            conn.setRequestProperty("Content-Type", "application/x-ndjson");
-            conn.setRequestProperty("Accept","application/json");
-
-            
-            for (ProcessGroupStatus status : searchProcessGroups(context, context.getProperty(PROCESS_GROUP_IDS))) {
-                try {
-                    List<Metric> allMetrics = AzMonitorMetricsFactory.createNifiMetrics(
-                        status, 
-                        applicationId, 
-                        offsetDateTime);
-
-                        Gson gson = new Gson();
-                        StringBuilder builder = new StringBuilder();
-                        for (Metric current : allMetrics)
-                        {
-                            builder.append(gson.toJson(current));
-                            builder.append("\n");
-                        }
-                    
-                        conn.setDoOutput(true);
-                        try(OutputStream os = conn.getOutputStream()) {
-                            byte[] input = builder.toString().getBytes("utf-8");
-                            os.write(input, 0, input.length);
-                        }
-
-                    BufferedReader reader = null;
-
-                    reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-
-                    StringBuffer stringBuffer = new StringBuffer();
-                    String line = "";
-                    while ((line = reader.readLine()) != null) {
-                        stringBuffer.append(line);
-                    }
+            final String time = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(offsetDateTime);
+
+            restoreState(context);
 
+            report.start(time, offsetDateTime.toInstant().toEpochMilli(), reportStart);
+            report.setNode(!primaryNodeOnly && context.isClustered() ? context.getClusterNodeIdentifier() : null);
+            report.setDispatchDelayMillis(dispatchDelayMillis(context, plan));
+            final MetricBatch[] batches = report.getBatches();
+            if (samplingIntervalMillis != null) {
+                // the sampler needs the event access of a reporting context, so it starts with the first report
+                if (sampler == null) {
+                    sampler = new StatusSampler(batches.length, samples -> collect(context, samples), getLogger());
+                    sampler.start(samplingIntervalMillis);
                 }
-                catch (IOException e) {
-                    getLogger().error("Failed pushing Nifi-metrics to Azure Monitor due to {}; routing to failure", e);
+                sampler.flush(batches);
+            } else {
+                collect(context, batches);
+            }
+            final MetricBatch defaultBatch = batches[0];
+            if (jvmCollector != null) {
+                jvmCollector.collect(defaultBatch);
+            }
+            if (provenanceCollector != null) {
+                provenanceCollector.collect(defaultBatch);
+            }
+            final CardinalityGuard[] guards = cardinalityGuards;
+            final ChangeSuppressor[] suppressors = changeSuppressors;
+            for (int r = 0; r < batches.length; r++) {
+                final MetricBatch batch = batches[r];
+                applyCounterState(batch, offsetDateTime);
+                // after the deltas, so components are ranked by their recent activity
+                if (guards != null) {
+                    guards[r].apply(batch);
                 }
-            }             
-            
+                // last, so it compares the values as they are sent; the reporter's own health is always sent
+                if (suppressors != null) {
+                    suppressors[r].apply(batch, report.getTimeMillis());
+                }
+            }
+            final long collected = System.nanoTime();
+            report.setCollectedNanos(collected);
+            health.record(ReporterHealth.Phase.COLLECT, collected - reportStart);
+            if (sendHealthMetrics) {
+                health.collect(defaultBatch, pendingRecords(), pendingReports(pipelines));
+            }
+            // the copies first, since the report belongs to the first sink once it is submitted
+            for (int p = 1; p < pipelines.length; p++) {
+                final PendingReport copy = pipelines[p].acquire();
+                copy.copyFrom(report);
+                pipelines[p].submit(copy);
+            }
+            pipelines[0].submit(report);
+            saveState(context);
         }
-        catch(MalformedURLException e)
+        catch (Exception e)
         {
-            getLogger().error("Failed constructiong url for Auth Context {};", e);
+            getLogger().error("Failed reporting metrics to Azure Monitor due to {}", e);
         }
-        catch(IOException e)
-        {
-            getLogger().error("Failed acquiring bearer token from AAD Oauth due to {}; routing to failure", e);
+    }
+
+    /**
+     * In Primary Node Only mode, tells whether this node sends metrics. Counter readings and the series last
+     * sent are forgotten when a node takes over, since they may be from a previous term as primary, and the
+     * sampler and provenance reader of a node that is no longer primary are stopped.
+     */
+    private boolean isReportingNode(final ReportingContext context) {
+        if (!primaryNodeOnly || !context.isClustered()) {
+            return true;
         }
-        catch (Exception e)
-        {
-            getLogger().error("Failed pushing JVM-metrics to Azure Monitor due to {}; routing to failure", e);
-        }        
+        if (!primaryNode) {
+            if (sampler != null) {
+                sampler.close();
+                sampler = null;
+            }
+            if (provenanceCollector != null) {
+                provenanceCollector.close();
+                provenanceCollector = null;
+            }
+            reportedAsPrimary = false;
+            return false;
+        }
+        if (!reportedAsPrimary) {
+            if (counterState != null) {
+                counterState.clear();
+                // the persisted readings are as stale as the ones in memory
+                counterStateRestored = true;
+            }
+            if (changeSuppressors != null) {
+                for (ChangeSuppressor suppressor : changeSuppressors) {
+                    suppressor.clear();
+                }
+            }
+            reportedAsPrimary = true;
+        }
+        return true;
+    }
 
+    /**
+     * @return this node's fixed offset within the Dispatch Spread, the same for every report
+     */
+    private long dispatchDelayMillis(final ReportingContext context, final ReportingPlan plan) {
+        if (dispatchSpreadMillis <= 0) {
+            return 0;
+        }
+        final String node = context.isClustered() && context.getClusterNodeIdentifier() != null
+                ? context.getClusterNodeIdentifier()
+                : plan.getInstanceId();
+        return Math.floorMod(SeriesKeys.component(node), dispatchSpreadMillis);
     }
 
     /**
-     * Searches all ProcessGroups defined in a PropertyValue as a comma-separated list of ProcessorGroup-IDs.
-     * Therefore blanks are trimmed and new-line characters are removed! Processors that can not be found are ignored.
-     *
-     * @return List of all ProcessorGroups that were found.
-     * If no groupIDs are defined or none of them could be found an array containing the root-DataFlow will be returned.
+     * @return number of records the sinks keep to export later, or -1 if none of them keeps any
+     */
+    private long pendingRecords() {
+        long pending = -1;
+        for (MetricSink sink : sinks) {
+            final long records = sink.pendingRecords();
+            if (records >= 0) {
+                pending = Math.max(pending, 0) + records;
+            }
+        }
+        return pending;
+    }
+
+    private static int pendingReports(final ReportPipeline[] pipelines) {
+        int pending = 0;
+        for (ReportPipeline pipeline : pipelines) {
+            pending += pipeline.pendingReports();
+        }
+        return pending;
+    }
+
+    private void applyCounterState(MetricBatch target, OffsetDateTime reportTime) {
+        if (counterState != null) {
+            counterState.apply(target, reportTime.toInstant().toEpochMilli(), counterRates);
+        }
+    }
+
+    /**
+     * Restores the counter readings once, and starts reading provenance events from the persisted cursor.
+     * The reader needs the event access of a reporting context, so it starts with the first report.
+     */
+    private void restoreState(final ReportingContext context) {
+        final boolean restoreCounters = counterState != null && persistCounterState && !counterStateRestored;
+        final boolean startProvenance = reportProvenanceLatency && provenanceCollector == null;
+        if (!restoreCounters && !startProvenance) {
+            return;
+        }
+        Map<String, String> state = Collections.emptyMap();
+        try {
+            state = context.getStateManager().getState(Scope.LOCAL).toMap();
+        } catch (IOException e) {
+            getLogger().warn("Failed restoring state; deltas restart from the next report and provenance events "
+                    + "are read from the newest one", e);
+        }
+        if (restoreCounters) {
+            counterState.fromState(state);
+            counterStateRestored = true;
+        }
+        if (startProvenance) {
+            final String cursor = state.get(PROVENANCE_CURSOR_STATE);
+            final ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(
+                    cursor == null ? -1 : Long.parseLong(cursor),
+                    context.getProperty(PROVENANCE_PAGE_SIZE).asInteger(),
+                    context.getProperty(MAX_LATENCY_COMPONENTS).asInteger(), getLogger());
+            collector.start(context.getEventAccess());
+            provenanceCollector = collector;
+        }
+    }
+
+    /**
+     * Stores the counter readings and the provenance cursor in one map, since setting the state replaces it.
+     */
+    private void saveState(final ReportingContext context) {
+        final boolean saveCounters = counterState != null && persistCounterState;
+        final ProvenanceLatencyCollector collector = provenanceCollector;
+        if (!saveCounters && collector == null) {
+            return;
+        }
+        final Map<String, String> state = saveCounters ? counterState.toState() : new HashMap<>();
+        if (collector != null) {
+            state.put(PROVENANCE_CURSOR_STATE, Long.toString(collector.getCursor()));
+        }
+        try {
+            context.getStateManager().setState(state, Scope.LOCAL);
+        } catch (IOException e) {
+            getLogger().warn("Failed saving state", e);
+        }
+    }
+
+    /**
+     * Collects the series of every destination into the batch of the same index. With routed destinations
+     * the controller status is fetched once and the groups of all destinations are looked up in it; the
+     * components of routed groups are left out of the groups above them, so each series goes to one destination.
      */
-    private ProcessGroupStatus[] searchProcessGroups(final ReportingContext context, PropertyValue value) {
-        if (value.isSet()) {
-            String content = value.evaluateAttributeExpressions().getValue();
+    private void collect(final ReportingContext context, final MetricBatch[] targets) {
+        final ReportingPlan current = plan;
+        final List<ReportingPlan.Route> routes = current.getRoutes();
+        final List<String> defaultGroups = routes.get(0).getGroupIds();
+        if (routes.size() == 1) {
+            for (ProcessGroupStatus status : searchProcessGroups(defaultGroups, context.getEventAccess()::getGroupStatus,
+                    context.getEventAccess()::getControllerStatus)) {
+                collectGroup(status, targets[0], Collections.emptySet());
+            }
+            return;
+        }
+
+        final ProcessGroupStatus root = context.getEventAccess().getControllerStatus();
+        final Map<String, ProcessGroupStatus> groups = new HashMap<>();
+        indexGroups(root, groups);
+        final Set<String> routed = current.getRoutedGroupIds();
+        for (ProcessGroupStatus status : searchProcessGroups(defaultGroups, groups::get, () -> root)) {
+            if (!routed.contains(status.getId())) {
+                collectGroup(status, targets[0], routed);
+            }
+        }
+        for (int d = 1; d < targets.length; d++) {
+            for (String groupId : routes.get(d).getGroupIds()) {
+                final ProcessGroupStatus status = groups.get(groupId);
+                if (status != null) {
+                    collectGroup(status, targets[d], routed);
+                }
+            }
+        }
+    }
 
-            ProcessGroupStatus[] groups = Arrays
-                    .stream(content.replace("\n", "").split(","))
-                    .map(String::trim)
-                    .map(context.getEventAccess()::getGroupStatus)
-                    .filter(Objects::nonNull)
-                    .toArray(ProcessGroupStatus[]::new);
+    private static void indexGroups(ProcessGroupStatus group, Map<String, ProcessGroupStatus> groups) {
+        groups.put(group.getId(), group);
+        for (ProcessGroupStatus child : group.getProcessGroupStatus()) {
+            indexGroups(child, groups);
+        }
+    }
 
-            return groups.length > 0 ? groups : new ProcessGroupStatus[]{context.getEventAccess().getControllerStatus()};
-        } else {
-            return new ProcessGroupStatus[]{context.getEventAccess().getControllerStatus()};
+    /**
+     * Appends the totals of a group and, if enabled, the series of its components, except those of the
+     * skipped groups below it. The totals still include the traffic of the skipped groups.
+     */
+    private void collectGroup(ProcessGroupStatus status, MetricBatch target, Set<String> skippedGroups) {
+        AzMonitorMetricsFactory.collectNifiMetrics(status, plan.getEnabledMetrics(), plan.getDerivedMetrics(), target);
+        if (componentCollector != null) {
+            componentCollector.collect(status, null, target, skippedGroups);
         }
     }
+
+    private static String trimTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Looks up the process groups with the given ids. Groups that can not be found are ignored.
+     *
+     * @return the groups that were found, or the root group if no ids are given or none of them was found
+     */
+    private static ProcessGroupStatus[] searchProcessGroups(List<String> groupIds, Function<String, ProcessGroupStatus> lookup,
+                                                            Supplier<ProcessGroupStatus> root) {
+        final ProcessGroupStatus[] groups = groupIds.stream()
+                .map(lookup)
+                .filter(Objects::nonNull)
+                .toArray(ProcessGroupStatus[]::new);
+        return groups.length > 0 ? groups : new ProcessGroupStatus[]{root.get()};
+    }
+
+    /**
+     * Splits a comma-separated list of ProcessorGroup-IDs. Therefore blanks are trimmed and new-line characters are removed!
+     */
+    private static List<String> splitGroupIds(String content) {
+        return Arrays.stream(content.replace("\n", "").split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> splitNames(String content) {
+        return Arrays.stream(content.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorDestination;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorDispatcher;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorPublisher;
+import org.apache.nifi.reporting.azmonitor.api.AzureTokenManager;
+import org.apache.nifi.reporting.azmonitor.api.MetricSpool;
+import org.apache.nifi.reporting.azmonitor.api.NdjsonMetricEncoder;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.api.ReportingPlan;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.sink.MetricSink;
+import org.apache.nifi.reporting.azmonitor.sink.MetricSinkContext;
+import org.asynchttpclient.Response;
+
+/**
+ * Sends reports to the custom metrics endpoints of Azure Monitor, one destination per route of the plan,
+ * using the Azure properties of the reporting task. Payloads that cannot be sent are kept in the
+ * Spool Directory, if there is one, and replayed later.
+ */
+public class AzMonitorSink implements MetricSink {
+
+    public static final String NAME = "azure-monitor";
+
+    private volatile List<AzMonitorDestination> destinations;
+    private volatile MetricSpool spool;
+    private volatile ReporterHealth health;
+    private volatile ComponentLog logger;
+    private volatile long schedulingPeriodNanos;
+    // only used by the publisher thread, and by the reporting thread to spool overflowing reports
+    private volatile NdjsonMetricEncoder encoder;
+    private volatile NdjsonMetricEncoder spillEncoder;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDescription() {
+        return "sends the metrics to Azure Monitor";
+    }
+
+    @Override
+    public void open(MetricSinkContext context) throws IOException {
+        final ConfigurationContext configuration = context.getConfiguration();
+        health = context.getHealth();
+        logger = context.getLogger();
+        final Long schedulingPeriod = configuration.getSchedulingPeriod(TimeUnit.NANOSECONDS);
+        schedulingPeriodNanos = schedulingPeriod == null ? 0 : schedulingPeriod;
+        encoder = new NdjsonMetricEncoder(configuration.getProperty(AzMonitorReportingTask.COMPRESS_PAYLOAD).asBoolean());
+        spillEncoder = new NdjsonMetricEncoder(configuration.getProperty(AzMonitorReportingTask.COMPRESS_PAYLOAD).asBoolean());
+
+        final int maxConcurrentRequests = configuration.getProperty(AzMonitorReportingTask.MAX_CONCURRENT_REQUESTS).asInteger();
+        final ReportingPlan plan = context.getPlan();
+        final List<AzMonitorDestination> created = new ArrayList<>();
+        try {
+            for (ReportingPlan.Route route : plan.getRoutes()) {
+                created.add(createDestination(plan, route, maxConcurrentRequests));
+            }
+        } catch (IOException | RuntimeException e) {
+            // a sink that fails to open is not closed by the reporting task
+            for (AzMonitorDestination destination : created) {
+                closeQuietly(destination, e);
+            }
+            throw e;
+        }
+        destinations = created;
+
+        if (configuration.getProperty(AzMonitorReportingTask.SPOOL_DIRECTORY).isSet()) {
+            try {
+                final Path directory = Paths.get(configuration.getProperty(AzMonitorReportingTask.SPOOL_DIRECTORY)
+                        .evaluateAttributeExpressions().getValue(), context.getIdentifier());
+                spool = new MetricSpool(directory,
+                        configuration.getProperty(AzMonitorReportingTask.SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue(),
+                        configuration.getProperty(AzMonitorReportingTask.SPOOL_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS),
+                        configuration.getProperty(AzMonitorReportingTask.SPOOL_REPLAY_RATE).asInteger(),
+                        logger);
+                for (AzMonitorDestination destination : created) {
+                    destination.getPublisher().setSpool(spool);
+                }
+                spool.start(created.get(0).getPublisher()::newBuffer, (endpoint, payload) -> {
+                    final AzMonitorDestination destination = destinationOf(created, endpoint);
+                    if (destination == null) {
+                        logger.warn("Dropping spooled report for {}, which is no longer the endpoint of any route", new Object[]{endpoint});
+                        created.get(0).getPublisher().release(payload);
+                        return null;
+                    }
+                    return destination.getPublisher().publish(endpoint, destination.getTokenManager().getAccessToken(), payload);
+                });
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(this, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Closes what a failed {@link #open} created, keeping any further failure with the one that made it fail.
+     */
+    private static void closeQuietly(final Closeable closeable, final Exception failure) {
+        try {
+            closeable.close();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Creates the destination of a route with its own token cache, connection pool and dispatcher.
+     */
+    private AzMonitorDestination createDestination(final ReportingPlan plan, final ReportingPlan.Route route,
+                                                   final int maxConcurrentRequests) throws IOException {
+        final AzureTokenManager tokens = new AzureTokenManager(plan.getAuthority(), route.getTenantId(), route.getSubject(),
+                route.getClientId(), route.getClientSecret(), logger);
+        tokens.start();
+        // one more connection for replaying spooled reports
+        final AzMonitorPublisher publisher = new AzMonitorPublisher(maxConcurrentRequests + 1);
+        final AzMonitorDispatcher dispatcher = new AzMonitorDispatcher(publisher, tokens::getCachedAccessToken, maxConcurrentRequests, health, logger);
+        return new AzMonitorDestination(route.getName(), route.getGroupIds(), route.getEndpoint(), tokens, publisher, dispatcher);
+    }
+
+    /**
+     * @return the destination a spooled payload was sent to, or null if the payload is for an endpoint a
+     * previous configuration had. Such payloads are dropped rather than sent to the default destination,
+     * whose token may not be valid for that endpoint and whose endpoint is a different resource.
+     */
+    private static AzMonitorDestination destinationOf(final List<AzMonitorDestination> destinations, final String endpoint) {
+        for (AzMonitorDestination destination : destinations) {
+            if (destination.getEndpoint().equals(endpoint)) {
+                return destination;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a report and queues its payloads with the dispatchers, which send them independently and
+     * log and spool the ones that fail.
+     */
+    @Override
+    public void publish(final PendingReport report) {
+        final List<AzMonitorDestination> current = destinations;
+        if (current == null) {
+            return;
+        }
+        final NdjsonMetricEncoder encoder = this.encoder;
+        encoder.setNodeDimension(report.getNode());
+        final long encodeStart = System.nanoTime();
+        final long dispatchDelayMillis = report.getDispatchDelayMillis();
+        final List<CompletableFuture<Response>> responses = new ArrayList<>();
+        int series = 0;
+        try {
+            for (int d = 0; d < current.size(); d++) {
+                final AzMonitorDestination destination = current.get(d);
+                final AzMonitorDispatcher dispatcher = destination.getDispatcher();
+                final MetricBatch batch = report.getBatches()[d];
+                encoder.encode(batch, dispatcher.getMaxPayloadBytes(), destination.getPublisher()::newBuffer, payload -> {
+                    health.recordEncoded(payload.size());
+                    responses.add(dispatcher.dispatch(destination.getEndpoint(), payload, dispatchDelayMillis));
+                });
+                series += batch.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        final long encoded = System.nanoTime();
+        final long skipped = encoder.takeSkippedSeries();
+        health.record(ReporterHealth.Phase.ENCODE, encoded - encodeStart);
+        health.recordSeries(series - skipped);
+        health.recordSkipped(skipped);
+        final long reportStart = report.getStartNanos();
+        final long collected = report.getCollectedNanos();
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((done, failure) -> reportCompleted(reportStart, collected, encodeStart, encoded, dispatchDelayMillis));
+    }
+
+    /**
+     * Records the duration of a report once its last payload is done, and warns if it took longer than
+     * the run schedule. The Dispatch Spread delay is not counted.
+     */
+    private void reportCompleted(long reportStart, long collected, long encodeStart, long encoded, long dispatchDelayMillis) {
+        final long completed = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(dispatchDelayMillis);
+        health.record(ReporterHealth.Phase.REPORT, completed - reportStart);
+        final long period = schedulingPeriodNanos;
+        if (period <= 0 || completed - reportStart <= period) {
+            return;
+        }
+        final long collectMillis = TimeUnit.NANOSECONDS.toMillis(collected - reportStart);
+        final long queueMillis = TimeUnit.NANOSECONDS.toMillis(encodeStart - collected);
+        final long encodeMillis = TimeUnit.NANOSECONDS.toMillis(encoded - encodeStart);
+        final long publishMillis = TimeUnit.NANOSECONDS.toMillis(completed - encoded);
+        final long slowestMillis = Math.max(Math.max(collectMillis, queueMillis), Math.max(encodeMillis, publishMillis));
+        final String slowest = slowestMillis == collectMillis ? "collecting"
+                : slowestMillis == queueMillis ? "waiting for the publisher thread"
+                : slowestMillis == encodeMillis ? "encoding" : "publishing";
+        logger.warn("Report took {} ms, longer than the run schedule of {} ms; most time was spent {} "
+                        + "(collecting {} ms, queued {} ms, encoding {} ms, publishing {} ms)",
+                new Object[]{TimeUnit.NANOSECONDS.toMillis(completed - reportStart), TimeUnit.NANOSECONDS.toMillis(period),
+                        slowest, collectMillis, queueMillis, encodeMillis, publishMillis});
+    }
+
+    /**
+     * Writes a report that did not fit into the queue to the spool, on the reporting thread. Without a
+     * spool the report is dropped.
+     */
+    @Override
+    public void spill(final PendingReport report) {
+        final List<AzMonitorDestination> current = destinations;
+        if (current == null || spool == null) {
+            return;
+        }
+        final NdjsonMetricEncoder encoder = spillEncoder;
+        encoder.setNodeDimension(report.getNode());
+        try {
+            for (int d = 0; d < current.size(); d++) {
+                final AzMonitorDestination destination = current.get(d);
+                encoder.encode(report.getBatches()[d], destination.getDispatcher().getMaxPayloadBytes(),
+                        destination.getPublisher()::newBuffer,
+                        payload -> destination.getPublisher().spool(destination.getEndpoint(), report.getTimeMillis(), payload));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        health.recordSkipped(encoder.takeSkippedSeries());
+    }
+
+    @Override
+    public long pendingRecords() {
+        final MetricSpool current = spool;
+        return current == null ? -1 : current.pendingRecords();
+    }
+
+    /**
+     * Stops the dispatchers, which spool what is still queued, then the spool and the destinations.
+     */
+    @Override
+    public void close() throws IOException {
+        final List<AzMonitorDestination> stopped = destinations;
+        destinations = null;
+        if (stopped != null) {
+            // the dispatchers spool what is still queued, so they go before the spool is closed
+            for (AzMonitorDestination destination : stopped) {
+                destination.getDispatcher().close();
+            }
+        }
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+        if (stopped != null) {
+            for (AzMonitorDestination destination : stopped) {
+                destination.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One Azure resource that metrics are sent to, with everything that is kept per resource: the process
+ * groups routed to it, its endpoint, bearer token cache, connection pool and dispatcher.
+ * <p>
+ * Destinations share nothing that is sent, so a slow or throttling resource does not hold back the others.
+ */
+public class AzMonitorDestination implements Closeable {
+
+    private final String name;
+    private final List<String> groupIds;
+    private final String endpoint;
+    private final AzureTokenManager tokenManager;
+    private final AzMonitorPublisher publisher;
+    private final AzMonitorDispatcher dispatcher;
+
+    /**
+     * @param groupIds ids of the process groups whose series are sent to this destination; for the default
+     *                 destination, those of the Process group ID(s), empty for the whole flow
+     */
+    public AzMonitorDestination(String name, List<String> groupIds, String endpoint, AzureTokenManager tokenManager,
+                                AzMonitorPublisher publisher, AzMonitorDispatcher dispatcher) {
+        this.name = name;
+        this.groupIds = groupIds;
+        this.endpoint = endpoint;
+        this.tokenManager = tokenManager;
+        this.publisher = publisher;
+        this.dispatcher = dispatcher;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getGroupIds() {
+        return groupIds;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public AzureTokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    public AzMonitorPublisher getPublisher() {
+        return publisher;
+    }
+
+    public AzMonitorDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Stops the dispatcher unless it was stopped before, then the token refresh and the connections. The
+     * dispatchers spool what is still queued, so they go before the spool shared by all destinations is
+     * closed, and the publishers after it, since it replays through them.
+     */
+    @Override
+    public void close() throws IOException {
+        dispatcher.close();
+        tokenManager.close();
+        publisher.close();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.asynchttpclient.Response;
+
+/**
+ * Sends payloads through an {@link AzMonitorPublisher} without blocking the caller, coping with an
+ * endpoint that throttles or fails.
+ * <ul>
+ * <li>Failed requests that may succeed later are retried with exponential backoff and full jitter,
+ * waiting at least as long as a {@code Retry-After} header asks for.</li>
+ * <li>The number of requests in flight adapts to throttling: it grows by one per round of successful
+ * requests and is halved on a 429 or 503, at most once per second.</li>
+ * <li>Payloads rejected with 413 are split in two and the payload size used for later reports is halved.</li>
+ * <li>After {@value #FAILURE_THRESHOLD} consecutive failures, transport errors and retriable responses other
+ * than 429 alike, the circuit opens: payloads go straight to the spool, or are dropped without one, until a
+ * single probe request succeeds after a pause that doubles with every failed probe. Any retriable response
+ * to the probe, a 429 included, fails it.</li>
+ * </ul>
+ * Payloads that are still failing after {@value #MAX_ATTEMPTS} attempts are handed to the publisher's
+ * spool. All sending happens on one scheduler thread; the responses are handled on it as well, and nothing on
+ * it waits for AAD.
+ * Request latencies, token waits, response codes and retries are recorded in a {@link ReporterHealth}.
+ */
+public class AzMonitorDispatcher implements Closeable {
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long BASE_BACKOFF_MILLIS = 500;
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // waiting longer than this is left to the spool
+    static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    static final int FAILURE_THRESHOLD = 5;
+    static final long MIN_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long DECREASE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    // Azure Monitor rejects larger requests
+    static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+    static final int MIN_PAYLOAD_BYTES = 64 * 1024;
+    static final int MAX_QUEUED = 1024;
+
+    enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AzMonitorPublisher publisher;
+    private final Callable<String> accessToken;
+    private final int maxConcurrency;
+    private final ComponentLog logger;
+    private final ReporterHealth health;
+    private final ScheduledExecutorService scheduler;
+    // only used on the scheduler thread
+    private final NdjsonMetricEncoder plainSplitter = new NdjsonMetricEncoder(false);
+    private final NdjsonMetricEncoder gzipSplitter = new NdjsonMetricEncoder(true);
+
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    private final Set<Delivery> waiting = new HashSet<>();
+    private int inFlight;
+    private double concurrencyLimit;
+    private long lastDecreaseMillis;
+    private CircuitState state = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilMillis;
+    private long openMillis = MIN_OPEN_MILLIS;
+    private volatile int maxPayloadBytes = MAX_PAYLOAD_BYTES;
+
+    private static final class Delivery {
+        final String endpoint;
+        final PayloadBuffer body;
+        final long timeMillis;
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        int attempts;
+        long sentNanos;
+
+        Delivery(String endpoint, PayloadBuffer body, long timeMillis) {
+            this.endpoint = endpoint;
+            this.body = body;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * @param accessToken    supplies the bearer token for each attempt; it is called on the scheduler thread, so it
+     *                       must not block but rather throw if no token is at hand, which is retried like a
+     *                       transport error
+     * @param maxConcurrency upper bound of the requests in flight
+     */
+    public AzMonitorDispatcher(AzMonitorPublisher publisher, Callable<String> accessToken, int maxConcurrency,
+                               ReporterHealth health, ComponentLog logger) {
+        this.publisher = publisher;
+        this.accessToken = accessToken;
+        this.maxConcurrency = maxConcurrency;
+        this.concurrencyLimit = maxConcurrency;
+        this.health = health;
+        this.logger = logger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(AzureTokenManager.daemonThreads("AzMonitor-Dispatcher"));
+    }
+
+    /**
+     * @return the size encoded payloads should stay below, lowered when the endpoint rejects a payload as too large
+     */
+    public int getMaxPayloadBytes() {
+        return maxPayloadBytes;
+    }
+
+    /**
+     * Queues a payload for sending and returns immediately. The buffer is owned by the dispatcher afterwards.
+     *
+     * @return future completed with the final response, or exceptionally if no response was received
+     * or the circuit is open
+     */
+    public CompletableFuture<Response> dispatch(String endpoint, PayloadBuffer body) {
+        return dispatch(endpoint, body, 0);
+    }
+
+    /**
+     * Like {@link #dispatch(String, PayloadBuffer)}, but queues the payload only after {@code delayMillis},
+     * e.g. to spread the reports of the nodes of a cluster. Payloads still waiting when the dispatcher is
+     * closed are spooled.
+     */
+    public CompletableFuture<Response> dispatch(String endpoint, PayloadBuffer body, long delayMillis) {
+        final Delivery delivery = new Delivery(endpoint, body, System.currentTimeMillis());
+        if (delayMillis > 0) {
+            retryLater(delivery, delayMillis);
+        } else {
+            enqueue(delivery);
+        }
+        return delivery.result;
+    }
+
+    private void enqueue(Delivery delivery) {
+        final String rejection;
+        synchronized (this) {
+            if (state == CircuitState.OPEN && System.currentTimeMillis() < openUntilMillis) {
+                rejection = "circuit breaker is open";
+            } else if (queue.size() >= MAX_QUEUED) {
+                rejection = "too many payloads are queued";
+                logger.warn("More than {} payloads are waiting to be sent to Azure Monitor", new Object[]{MAX_QUEUED});
+            } else {
+                queue.add(delivery);
+                rejection = null;
+            }
+        }
+        if (rejection != null) {
+            reject(delivery, rejection);
+            return;
+        }
+        try {
+            scheduler.execute(this::pump);
+        } catch (RejectedExecutionException e) {
+            final boolean queued;
+            synchronized (this) {
+                queued = queue.remove(delivery);
+            }
+            if (queued) {
+                reject(delivery, "reporting task was stopped");
+            }
+        }
+    }
+
+    private void pump() {
+        final List<Delivery> rejected = new ArrayList<>();
+        while (true) {
+            final Delivery delivery;
+            synchronized (this) {
+                if (state == CircuitState.OPEN) {
+                    if (System.currentTimeMillis() < openUntilMillis) {
+                        rejected.addAll(queue);
+                        queue.clear();
+                        break;
+                    }
+                    state = CircuitState.HALF_OPEN;
+                }
+                // a half-open circuit lets a single probe through
+                final int limit = state == CircuitState.HALF_OPEN ? 1 : (int) concurrencyLimit;
+                if (queue.isEmpty() || inFlight >= limit) {
+                    break;
+                }
+                delivery = queue.poll();
+                inFlight++;
+            }
+            send(delivery);
+        }
+        for (Delivery delivery : rejected) {
+            reject(delivery, "circuit breaker is open");
+        }
+    }
+
+    private void send(Delivery delivery) {
+        delivery.attempts++;
+        final CompletableFuture<Response> future;
+        try {
+            final long tokenStart = System.nanoTime();
+            final String token = accessToken.call();
+            delivery.sentNanos = System.nanoTime();
+            health.record(ReporterHealth.Phase.TOKEN, delivery.sentNanos - tokenStart);
+            future = publisher.post(delivery.endpoint, token, delivery.body);
+        } catch (Exception e) {
+            health.recordTransportError();
+            // no token while AAD is unreachable is treated like a transport error
+            onComplete(delivery, null, e);
+            return;
+        }
+        future.whenComplete((response, failure) -> {
+            health.record(ReporterHealth.Phase.PUBLISH, System.nanoTime() - delivery.sentNanos);
+            if (failure == null) {
+                health.recordResponse(response.getStatusCode());
+            } else {
+                health.recordTransportError();
+            }
+            try {
+                scheduler.execute(() -> onComplete(delivery, response, failure));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight--;
+                }
+                giveUp(delivery, response, failure);
+            }
+        });
+    }
+
+    private void onComplete(Delivery delivery, Response response, Throwable failure) {
+        synchronized (this) {
+            inFlight--;
+        }
+        if (failure == null && AzMonitorPublisher.isSuccess(response)) {
+            recordSuccess();
+            publisher.release(delivery.body);
+            delivery.result.complete(response);
+        } else if (failure == null && response.getStatusCode() == 413) {
+            split(delivery, response);
+        } else {
+            final boolean retriable = failure != null || AzMonitorPublisher.isRetriable(response);
+            if (retriable) {
+                recordFailure(failure == null && AzMonitorPublisher.isThrottled(response),
+                        failure != null || response.getStatusCode() != 429);
+            } else {
+                recordRejected();
+            }
+            final long retryAfter = failure == null ? AzMonitorPublisher.retryAfterMillis(response) : -1;
+            if (retriable && delivery.attempts < MAX_ATTEMPTS && retryAfter <= MAX_RETRY_AFTER_MILLIS) {
+                health.recordRetry();
+                retryLater(delivery, Math.max(backoffMillis(delivery.attempts), retryAfter));
+            } else {
+                giveUp(delivery, response, failure);
+            }
+        }
+        pump();
+    }
+
+    private void retryLater(Delivery delivery, long delayMillis) {
+        synchronized (this) {
+            waiting.add(delivery);
+        }
+        try {
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    if (!waiting.remove(delivery)) {
+                        return;
+                    }
+                }
+                enqueue(delivery);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                waiting.remove(delivery);
+            }
+            giveUp(delivery, null, e);
+        }
+    }
+
+    /**
+     * @return a random delay of up to {@code BASE * 2^(attempts - 1)}, capped
+     */
+    static long backoffMillis(int attempts) {
+        final long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void split(Delivery delivery, Response response) {
+        maxPayloadBytes = Math.max(MIN_PAYLOAD_BYTES, maxPayloadBytes / 2);
+        final NdjsonMetricEncoder splitter = delivery.body.isGzipped() ? gzipSplitter : plainSplitter;
+        final PayloadBuffer first = publisher.newBuffer();
+        final PayloadBuffer second = publisher.newBuffer();
+        if (!splitter.split(delivery.body, first, second)) {
+            publisher.release(first);
+            publisher.release(second);
+            giveUp(delivery, response, null);
+            return;
+        }
+        publisher.release(delivery.body);
+        final Delivery head = new Delivery(delivery.endpoint, first, delivery.timeMillis);
+        final Delivery tail = new Delivery(delivery.endpoint, second, delivery.timeMillis);
+        head.result.thenCombine(tail.result, (a, b) -> AzMonitorPublisher.isSuccess(a) ? b : a)
+                .whenComplete((combined, failure) -> {
+                    if (failure != null) {
+                        delivery.result.completeExceptionally(failure);
+                    } else {
+                        delivery.result.complete(combined);
+                    }
+                });
+        enqueue(head);
+        enqueue(tail);
+    }
+
+    private void reject(Delivery delivery, String reason) {
+        // an open circuit has been logged once when it opened
+        giveUp(delivery, null, new IOException("Not sent to Azure Monitor, " + reason), true);
+    }
+
+    private void giveUp(Delivery delivery, Response response, Throwable failure) {
+        giveUp(delivery, response, failure, false);
+    }
+
+    /**
+     * Spools the payload if it may be accepted later, drops it otherwise, and completes its future.
+     */
+    private void giveUp(Delivery delivery, Response response, Throwable failure, boolean quiet) {
+        final boolean retriable = failure != null || AzMonitorPublisher.isRetriable(response);
+        if (retriable) {
+            publisher.spool(delivery.endpoint, delivery.timeMillis, delivery.body);
+        } else {
+            publisher.release(delivery.body);
+        }
+        if (response != null) {
+            logger.error("Failed pushing Nifi-metrics to Azure Monitor: HTTP {} {}{}",
+                    new Object[]{response.getStatusCode(), response.getResponseBody(), spoolNote(retriable)});
+            delivery.result.complete(response);
+        } else {
+            if (quiet) {
+                logger.debug("{}{}", new Object[]{failure.getMessage(), spoolNote(retriable)});
+            } else {
+                logger.error("Failed pushing Nifi-metrics to Azure Monitor due to {}{}",
+                        new Object[]{failure, spoolNote(retriable)});
+            }
+            delivery.result.completeExceptionally(failure);
+        }
+    }
+
+    private String spoolNote(boolean retriable) {
+        return retriable && publisher.isSpooling() ? "; report spooled for replay" : "";
+    }
+
+    private synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        closeIfProbing();
+        concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+    }
+
+    /**
+     * The payload was rejected, but the endpoint itself is fine.
+     */
+    private synchronized void recordRejected() {
+        consecutiveFailures = 0;
+        closeIfProbing();
+    }
+
+    private void closeIfProbing() {
+        if (state == CircuitState.HALF_OPEN) {
+            state = CircuitState.CLOSED;
+            openMillis = MIN_OPEN_MILLIS;
+            logger.info("Azure Monitor is reachable again, circuit breaker closed");
+        }
+    }
+
+    /**
+     * @param throttled whether the endpoint asked to slow down, with a 429 or 503
+     * @param counted   whether the failure counts toward opening the circuit; a 429 only slows down, since the
+     *                  endpoint is up and says when to come back, while a 503 that persists opens the circuit
+     */
+    private synchronized void recordFailure(boolean throttled, boolean counted) {
+        final long now = System.currentTimeMillis();
+        if (throttled && now - lastDecreaseMillis >= DECREASE_INTERVAL_MILLIS) {
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            lastDecreaseMillis = now;
+        }
+        if (counted) {
+            consecutiveFailures++;
+        }
+        // any failed probe opens the circuit again
+        if (state == CircuitState.HALF_OPEN || (state == CircuitState.CLOSED && counted && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            state = CircuitState.OPEN;
+            openUntilMillis = now + openMillis;
+            logger.warn("Circuit breaker opened after {} consecutive failures; reports are not sent to Azure Monitor for {} seconds",
+                    new Object[]{consecutiveFailures, TimeUnit.MILLISECONDS.toSeconds(openMillis)});
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+        }
+    }
+
+    synchronized CircuitState getCircuitState() {
+        return state;
+    }
+
+    synchronized double getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Stops sending; queued payloads and payloads waiting for a retry are spooled.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        final List<Delivery> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(queue);
+            pending.addAll(waiting);
+            queue.clear();
+            waiting.clear();
+        }
+        for (Delivery delivery : pending) {
+            reject(delivery, "reporting task was stopped");
+        }
+    }
+}
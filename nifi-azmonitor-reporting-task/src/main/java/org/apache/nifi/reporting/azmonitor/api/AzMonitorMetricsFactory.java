@@ -1,220 +1,386 @@
 package org.apache.nifi.reporting.azmonitor.api;
 
 import org.apache.nifi.reporting.azmonitor.metrics.*;
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.PortStatus;
 import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.controller.status.RemoteProcessGroupStatus;
 
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 /**
- * Factory class to create {@link CollectorRegistry}s by several metrics.
+ * Factory class to collect NiFi metrics into {@link MetricBatch}es.
+ * <p>
+ * The metrics reported per process group are declared once in {@link #GROUP_METRICS}; adding a metric
+ * means adding a descriptor there. The per-component tables are used by {@link ComponentMetricsCollector}
+ * and report under {@link #COMPONENT_METRICS_NAMESPACE} with component dimensions.
  */
 public class AzMonitorMetricsFactory {
 
+    public static final String NIFI_METRICS_NAMESPACE = "Nifi Metrics";
+    public static final String COMPONENT_METRICS_NAMESPACE = "Nifi Component Metrics";
+    public static final String REPORTER_HEALTH_NAMESPACE = "Reporter Health";
+    public static final String JVM_METRICS_NAMESPACE = "JVM Metrics";
+    public static final String LATENCY_METRICS_NAMESPACE = "Nifi Latency Metrics";
 
-    
-    public static List<Metric> createNifiMetrics(ProcessGroupStatus status, String applicationId, OffsetDateTime eventTime) {
-
-        DateTimeFormatter formatter = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
-        List<Metric> metrics = new ArrayList<Metric>();
-        int metricCountInt = 0;
-        long metricCountLong = 0;
-        // build flowfiles metric
-        Metric metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.FLOW_FILES_RECEIVED;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries flowLevelReceived = new MetricSeries();
-        metricCountInt = status.getFlowFilesReceived();
-        flowLevelReceived.Max = flowLevelReceived.Min = flowLevelReceived.Sum = metricCountInt;       
-        metric.Data.BaseData.Series.add(flowLevelReceived);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.FLOW_FILES_SENT;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries flowLevelSent = new MetricSeries();
-        metricCountInt = status.getFlowFilesSent();
-        flowLevelSent.Max = flowLevelSent.Min = flowLevelSent.Sum = metricCountInt;       
-        metric.Data.BaseData.Series.add(flowLevelSent);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.FLOW_FILES_TRANSFERRED;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries flowLevelTransferred = new MetricSeries();
-        metricCountInt = status.getFlowFilesTransferred();
-        flowLevelTransferred.Max = flowLevelTransferred.Min = flowLevelTransferred.Sum = metricCountInt;       
-        metric.Data.BaseData.Series.add(flowLevelTransferred);
-        metrics.add(metric);
-
-        
-        // Build bytes metric
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.BYTES_RECEIVED;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries bytesReceived = new MetricSeries();
-        metricCountLong = status.getBytesReceived();
-        bytesReceived.Max = bytesReceived.Min = bytesReceived.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(bytesReceived);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.BYTES_WRITTEN;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries bytesWritten = new MetricSeries();
-        metricCountLong = status.getBytesWritten();
-        bytesWritten.Max = bytesWritten.Min = bytesWritten.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(bytesWritten);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.BYTES_READ;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries bytesRead = new MetricSeries();
-        metricCountLong = status.getBytesRead();
-        bytesRead.Max = bytesRead.Min = bytesRead.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(bytesRead);
-        metrics.add(metric);
-
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.BYTES_SENT;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries bytesSent = new MetricSeries();
-        metricCountLong = status.getBytesSent();
-        bytesSent.Max = bytesSent.Min = bytesSent.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(bytesSent);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.BYTES_TRANSFERRED;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries bytesTransferred = new MetricSeries();
-        metricCountLong = status.getBytesTransferred();
-        bytesTransferred.Max = bytesTransferred.Min = bytesTransferred.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(bytesTransferred);
-        metrics.add(metric);
-
-        
-        // Size Content
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.OUTPUT_CONTENT_SIZE;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries outputContentSize = new MetricSeries();
-        metricCountLong = status.getOutputContentSize();
-        outputContentSize.Max = outputContentSize.Min = outputContentSize.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(outputContentSize);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.INPUT_CONTENT_SIZE;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries inputContentSize = new MetricSeries();
-        metricCountLong = status.getInputContentSize();
-        inputContentSize.Max = inputContentSize.Min = inputContentSize.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(inputContentSize);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.QUEUED_CONTENT_SIZE;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries queuedContentSize = new MetricSeries();
-        metricCountLong = status.getQueuedContentSize();
-        queuedContentSize.Max = queuedContentSize.Min = queuedContentSize.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(queuedContentSize);
-        metrics.add(metric);
-
-        
-
-        // Item Count
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.OUTPUT_COUNT;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries outputCount = new MetricSeries();
-        metricCountLong = status.getOutputCount();
-        outputCount.Max = outputCount.Min = outputCount.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(outputCount);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.INPUT_COUNT;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries inputCount = new MetricSeries();
-        metricCountLong = status.getInputCount();
-        inputCount.Max = inputCount.Min = inputCount.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(inputCount);
-        metrics.add(metric);
-
-        metric = new Metric();
-        metric.Time = formatter.format(eventTime);
-        metric.Data = new MetricData();
-        metric.Data.BaseData = new MetricBaseData();
-        metric.Data.BaseData.Metric = MetricNames.QUEUED_COUNT;
-        metric.Data.BaseData.Namespace = "Nifi Metrics";
-        metric.Data.BaseData.Series = new ArrayList<MetricSeries>();
-        MetricSeries queuedCount = new MetricSeries();
-        metricCountLong = status.getQueuedCount();
-        queuedCount.Max = queuedCount.Min = queuedCount.Sum = metricCountLong;       
-        metric.Data.BaseData.Series.add(queuedCount);        
-        metrics.add(metric);
-              
+    public static final String[] COMPONENT_DIMENSIONS = {
+            MetricNames.DIM_COMPONENT_NAME,
+            MetricNames.DIM_COMPONENT_TYPE,
+            MetricNames.DIM_COMPONENT_ID,
+            MetricNames.DIM_PARENT_GROUP
+    };
 
+    public static final List<MetricDescriptor<ProcessGroupStatus>> GROUP_METRICS = groupMetrics(NIFI_METRICS_NAMESPACE);
+
+    public static final List<MetricDescriptor<ProcessGroupStatus>> COMPONENT_GROUP_METRICS = groupMetrics(COMPONENT_METRICS_NAMESPACE);
+
+    public static final List<MetricDescriptor<ProcessorStatus>> PROCESSOR_METRICS = Collections.unmodifiableList(Arrays.asList(
+            componentCounter(MetricNames.FLOW_FILES_RECEIVED, ProcessorStatus::getFlowFilesReceived),
+            componentCounter(MetricNames.FLOW_FILES_SENT, ProcessorStatus::getFlowFilesSent),
+            componentCounter(MetricNames.FLOW_FILES_REMOVED, ProcessorStatus::getFlowFilesRemoved),
+            componentCounter(MetricNames.BYTES_RECEIVED, ProcessorStatus::getBytesReceived),
+            componentCounter(MetricNames.BYTES_SENT, ProcessorStatus::getBytesSent),
+            componentCounter(MetricNames.BYTES_READ, ProcessorStatus::getBytesRead),
+            componentCounter(MetricNames.BYTES_WRITTEN, ProcessorStatus::getBytesWritten),
+            componentCounter(MetricNames.INPUT_COUNT, ProcessorStatus::getInputCount),
+            componentCounter(MetricNames.INPUT_CONTENT_SIZE, ProcessorStatus::getInputBytes),
+            componentCounter(MetricNames.OUTPUT_COUNT, ProcessorStatus::getOutputCount),
+            componentCounter(MetricNames.OUTPUT_CONTENT_SIZE, ProcessorStatus::getOutputBytes),
+            componentCounter(MetricNames.INVOCATIONS, ProcessorStatus::getInvocations),
+            componentGauge(MetricNames.ACTIVE_THREADS, ProcessorStatus::getActiveThreadCount),
+            componentCounter(MetricNames.TOTAL_TASK_DURATION_NANOS, ProcessorStatus::getProcessingNanos)
+    ));
+
+    public static final List<MetricDescriptor<ConnectionStatus>> CONNECTION_METRICS = Collections.unmodifiableList(Arrays.asList(
+            componentCounter(MetricNames.INPUT_COUNT, ConnectionStatus::getInputCount),
+            componentCounter(MetricNames.INPUT_CONTENT_SIZE, ConnectionStatus::getInputBytes),
+            componentCounter(MetricNames.OUTPUT_COUNT, ConnectionStatus::getOutputCount),
+            componentCounter(MetricNames.OUTPUT_CONTENT_SIZE, ConnectionStatus::getOutputBytes),
+            componentGauge(MetricNames.QUEUED_COUNT, ConnectionStatus::getQueuedCount),
+            componentGauge(MetricNames.QUEUED_CONTENT_SIZE, ConnectionStatus::getQueuedBytes)
+    ));
+
+    public static final List<MetricDescriptor<PortStatus>> PORT_METRICS = Collections.unmodifiableList(Arrays.asList(
+            componentCounter(MetricNames.FLOW_FILES_RECEIVED, PortStatus::getFlowFilesReceived),
+            componentCounter(MetricNames.FLOW_FILES_SENT, PortStatus::getFlowFilesSent),
+            componentCounter(MetricNames.BYTES_RECEIVED, PortStatus::getBytesReceived),
+            componentCounter(MetricNames.BYTES_SENT, PortStatus::getBytesSent),
+            componentCounter(MetricNames.INPUT_COUNT, PortStatus::getInputCount),
+            componentCounter(MetricNames.INPUT_CONTENT_SIZE, PortStatus::getInputBytes),
+            componentCounter(MetricNames.OUTPUT_COUNT, PortStatus::getOutputCount),
+            componentCounter(MetricNames.OUTPUT_CONTENT_SIZE, PortStatus::getOutputBytes),
+            componentGauge(MetricNames.ACTIVE_THREADS, s -> value(s.getActiveThreadCount()))
+    ));
+
+    public static final List<MetricDescriptor<RemoteProcessGroupStatus>> REMOTE_GROUP_METRICS = Collections.unmodifiableList(Arrays.asList(
+            componentCounter(MetricNames.FLOW_FILES_SENT, s -> value(s.getSentCount())),
+            componentCounter(MetricNames.BYTES_SENT, s -> value(s.getSentContentSize())),
+            componentCounter(MetricNames.FLOW_FILES_RECEIVED, s -> value(s.getReceivedCount())),
+            componentCounter(MetricNames.BYTES_RECEIVED, s -> value(s.getReceivedContentSize())),
+            componentGauge(MetricNames.ACTIVE_THREADS, s -> value(s.getActiveThreadCount()))
+    ));
+
+    // the values derived metrics can read, by name: those of the metrics above and a few that are not sent
+    public static final Map<String, ToLongFunction<ProcessGroupStatus>> GROUP_FIELDS = Collections.unmodifiableMap(fields(GROUP_METRICS));
+    public static final Map<String, ToLongFunction<ProcessorStatus>> PROCESSOR_FIELDS = processorFields();
+    public static final Map<String, ToLongFunction<ConnectionStatus>> CONNECTION_FIELDS = connectionFields();
+    public static final Map<String, ToLongFunction<PortStatus>> PORT_FIELDS = Collections.unmodifiableMap(fields(PORT_METRICS));
+    public static final Map<String, ToLongFunction<RemoteProcessGroupStatus>> REMOTE_GROUP_FIELDS = Collections.unmodifiableMap(fields(REMOTE_GROUP_METRICS));
+
+    // about the reporting task itself; emitted directly rather than extracted from a status
+    public static final MetricDescriptor<Void> REPORTED_SERIES = gauge(REPORTER_HEALTH_NAMESPACE, MetricNames.REPORTED_SERIES, null);
+    public static final MetricDescriptor<Void> DROPPED_SERIES = gauge(REPORTER_HEALTH_NAMESPACE, MetricNames.DROPPED_SERIES, null);
+    public static final MetricDescriptor<Void> SUPPRESSED_SERIES = gauge(REPORTER_HEALTH_NAMESPACE, MetricNames.SUPPRESSED_SERIES, null);
+    // recorded by ReporterHealth; durations are per phase, counters are deltas since the previous report
+    public static final MetricDescriptor<Void> PHASE_DURATION = healthGauge(MetricNames.PHASE_DURATION);
+    public static final MetricDescriptor<Void> PHASE_DURATION_P50 = healthGauge(MetricNames.PHASE_DURATION_P50);
+    public static final MetricDescriptor<Void> PHASE_DURATION_P99 = healthGauge(MetricNames.PHASE_DURATION_P99);
+    public static final MetricDescriptor<Void> HTTP_RESPONSES = healthGauge(MetricNames.HTTP_RESPONSES);
+    public static final MetricDescriptor<Void> RETRIES = healthGauge(MetricNames.RETRIES);
+    public static final MetricDescriptor<Void> BYTES_ENCODED = healthGauge(MetricNames.BYTES_ENCODED);
+    public static final MetricDescriptor<Void> SERIES_EMITTED = healthGauge(MetricNames.SERIES_EMITTED);
+    public static final MetricDescriptor<Void> SKIPPED_SERIES = healthGauge(MetricNames.SKIPPED_SERIES);
+    public static final MetricDescriptor<Void> SPOOL_DEPTH = healthGauge(MetricNames.SPOOL_DEPTH);
+    public static final MetricDescriptor<Void> QUEUED_REPORTS = healthGauge(MetricNames.QUEUED_REPORTS);
+    public static final MetricDescriptor<Void> OVERFLOWED_REPORTS = healthGauge(MetricNames.OVERFLOWED_REPORTS);
+    public static final MetricDescriptor<Void> PROVENANCE_EVENTS = healthGauge(MetricNames.PROVENANCE_EVENTS);
+    public static final MetricDescriptor<Void> PROVENANCE_LAG = healthGauge(MetricNames.PROVENANCE_LAG);
+    public static final MetricDescriptor<Void> PROVENANCE_SAMPLE_INTERVAL = healthGauge(MetricNames.PROVENANCE_SAMPLE_INTERVAL);
+
+    public static final String[] PHASE_DIMENSIONS = {MetricNames.DIM_PHASE};
+    public static final String[] STATUS_DIMENSIONS = {MetricNames.DIM_STATUS_CODE};
+
+    // sampled from the platform MXBeans by JvmMetricsCollector; GC runs and time are deltas since the previous report
+    public static final MetricDescriptor<Void> JVM_UPTIME = jvmGauge(MetricNames.JVM_UPTIME);
+    public static final MetricDescriptor<Void> JVM_HEAP_USED = jvmGauge(MetricNames.JVM_HEAP_USED);
+    public static final MetricDescriptor<Void> JVM_HEAP_USAGE = jvmGauge(MetricNames.JVM_HEAP_USAGE);
+    public static final MetricDescriptor<Void> JVM_NON_HEAP_USAGE = jvmGauge(MetricNames.JVM_NON_HEAP_USAGE);
+    public static final MetricDescriptor<Void> JVM_THREAD_COUNT = jvmGauge(MetricNames.JVM_THREAD_COUNT);
+    public static final MetricDescriptor<Void> JVM_DAEMON_THREAD_COUNT = jvmGauge(MetricNames.JVM_DAEMON_THREAD_COUNT);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_NEW = jvmGauge(MetricNames.JVM_THREAD_STATES_NEW);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_RUNNABLE = jvmGauge(MetricNames.JVM_THREAD_STATES_RUNNABLE);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_BLOCKED = jvmGauge(MetricNames.JVM_THREAD_STATES_BLOCKED);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_WAITING = jvmGauge(MetricNames.JVM_THREAD_STATES_WAITING);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_TIMED_WAITING = jvmGauge(MetricNames.JVM_THREAD_STATES_TIMED_WAITING);
+    public static final MetricDescriptor<Void> JVM_THREAD_STATES_TERMINATED = jvmGauge(MetricNames.JVM_THREAD_STATES_TERMINATED);
+    public static final MetricDescriptor<Void> JVM_FILE_DESCRIPTOR_USAGE = jvmGauge(MetricNames.JVM_FILE_DESCRIPTOR_USAGE);
+    public static final MetricDescriptor<Void> JVM_GC_RUNS = jvmGauge(MetricNames.JVM_GC_RUNS);
+    public static final MetricDescriptor<Void> JVM_GC_TIME = jvmGauge(MetricNames.JVM_GC_TIME);
+
+    public static final String[] GC_DIMENSIONS = {MetricNames.DIM_GARBAGE_COLLECTOR};
+
+    // recorded by ProvenanceLatencyCollector from provenance events; Min/Max/Sum/Count over the report interval
+    public static final MetricDescriptor<Void> PROCESSING_LATENCY = latencyGauge(MetricNames.PROCESSING_LATENCY);
+    public static final MetricDescriptor<Void> PROCESSING_LATENCY_P50 = latencyGauge(MetricNames.PROCESSING_LATENCY_P50);
+    public static final MetricDescriptor<Void> PROCESSING_LATENCY_P95 = latencyGauge(MetricNames.PROCESSING_LATENCY_P95);
+    public static final MetricDescriptor<Void> PROCESSING_LATENCY_P99 = latencyGauge(MetricNames.PROCESSING_LATENCY_P99);
+    public static final MetricDescriptor<Void> LINEAGE_LATENCY = latencyGauge(MetricNames.LINEAGE_LATENCY);
+    public static final MetricDescriptor<Void> LINEAGE_LATENCY_P50 = latencyGauge(MetricNames.LINEAGE_LATENCY_P50);
+    public static final MetricDescriptor<Void> LINEAGE_LATENCY_P95 = latencyGauge(MetricNames.LINEAGE_LATENCY_P95);
+    public static final MetricDescriptor<Void> LINEAGE_LATENCY_P99 = latencyGauge(MetricNames.LINEAGE_LATENCY_P99);
+
+    public static final String[] LATENCY_DIMENSIONS = {MetricNames.DIM_COMPONENT_TYPE, MetricNames.DIM_COMPONENT_ID};
+
+    private static List<MetricDescriptor<ProcessGroupStatus>> groupMetrics(String namespace) {
+        return Collections.unmodifiableList(Arrays.asList(
+                // flowfiles
+                counter(namespace, MetricNames.FLOW_FILES_RECEIVED, ProcessGroupStatus::getFlowFilesReceived),
+                counter(namespace, MetricNames.FLOW_FILES_SENT, ProcessGroupStatus::getFlowFilesSent),
+                counter(namespace, MetricNames.FLOW_FILES_TRANSFERRED, ProcessGroupStatus::getFlowFilesTransferred),
+                // bytes
+                counter(namespace, MetricNames.BYTES_RECEIVED, ProcessGroupStatus::getBytesReceived),
+                counter(namespace, MetricNames.BYTES_WRITTEN, s -> value(s.getBytesWritten())),
+                counter(namespace, MetricNames.BYTES_READ, s -> value(s.getBytesRead())),
+                counter(namespace, MetricNames.BYTES_SENT, ProcessGroupStatus::getBytesSent),
+                counter(namespace, MetricNames.BYTES_TRANSFERRED, ProcessGroupStatus::getBytesTransferred),
+                // content size
+                counter(namespace, MetricNames.OUTPUT_CONTENT_SIZE, s -> value(s.getOutputContentSize())),
+                counter(namespace, MetricNames.INPUT_CONTENT_SIZE, s -> value(s.getInputContentSize())),
+                gauge(namespace, MetricNames.QUEUED_CONTENT_SIZE, s -> value(s.getQueuedContentSize())),
+                // item count
+                counter(namespace, MetricNames.OUTPUT_COUNT, s -> value(s.getOutputCount())),
+                counter(namespace, MetricNames.INPUT_COUNT, s -> value(s.getInputCount())),
+                gauge(namespace, MetricNames.QUEUED_COUNT, s -> value(s.getQueuedCount())),
+                // threads
+                gauge(namespace, MetricNames.ACTIVE_THREADS, s -> value(s.getActiveThreadCount())),
+                counter(namespace, MetricNames.TOTAL_TASK_DURATION_NANOS, AzMonitorMetricsFactory::totalProcessingNanos)
+        ));
+    }
+
+    private static <T> Map<String, ToLongFunction<T>> fields(List<MetricDescriptor<T>> descriptors) {
+        final Map<String, ToLongFunction<T>> fields = new LinkedHashMap<>();
+        for (MetricDescriptor<T> descriptor : descriptors) {
+            fields.put(descriptor.getName(), descriptor::extract);
+        }
+        return fields;
+    }
+
+    private static Map<String, ToLongFunction<ProcessorStatus>> processorFields() {
+        final Map<String, ToLongFunction<ProcessorStatus>> fields = fields(PROCESSOR_METRICS);
+        fields.put(MetricNames.TERMINATED_THREADS, ProcessorStatus::getTerminatedThreadCount);
+        fields.put(MetricNames.AVERAGE_LINEAGE_DURATION, s -> s.getAverageLineageDuration(TimeUnit.MILLISECONDS));
+        return Collections.unmodifiableMap(fields);
+    }
+
+    private static Map<String, ToLongFunction<ConnectionStatus>> connectionFields() {
+        final Map<String, ToLongFunction<ConnectionStatus>> fields = fields(CONNECTION_METRICS);
+        fields.put(MetricNames.BACK_PRESSURE_OBJECT_THRESHOLD, ConnectionStatus::getBackPressureObjectThreshold);
+        fields.put(MetricNames.BACK_PRESSURE_BYTES_THRESHOLD, ConnectionStatus::getBackPressureBytesThreshold);
+        return Collections.unmodifiableMap(fields);
+    }
+
+    private static <T> MetricDescriptor<T> gauge(String namespace, String name, ToLongFunction<T> extractor) {
+        return MetricRegistry.register(name, namespace, extractor);
+    }
+
+    // status counters are rolling-window totals, see CounterStateStore for turning them into deltas
+    private static <T> MetricDescriptor<T> counter(String namespace, String name, ToLongFunction<T> extractor) {
+        return MetricRegistry.registerCounter(name, namespace, extractor);
+    }
+
+    private static MetricDescriptor<Void> healthGauge(String name) {
+        return gauge(REPORTER_HEALTH_NAMESPACE, name, null);
+    }
+
+    private static MetricDescriptor<Void> jvmGauge(String name) {
+        return gauge(JVM_METRICS_NAMESPACE, name, null);
+    }
+
+    private static MetricDescriptor<Void> latencyGauge(String name) {
+        return gauge(LATENCY_METRICS_NAMESPACE, name, null);
+    }
+
+    private static <T> MetricDescriptor<T> componentGauge(String name, ToLongFunction<T> extractor) {
+        return gauge(COMPONENT_METRICS_NAMESPACE, name, extractor);
+    }
+
+    private static <T> MetricDescriptor<T> componentCounter(String name, ToLongFunction<T> extractor) {
+        return counter(COMPONENT_METRICS_NAMESPACE, name, extractor);
+    }
+
+    /**
+     * @return flags indexed by metric id, set for the component metrics with the given name
+     */
+    static boolean[] componentMetricIds(String name) {
+        final boolean[] ids = new boolean[MetricRegistry.size()];
+        for (int id = 0; id < ids.length; id++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(id);
+            ids[id] = descriptor.getName().equals(name) && descriptor.getNamespace().equals(COMPONENT_METRICS_NAMESPACE);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the names of the process group and component metrics, including the rates of counters
+     */
+    public static Set<String> flowMetricNames() {
+        final Set<String> names = new TreeSet<>();
+        for (int id = 0; id < MetricRegistry.size(); id++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(id);
+            if (isFlowMetric(descriptor)) {
+                names.add(descriptor.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return flags indexed by metric id, set for the process group and component metrics with one of the
+     * given names; a counter and its rate are set together when either of them is named
+     */
+    public static boolean[] flowMetricIds(Collection<String> names) {
+        final boolean[] ids = new boolean[MetricRegistry.size()];
+        for (int id = 0; id < ids.length; id++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(id);
+            if (!isFlowMetric(descriptor)) {
+                continue;
+            }
+            ids[id] |= names.contains(descriptor.getName());
+            if (descriptor.isCumulative()) {
+                // rates are registered after their counter
+                ids[id] |= names.contains(MetricRegistry.get(descriptor.getRateId()).getName());
+                ids[descriptor.getRateId()] = ids[id];
+            }
+        }
+        return ids;
+    }
+
+    private static boolean isFlowMetric(MetricDescriptor<?> descriptor) {
+        return !descriptor.isDerived() && (descriptor.getNamespace().equals(NIFI_METRICS_NAMESPACE)
+                || descriptor.getNamespace().equals(COMPONENT_METRICS_NAMESPACE));
+    }
+
+    /**
+     * Appends one single-sample series per entry of {@link #GROUP_METRICS} for the given group.
+     */
+    public static void collectNifiMetrics(ProcessGroupStatus status, MetricBatch batch) {
+        collectNifiMetrics(status, null, batch);
+    }
+
+    /**
+     * Appends one single-sample series per entry of {@link #GROUP_METRICS} whose id is flagged in
+     * {@code enabled}, or per entry if {@code enabled} is null.
+     */
+    public static void collectNifiMetrics(ProcessGroupStatus status, boolean[] enabled, MetricBatch batch) {
+        collectNifiMetrics(status, enabled, DerivedMetrics.NONE, batch);
+    }
+
+    /**
+     * Like {@link #collectNifiMetrics(ProcessGroupStatus, boolean[], MetricBatch)}, followed by the derived
+     * metrics that apply to process groups.
+     */
+    public static void collectNifiMetrics(ProcessGroupStatus status, boolean[] enabled, DerivedMetrics derived, MetricBatch batch) {
+        final long groupKey = SeriesKeys.component(status.getId());
+        for (MetricDescriptor<ProcessGroupStatus> descriptor : GROUP_METRICS) {
+            if (enabled == null || enabled[descriptor.getId()]) {
+                batch.add(descriptor.getId(), groupKey, null, null, descriptor.extract(status));
+            }
+        }
+        if (!derived.groups().isEmpty()) {
+            derived.groups().collect(status, groupKey, null, null, derived.newScratch(), batch);
+        }
+    }
+
+    public static List<Metric> createNifiMetrics(ProcessGroupStatus status, OffsetDateTime eventTime) {
+        final MetricBatch batch = new MetricBatch(GROUP_METRICS.size());
+        batch.clear(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(eventTime));
+        collectNifiMetrics(status, batch);
+        return toMetrics(batch);
+    }
+
+    /**
+     * Appends one dimensioned series per descriptor for a single component, only for the descriptors whose
+     * id is flagged in {@code enabled} unless it is null, followed by the derived metrics of the component.
+     *
+     * @param scratch from {@link DerivedMetrics#newScratch()}
+     */
+    static <T> void collectComponent(List<MetricDescriptor<T>> descriptors, T status, String componentId,
+                                     String[] dimValues, boolean[] enabled, DerivedMetrics.Binding<T> derived,
+                                     double[] scratch, MetricBatch batch) {
+        final long componentKey = SeriesKeys.component(componentId);
+        for (MetricDescriptor<T> descriptor : descriptors) {
+            if (enabled == null || enabled[descriptor.getId()]) {
+                batch.add(descriptor.getId(), componentKey, COMPONENT_DIMENSIONS, dimValues, descriptor.extract(status));
+            }
+        }
+        derived.collect(status, componentKey, COMPONENT_DIMENSIONS, dimValues, scratch, batch);
+    }
+
+    /**
+     * Converts a batch to the object model, one {@link Metric} per row.
+     */
+    public static List<Metric> toMetrics(MetricBatch batch) {
+        final List<Metric> metrics = new ArrayList<>(batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(batch.metricId(row));
+            final MetricSeries series = new MetricSeries();
+            series.Min = batch.min(row);
+            series.Max = batch.max(row);
+            series.Sum = batch.sum(row);
+            series.Count = (int) batch.count(row);
+
+            final Metric metric = new Metric();
+            metric.Time = batch.getTime();
+            metric.Data = new MetricData();
+            metric.Data.BaseData = new MetricBaseData();
+            metric.Data.BaseData.Metric = descriptor.getName();
+            metric.Data.BaseData.Namespace = descriptor.getNamespace();
+            if (batch.dimNames(row) != null) {
+                metric.Data.BaseData.DimNames = Arrays.asList(batch.dimNames(row));
+                series.DimValues = Arrays.asList(batch.dimValues(row));
+            }
+            metric.Data.BaseData.Series = new ArrayList<>(1);
+            metric.Data.BaseData.Series.add(series);
+            metrics.add(metric);
+        }
         return metrics;
     }
 
-    
+    private static long totalProcessingNanos(ProcessGroupStatus status) {
+        long nanos = 0;
+        for (ProcessorStatus processor : status.getProcessorStatus()) {
+            nanos += processor.getProcessingNanos();
+        }
+        for (ProcessGroupStatus child : status.getProcessGroupStatus()) {
+            nanos += totalProcessingNanos(child);
+        }
+        return nanos;
+    }
+
+    static long value(Number number) {
+        return number == null ? 0 : number.longValue();
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.epoll.Epoll;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.BoundRequestBuilder;
+import org.asynchttpclient.DefaultAsyncHttpClientConfig;
+import org.asynchttpclient.Dsl;
+import org.asynchttpclient.Response;
+
+/**
+ * Posts NDJSON metric payloads to the Azure Monitor custom metrics endpoint.
+ * <p>
+ * Connections to {@code {region}.monitoring.azure.com} are kept alive and pooled across triggers.
+ * Requests are non-blocking; how many are in flight at once is up to the caller, see
+ * {@link AzMonitorDispatcher}, within the connection limit given to the constructor.
+ * <p>
+ * Payload buffers are handed out by {@link #newBuffer()} and returned to the pool by
+ * {@link #release}, so the request body is sent straight from the encoder's buffer.
+ */
+public class AzMonitorPublisher implements Closeable {
+
+    static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    static final int REQUEST_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+    static final int POOLED_IDLE_TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(5);
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // don't pin the occasional huge payload buffer in the pool
+    static final int MAX_POOLED_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private final AsyncHttpClient client;
+    private final ConcurrentLinkedQueue<PayloadBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private volatile MetricSpool spool;
+
+    /**
+     * @param maxConnections maximum number of connections to the endpoint, and so of requests in flight
+     */
+    public AzMonitorPublisher(int maxConnections) {
+        this.client = Dsl.asyncHttpClient(new DefaultAsyncHttpClientConfig.Builder()
+                .setThreadPoolName("AzMonitor-Publisher")
+                .setUseNativeTransport(Epoll.isAvailable())
+                .setKeepAlive(true)
+                .setMaxConnectionsPerHost(maxConnections)
+                // idle connections outlive the default 1 min schedule so the next report reuses them
+                .setPooledConnectionIdleTimeout(POOLED_IDLE_TIMEOUT_MILLIS)
+                .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setRequestTimeout(REQUEST_TIMEOUT_MILLIS)
+                .setMaxRequestRetry(0)
+                .build());
+    }
+
+    /**
+     * @return an empty buffer from the pool, to be returned with {@link #release}
+     */
+    public PayloadBuffer newBuffer() {
+        final PayloadBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return new PayloadBuffer(INITIAL_BUFFER_SIZE);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool; it must not be touched afterwards.
+     */
+    public void release(PayloadBuffer buffer) {
+        if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * @param spool spool for payloads that could not be published, or null to drop them
+     */
+    public void setSpool(MetricSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Posts a payload once. The caller keeps ownership of the buffer but must not modify it until
+     * the returned future completes.
+     *
+     * @return future completed with the response, or exceptionally on a transport error
+     */
+    public CompletableFuture<Response> post(String endpoint, String accessToken, PayloadBuffer body) {
+        final BoundRequestBuilder request = client.preparePost(endpoint)
+                .setHeader("Authorization", "Bearer " + accessToken)
+                .setHeader("Content-Type", "application/x-ndjson")
+                .setHeader("Accept", "application/json")
+                .setBody(body.asByteBuffer());
+        if (body.isGzipped()) {
+            request.setHeader("Content-Encoding", "gzip");
+        }
+        return request.execute().toCompletableFuture();
+    }
+
+    /**
+     * Posts a payload once and releases its buffer when done.
+     */
+    public CompletableFuture<Response> publish(String endpoint, String accessToken, PayloadBuffer body) {
+        final CompletableFuture<Response> future;
+        try {
+            future = post(endpoint, accessToken, body);
+        } catch (RuntimeException e) {
+            release(body);
+            throw e;
+        }
+        return future.whenComplete((response, failure) -> release(body));
+    }
+
+    /**
+     * Spools a payload that could not be published, if a spool is set, and releases its buffer.
+     *
+     * @param timeMillis time the payload was first published at
+     */
+    public void spool(String endpoint, long timeMillis, PayloadBuffer body) {
+        final MetricSpool spool = this.spool;
+        if (spool != null) {
+            spool.append(endpoint, timeMillis, body);
+        }
+        release(body);
+    }
+
+    public boolean isSpooling() {
+        return spool != null;
+    }
+
+    /**
+     * @return true if the response carries a 2xx status
+     */
+    public static boolean isSuccess(Response response) {
+        final int status = response.getStatusCode();
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return true if the request may succeed when sent again later, e.g. on throttling, server errors
+     * or an expired token
+     */
+    public static boolean isRetriable(Response response) {
+        final int status = response.getStatusCode();
+        return status == 401 || status == 403 || status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * @return true if the endpoint asks to slow down
+     */
+    public static boolean isThrottled(Response response) {
+        final int status = response.getStatusCode();
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * @return the delay requested by a {@code Retry-After} header in milliseconds, or -1 if there is none
+     */
+    public static long retryAfterMillis(Response response) {
+        final String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            // HTTP-date form
+            try {
+                final long at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
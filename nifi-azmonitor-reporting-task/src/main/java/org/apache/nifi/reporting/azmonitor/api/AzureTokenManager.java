@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.text.MessageFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.microsoft.aad.adal4j.AuthenticationContext;
+import com.microsoft.aad.adal4j.AuthenticationResult;
+import com.microsoft.aad.adal4j.ClientCredential;
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Holds the AAD bearer token used to post metrics for the lifetime of a schedule.
+ * <p>
+ * The token is acquired once when the manager is started and refreshed in the background
+ * before it expires, so {@link #getAccessToken()} is a plain volatile read on the reporting path.
+ * Only when no valid token is cached (first acquisition failed, or refreshes kept failing until expiry)
+ * does the caller block on AAD; callers that must not block use {@link #getCachedAccessToken()} and try
+ * again later.
+ */
+public class AzureTokenManager implements AutoCloseable {
+
+    public static final String DEFAULT_AUTHORITY = "https://login.microsoftonline.com";
+    private static final String TOKEN_PATH = "{0}/{1}/oauth2/token";
+
+    // refresh this long before the token expires
+    private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // a token this close to its expiry could expire before a request using it is accepted
+    static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MIN_REFRESH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Requests a new token from AAD.
+     */
+    @FunctionalInterface
+    interface TokenSource {
+        Future<AuthenticationResult> acquireToken();
+    }
+
+    private final ComponentLog logger;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService authExecutor;
+    private final TokenSource tokenSource;
+
+    private volatile AuthenticationResult current;
+
+    /**
+     * @param authority base URL of the Azure AD authority, e.g. {@value #DEFAULT_AUTHORITY}
+     */
+    public AzureTokenManager(String authority, String tenantId, String resource, String clientId, String clientSecret,
+                             ComponentLog logger) throws MalformedURLException {
+        this.logger = logger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("AzMonitor-TokenRefresh"));
+        // adal4j runs the token request on its own executor; the refresher waits on it from the scheduler thread
+        this.authExecutor = Executors.newSingleThreadExecutor(daemonThreads("AzMonitor-TokenRequest"));
+        final String base = authority.endsWith("/") ? authority.substring(0, authority.length() - 1) : authority;
+        // instance discovery only knows the Azure AD hosts, so other authorities such as stand-ins are not validated
+        final AuthenticationContext authContext = new AuthenticationContext(MessageFormat.format(TOKEN_PATH, base, tenantId),
+                DEFAULT_AUTHORITY.equals(base), authExecutor);
+        final ClientCredential credential = new ClientCredential(clientId, clientSecret);
+        this.tokenSource = () -> authContext.acquireToken(resource, credential, null);
+    }
+
+    /**
+     * Creates a manager that takes its tokens from the given source instead of AAD.
+     */
+    AzureTokenManager(TokenSource tokenSource, ComponentLog logger) {
+        this.logger = logger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("AzMonitor-TokenRefresh"));
+        this.authExecutor = Executors.newSingleThreadExecutor(daemonThreads("AzMonitor-TokenRequest"));
+        this.tokenSource = tokenSource;
+    }
+
+    /**
+     * Starts background acquisition of the first token. Does not block.
+     */
+    public void start() {
+        scheduler.execute(this::refresh);
+    }
+
+    /**
+     * @return the cached access token, acquiring one synchronously only if none is valid
+     */
+    public String getAccessToken() throws InterruptedException, ExecutionException, TimeoutException {
+        final AuthenticationResult result = current;
+        if (result != null && !isExpired(result)) {
+            return result.getAccessToken();
+        }
+        return acquireNow().getAccessToken();
+    }
+
+    /**
+     * @return the cached access token, without waiting for AAD
+     * @throws IOException if no valid token is cached, or the cached one expires within
+     *                     {@link #EXPIRY_MARGIN_MILLIS}; the background refresh keeps trying to acquire one
+     */
+    public String getCachedAccessToken() throws IOException {
+        final AuthenticationResult result = current;
+        if (result == null || isExpired(result)) {
+            throw new IOException("No valid bearer token has been acquired from AAD yet");
+        }
+        return result.getAccessToken();
+    }
+
+    private synchronized AuthenticationResult acquireNow() throws InterruptedException, ExecutionException, TimeoutException {
+        // another caller or the refresher may have finished while we waited for the lock
+        final AuthenticationResult result = current;
+        if (result != null && !isExpired(result)) {
+            return result;
+        }
+        final AuthenticationResult acquired = tokenSource.acquireToken()
+                .get(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        current = acquired;
+        return acquired;
+    }
+
+    private void refresh() {
+        long delay;
+        try {
+            final AuthenticationResult acquired = tokenSource.acquireToken()
+                    .get(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            current = acquired;
+            delay = acquired.getExpiresOnDate().getTime() - System.currentTimeMillis() - REFRESH_MARGIN_MILLIS;
+            delay = Math.max(delay, MIN_REFRESH_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            logger.warn("Failed refreshing bearer token from AAD due to {}; retrying in {} seconds",
+                    new Object[]{e, TimeUnit.MILLISECONDS.toSeconds(RETRY_DELAY_MILLIS)});
+            delay = RETRY_DELAY_MILLIS;
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isExpired(AuthenticationResult result) {
+        return result.getExpiresOnDate().getTime() - EXPIRY_MARGIN_MILLIS <= System.currentTimeMillis();
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        authExecutor.shutdownNow();
+        current = null;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import org.apache.nifi.reporting.azmonitor.metrics.LongIntHashMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.apache.nifi.reporting.azmonitor.metrics.SpaceSavingSketch;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.COMPONENT_DIMENSIONS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.DROPPED_SERIES;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.REPORTED_SERIES;
+
+/**
+ * Limits the number of components whose dimensioned series are reported, since Azure Monitor caps the
+ * number of distinct time series per custom metric.
+ * <p>
+ * Components are ranked by one metric, e.g. InputContentSize, in a {@link SpaceSavingSketch} that is
+ * decayed every report, so the ranking follows the recent heavy hitters with fixed memory no matter how
+ * many components the flow has. When a report holds more components than the limit, only the top ones
+ * keep their series; the rows of all others are merged into one series per metric whose component
+ * dimensions are {@value #OTHER}. Series of other metrics than the component metrics are never touched.
+ * Not thread-safe.
+ */
+public class CardinalityGuard {
+
+    static final String OTHER = "Other";
+    static final long OTHER_COMPONENT_KEY = SeriesKeys.component("\0other");
+    // halves the weight of older reports, so a burst stops counting after a few reports
+    static final double DECAY = 0.5;
+    // monitor more keys than are reported so the top ones are ranked reliably
+    static final int SKETCH_OVERSAMPLING = 4;
+
+    private static final String[] OTHER_DIMS = {OTHER, OTHER, OTHER, ""};
+
+    private final int maxComponents;
+    private final boolean[] ranking;
+    private final SpaceSavingSketch sketch;
+    private final double[] scratch;
+    // the components of the current report, up to one more than the limit
+    private final LongIntHashMap components;
+    private final LongIntHashMap topComponents;
+
+    // per metric id aggregate of the rolled up rows
+    private final double[] otherMin;
+    private final double[] otherMax;
+    private final double[] otherSum;
+    private final long[] otherCount;
+    private final int[] otherMetrics;
+    private int otherSize;
+
+    /**
+     * @param maxComponents maximum number of components reported with their own series
+     * @param rankBy        name of the component metric the components are ranked by
+     */
+    public CardinalityGuard(int maxComponents, String rankBy) {
+        this.maxComponents = maxComponents;
+        this.sketch = new SpaceSavingSketch(maxComponents * SKETCH_OVERSAMPLING);
+        this.scratch = new double[sketch.capacity()];
+        this.topComponents = new LongIntHashMap(maxComponents);
+        this.components = new LongIntHashMap(maxComponents + 1);
+
+        this.ranking = AzMonitorMetricsFactory.componentMetricIds(rankBy);
+        final int metrics = ranking.length;
+        otherMin = new double[metrics];
+        otherMax = new double[metrics];
+        otherSum = new double[metrics];
+        otherCount = new long[metrics];
+        otherMetrics = new int[metrics];
+    }
+
+    /**
+     * Rolls the series of all but the top components of the batch up into the {@value #OTHER} series
+     * and appends the {@link AzMonitorMetricsFactory#REPORTED_SERIES} and
+     * {@link AzMonitorMetricsFactory#DROPPED_SERIES} rows.
+     */
+    public void apply(MetricBatch batch) {
+        sketch.decay(DECAY);
+        components.clear();
+        final int rows = batch.size();
+        for (int row = 0; row < rows; row++) {
+            if (batch.dimNames(row) != COMPONENT_DIMENSIONS) {
+                continue;
+            }
+            final long component = batch.component(row);
+            // only whether the limit is exceeded matters, so stop counting there
+            if (components.size() <= maxComponents && components.get(component) == LongIntHashMap.MISSING) {
+                components.put(component, components.size());
+            }
+            final int metricId = batch.metricId(row);
+            if (metricId < ranking.length && ranking[metricId] && batch.sum(row) > 0) {
+                sketch.offer(component, batch.sum(row));
+            }
+        }
+
+        int dropped = 0;
+        if (components.size() > maxComponents) {
+            topComponents.clear();
+            sketch.top(maxComponents, topComponents, scratch);
+            int kept = 0;
+            for (int row = 0; row < rows; row++) {
+                if (batch.dimNames(row) != COMPONENT_DIMENSIONS || topComponents.get(batch.component(row)) != LongIntHashMap.MISSING) {
+                    batch.copyRow(row, kept++);
+                } else {
+                    rollUp(batch, row);
+                    dropped++;
+                }
+            }
+            batch.truncate(kept);
+            appendOther(batch);
+        }
+
+        batch.add(REPORTED_SERIES.getId(), batch.size());
+        batch.add(DROPPED_SERIES.getId(), dropped);
+    }
+
+    /**
+     * @return the number of components counted in the last report, at most one more than the limit
+     */
+    int countedComponents() {
+        return components.size();
+    }
+
+    private void rollUp(MetricBatch batch, int row) {
+        final int metricId = batch.metricId(row);
+        if (otherCount[metricId] == 0) {
+            otherMetrics[otherSize++] = metricId;
+            otherMin[metricId] = batch.min(row);
+            otherMax[metricId] = batch.max(row);
+            otherSum[metricId] = batch.sum(row);
+            otherCount[metricId] = batch.count(row);
+            return;
+        }
+        otherMin[metricId] = Math.min(otherMin[metricId], batch.min(row));
+        otherMax[metricId] = Math.max(otherMax[metricId], batch.max(row));
+        otherSum[metricId] += batch.sum(row);
+        otherCount[metricId] += batch.count(row);
+    }
+
+    private void appendOther(MetricBatch batch) {
+        for (int i = 0; i < otherSize; i++) {
+            final int metricId = otherMetrics[i];
+            batch.addKeyed(metricId, OTHER_COMPONENT_KEY, SeriesKeys.series(OTHER_COMPONENT_KEY, metricId),
+                    COMPONENT_DIMENSIONS, OTHER_DIMS,
+                    otherMin[metricId], otherMax[metricId], otherSum[metricId], otherCount[metricId]);
+            otherCount[metricId] = 0;
+        }
+        otherSize = 0;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+
+import org.apache.nifi.reporting.azmonitor.metrics.LongIntHashMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.SUPPRESSED_SERIES;
+
+/**
+ * Drops the series of a batch whose values have not changed since they were last sent, e.g. the zeros of
+ * idle process groups, but sends every series at least once per heartbeat interval so dashboards show no
+ * gaps.
+ * <p>
+ * Instead of the last values, a 64 bit fingerprint of the Min, Max, Sum and Count sent is kept per series
+ * key in a {@link LongIntHashMap} with parallel primitive arrays, so comparing a batch costs one hash
+ * lookup per row and no allocation. Series that are not part of a batch for {@link #MAX_IDLE_REPORTS}
+ * reports are evicted. Not thread-safe.
+ */
+public class ChangeSuppressor {
+
+    static final int MAX_IDLE_REPORTS = 10;
+
+    private final long heartbeatMillis;
+    private final LongIntHashMap slots;
+    private int size;
+    private long[] keys;
+    private long[] fingerprints;
+    private long[] sentMillis;
+    private int[] lastReport;
+    private int report;
+
+    /**
+     * @param heartbeatMillis unchanged series are sent again once this much time passed since they were last sent
+     */
+    public ChangeSuppressor(long heartbeatMillis, int expectedSeries) {
+        this.heartbeatMillis = heartbeatMillis;
+        slots = new LongIntHashMap(expectedSeries);
+        keys = new long[expectedSeries];
+        fingerprints = new long[expectedSeries];
+        sentMillis = new long[expectedSeries];
+        lastReport = new int[expectedSeries];
+    }
+
+    /**
+     * Removes the unchanged rows of the batch that are not due for a heartbeat and appends the
+     * {@link AzMonitorMetricsFactory#SUPPRESSED_SERIES} row.
+     */
+    public void apply(MetricBatch batch, long timeMillis) {
+        report++;
+        final int rows = batch.size();
+        int kept = 0;
+        for (int row = 0; row < rows; row++) {
+            final long key = batch.key(row);
+            final long fingerprint = fingerprint(batch, row);
+            final int slot = slots.get(key);
+            if (slot == LongIntHashMap.MISSING) {
+                track(key, fingerprint, timeMillis);
+            } else {
+                lastReport[slot] = report;
+                if (fingerprints[slot] == fingerprint && timeMillis - sentMillis[slot] < heartbeatMillis) {
+                    continue;
+                }
+                fingerprints[slot] = fingerprint;
+                sentMillis[slot] = timeMillis;
+            }
+            batch.copyRow(row, kept++);
+        }
+        batch.truncate(kept);
+        batch.add(SUPPRESSED_SERIES.getId(), rows - kept);
+        evictIdle();
+    }
+
+    static long fingerprint(MetricBatch batch, int row) {
+        long hash = SeriesKeys.combine(Double.doubleToLongBits(batch.min(row)), Double.doubleToLongBits(batch.max(row)));
+        hash = SeriesKeys.combine(hash, Double.doubleToLongBits(batch.sum(row)));
+        return SeriesKeys.combine(hash, batch.count(row));
+    }
+
+    private void track(long key, long fingerprint, long timeMillis) {
+        if (size == keys.length) {
+            final int capacity = Math.max(16, size << 1);
+            keys = Arrays.copyOf(keys, capacity);
+            fingerprints = Arrays.copyOf(fingerprints, capacity);
+            sentMillis = Arrays.copyOf(sentMillis, capacity);
+            lastReport = Arrays.copyOf(lastReport, capacity);
+        }
+        final int slot = size++;
+        slots.put(key, slot);
+        keys[slot] = key;
+        fingerprints[slot] = fingerprint;
+        sentMillis[slot] = timeMillis;
+        lastReport[slot] = report;
+    }
+
+    private void evictIdle() {
+        int slot = 0;
+        while (slot < size) {
+            if (report - lastReport[slot] > MAX_IDLE_REPORTS) {
+                slots.remove(keys[slot]);
+                // move the last entry into the freed slot
+                final int last = --size;
+                if (slot != last) {
+                    keys[slot] = keys[last];
+                    fingerprints[slot] = fingerprints[last];
+                    sentMillis[slot] = sentMillis[last];
+                    lastReport[slot] = lastReport[last];
+                    slots.put(keys[slot], slot);
+                }
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets what was sent, so the next batch is sent in full.
+     */
+    public void clear() {
+        slots.clear();
+        size = 0;
+    }
+}
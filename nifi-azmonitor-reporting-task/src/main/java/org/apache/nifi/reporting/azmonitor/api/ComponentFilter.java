@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which components are reported with their own series, by regular expressions on the component
+ * name and type that must match the whole name or type. A component is reported if it matches both include
+ * patterns and neither exclude pattern; patterns that are not set match everything for includes and nothing
+ * for excludes.
+ * <p>
+ * The patterns are compiled once. Decisions are remembered per component id together with the name and type
+ * they were made for, so each component is matched once as long as it is not renamed. Thread-safe.
+ */
+public final class ComponentFilter {
+
+    public static final ComponentFilter ALL = new ComponentFilter(null, null, null, null);
+
+    // remembered decisions are dropped all at once beyond this, e.g. after many components were replaced
+    static final int MAX_DECISIONS = 1 << 16;
+
+    private final Pattern includeName;
+    private final Pattern excludeName;
+    private final Pattern includeType;
+    private final Pattern excludeType;
+    private final ConcurrentMap<String, Decision> decisions = new ConcurrentHashMap<>();
+
+    private static final class Decision {
+        final String name;
+        final String type;
+        final boolean accepted;
+
+        Decision(String name, String type, boolean accepted) {
+            this.name = name;
+            this.type = type;
+            this.accepted = accepted;
+        }
+    }
+
+    /**
+     * @param includeName regular expression, or null for none; likewise for the others
+     */
+    public ComponentFilter(String includeName, String excludeName, String includeType, String excludeType) {
+        this.includeName = compile(includeName);
+        this.excludeName = compile(excludeName);
+        this.includeType = compile(includeType);
+        this.excludeType = compile(excludeType);
+    }
+
+    private static Pattern compile(String regex) {
+        return regex == null || regex.isEmpty() ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * @return whether the filter lets every component through
+     */
+    public boolean isAll() {
+        return includeName == null && excludeName == null && includeType == null && excludeType == null;
+    }
+
+    public boolean accepts(String id, String name, String type) {
+        if (isAll()) {
+            return true;
+        }
+        final Decision decision = decisions.get(id);
+        if (decision != null && Objects.equals(decision.name, name) && Objects.equals(decision.type, type)) {
+            return decision.accepted;
+        }
+        final boolean accepted = matches(name, type);
+        if (decisions.size() >= MAX_DECISIONS) {
+            decisions.clear();
+        }
+        decisions.put(id, new Decision(name, type, accepted));
+        return accepted;
+    }
+
+    private boolean matches(String name, String type) {
+        final String n = name == null ? "" : name;
+        final String t = type == null ? "" : type;
+        return (includeName == null || includeName.matcher(n).matches())
+                && (includeType == null || includeType.matcher(t).matches())
+                && (excludeName == null || !excludeName.matcher(n).matches())
+                && (excludeType == null || !excludeType.matcher(t).matches());
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.PortStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.controller.status.RemoteProcessGroupStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.COMPONENT_GROUP_METRICS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.CONNECTION_METRICS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PORT_METRICS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSOR_METRICS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.REMOTE_GROUP_METRICS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.collectComponent;
+
+/**
+ * Walks a {@link ProcessGroupStatus} tree and emits dimensioned series for every process group,
+ * processor, connection, port and remote process group in it.
+ * <p>
+ * Child groups with at least {@value #FORK_THRESHOLD} components in and below them are traversed as separate
+ * fork-join tasks; smaller subtrees are walked inline by the task that reaches them. Each
+ * worker thread appends to its own {@link MetricBatch}, so emitting takes no locks; the per-thread
+ * batches are appended to the caller's batch once the walk completes. Batches are recycled between
+ * reports rather than tied to threads, since idle fork-join workers are retired between schedules.
+ * <p>
+ * Components rejected by the {@link ComponentFilter} and metrics that are not enabled are skipped
+ * before anything is extracted or allocated for them; the groups below a rejected group are still walked.
+ * The {@link DerivedMetrics} of accepted components are evaluated as their status is collected, with one
+ * scratch array per task.
+ * <p>
+ * The dimension values of each component are kept by component id and reused for as long as its name, type
+ * and parent group stay the same, so a steady flow is collected without allocating per component. Components
+ * not collected for {@value #MAX_IDLE_GENERATIONS} report times are forgotten.
+ */
+public class ComponentMetricsCollector implements AutoCloseable {
+
+    static final String TYPE_PROCESS_GROUP = "ProcessGroup";
+    static final String TYPE_CONNECTION = "Connection";
+    static final String TYPE_INPUT_PORT = "InputPort";
+    static final String TYPE_OUTPUT_PORT = "OutputPort";
+    static final String TYPE_REMOTE_PROCESS_GROUP = "RemoteProcessGroup";
+
+    // subtrees with fewer components are walked inline by the parent task
+    static final int FORK_THRESHOLD = 64;
+    static final int MAX_IDLE_GENERATIONS = 10;
+
+    private final ForkJoinPool pool;
+    private final boolean[] enabledMetrics;
+    private final ComponentFilter filter;
+    private final DerivedMetrics derived;
+    private final ConcurrentMap<Thread, MetricBatch> workerBatches = new ConcurrentHashMap<>();
+    private final Queue<MetricBatch> spareBatches = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, ComponentDimensions> dimensions = new ConcurrentHashMap<>();
+    // advanced once per report time, i.e. per report or per sample, rather than per call of collect
+    private volatile int generation;
+    private String generationTime;
+    private volatile String time;
+    private volatile Set<String> skippedGroups = Collections.emptySet();
+
+    public ComponentMetricsCollector(int parallelism) {
+        this(parallelism, null, ComponentFilter.ALL, DerivedMetrics.NONE);
+    }
+
+    /**
+     * @param enabledMetrics flags indexed by metric id of the metrics to collect, or null for all
+     * @param filter         the components to collect
+     * @param derived        the derived metrics to collect
+     */
+    public ComponentMetricsCollector(int parallelism, boolean[] enabledMetrics, ComponentFilter filter, DerivedMetrics derived) {
+        this.enabledMetrics = enabledMetrics;
+        this.filter = filter;
+        this.derived = derived;
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("AzMonitor-Collector-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Appends the series of {@code root} and all components below it to {@code target}.
+     *
+     * @param parentName name of the group containing {@code root}, or null if unknown
+     */
+    public void collect(ProcessGroupStatus root, String parentName, MetricBatch target) {
+        collect(root, parentName, target, Collections.emptySet());
+    }
+
+    /**
+     * Appends the series of {@code root} and all components below it to {@code target}, leaving out the
+     * groups below {@code root} whose id is in {@code skippedGroups} and everything below them.
+     */
+    public void collect(ProcessGroupStatus root, String parentName, MetricBatch target, Set<String> skippedGroups) {
+        time = target.getTime();
+        // a batch without a time is taken to be a report of its own
+        if (time == null || !time.equals(generationTime)) {
+            generationTime = time;
+            generation++;
+            if (generation % MAX_IDLE_GENERATIONS == 0) {
+                evictIdle();
+            }
+        }
+        this.skippedGroups = skippedGroups;
+        try {
+            pool.invoke(new GroupTask(root, parentName));
+        } finally {
+            for (MetricBatch batch : workerBatches.values()) {
+                target.addAll(batch);
+                spareBatches.add(batch);
+            }
+            workerBatches.clear();
+        }
+    }
+
+    private MetricBatch currentWorkerBatch() {
+        final Thread thread = Thread.currentThread();
+        final MetricBatch batch = workerBatches.get(thread);
+        if (batch != null) {
+            return batch;
+        }
+        return workerBatches.computeIfAbsent(thread, t -> {
+            MetricBatch spare = spareBatches.poll();
+            if (spare == null) {
+                spare = new MetricBatch(1024);
+            }
+            spare.clear(time);
+            return spare;
+        });
+    }
+
+    private final class GroupTask extends RecursiveAction {
+
+        private final ProcessGroupStatus group;
+        private final String parentName;
+        private double[] scratch;
+
+        GroupTask(ProcessGroupStatus group, String parentName) {
+            this.group = group;
+            this.parentName = parentName;
+        }
+
+        @Override
+        protected void compute() {
+            final List<GroupTask> forked = new ArrayList<>();
+            scratch = derived.newScratch();
+            walk(group, parentName, currentWorkerBatch(), forked, true);
+            for (GroupTask task : forked) {
+                task.join();
+            }
+        }
+
+        /**
+         * @param forking whether large child groups are forked; not for groups below a small group
+         */
+        private void walk(ProcessGroupStatus group, String parentName, MetricBatch batch, List<GroupTask> forked,
+                          boolean forking) {
+            final String groupName = group.getName();
+            emit(COMPONENT_GROUP_METRICS, derived.componentGroups(),
+                    group, group.getId(), groupName, TYPE_PROCESS_GROUP, parentName, batch);
+
+            for (ProcessorStatus processor : group.getProcessorStatus()) {
+                emit(PROCESSOR_METRICS, derived.processors(),
+                        processor, processor.getId(), processor.getName(), processor.getType(), groupName, batch);
+            }
+            for (ConnectionStatus connection : group.getConnectionStatus()) {
+                emit(CONNECTION_METRICS, derived.connections(),
+                        connection, connection.getId(), connection.getName(), TYPE_CONNECTION, groupName, batch);
+            }
+            for (PortStatus port : group.getInputPortStatus()) {
+                emit(PORT_METRICS, derived.ports(),
+                        port, port.getId(), port.getName(), TYPE_INPUT_PORT, groupName, batch);
+            }
+            for (PortStatus port : group.getOutputPortStatus()) {
+                emit(PORT_METRICS, derived.ports(),
+                        port, port.getId(), port.getName(), TYPE_OUTPUT_PORT, groupName, batch);
+            }
+            for (RemoteProcessGroupStatus remote : group.getRemoteProcessGroupStatus()) {
+                emit(REMOTE_GROUP_METRICS, derived.remoteGroups(),
+                        remote, remote.getId(), remote.getName(), TYPE_REMOTE_PROCESS_GROUP, groupName, batch);
+            }
+
+            for (ProcessGroupStatus child : group.getProcessGroupStatus()) {
+                if (skippedGroups.contains(child.getId())) {
+                    continue;
+                }
+                if (forking && isLarge(child)) {
+                    final GroupTask task = new GroupTask(child, groupName);
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    walk(child, groupName, batch, forked, false);
+                }
+            }
+        }
+
+        private <T> void emit(List<MetricDescriptor<T>> descriptors, DerivedMetrics.Binding<T> derivedMetrics, T status,
+                              String id, String name, String type, String parentName, MetricBatch batch) {
+            if (filter.accepts(id, name, type)) {
+                collectComponent(descriptors, status, id, dimensions(id, name, type, parentName), enabledMetrics,
+                        derivedMetrics, scratch, batch);
+            }
+        }
+    }
+
+    /**
+     * @return whether the group and the groups below it hold at least {@link #FORK_THRESHOLD} components
+     */
+    static boolean isLarge(ProcessGroupStatus group) {
+        return countComponents(group, FORK_THRESHOLD) >= FORK_THRESHOLD;
+    }
+
+    /**
+     * Counts the group and the components in and below it, stopping once {@code limit} is reached.
+     */
+    private static int countComponents(ProcessGroupStatus group, int limit) {
+        int count = 1 + group.getProcessorStatus().size() + group.getConnectionStatus().size()
+                + group.getInputPortStatus().size() + group.getOutputPortStatus().size()
+                + group.getRemoteProcessGroupStatus().size();
+        for (ProcessGroupStatus child : group.getProcessGroupStatus()) {
+            if (count >= limit) {
+                break;
+            }
+            count += countComponents(child, limit - count);
+        }
+        return count;
+    }
+
+    private String[] dimensions(String id, String name, String type, String parentName) {
+        ComponentDimensions cached = dimensions.get(id);
+        if (cached == null || !cached.matches(name, type, parentName)) {
+            cached = new ComponentDimensions(name, type, id, parentName);
+            dimensions.put(id, cached);
+        }
+        cached.generation = generation;
+        return cached.values;
+    }
+
+    private void evictIdle() {
+        final int current = generation;
+        dimensions.values().removeIf(cached -> current - cached.generation > MAX_IDLE_GENERATIONS);
+    }
+
+    int cachedDimensions() {
+        return dimensions.size();
+    }
+
+    /**
+     * The dimension values of one component, in the order of {@link AzMonitorMetricsFactory#COMPONENT_DIMENSIONS}.
+     */
+    private static final class ComponentDimensions {
+
+        private final String[] values;
+        // last generation the component was collected in; racy writes only delay its eviction
+        private int generation;
+
+        ComponentDimensions(String name, String type, String id, String parentName) {
+            values = new String[]{orEmpty(name), orEmpty(type), id, orEmpty(parentName)};
+        }
+
+        boolean matches(String name, String type, String parentName) {
+            return values[0].equals(orEmpty(name)) && values[1].equals(orEmpty(type)) && values[3].equals(orEmpty(parentName));
+        }
+
+        private static String orEmpty(String value) {
+            return value == null ? "" : value;
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.reporting.azmonitor.metrics.LongIntHashMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+
+/**
+ * Turns the rolling-window totals NiFi reports for counters into per-report deltas and per-second rates.
+ * <p>
+ * A reading is the total of the last {@link #WINDOW_MILLIS}, so between two reports it grows by the data
+ * that arrived and shrinks by the data that left the window. The store therefore keeps a model of what is
+ * in the window of each series: the deltas of the earlier reports with the time of their report, which
+ * add up to the latest reading. A delta leaves the model once its report is a full window old, which is
+ * no earlier than the data it stands for left the window; the next delta is the new reading less what is
+ * still in the model. A reading below that is data that left earlier than modelled, never new data, so the
+ * oldest deltas are trimmed to match and the delta is 0. Counts are thus never invented, and for a run
+ * schedule that divides the window evenly the deltas add up to exactly what arrived.
+ * <p>
+ * The first reading of a series only primes the store and is not reported; as its data arrived at unknown
+ * times, it is modelled as having arrived evenly over the window. A series keeps at most
+ * {@link #MAX_ENTRIES} deltas; with a shorter run schedule the two closest in time are merged into the
+ * later one. Series that are not reported for {@link #MAX_IDLE_REPORTS} reports are evicted.
+ * <p>
+ * Series are found by their key in a {@link LongIntHashMap} with parallel primitive arrays. The store can
+ * be exported to and restored from a string map, so deltas survive a restart when the map is kept in
+ * NiFi's StateManager. Not thread-safe.
+ */
+public class CounterStateStore {
+
+    /**
+     * The window of the status counters of NiFi's flow file event repository.
+     */
+    public static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int MAX_IDLE_REPORTS = 10;
+    // enough for a delta per report down to a 30 sec run schedule
+    static final int MAX_ENTRIES = 11;
+    static final String STATE_PREFIX = "counters.";
+    static final String STATE_CHUNKS = "counters.chunks";
+    static final String STATE_FORMAT = "counters.format";
+    // readings of the first format have no model of the window and cannot be continued
+    static final String FORMAT = "2";
+    // entries per state value, keeping each value well below typical state provider limits
+    static final int ENTRIES_PER_CHUNK = 512;
+    private static final int ENTRY_BYTES = (4 + 2 * MAX_ENTRIES) * Long.BYTES;
+    // NiFi counts by the second, and reports are scheduled a few milliseconds either way
+    private static final long TOLERANCE_MILLIS = 1000;
+
+    private final long windowMillis;
+    private final LongIntHashMap slots;
+    private int size;
+    private long[] keys;
+    private double[] values;
+    private long[] times;
+    private int[] lastReport;
+    // MAX_ENTRIES per slot, oldest first: the time of a delta's report and the delta
+    private int[] entries;
+    private long[] entryTimes;
+    private double[] entryDeltas;
+    private int report;
+
+    public CounterStateStore(int expectedSeries) {
+        this(expectedSeries, WINDOW_MILLIS);
+    }
+
+    CounterStateStore(int expectedSeries, long windowMillis) {
+        this.windowMillis = windowMillis;
+        slots = new LongIntHashMap(expectedSeries);
+        keys = new long[expectedSeries];
+        values = new double[expectedSeries];
+        times = new long[expectedSeries];
+        lastReport = new int[expectedSeries];
+        entries = new int[expectedSeries];
+        entryTimes = new long[expectedSeries * MAX_ENTRIES];
+        entryDeltas = new double[expectedSeries * MAX_ENTRIES];
+    }
+
+    /**
+     * Rewrites the cumulative rows of a batch in place as deltas since the previous report, optionally
+     * appending a rate row per delta. Gauge rows are left as they are.
+     */
+    public void apply(MetricBatch batch, long timeMillis, boolean rates) {
+        report++;
+        final int rows = batch.size();
+        int kept = 0;
+        for (int row = 0; row < rows; row++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(batch.metricId(row));
+            if (!descriptor.isCumulative()) {
+                batch.copyRow(row, kept++);
+                continue;
+            }
+            final long key = batch.key(row);
+            // with sampling the row is an aggregate of readings of a rolling-window total, which may fall, so the
+            // latest reading is its last sample rather than its maximum
+            final double reading = batch.last(row);
+            final int slot = slots.get(key);
+            if (slot == LongIntHashMap.MISSING) {
+                prime(track(key, reading, timeMillis), reading, timeMillis);
+                continue;
+            }
+            final long elapsedMillis = timeMillis - times[slot];
+            final double remaining = values[slot] - leave(slot, timeMillis);
+            double delta = reading - remaining;
+            if (delta < 0) {
+                trim(slot, -delta);
+                delta = 0;
+            } else if (delta > 0) {
+                push(slot, Math.max(timeMillis, times[slot]), delta);
+            }
+            values[slot] = reading;
+            times[slot] = Math.max(timeMillis, times[slot]);
+            lastReport[slot] = report;
+
+            batch.copyRow(row, kept);
+            batch.set(kept++, delta, delta, delta, 1);
+            if (rates && elapsedMillis > 0) {
+                final double rate = delta * 1000 / elapsedMillis;
+                // rows beyond 'rows' are new and not visited by this loop
+                batch.addKeyed(descriptor.getRateId(), batch.component(kept - 1), SeriesKeys.combine(key, descriptor.getRateId()),
+                        batch.dimNames(kept - 1), batch.dimValues(kept - 1), rate, rate, rate, 1);
+            }
+        }
+        // move the appended rate rows down behind the kept rows
+        for (int row = rows; row < batch.size(); row++) {
+            batch.copyRow(row, kept++);
+        }
+        batch.truncate(kept);
+        evictIdle();
+    }
+
+    /**
+     * Models the first reading as having arrived evenly over the window before it.
+     */
+    private void prime(int slot, double reading, long timeMillis) {
+        if (reading <= 0) {
+            return;
+        }
+        final int parts = MAX_ENTRIES - 1;
+        for (int part = 1; part <= parts; part++) {
+            push(slot, timeMillis - windowMillis + windowMillis * part / parts, reading / parts);
+        }
+    }
+
+    /**
+     * Removes the deltas that have left the window by the time.
+     *
+     * @return the sum of the removed deltas
+     */
+    private double leave(int slot, long timeMillis) {
+        final int base = slot * MAX_ENTRIES;
+        int left = 0;
+        double sum = 0;
+        while (left < entries[slot] && entryTimes[base + left] + windowMillis - TOLERANCE_MILLIS <= timeMillis) {
+            sum += entryDeltas[base + left];
+            left++;
+        }
+        remove(slot, 0, left);
+        return sum;
+    }
+
+    /**
+     * Takes an amount the model holds beyond the reading off the oldest deltas, which must have left already.
+     */
+    private void trim(int slot, double excess) {
+        final int base = slot * MAX_ENTRIES;
+        int emptied = 0;
+        while (emptied < entries[slot] && excess > 0) {
+            final double delta = entryDeltas[base + emptied];
+            if (delta > excess) {
+                entryDeltas[base + emptied] = delta - excess;
+                break;
+            }
+            excess -= delta;
+            emptied++;
+        }
+        remove(slot, 0, emptied);
+    }
+
+    private void push(int slot, long timeMillis, double delta) {
+        final int base = slot * MAX_ENTRIES;
+        if (entries[slot] == MAX_ENTRIES) {
+            // merge the two closest deltas into the later one, so they leave no earlier than their data
+            int closest = 0;
+            for (int i = 1; i < MAX_ENTRIES - 1; i++) {
+                if (entryTimes[base + i + 1] - entryTimes[base + i] <= entryTimes[base + closest + 1] - entryTimes[base + closest]) {
+                    closest = i;
+                }
+            }
+            entryDeltas[base + closest + 1] += entryDeltas[base + closest];
+            remove(slot, closest, 1);
+        }
+        final int index = base + entries[slot]++;
+        entryTimes[index] = timeMillis;
+        entryDeltas[index] = delta;
+    }
+
+    private void remove(int slot, int from, int count) {
+        if (count == 0) {
+            return;
+        }
+        final int base = slot * MAX_ENTRIES;
+        final int moved = entries[slot] - from - count;
+        System.arraycopy(entryTimes, base + from + count, entryTimes, base + from, moved);
+        System.arraycopy(entryDeltas, base + from + count, entryDeltas, base + from, moved);
+        entries[slot] -= count;
+    }
+
+    /**
+     * @return the slot of the new series, without any deltas
+     */
+    private int track(long key, double reading, long timeMillis) {
+        if (size == keys.length) {
+            final int capacity = Math.max(16, size << 1);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            times = Arrays.copyOf(times, capacity);
+            lastReport = Arrays.copyOf(lastReport, capacity);
+            entries = Arrays.copyOf(entries, capacity);
+            entryTimes = Arrays.copyOf(entryTimes, capacity * MAX_ENTRIES);
+            entryDeltas = Arrays.copyOf(entryDeltas, capacity * MAX_ENTRIES);
+        }
+        final int slot = size++;
+        slots.put(key, slot);
+        keys[slot] = key;
+        values[slot] = reading;
+        times[slot] = timeMillis;
+        lastReport[slot] = report;
+        entries[slot] = 0;
+        return slot;
+    }
+
+    private void evictIdle() {
+        int slot = 0;
+        while (slot < size) {
+            if (report - lastReport[slot] > MAX_IDLE_REPORTS) {
+                slots.remove(keys[slot]);
+                // move the last entry into the freed slot
+                final int last = --size;
+                if (slot != last) {
+                    keys[slot] = keys[last];
+                    values[slot] = values[last];
+                    times[slot] = times[last];
+                    lastReport[slot] = lastReport[last];
+                    entries[slot] = entries[last];
+                    System.arraycopy(entryTimes, last * MAX_ENTRIES, entryTimes, slot * MAX_ENTRIES, entries[last]);
+                    System.arraycopy(entryDeltas, last * MAX_ENTRIES, entryDeltas, slot * MAX_ENTRIES, entries[last]);
+                    slots.put(keys[slot], slot);
+                }
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets all readings, so the next report of every series starts its deltas anew.
+     */
+    public void clear() {
+        slots.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the tracked readings as state map entries
+     */
+    public Map<String, String> toState() {
+        final Map<String, String> state = new HashMap<>();
+        final int chunks = (size + ENTRIES_PER_CHUNK - 1) / ENTRIES_PER_CHUNK;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int from = chunk * ENTRIES_PER_CHUNK;
+            final int to = Math.min(size, from + ENTRIES_PER_CHUNK);
+            final ByteBuffer buffer = ByteBuffer.allocate((to - from) * ENTRY_BYTES);
+            for (int slot = from; slot < to; slot++) {
+                buffer.putLong(keys[slot]);
+                buffer.putDouble(values[slot]);
+                buffer.putLong(times[slot]);
+                buffer.putLong(entries[slot]);
+                for (int i = 0; i < MAX_ENTRIES; i++) {
+                    buffer.putLong(entryTimes[slot * MAX_ENTRIES + i]);
+                    buffer.putDouble(entryDeltas[slot * MAX_ENTRIES + i]);
+                }
+            }
+            state.put(STATE_PREFIX + chunk, Base64.getEncoder().encodeToString(buffer.array()));
+        }
+        state.put(STATE_CHUNKS, Integer.toString(chunks));
+        state.put(STATE_FORMAT, FORMAT);
+        return state;
+    }
+
+    /**
+     * Replaces the tracked readings with those of a previously exported state map.
+     */
+    public void fromState(Map<String, String> state) {
+        slots.clear();
+        size = 0;
+        final String chunks = state.get(STATE_CHUNKS);
+        if (chunks == null || !FORMAT.equals(state.get(STATE_FORMAT))) {
+            return;
+        }
+        for (int chunk = 0; chunk < Integer.parseInt(chunks); chunk++) {
+            final String encoded = state.get(STATE_PREFIX + chunk);
+            if (encoded == null) {
+                continue;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded));
+            while (buffer.remaining() >= ENTRY_BYTES) {
+                final int slot = track(buffer.getLong(), buffer.getDouble(), buffer.getLong());
+                entries[slot] = (int) buffer.getLong();
+                for (int i = 0; i < MAX_ENTRIES; i++) {
+                    entryTimes[slot * MAX_ENTRIES + i] = buffer.getLong();
+                    entryDeltas[slot * MAX_ENTRIES + i] = buffer.getDouble();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An arithmetic expression over named values, e.g. {@code QueuedCount / BackPressureObjectThreshold},
+ * compiled once into a postfix program that is evaluated over an array of doubles without allocating.
+ * <p>
+ * Expressions combine numbers and names with {@code + - * /} at the usual precedence, unary minus,
+ * parentheses and the functions {@code min(a, b)}, {@code max(a, b)} and {@code abs(a)}. A division by
+ * zero results in NaN, so a ratio against a threshold that is not set yields no value. Immutable.
+ */
+public final class DerivedMetricExpression {
+
+    private static final int LOAD = 0;
+    private static final int CONST = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int NEG = 6;
+    private static final int MIN = 7;
+    private static final int MAX = 8;
+    private static final int ABS = 9;
+
+    private final String text;
+    private final List<String> names;
+    // parallel: the instructions and their operand, the slot of a LOAD or the index of a CONST
+    private final int[] ops;
+    private final int[] operands;
+    private final double[] constants;
+    private final int maxDepth;
+
+    private DerivedMetricExpression(String text, List<String> names, int[] ops, int[] operands, double[] constants, int maxDepth) {
+        this.text = text;
+        this.names = names;
+        this.ops = ops;
+        this.operands = operands;
+        this.constants = constants;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is not well-formed
+     */
+    public static DerivedMetricExpression parse(String text) {
+        final String trimmed = text.trim();
+        final Parser parser = new Parser(trimmed);
+        parser.parseSum();
+        parser.skipBlanks();
+        if (parser.pos < trimmed.length()) {
+            throw parser.error("unexpected '" + trimmed.charAt(parser.pos) + "'");
+        }
+        return new DerivedMetricExpression(trimmed, Collections.unmodifiableList(parser.names),
+                Arrays.copyOf(parser.ops, parser.size), Arrays.copyOf(parser.operands, parser.size),
+                parser.constants.stream().mapToDouble(Double::doubleValue).toArray(), parser.maxDepth);
+    }
+
+    /**
+     * @return the distinct names the expression reads, in order of first use; the n-th name is read from
+     * slot n unless the expression is {@link #bind bound} to other slots
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @param slots the slot to read each of {@link #getNames()} from
+     * @return the same expression reading its names from the given slots
+     */
+    public DerivedMetricExpression bind(int[] slots) {
+        final int[] bound = operands.clone();
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == LOAD) {
+                bound[i] = slots[operands[i]];
+            }
+        }
+        return new DerivedMetricExpression(text, names, ops, bound, constants, maxDepth);
+    }
+
+    /**
+     * @return the number of stack entries {@link #evaluate} uses
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Evaluates the expression over the values in the slots of {@code scratch}, using the entries from
+     * {@code stackBase} on as its stack.
+     *
+     * @return the value, NaN if it is undefined
+     */
+    public double evaluate(double[] scratch, int stackBase) {
+        int top = stackBase - 1;
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case LOAD:
+                    scratch[++top] = scratch[operands[i]];
+                    break;
+                case CONST:
+                    scratch[++top] = constants[operands[i]];
+                    break;
+                case ADD:
+                    top--;
+                    scratch[top] += scratch[top + 1];
+                    break;
+                case SUB:
+                    top--;
+                    scratch[top] -= scratch[top + 1];
+                    break;
+                case MUL:
+                    top--;
+                    scratch[top] *= scratch[top + 1];
+                    break;
+                case DIV:
+                    top--;
+                    scratch[top] = scratch[top + 1] == 0 ? Double.NaN : scratch[top] / scratch[top + 1];
+                    break;
+                case NEG:
+                    scratch[top] = -scratch[top];
+                    break;
+                case MIN:
+                    top--;
+                    scratch[top] = Math.min(scratch[top], scratch[top + 1]);
+                    break;
+                case MAX:
+                    top--;
+                    scratch[top] = Math.max(scratch[top], scratch[top + 1]);
+                    break;
+                default:
+                    scratch[top] = Math.abs(scratch[top]);
+            }
+        }
+        return scratch[top];
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Recursive descent over the grammar below, emitting the program in postfix order as it goes.
+     * <pre>
+     * sum     = product (('+' | '-') product)*
+     * product = unary (('*' | '/') unary)*
+     * unary   = '-' unary | primary
+     * primary = number | name | name '(' sum (',' sum)* ')' | '(' sum ')'
+     * </pre>
+     */
+    private static final class Parser {
+
+        private final String text;
+        private final List<String> names = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private int[] ops = new int[16];
+        private int[] operands = new int[16];
+        private int size;
+        private int depth;
+        private int maxDepth;
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        void parseSum() {
+            parseProduct();
+            while (true) {
+                if (accept('+')) {
+                    parseProduct();
+                    emit(ADD, 0);
+                } else if (accept('-')) {
+                    parseProduct();
+                    emit(SUB, 0);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseProduct() {
+            parseUnary();
+            while (true) {
+                if (accept('*')) {
+                    parseUnary();
+                    emit(MUL, 0);
+                } else if (accept('/')) {
+                    parseUnary();
+                    emit(DIV, 0);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseUnary() {
+            if (accept('-')) {
+                parseUnary();
+                emit(NEG, 0);
+            } else {
+                parsePrimary();
+            }
+        }
+
+        private void parsePrimary() {
+            skipBlanks();
+            if (accept('(')) {
+                parseSum();
+                expect(')');
+                return;
+            }
+            final int start = pos;
+            if (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'
+                        || text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                    pos++;
+                }
+                final double value;
+                try {
+                    value = Double.parseDouble(text.substring(start, pos));
+                } catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("malformed number");
+                }
+                constants.add(value);
+                emit(CONST, constants.size() - 1);
+                return;
+            }
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error(pos < text.length() ? "unexpected '" + text.charAt(pos) + "'" : "unexpected end");
+            }
+            final String name = text.substring(start, pos);
+            if (accept('(')) {
+                parseFunction(name, start);
+                return;
+            }
+            int slot = names.indexOf(name);
+            if (slot < 0) {
+                names.add(name);
+                slot = names.size() - 1;
+            }
+            emit(LOAD, slot);
+        }
+
+        private void parseFunction(String name, int start) {
+            final int op;
+            final int arguments;
+            switch (name) {
+                case "min":
+                    op = MIN;
+                    arguments = 2;
+                    break;
+                case "max":
+                    op = MAX;
+                    arguments = 2;
+                    break;
+                case "abs":
+                    op = ABS;
+                    arguments = 1;
+                    break;
+                default:
+                    pos = start;
+                    throw error("unknown function " + name + "; expected one of min, max, abs");
+            }
+            parseSum();
+            for (int i = 1; i < arguments; i++) {
+                expect(',');
+                parseSum();
+            }
+            expect(')');
+            emit(op, 0);
+        }
+
+        private void emit(int op, int operand) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size << 1);
+                operands = Arrays.copyOf(operands, size << 1);
+            }
+            ops[size] = op;
+            operands[size] = operand;
+            size++;
+            if (op == LOAD || op == CONST) {
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (op != NEG && op != ABS) {
+                depth--;
+            }
+        }
+
+        private boolean accept(char c) {
+            skipBlanks();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        void skipBlanks() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1) + " of '" + text + "'");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.PortStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.controller.status.RemoteProcessGroupStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.COMPONENT_METRICS_NAMESPACE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.CONNECTION_FIELDS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.GROUP_FIELDS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.NIFI_METRICS_NAMESPACE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PORT_FIELDS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSOR_FIELDS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.REMOTE_GROUP_FIELDS;
+
+/**
+ * Metrics computed from the status of process groups and components by {@link DerivedMetricExpression}s,
+ * e.g. the fill ratio of a queue or the imbalance of its input and output, so they are sent as series of
+ * their own instead of being computed by every query in Azure Monitor.
+ * <p>
+ * Definitions are parsed, checked against the fields of {@link AzMonitorMetricsFactory} and bound once per
+ * schedule. Each expression is bound to every status type that has all the fields it reads; per status, the
+ * fields read by any of its expressions are extracted once into a column of a scratch array, which the
+ * expressions then run over. Derived metrics are gauges registered in the process group and component
+ * namespaces. Immutable; the scratch arrays are owned by the callers.
+ */
+public final class DerivedMetrics {
+
+    private static final List<Map<String, ?>> FIELDS = Arrays.asList(
+            GROUP_FIELDS, PROCESSOR_FIELDS, CONNECTION_FIELDS, PORT_FIELDS, REMOTE_GROUP_FIELDS);
+
+    /**
+     * No derived metrics.
+     */
+    public static final DerivedMetrics NONE = new DerivedMetrics(Collections.emptyMap());
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+    private final Set<String> inputs;
+    private final Binding<ProcessGroupStatus> groups;
+    private final Binding<ProcessGroupStatus> componentGroups;
+    private final Binding<ProcessorStatus> processors;
+    private final Binding<ConnectionStatus> connections;
+    private final Binding<PortStatus> ports;
+    private final Binding<RemoteProcessGroupStatus> remoteGroups;
+    private final int scratchSize;
+
+    private DerivedMetrics(Map<String, DerivedMetricExpression> definitions) {
+        final Set<String> read = new LinkedHashSet<>();
+        for (DerivedMetricExpression expression : definitions.values()) {
+            read.addAll(expression.getNames());
+        }
+        this.inputs = Collections.unmodifiableSet(read);
+        groups = new Binding<>(definitions, GROUP_FIELDS, NIFI_METRICS_NAMESPACE);
+        componentGroups = new Binding<>(definitions, GROUP_FIELDS, COMPONENT_METRICS_NAMESPACE);
+        processors = new Binding<>(definitions, PROCESSOR_FIELDS, COMPONENT_METRICS_NAMESPACE);
+        connections = new Binding<>(definitions, CONNECTION_FIELDS, COMPONENT_METRICS_NAMESPACE);
+        ports = new Binding<>(definitions, PORT_FIELDS, COMPONENT_METRICS_NAMESPACE);
+        remoteGroups = new Binding<>(definitions, REMOTE_GROUP_FIELDS, COMPONENT_METRICS_NAMESPACE);
+        int size = 0;
+        for (Binding<?> binding : new Binding<?>[]{groups, componentGroups, processors, connections, ports, remoteGroups}) {
+            size = Math.max(size, binding.scratchSize);
+        }
+        scratchSize = size;
+    }
+
+    /**
+     * Parses definitions of the form {@code <name> = <expression>}, one per line; blank lines are skipped.
+     * Names must be unique and must not be those of the process group or component metrics, and every
+     * expression must only read fields that one of the status types has.
+     *
+     * @return the expressions by name, in order of definition
+     * @throws IllegalArgumentException naming the first definition that is not valid
+     */
+    public static Map<String, DerivedMetricExpression> parse(String text) {
+        final Map<String, DerivedMetricExpression> definitions = new LinkedHashMap<>();
+        final Set<String> flowMetrics = AzMonitorMetricsFactory.flowMetricNames();
+        final Set<String> known = new LinkedHashSet<>();
+        for (Map<String, ?> fields : FIELDS) {
+            known.addAll(fields.keySet());
+        }
+        for (String line : text.split("\\R")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final int equals = line.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected '<name> = <expression>' but got '" + line.trim() + "'");
+            }
+            final String name = line.substring(0, equals).trim();
+            if (!NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("'" + name + "' is not a valid metric name; expected a letter followed by letters, digits or '_'");
+            }
+            if (flowMetrics.contains(name)) {
+                throw new IllegalArgumentException(name + " is already the name of a process group or component metric");
+            }
+            final DerivedMetricExpression expression = DerivedMetricExpression.parse(line.substring(equals + 1));
+            for (String field : expression.getNames()) {
+                if (!known.contains(field)) {
+                    throw new IllegalArgumentException(name + " reads unknown field " + field + "; expected one of " + known);
+                }
+            }
+            if (FIELDS.stream().noneMatch(fields -> readsFieldsOf(expression, fields))) {
+                throw new IllegalArgumentException(name + " reads " + expression.getNames()
+                        + ", which no process group or component has all of");
+            }
+            if (definitions.put(name, expression) != null) {
+                throw new IllegalArgumentException(name + " is defined more than once");
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Parses the definitions, registers their metrics and binds the expressions to the status types.
+     *
+     * @throws IllegalArgumentException if a definition is not valid, see {@link #parse}
+     */
+    public static DerivedMetrics compile(String text) {
+        return new DerivedMetrics(parse(text));
+    }
+
+    private static boolean readsFieldsOf(DerivedMetricExpression expression, Map<String, ?> fields) {
+        return fields.keySet().containsAll(expression.getNames());
+    }
+
+    /**
+     * @return the names of the fields read by any of the expressions
+     */
+    public Set<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return a scratch array large enough for any of the bindings, to be used by one thread at a time
+     */
+    public double[] newScratch() {
+        return new double[scratchSize];
+    }
+
+    /**
+     * @return the expressions bound to the totals of a process group
+     */
+    public Binding<ProcessGroupStatus> groups() {
+        return groups;
+    }
+
+    /**
+     * @return the expressions bound to a process group reported as a component
+     */
+    public Binding<ProcessGroupStatus> componentGroups() {
+        return componentGroups;
+    }
+
+    public Binding<ProcessorStatus> processors() {
+        return processors;
+    }
+
+    public Binding<ConnectionStatus> connections() {
+        return connections;
+    }
+
+    public Binding<PortStatus> ports() {
+        return ports;
+    }
+
+    public Binding<RemoteProcessGroupStatus> remoteGroups() {
+        return remoteGroups;
+    }
+
+    /**
+     * The expressions that apply to one status type, reading their fields from the leading slots of a scratch
+     * array and using the slots after them as their stack.
+     *
+     * @param <T> the status type
+     */
+    public static final class Binding<T> {
+
+        private final ToLongFunction<T>[] columns;
+        private final DerivedMetricExpression[] expressions;
+        private final int[] metricIds;
+        private final int scratchSize;
+
+        @SuppressWarnings("unchecked")
+        private Binding(Map<String, DerivedMetricExpression> definitions, Map<String, ToLongFunction<T>> fields, String namespace) {
+            final List<String> columnNames = new ArrayList<>();
+            final List<DerivedMetricExpression> bound = new ArrayList<>();
+            final List<Integer> ids = new ArrayList<>();
+            int maxDepth = 0;
+            for (Map.Entry<String, DerivedMetricExpression> definition : definitions.entrySet()) {
+                final DerivedMetricExpression expression = definition.getValue();
+                if (!readsFieldsOf(expression, fields)) {
+                    continue;
+                }
+                final int[] slots = new int[expression.getNames().size()];
+                for (int i = 0; i < slots.length; i++) {
+                    final String name = expression.getNames().get(i);
+                    int column = columnNames.indexOf(name);
+                    if (column < 0) {
+                        columnNames.add(name);
+                        column = columnNames.size() - 1;
+                    }
+                    slots[i] = column;
+                }
+                bound.add(expression.bind(slots));
+                ids.add(MetricRegistry.registerDerived(definition.getKey(), namespace).getId());
+                maxDepth = Math.max(maxDepth, expression.getMaxDepth());
+            }
+            columns = new ToLongFunction[columnNames.size()];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = fields.get(columnNames.get(c));
+            }
+            expressions = bound.toArray(new DerivedMetricExpression[0]);
+            metricIds = ids.stream().mapToInt(Integer::intValue).toArray();
+            scratchSize = columns.length + maxDepth;
+        }
+
+        public boolean isEmpty() {
+            return expressions.length == 0;
+        }
+
+        /**
+         * Appends one single-sample series per expression for the given status, leaving out the expressions
+         * whose value is undefined, e.g. after a division by zero.
+         *
+         * @param scratch from {@link DerivedMetrics#newScratch()}
+         */
+        public void collect(T status, long componentKey, String[] dimNames, String[] dimValues, double[] scratch,
+                            MetricBatch batch) {
+            if (expressions.length == 0) {
+                return;
+            }
+            for (int c = 0; c < columns.length; c++) {
+                scratch[c] = columns[c].applyAsLong(status);
+            }
+            for (int e = 0; e < expressions.length; e++) {
+                final double value = expressions[e].evaluate(scratch, columns.length);
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    batch.add(metricIds[e], componentKey, dimNames, dimValues, value);
+                }
+            }
+        }
+    }
+}
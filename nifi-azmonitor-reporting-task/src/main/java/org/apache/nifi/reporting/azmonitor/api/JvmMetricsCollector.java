@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.GC_DIMENSIONS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_DAEMON_THREAD_COUNT;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_FILE_DESCRIPTOR_USAGE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_GC_RUNS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_GC_TIME;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_HEAP_USAGE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_HEAP_USED;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_NON_HEAP_USAGE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_COUNT;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_BLOCKED;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_NEW;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_RUNNABLE;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_TERMINATED;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_TIMED_WAITING;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_THREAD_STATES_WAITING;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.JVM_UPTIME;
+
+/**
+ * Samples memory, thread and garbage collection metrics of the NiFi JVM into a {@link MetricBatch}.
+ * <p>
+ * The MXBeans are looked up once. GC runs and time are reported per collector as the change since the
+ * previous report. Thread states are counted from {@link ThreadMXBean#getThreadInfo(long[], int)} with
+ * a depth of 0, which reads each thread's state without walking its stack or collecting lock information
+ * as a thread dump would. Threads that ended between listing and sampling count as terminated.
+ * File descriptor usage is read through the platform MBean server, and only reported by JVMs whose
+ * operating system MXBean has the attributes, as HotSpot's has on Unix.
+ * Not thread-safe.
+ */
+public class JvmMetricsCollector {
+
+    private static final Thread.State[] STATES = Thread.State.values();
+    private static final String OPEN_FILE_DESCRIPTORS = "OpenFileDescriptorCount";
+    private static final String MAX_FILE_DESCRIPTORS = "MaxFileDescriptorCount";
+
+    private final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    // null if the JVM doesn't report file descriptors
+    private final ObjectName fileDescriptorSource = fileDescriptorSource();
+    private final GarbageCollectorMXBean[] collectors;
+    private final long[] collectorKeys;
+    private final String[][] collectorDims;
+    private final long[] lastRuns;
+    private final long[] lastTimeMillis;
+    private final int[] stateCounts = new int[STATES.length];
+
+    public JvmMetricsCollector() {
+        final List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        collectors = beans.toArray(new GarbageCollectorMXBean[0]);
+        collectorKeys = new long[collectors.length];
+        collectorDims = new String[collectors.length][];
+        lastRuns = new long[collectors.length];
+        lastTimeMillis = new long[collectors.length];
+        for (int i = 0; i < collectors.length; i++) {
+            final String name = collectors[i].getName();
+            collectorKeys[i] = SeriesKeys.component("gc:" + name);
+            collectorDims[i] = new String[]{name};
+            // the first report covers the time since the task was scheduled
+            lastRuns[i] = Math.max(0, collectors[i].getCollectionCount());
+            lastTimeMillis[i] = Math.max(0, collectors[i].getCollectionTime());
+        }
+    }
+
+    /**
+     * Appends one row per JVM metric, and one GC runs and time row per collector, to {@code batch}.
+     */
+    public void collect(MetricBatch batch) {
+        batch.add(JVM_UPTIME.getId(), TimeUnit.MILLISECONDS.toSeconds(runtime.getUptime()));
+
+        final MemoryUsage heap = memory.getHeapMemoryUsage();
+        batch.add(JVM_HEAP_USED.getId(), heap.getUsed());
+        batch.add(JVM_HEAP_USAGE.getId(), usage(heap));
+        batch.add(JVM_NON_HEAP_USAGE.getId(), usage(memory.getNonHeapMemoryUsage()));
+
+        batch.add(JVM_THREAD_COUNT.getId(), threads.getThreadCount());
+        batch.add(JVM_DAEMON_THREAD_COUNT.getId(), threads.getDaemonThreadCount());
+        countThreadStates();
+        batch.add(JVM_THREAD_STATES_NEW.getId(), stateCounts[Thread.State.NEW.ordinal()]);
+        batch.add(JVM_THREAD_STATES_RUNNABLE.getId(), stateCounts[Thread.State.RUNNABLE.ordinal()]);
+        batch.add(JVM_THREAD_STATES_BLOCKED.getId(), stateCounts[Thread.State.BLOCKED.ordinal()]);
+        batch.add(JVM_THREAD_STATES_WAITING.getId(), stateCounts[Thread.State.WAITING.ordinal()]);
+        batch.add(JVM_THREAD_STATES_TIMED_WAITING.getId(), stateCounts[Thread.State.TIMED_WAITING.ordinal()]);
+        batch.add(JVM_THREAD_STATES_TERMINATED.getId(), stateCounts[Thread.State.TERMINATED.ordinal()]);
+
+        if (fileDescriptorSource != null) {
+            try {
+                final long max = ((Number) server.getAttribute(fileDescriptorSource, MAX_FILE_DESCRIPTORS)).longValue();
+                if (max > 0) {
+                    final long open = ((Number) server.getAttribute(fileDescriptorSource, OPEN_FILE_DESCRIPTORS)).longValue();
+                    batch.add(JVM_FILE_DESCRIPTOR_USAGE.getId(), (double) open / max);
+                }
+            } catch (JMException | ClassCastException e) {
+                // not reported this time
+            }
+        }
+
+        for (int i = 0; i < collectors.length; i++) {
+            // -1 if the collector doesn't track it
+            final long runs = collectors[i].getCollectionCount();
+            final long timeMillis = collectors[i].getCollectionTime();
+            if (runs >= 0) {
+                batch.add(JVM_GC_RUNS.getId(), collectorKeys[i], GC_DIMENSIONS, collectorDims[i], runs - lastRuns[i]);
+                lastRuns[i] = runs;
+            }
+            if (timeMillis >= 0) {
+                batch.add(JVM_GC_TIME.getId(), collectorKeys[i], GC_DIMENSIONS, collectorDims[i], timeMillis - lastTimeMillis[i]);
+                lastTimeMillis[i] = timeMillis;
+            }
+        }
+    }
+
+    /**
+     * @return name of the operating system MXBean if it has the file descriptor attributes, or null
+     */
+    private ObjectName fileDescriptorSource() {
+        try {
+            final ObjectName name = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+            int found = 0;
+            for (MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes()) {
+                if (OPEN_FILE_DESCRIPTORS.equals(attribute.getName()) || MAX_FILE_DESCRIPTORS.equals(attribute.getName())) {
+                    found++;
+                }
+            }
+            return found == 2 ? name : null;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    private void countThreadStates() {
+        for (int s = 0; s < stateCounts.length; s++) {
+            stateCounts[s] = 0;
+        }
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            final Thread.State state = info == null ? Thread.State.TERMINATED : info.getThreadState();
+            stateCounts[state.ordinal()]++;
+        }
+    }
+
+    /**
+     * @return used over max, or over committed if there is no max
+     */
+    private static double usage(MemoryUsage usage) {
+        final long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+        return max > 0 ? (double) usage.getUsed() / max : 0;
+    }
+}
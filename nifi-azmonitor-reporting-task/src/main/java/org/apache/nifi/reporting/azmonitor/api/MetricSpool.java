@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.asynchttpclient.Response;
+
+/**
+ * Durable buffer for payloads that could not be published, replayed in the background once Azure
+ * Monitor is reachable again.
+ * <p>
+ * The spool is a fixed set of memory-mapped segment files of {@link #SEGMENT_SIZE} bytes. Payloads are
+ * appended to the newest segment; a segment whose records have all been replayed or expired is
+ * recycled for new records instead of being unmapped, so the spool neither allocates heap per record
+ * nor maps more than its size bound. When all segments are in use the oldest one is overwritten.
+ * <p>
+ * Records are replayed oldest first, one request at a time and at most at the configured rate, so
+ * replay does not compete with live reports for connections. Records older than the maximum age,
+ * normally Azure Monitor's backfill window, are skipped. Delivery is at least once: a replay that times
+ * out or fails in transit is retried, although Azure Monitor may already have accepted it.
+ * <p>
+ * Segment layout: magic, version, sequence number, then records of
+ * {@code [int length][byte state][long time][byte flags][short endpoint length][endpoint][payload]},
+ * terminated by a zero length. The length is written last, so a record torn by a crash is ignored.
+ * Writes are not forced to disk, which survives a crash of NiFi but not of the host. Once closed, the
+ * segments are unmapped and the spool drops whatever is appended.
+ */
+public class MetricSpool implements Closeable {
+
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int MAGIC = 0x415a5350;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    // state, time, flags and endpoint length following the length field
+    static final int RECORD_FIELDS_SIZE = 1 + 8 + 1 + 2;
+    static final byte PENDING = 0;
+    static final byte DONE = 1;
+    static final byte FLAG_GZIP = 1;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".spool";
+
+    static final long REPLAY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Sends a replayed payload; the payload buffer is handed over like to {@link AzMonitorPublisher#publish}.
+     * Returns null for a payload that cannot be sent anywhere, which is dropped.
+     */
+    @FunctionalInterface
+    public interface Replayer {
+        CompletableFuture<Response> replay(String endpoint, PayloadBuffer payload) throws Exception;
+    }
+
+    private final Path directory;
+    private final int maxSegments;
+    private final long maxAgeMillis;
+    private final long replayIntervalMillis;
+    private final ComponentLog logger;
+
+    // segments holding pending records, oldest first; the last one takes new records
+    private final ArrayDeque<Segment> active = new ArrayDeque<>();
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+    private int segmentCount;
+    private int nextFileNumber;
+    private long nextSequence;
+
+    private long spooledRecords;
+    private long replayedRecords;
+    private long expiredRecords;
+    private long droppedRecords;
+
+    private ScheduledExecutorService drainer;
+    private boolean closed;
+    private long retryAtMillis;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+
+    /**
+     * Opens the spool, recovering the pending records of segments left by a previous run.
+     *
+     * @param maxBytes             upper bound of the size of all segment files
+     * @param maxAgeMillis         records older than this are dropped instead of replayed
+     * @param replaysPerSecond     maximum number of replayed requests per second
+     */
+    public MetricSpool(Path directory, long maxBytes, long maxAgeMillis, int replaysPerSecond, ComponentLog logger) throws IOException {
+        this.directory = directory;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / SEGMENT_SIZE));
+        this.maxAgeMillis = maxAgeMillis;
+        this.replayIntervalMillis = Math.max(1, 1000 / replaysPerSecond);
+        this.logger = logger;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final Map<Path, Long> sequences = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                if (fileNumber(file) < 0 || Files.size(file) != SEGMENT_SIZE) {
+                    Files.delete(file);
+                    continue;
+                }
+                files.add(file);
+                sequences.put(file, headerSequence(file));
+            }
+        }
+        // the directory lists files in no particular order; if the spool shrank, the oldest segments go
+        files.sort(Comparator.<Path>comparingLong(sequences::get).thenComparingInt(MetricSpool::fileNumber));
+        final int evicted = Math.max(0, files.size() - maxSegments);
+        for (Path file : files.subList(0, evicted)) {
+            Files.delete(file);
+        }
+        if (evicted > 0) {
+            logger.warn("Deleted the {} oldest spool segments from {}, which no longer fit into the Spool Max Size",
+                    new Object[]{evicted, directory});
+        }
+
+        final List<Segment> pending = new ArrayList<>();
+        for (Path file : files.subList(evicted, files.size())) {
+            nextFileNumber = Math.max(nextFileNumber, fileNumber(file) + 1);
+            final Segment segment = new Segment(map(file));
+            segmentCount++;
+            if (segment.scan()) {
+                pending.add(segment);
+                nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            } else {
+                free.add(segment);
+            }
+        }
+        pending.sort(Comparator.comparingLong(segment -> segment.sequence));
+        active.addAll(pending);
+        if (!pending.isEmpty()) {
+            logger.info("Recovered {} spooled reports from {}", new Object[]{pendingRecords(), directory});
+        }
+    }
+
+    private static int fileNumber(Path file) {
+        final String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sequence number in the header of a segment file, or -1 if it has no valid header
+     */
+    private static long headerSequence(Path file) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        try (FileChannel channel = FileChannel.open(file)) {
+            channel.read(header);
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            return -1;
+        }
+        return header.getLong(8);
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(SEGMENT_SIZE);
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * Starts replaying spooled records in the background.
+     *
+     * @param buffers supplies the buffers replayed payloads are read into
+     */
+    public synchronized void start(Supplier<PayloadBuffer> buffers, Replayer replayer) {
+        drainer = Executors.newSingleThreadScheduledExecutor(AzureTokenManager.daemonThreads("AzMonitor-Spool-Replay"));
+        drainer.scheduleWithFixedDelay(() -> replayNext(buffers, replayer),
+                replayIntervalMillis, replayIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a payload. The buffer is only read.
+     *
+     * @param timeMillis time the payload was reported at
+     * @return false if the payload is too large for a segment or could not be written
+     */
+    public synchronized boolean append(String endpoint, long timeMillis, PayloadBuffer payload) {
+        if (closed) {
+            logger.warn("Not spooling report of {} bytes, the spool is closed", new Object[]{payload.size()});
+            droppedRecords++;
+            return false;
+        }
+        final byte[] endpointBytes = endpoint.getBytes(StandardCharsets.UTF_8);
+        final int length = RECORD_FIELDS_SIZE + endpointBytes.length + payload.size();
+        // record, its length field and the terminator of the segment
+        final int required = 4 + length + 4;
+        if (required > SEGMENT_SIZE - HEADER_SIZE) {
+            logger.warn("Not spooling report of {} bytes, it exceeds the segment size", new Object[]{payload.size()});
+            droppedRecords++;
+            return false;
+        }
+
+        Segment segment = active.peekLast();
+        if (segment == null || segment.writePosition + required > SEGMENT_SIZE) {
+            try {
+                segment = nextSegment();
+            } catch (IOException e) {
+                logger.warn("Failed creating spool segment in {}", new Object[]{directory}, e);
+                droppedRecords++;
+                return false;
+            }
+        }
+
+        final MappedByteBuffer buffer = segment.buffer;
+        final int position = segment.writePosition;
+        int offset = position + 4;
+        buffer.put(offset, PENDING);
+        buffer.putLong(offset + 1, timeMillis);
+        buffer.put(offset + 9, payload.isGzipped() ? FLAG_GZIP : 0);
+        buffer.putShort(offset + 10, (short) endpointBytes.length);
+        offset += RECORD_FIELDS_SIZE;
+        put(buffer, offset, endpointBytes, endpointBytes.length);
+        put(buffer, offset + endpointBytes.length, payload.array(), payload.size());
+        buffer.putInt(position + 4 + length, 0);
+        // publishes the record
+        buffer.putInt(position, length);
+
+        segment.writePosition = position + 4 + length;
+        segment.pendingRecords++;
+        spooledRecords++;
+        return true;
+    }
+
+    private Segment nextSegment() throws IOException {
+        Segment segment = free.poll();
+        if (segment == null) {
+            if (segmentCount < maxSegments) {
+                segment = new Segment(map(directory.resolve(SEGMENT_PREFIX + nextFileNumber++ + SEGMENT_SUFFIX)));
+                segmentCount++;
+            } else {
+                segment = active.poll();
+                droppedRecords += segment.pendingRecords;
+                logger.warn("Spool is full, dropping {} of the oldest spooled reports", new Object[]{segment.pendingRecords});
+            }
+        }
+        segment.reset(nextSequence++);
+        active.add(segment);
+        return segment;
+    }
+
+    private static void put(ByteBuffer buffer, int position, byte[] bytes, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(position);
+        view.put(bytes, 0, length);
+    }
+
+    private static void get(ByteBuffer buffer, int position, byte[] bytes, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(position);
+        view.get(bytes, 0, length);
+    }
+
+    void replayNext(Supplier<PayloadBuffer> buffers, Replayer replayer) {
+        final long now = System.currentTimeMillis();
+        final String endpoint;
+        final Segment segment;
+        final long sequence;
+        final int position;
+        final PayloadBuffer payload;
+        synchronized (this) {
+            if (closed || now < retryAtMillis) {
+                return;
+            }
+            segment = oldestPending(now);
+            if (segment == null) {
+                return;
+            }
+            sequence = segment.sequence;
+            position = segment.readPosition;
+            payload = buffers.get();
+            endpoint = segment.read(position, payload);
+        }
+
+        try {
+            final CompletableFuture<Response> sent = replayer.replay(endpoint, payload);
+            if (sent == null) {
+                consume(segment, sequence, position);
+                synchronized (this) {
+                    droppedRecords++;
+                }
+                return;
+            }
+            final Response response = sent.get(REPLAY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (AzMonitorPublisher.isSuccess(response)) {
+                consume(segment, sequence, position);
+                synchronized (this) {
+                    replayedRecords++;
+                    backoffMillis = MIN_BACKOFF_MILLIS;
+                }
+            } else if (AzMonitorPublisher.isRetriable(response)) {
+                backOff();
+            } else {
+                logger.warn("Dropping spooled report rejected by Azure Monitor: HTTP {} {}",
+                        new Object[]{response.getStatusCode(), response.getResponseBody()});
+                consume(segment, sequence, position);
+                synchronized (this) {
+                    droppedRecords++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            backOff();
+        } catch (Exception e) {
+            // e.g. no access token while AAD is unreachable
+            backOff();
+        }
+    }
+
+    private synchronized void backOff() {
+        retryAtMillis = System.currentTimeMillis() + backoffMillis;
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @return the oldest segment with a pending record that is not expired, skipping expired records
+     */
+    private Segment oldestPending(long now) {
+        for (Segment segment : active) {
+            while (segment.readPosition < segment.writePosition) {
+                if (now - segment.time(segment.readPosition) <= maxAgeMillis) {
+                    return segment;
+                }
+                segment.markDone(segment.readPosition);
+                expiredRecords++;
+            }
+        }
+        recycleDrained();
+        return null;
+    }
+
+    private synchronized void consume(Segment segment, long sequence, int position) {
+        // the segment may have been overwritten or unmapped while the record was replayed
+        if (closed || segment.sequence != sequence || segment.readPosition != position) {
+            return;
+        }
+        segment.markDone(position);
+        recycleDrained();
+    }
+
+    private void recycleDrained() {
+        while (active.size() > 1 && active.peek().pendingRecords == 0) {
+            free.add(active.poll());
+        }
+    }
+
+    public synchronized long pendingRecords() {
+        long pending = 0;
+        for (Segment segment : active) {
+            pending += segment.pendingRecords;
+        }
+        return pending;
+    }
+
+    public synchronized long getSpooledRecords() {
+        return spooledRecords;
+    }
+
+    public synchronized long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public synchronized long getExpiredRecords() {
+        return expiredRecords;
+    }
+
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Stops replaying, flushes the segments to disk and unmaps them.
+     */
+    @Override
+    public void close() {
+        final ScheduledExecutorService executor;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            executor = drainer;
+            drainer = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : active) {
+                segment.buffer.force();
+                unmap(segment.buffer);
+            }
+            for (Segment segment : free) {
+                unmap(segment.buffer);
+            }
+            active.clear();
+            free.clear();
+        }
+    }
+
+    /**
+     * Releases a mapping now rather than when its buffer is garbage collected, which may be never for a
+     * long-lived NiFi. Until then the file stays mapped, and locked on Windows. The buffer must not be
+     * used afterwards.
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Could not unmap spool segment, it is released when garbage collected", e);
+        }
+    }
+
+    private static final class Segment {
+
+        final MappedByteBuffer buffer;
+        long sequence;
+        int readPosition;
+        int writePosition;
+        int pendingRecords;
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void reset(long sequence) {
+            this.sequence = sequence;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, sequence);
+            buffer.putInt(HEADER_SIZE, 0);
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+            pendingRecords = 0;
+        }
+
+        /**
+         * Rebuilds the positions from the file contents.
+         *
+         * @return true if the segment holds pending records
+         */
+        boolean scan() {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return false;
+            }
+            sequence = buffer.getLong(8);
+            readPosition = -1;
+            int position = HEADER_SIZE;
+            while (position <= SEGMENT_SIZE - 4) {
+                final int length = buffer.getInt(position);
+                if (length < RECORD_FIELDS_SIZE || position + 4 + length > SEGMENT_SIZE - 4) {
+                    break;
+                }
+                if (buffer.get(position + 4) == PENDING) {
+                    pendingRecords++;
+                    if (readPosition < 0) {
+                        readPosition = position;
+                    }
+                }
+                position += 4 + length;
+            }
+            writePosition = position;
+            if (readPosition < 0) {
+                readPosition = position;
+            }
+            return pendingRecords > 0;
+        }
+
+        long time(int position) {
+            return buffer.getLong(position + 5);
+        }
+
+        /**
+         * Copies the payload of a record into {@code payload}.
+         *
+         * @return the endpoint the record was published to
+         */
+        String read(int position, PayloadBuffer payload) {
+            final int length = buffer.getInt(position);
+            final int endpointLength = buffer.getShort(position + 4 + 10) & 0xffff;
+            final byte[] endpoint = new byte[endpointLength];
+            get(buffer, position + 4 + RECORD_FIELDS_SIZE, endpoint, endpointLength);
+
+            final int payloadLength = length - RECORD_FIELDS_SIZE - endpointLength;
+            payload.reset();
+            payload.ensureCapacity(payloadLength);
+            get(buffer, position + 4 + RECORD_FIELDS_SIZE + endpointLength, payload.array(), payloadLength);
+            payload.setSize(payloadLength);
+            payload.setGzipped((buffer.get(position + 4 + 9) & FLAG_GZIP) != 0);
+            return new String(endpoint, StandardCharsets.UTF_8);
+        }
+
+        void markDone(int position) {
+            buffer.put(position + 4, DONE);
+            readPosition = position + 4 + buffer.getInt(position);
+            pendingRecords--;
+            // later records may already be done if they were replayed by a previous run
+            while (readPosition < writePosition && buffer.get(readPosition + 4) == DONE) {
+                readPosition += 4 + buffer.getInt(readPosition);
+            }
+        }
+    }
+}
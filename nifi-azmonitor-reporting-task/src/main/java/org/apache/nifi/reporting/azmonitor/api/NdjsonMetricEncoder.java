@@ -0,0 +1,690 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.nifi.reporting.azmonitor.metrics.Metric;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBaseData;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricSeries;
+
+/**
+ * Writes {@link MetricBatch}es or {@link Metric}s as UTF-8 NDJSON straight into a {@link PayloadBuffer}, producing the same
+ * document shape Gson would for the metric classes without reflection or intermediate strings.
+ * <p>
+ * Metric names and namespaces are JSON-encoded once and cached as byte fragments. When gzip is enabled
+ * the JSON is deflated into the target buffer with a reused {@link Deflater}.
+ * <p>
+ * JSON has no NaN or Infinity, and writing them as zero would report a real-looking value, so series
+ * with a non-finite Min, Max or Sum are left out and counted; see {@link #takeSkippedSeries()}.
+ * <p>
+ * Instances are not thread-safe; use one per encoding thread.
+ */
+public class NdjsonMetricEncoder {
+
+    /**
+     * Receives the payloads of a batch encoded in parts.
+     */
+    @FunctionalInterface
+    public interface PayloadSink {
+        void accept(PayloadBuffer payload) throws InterruptedException;
+    }
+
+    private static final byte[] TIME = ascii("{\"Time\":");
+    private static final byte[] DATA = ascii(",\"Data\":{\"BaseData\":{\"Metric\":");
+    private static final byte[] NAMESPACE = ascii(",\"Namespace\":");
+    private static final byte[] SERIES = ascii(",\"Series\":[");
+    private static final byte[] MIN = ascii("{\"Min\":");
+    private static final byte[] MAX = ascii(",\"Max\":");
+    private static final byte[] SUM = ascii(",\"Sum\":");
+    private static final byte[] COUNT = ascii(",\"Count\":");
+    private static final byte[] DIM_NAMES = ascii(",\"DimNames\":[");
+    private static final byte[] DIM_VALUES = ascii("{\"DimValues\":[");
+    private static final byte[] MIN_AFTER_DIMS = ascii("],\"Min\":");
+    private static final byte[] END_SERIES_ARRAY = ascii("]");
+    private static final byte[] END_METRIC = ascii("}}}\n");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    // names, namespaces and dimension names come from a small fixed set, so this stays tiny
+    private static final ConcurrentMap<String, byte[]> FRAGMENTS = new ConcurrentHashMap<>();
+
+    private final boolean gzip;
+    private final PayloadBuffer json;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] digits = new byte[20];
+    private int[] order = new int[0];
+    private int[] offsets = new int[0];
+    // rows left in order by the last orderByMetric, and series skipped since the last takeSkippedSeries
+    private int ordered;
+    private long skippedSeries;
+
+    private String lastTime;
+    private byte[] lastTimeBytes;
+    // name and namespace fragments indexed by descriptor id
+    private byte[][] names = new byte[0][];
+    private byte[][] namespaces = new byte[0][];
+    // dimensions appended to every series, e.g. the cluster node, pre-encoded with their leading comma
+    private byte[] constantNames = new byte[0];
+    private byte[] constantValues = new byte[0];
+    private byte[] constantNamesOnly = new byte[0];
+    private byte[] constantValuesOnly = new byte[0];
+    private String node;
+
+    public NdjsonMetricEncoder(boolean gzip) {
+        this.gzip = gzip;
+        this.json = gzip ? new PayloadBuffer(64 * 1024) : null;
+        this.deflater = gzip ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return the number of series left out for a non-finite value since the previous call
+     */
+    public long takeSkippedSeries() {
+        final long skipped = skippedSeries;
+        skippedSeries = 0;
+        return skipped;
+    }
+
+    /**
+     * Adds the cluster node identifier as the {@value MetricNames#DIM_NODE} dimension of every metric, in
+     * place of any other constant dimensions. Cheap when the node is the same as before.
+     *
+     * @param node the node identifier, or null for none
+     */
+    public void setNodeDimension(String node) {
+        if (Objects.equals(node, this.node)) {
+            return;
+        }
+        if (node == null) {
+            setConstantDimensions(new String[0], new String[0]);
+        } else {
+            setConstantDimensions(new String[]{MetricNames.DIM_NODE}, new String[]{node});
+        }
+        this.node = node;
+    }
+
+    /**
+     * Sets dimensions that are appended to the dimensions of every metric written from now on, e.g. the
+     * cluster node the metrics come from. Metrics without dimensions get only these.
+     *
+     * @param names  the dimension names, or an empty array for none
+     * @param values the value of each dimension
+     */
+    public void setConstantDimensions(String[] names, String[] values) {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " dimension values but got " + values.length);
+        }
+        final PayloadBuffer buffer = new PayloadBuffer(64);
+        for (int d = 0; d < names.length; d++) {
+            buffer.write(',');
+            buffer.write(fragment(names[d]));
+        }
+        constantNames = Arrays.copyOf(buffer.array(), buffer.size());
+        buffer.reset();
+        for (int d = 0; d < values.length; d++) {
+            buffer.write(',');
+            writeString(values[d], buffer);
+        }
+        constantValues = Arrays.copyOf(buffer.array(), buffer.size());
+        // without other dimensions the list starts at the first constant one, so drop its comma
+        constantNamesOnly = constantNames.length == 0 ? constantNames : Arrays.copyOfRange(constantNames, 1, constantNames.length);
+        constantValuesOnly = constantValues.length == 0 ? constantValues : Arrays.copyOfRange(constantValues, 1, constantValues.length);
+    }
+
+    /**
+     * Replaces the content of {@code target} with the encoded metrics, one JSON document per line.
+     */
+    public void encode(List<Metric> metrics, PayloadBuffer target) {
+        target.reset();
+        final PayloadBuffer out = gzip ? json : target;
+        out.reset();
+        for (Metric metric : metrics) {
+            writeMetric(metric, out);
+        }
+        if (gzip) {
+            compress(json, target);
+        }
+    }
+
+    /**
+     * Replaces the content of {@code target} with the encoded batch. Rows of the same metric and
+     * dimension names are written as one JSON document with one entry per series.
+     */
+    public void encode(MetricBatch batch, PayloadBuffer target) {
+        target.reset();
+        final PayloadBuffer out = gzip ? json : target;
+        out.reset();
+        final byte[] time = timeFragment(batch.getTime());
+        final int[] rows = orderByMetric(batch);
+        int previousMetric = -1;
+        String[] previousDims = null;
+        for (int i = 0; i < ordered; i++) {
+            final int row = rows[i];
+            final int metricId = batch.metricId(row);
+            final String[] dimNames = batch.dimNames(row);
+            if (metricId == previousMetric && dimNames == previousDims) {
+                out.write(',');
+            } else {
+                if (previousMetric >= 0) {
+                    out.write(END_SERIES_ARRAY);
+                    out.write(END_METRIC);
+                }
+                writeHeader(time, metricId, dimNames, out);
+                previousMetric = metricId;
+                previousDims = dimNames;
+            }
+            writeSeries(batch, row, out);
+        }
+        if (previousMetric >= 0) {
+            out.write(END_SERIES_ARRAY);
+            out.write(END_METRIC);
+        }
+        if (gzip) {
+            compress(json, target);
+        }
+    }
+
+    /**
+     * Encodes the batch into payloads of at most about {@code maxBytes} of JSON each, handing every
+     * payload to {@code sink} as soon as it is complete. A metric with more series than fit into one
+     * payload is continued in the next one, so no payload exceeds the limit unless a single series does.
+     *
+     * @param buffers supplies the buffers of the payloads, which are owned by the sink afterwards
+     */
+    public void encode(MetricBatch batch, int maxBytes, Supplier<PayloadBuffer> buffers, PayloadSink sink) throws InterruptedException {
+        final byte[] time = timeFragment(batch.getTime());
+        final int[] rows = orderByMetric(batch);
+        final int limit = maxBytes - END_SERIES_ARRAY.length - END_METRIC.length;
+        PayloadBuffer out = startPayload(buffers);
+        int previousMetric = -1;
+        String[] previousDims = null;
+        int payloadRows = 0;
+        for (int i = 0; i < ordered; i++) {
+            final int row = rows[i];
+            final int metricId = batch.metricId(row);
+            final String[] dimNames = batch.dimNames(row);
+            final int mark = out.size();
+            if (metricId == previousMetric && dimNames == previousDims) {
+                out.write(',');
+            } else {
+                if (previousMetric >= 0) {
+                    out.write(END_SERIES_ARRAY);
+                    out.write(END_METRIC);
+                }
+                writeHeader(time, metricId, dimNames, out);
+            }
+            writeSeries(batch, row, out);
+
+            if (out.size() > limit && payloadRows > 0) {
+                // doesn't fit: end the payload before this series and start the next one with it
+                out.setSize(mark);
+                out.write(END_SERIES_ARRAY);
+                out.write(END_METRIC);
+                finishPayload(out, buffers, sink);
+                out = startPayload(buffers);
+                writeHeader(time, metricId, dimNames, out);
+                writeSeries(batch, row, out);
+                payloadRows = 0;
+            }
+            payloadRows++;
+            previousMetric = metricId;
+            previousDims = dimNames;
+        }
+        if (payloadRows > 0) {
+            out.write(END_SERIES_ARRAY);
+            out.write(END_METRIC);
+            finishPayload(out, buffers, sink);
+        }
+    }
+
+    private PayloadBuffer startPayload(Supplier<PayloadBuffer> buffers) {
+        final PayloadBuffer out = gzip ? json : buffers.get();
+        out.reset();
+        return out;
+    }
+
+    private void finishPayload(PayloadBuffer out, Supplier<PayloadBuffer> buffers, PayloadSink sink) throws InterruptedException {
+        if (gzip) {
+            final PayloadBuffer target = buffers.get();
+            compress(out, target);
+            sink.accept(target);
+        } else {
+            sink.accept(out);
+        }
+    }
+
+    /**
+     * Splits an encoded payload into two payloads of about half its lines each, e.g. after the endpoint
+     * rejected it as too large. The parts are compressed if this encoder compresses.
+     *
+     * @return false if the payload holds a single line and cannot be split
+     */
+    public boolean split(PayloadBuffer payload, PayloadBuffer first, PayloadBuffer second) {
+        final PayloadBuffer source;
+        if (payload.isGzipped()) {
+            source = inflate(payload);
+            if (source == null) {
+                return false;
+            }
+        } else {
+            source = payload;
+        }
+        final byte[] bytes = source.array();
+        final int size = source.size();
+        int cut = -1;
+        for (int i = size / 2; i < size - 1; i++) {
+            if (bytes[i] == '\n') {
+                cut = i + 1;
+                break;
+            }
+        }
+        if (cut < 0) {
+            for (int i = Math.min(size / 2, size - 2); i >= 0; i--) {
+                if (bytes[i] == '\n') {
+                    cut = i + 1;
+                    break;
+                }
+            }
+        }
+        if (cut < 0) {
+            return false;
+        }
+        writePart(bytes, 0, cut, first);
+        writePart(bytes, cut, size - cut, second);
+        return true;
+    }
+
+    private void writePart(byte[] bytes, int offset, int length, PayloadBuffer target) {
+        if (gzip) {
+            compress(bytes, offset, length, target);
+        } else {
+            target.reset();
+            target.write(bytes, offset, length);
+        }
+    }
+
+    private PayloadBuffer inflate(PayloadBuffer payload) {
+        final PayloadBuffer out = json != null ? json : new PayloadBuffer(payload.size() * 4);
+        out.reset();
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload.array(), GZIP_HEADER_SIZE, payload.size() - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE);
+            while (!inflater.finished()) {
+                if (out.size() == out.capacity()) {
+                    out.ensureCapacity(out.size() + 1);
+                }
+                final int inflated = inflater.inflate(out.array(), out.size(), out.capacity() - out.size());
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                out.setSize(out.size() + inflated);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void writeHeader(byte[] time, int metricId, String[] dimNames, PayloadBuffer out) {
+        out.write(TIME);
+        out.write(time);
+        out.write(DATA);
+        out.write(nameFragment(metricId));
+        out.write(NAMESPACE);
+        out.write(namespaces[metricId]);
+        if (dimNames != null) {
+            out.write(DIM_NAMES);
+            for (int d = 0; d < dimNames.length; d++) {
+                if (d > 0) {
+                    out.write(',');
+                }
+                out.write(fragment(dimNames[d]));
+            }
+            out.write(constantNames);
+            out.write(']');
+        } else if (constantNames.length > 0) {
+            out.write(DIM_NAMES);
+            out.write(constantNamesOnly);
+            out.write(']');
+        }
+        out.write(SERIES);
+    }
+
+    private void writeSeries(MetricBatch batch, int row, PayloadBuffer out) {
+        final String[] dimValues = batch.dimValues(row);
+        if (dimValues != null) {
+            out.write(DIM_VALUES);
+            for (int d = 0; d < dimValues.length; d++) {
+                if (d > 0) {
+                    out.write(',');
+                }
+                writeString(dimValues[d], out);
+            }
+            out.write(constantValues);
+            out.write(MIN_AFTER_DIMS);
+        } else if (constantValues.length > 0) {
+            out.write(DIM_VALUES);
+            out.write(constantValuesOnly);
+            out.write(MIN_AFTER_DIMS);
+        } else {
+            out.write(MIN);
+        }
+        writeNumber(batch.min(row), out);
+        out.write(MAX);
+        writeNumber(batch.max(row), out);
+        out.write(SUM);
+        writeNumber(batch.sum(row), out);
+        out.write(COUNT);
+        writeLong(batch.count(row), out);
+        out.write('}');
+    }
+
+    /**
+     * Counting sort of the row indexes by metric id, stable so rows keep collection order within a metric.
+     * Rows with a non-finite value are skipped, so {@link #ordered} may be less than the batch size.
+     */
+    private int[] orderByMetric(MetricBatch batch) {
+        final int metrics = MetricRegistry.size();
+        if (offsets.length < metrics + 1) {
+            offsets = new int[metrics + 1];
+        } else {
+            Arrays.fill(offsets, 0);
+        }
+        if (order.length < batch.size()) {
+            order = new int[batch.size()];
+        }
+        int skipped = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            if (isFinite(batch.min(row), batch.max(row), batch.sum(row))) {
+                offsets[batch.metricId(row) + 1]++;
+            } else {
+                skipped++;
+            }
+        }
+        for (int m = 0; m < metrics; m++) {
+            offsets[m + 1] += offsets[m];
+        }
+        for (int row = 0; row < batch.size(); row++) {
+            if (skipped == 0 || isFinite(batch.min(row), batch.max(row), batch.sum(row))) {
+                order[offsets[batch.metricId(row)]++] = row;
+            }
+        }
+        ordered = batch.size() - skipped;
+        skippedSeries += skipped;
+        return order;
+    }
+
+    private static boolean isFinite(double min, double max, double sum) {
+        return !(Double.isNaN(min) || Double.isInfinite(min) || Double.isNaN(max) || Double.isInfinite(max)
+                || Double.isNaN(sum) || Double.isInfinite(sum));
+    }
+
+    private byte[] nameFragment(int metricId) {
+        if (metricId >= names.length) {
+            final int size = MetricRegistry.size();
+            names = Arrays.copyOf(names, size);
+            namespaces = Arrays.copyOf(namespaces, size);
+        }
+        byte[] name = names[metricId];
+        if (name == null) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(metricId);
+            name = fragment(descriptor.getName());
+            names[metricId] = name;
+            namespaces[metricId] = fragment(descriptor.getNamespace());
+        }
+        return name;
+    }
+
+    private void writeMetric(Metric metric, PayloadBuffer out) {
+        final MetricBaseData baseData = metric.Data.BaseData;
+        out.write(TIME);
+        out.write(timeFragment(metric.Time));
+        out.write(DATA);
+        out.write(fragment(baseData.Metric));
+        out.write(NAMESPACE);
+        out.write(fragment(baseData.Namespace));
+        if (baseData.DimNames != null) {
+            out.write(DIM_NAMES);
+            for (int d = 0; d < baseData.DimNames.size(); d++) {
+                if (d > 0) {
+                    out.write(',');
+                }
+                out.write(fragment(baseData.DimNames.get(d)));
+            }
+            out.write(constantNames);
+            out.write(']');
+        } else if (constantNames.length > 0) {
+            out.write(DIM_NAMES);
+            out.write(constantNamesOnly);
+            out.write(']');
+        }
+        if (baseData.Series != null) {
+            out.write(SERIES);
+            boolean first = true;
+            for (int i = 0; i < baseData.Series.size(); i++) {
+                final MetricSeries series = baseData.Series.get(i);
+                if (!isFinite(series.Min, series.Max, series.Sum)) {
+                    skippedSeries++;
+                    continue;
+                }
+                if (!first) {
+                    out.write(',');
+                }
+                writeSeries(series, out);
+                first = false;
+            }
+            out.write(']');
+        }
+        out.write(END_METRIC);
+    }
+
+    private void writeSeries(MetricSeries series, PayloadBuffer out) {
+        if (series.DimValues != null) {
+            out.write(DIM_VALUES);
+            for (int d = 0; d < series.DimValues.size(); d++) {
+                if (d > 0) {
+                    out.write(',');
+                }
+                writeString(series.DimValues.get(d), out);
+            }
+            out.write(constantValues);
+            out.write(MIN_AFTER_DIMS);
+        } else if (constantValues.length > 0) {
+            out.write(DIM_VALUES);
+            out.write(constantValuesOnly);
+            out.write(MIN_AFTER_DIMS);
+        } else {
+            out.write(MIN);
+        }
+        writeNumber(series.Min, out);
+        out.write(MAX);
+        writeNumber(series.Max, out);
+        out.write(SUM);
+        writeNumber(series.Sum, out);
+        out.write(COUNT);
+        writeLong(series.Count, out);
+        out.write('}');
+    }
+
+    private byte[] timeFragment(String time) {
+        // every metric of a report shares one timestamp
+        if (!time.equals(lastTime)) {
+            lastTimeBytes = quote(time);
+            lastTime = time;
+        }
+        return lastTimeBytes;
+    }
+
+    /**
+     * @return the quoted, UTF-8 encoded JSON string for a name or namespace
+     */
+    static byte[] fragment(String value) {
+        return FRAGMENTS.computeIfAbsent(value, NdjsonMetricEncoder::quote);
+    }
+
+    /**
+     * Writes a finite number; callers leave out series with NaN or Infinity, which JSON cannot represent.
+     */
+    void writeNumber(double value, PayloadBuffer out) {
+        final long asLong = (long) value;
+        if (asLong == value && Math.abs(asLong) < (1L << 53)) {
+            writeLong(asLong, out);
+        } else {
+            final String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                out.write(text.charAt(i));
+            }
+        }
+    }
+
+    void writeLong(long value, PayloadBuffer out) {
+        if (value == Long.MIN_VALUE) {
+            out.write(ascii(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Writes a quoted JSON string, encoding to UTF-8 without an intermediate byte array.
+     */
+    static void writeString(CharSequence value, PayloadBuffer out) {
+        out.write('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write('\\');
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | (codePoint >> 18));
+                out.write(0x80 | ((codePoint >> 12) & 0x3F));
+                out.write(0x80 | ((codePoint >> 6) & 0x3F));
+                out.write(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate
+                out.write('?');
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        out.write('"');
+    }
+
+    private static byte[] quote(String value) {
+        final PayloadBuffer buffer = new PayloadBuffer(value.length() + 8);
+        writeString(value, buffer);
+        final byte[] quoted = new byte[buffer.size()];
+        System.arraycopy(buffer.array(), 0, quoted, 0, buffer.size());
+        return quoted;
+    }
+
+    private void compress(PayloadBuffer source, PayloadBuffer target) {
+        compress(source.array(), 0, source.size(), target);
+    }
+
+    private void compress(byte[] source, int offset, int length, PayloadBuffer target) {
+        target.reset();
+        // JSON of this shape compresses well; start from a quarter and grow on demand
+        target.ensureCapacity(GZIP_HEADER_SIZE + length / 4 + GZIP_TRAILER_SIZE);
+        final byte[] header = target.array();
+        header[0] = (byte) 0x1f;
+        header[1] = (byte) 0x8b;
+        header[2] = Deflater.DEFLATED;
+        for (int i = 3; i < GZIP_HEADER_SIZE; i++) {
+            header[i] = 0;
+        }
+        int size = GZIP_HEADER_SIZE;
+
+        deflater.reset();
+        deflater.setInput(source, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == target.capacity()) {
+                target.ensureCapacity(size + 1);
+            }
+            size += deflater.deflate(target.array(), size, target.capacity() - size);
+        }
+
+        crc.reset();
+        crc.update(source, offset, length);
+        target.setSize(size);
+        writeIntLE((int) crc.getValue(), target);
+        writeIntLE(length, target);
+        target.setGzipped(true);
+    }
+
+    private static void writeIntLE(int value, PayloadBuffer out) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+        out.write((value >> 16) & 0xFF);
+        out.write((value >> 24) & 0xFF);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
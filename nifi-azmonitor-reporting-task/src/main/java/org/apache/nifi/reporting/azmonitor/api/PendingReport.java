@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * The series of one report, one batch per destination, waiting in a {@link ReportPipeline} to be encoded
+ * and sent, together with what the publisher needs to know about the report. Recycled by the pipeline.
+ */
+public class PendingReport {
+
+    private final MetricBatch[] batches;
+    private long timeMillis;
+    private long startNanos;
+    private long collectedNanos;
+    private long queuedNanos;
+    private long dispatchDelayMillis;
+    private String node;
+
+    PendingReport(int partitions) {
+        batches = new MetricBatch[partitions];
+        for (int p = 0; p < partitions; p++) {
+            batches[p] = new MetricBatch();
+        }
+    }
+
+    /**
+     * Empties the batches and stamps them with the report time.
+     */
+    public void start(String time, long timeMillis, long startNanos) {
+        for (MetricBatch batch : batches) {
+            batch.clear(time);
+        }
+        this.timeMillis = timeMillis;
+        this.startNanos = startNanos;
+        collectedNanos = startNanos;
+        dispatchDelayMillis = 0;
+        node = null;
+    }
+
+    /**
+     * Replaces the content of this report with a copy of another one with as many batches, e.g. to hand
+     * the same report to several sinks.
+     */
+    public void copyFrom(PendingReport other) {
+        for (int p = 0; p < batches.length; p++) {
+            final MetricBatch source = other.batches[p];
+            batches[p].clear(source.getTime());
+            batches[p].addAll(source);
+        }
+        timeMillis = other.timeMillis;
+        startNanos = other.startNanos;
+        collectedNanos = other.collectedNanos;
+        dispatchDelayMillis = other.dispatchDelayMillis;
+        node = other.node;
+    }
+
+    /**
+     * @return the batches of the destinations, in the order of the destinations
+     */
+    public MetricBatch[] getBatches() {
+        return batches;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getCollectedNanos() {
+        return collectedNanos;
+    }
+
+    public void setCollectedNanos(long collectedNanos) {
+        this.collectedNanos = collectedNanos;
+    }
+
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
+
+    public long getDispatchDelayMillis() {
+        return dispatchDelayMillis;
+    }
+
+    public void setDispatchDelayMillis(long dispatchDelayMillis) {
+        this.dispatchDelayMillis = dispatchDelayMillis;
+    }
+
+    /**
+     * @return the cluster node identifier to add as the node dimension, or null for none
+     */
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+
+/**
+ * Writes the batches of a report in the Prometheus text exposition format straight into a
+ * {@link PayloadBuffer}.
+ * <p>
+ * A metric is named after its namespace and name in snake case, e.g. {@code nifi_metrics_queued_count}, and
+ * its dimensions become labels. Every series is one gauge sample stamped with the report time: the Sum of
+ * counters, which are deltas unless the Counter Mode is Raw, and the mean of everything else. Samples of a
+ * metric are grouped under one TYPE line across all batches, as the format requires.
+ * <p>
+ * Instances are not thread-safe; use one per encoding thread.
+ */
+public class PrometheusTextEncoder {
+
+    private static final byte[] TYPE = ascii("# TYPE ");
+    private static final byte[] GAUGE = ascii(" gauge\n");
+
+    // names come from a small fixed set, so this stays tiny
+    private static final ConcurrentMap<String, byte[]> LABEL_NAMES = new ConcurrentHashMap<>();
+
+    private final byte[] digits = new byte[20];
+    private long[] order = new long[0];
+    private int[] offsets = new int[0];
+    // metric names indexed by descriptor id
+    private byte[][] names = new byte[0][];
+    // label appended to every sample, e.g. the cluster node, with its leading comma
+    private byte[] constantLabel = new byte[0];
+    private String node;
+
+    /**
+     * Adds the cluster node identifier as the {@value MetricNames#DIM_NODE} label of every sample.
+     *
+     * @param node the node identifier, or null for none
+     */
+    public void setNodeDimension(String node) {
+        if (node == null ? this.node == null : node.equals(this.node)) {
+            return;
+        }
+        if (node == null) {
+            constantLabel = new byte[0];
+        } else {
+            final PayloadBuffer label = new PayloadBuffer(64);
+            label.write(',');
+            writeLabel(MetricNames.DIM_NODE, node, label);
+            constantLabel = Arrays.copyOf(label.array(), label.size());
+        }
+        this.node = node;
+    }
+
+    /**
+     * Replaces the content of {@code target} with the samples of all batches.
+     */
+    public void encode(MetricBatch[] batches, long timeMillis, PayloadBuffer target) {
+        target.reset();
+        final int rows = orderByMetric(batches);
+        int previousMetric = -1;
+        for (int i = 0; i < rows; i++) {
+            final MetricBatch batch = batches[(int) (order[i] >>> 32)];
+            final int row = (int) order[i];
+            final int metricId = batch.metricId(row);
+            final byte[] name = nameFragment(metricId);
+            if (metricId != previousMetric) {
+                target.write(TYPE);
+                target.write(name);
+                target.write(GAUGE);
+                previousMetric = metricId;
+            }
+            target.write(name);
+            writeLabels(batch.dimNames(row), batch.dimValues(row), target);
+            target.write(' ');
+            final long count = batch.count(row);
+            final double value = MetricRegistry.get(metricId).isCumulative() || count <= 1
+                    ? batch.sum(row)
+                    : batch.sum(row) / count;
+            writeNumber(value, target);
+            target.write(' ');
+            writeLong(timeMillis, target);
+            target.write('\n');
+        }
+    }
+
+    private void writeLabels(String[] dimNames, String[] dimValues, PayloadBuffer out) {
+        if (dimNames == null && constantLabel.length == 0) {
+            return;
+        }
+        out.write('{');
+        if (dimNames != null) {
+            for (int d = 0; d < dimNames.length; d++) {
+                if (d > 0) {
+                    out.write(',');
+                }
+                writeLabel(dimNames[d], dimValues[d], out);
+            }
+            out.write(constantLabel);
+        } else {
+            out.write(constantLabel, 1, constantLabel.length - 1);
+        }
+        out.write('}');
+    }
+
+    private static void writeLabel(String name, String value, PayloadBuffer out) {
+        out.write(LABEL_NAMES.computeIfAbsent(name, label -> ascii(sanitize(label, false))));
+        out.write('=');
+        out.write('"');
+        if (value != null) {
+            writeLabelValue(value, out);
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes a label value as UTF-8, escaping backslashes, double quotes and line feeds.
+     */
+    private static void writeLabelValue(String value, PayloadBuffer out) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x80) {
+                // rare: encode the rest at once; the escaped characters are never part of a multi-byte sequence
+                final byte[] rest = value.substring(i).getBytes(StandardCharsets.UTF_8);
+                for (byte b : rest) {
+                    writeEscaped(b, out);
+                }
+                return;
+            }
+            writeEscaped((byte) c, out);
+        }
+    }
+
+    private static void writeEscaped(byte b, PayloadBuffer out) {
+        if (b == '\\' || b == '"') {
+            out.write('\\');
+            out.write(b);
+        } else if (b == '\n') {
+            out.write('\\');
+            out.write('n');
+        } else {
+            out.write(b);
+        }
+    }
+
+    private void writeNumber(double value, PayloadBuffer out) {
+        final long asLong = (long) value;
+        if (asLong == value && Math.abs(asLong) < (1L << 53)) {
+            writeLong(asLong, out);
+        } else if (Double.isNaN(value)) {
+            out.write(ascii("NaN"));
+        } else if (Double.isInfinite(value)) {
+            out.write(ascii(value > 0 ? "+Inf" : "-Inf"));
+        } else {
+            final String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                out.write(text.charAt(i));
+            }
+        }
+    }
+
+    private void writeLong(long value, PayloadBuffer out) {
+        if (value == Long.MIN_VALUE) {
+            out.write(ascii(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Counting sort of the rows of all batches by metric id, stable so rows keep collection order within a
+     * metric. Each entry holds the batch index in the upper and the row in the lower 32 bits.
+     *
+     * @return the number of rows
+     */
+    private int orderByMetric(MetricBatch[] batches) {
+        final int metrics = MetricRegistry.size();
+        if (offsets.length < metrics + 1) {
+            offsets = new int[metrics + 1];
+        } else {
+            Arrays.fill(offsets, 0);
+        }
+        int rows = 0;
+        for (MetricBatch batch : batches) {
+            for (int row = 0; row < batch.size(); row++) {
+                offsets[batch.metricId(row) + 1]++;
+            }
+            rows += batch.size();
+        }
+        if (order.length < rows) {
+            order = new long[rows];
+        }
+        for (int m = 0; m < metrics; m++) {
+            offsets[m + 1] += offsets[m];
+        }
+        for (int b = 0; b < batches.length; b++) {
+            final MetricBatch batch = batches[b];
+            for (int row = 0; row < batch.size(); row++) {
+                order[offsets[batch.metricId(row)]++] = ((long) b << 32) | row;
+            }
+        }
+        return rows;
+    }
+
+    private byte[] nameFragment(int metricId) {
+        if (metricId >= names.length) {
+            names = Arrays.copyOf(names, MetricRegistry.size());
+        }
+        byte[] name = names[metricId];
+        if (name == null) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(metricId);
+            name = ascii(sanitize(descriptor.getNamespace(), true) + "_" + sanitize(descriptor.getName(), true));
+            names[metricId] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Turns a name into a valid Prometheus metric or label name: characters other than letters, digits
+     * and underscores become single underscores, trailing ones are dropped, and a leading digit is prefixed
+     * with one.
+     *
+     * @param snakeCase whether to also split camel case words and lower-case them, e.g. QueuedCount to queued_count
+     */
+    static String sanitize(String name, boolean snakeCase) {
+        final StringBuilder sanitized = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (!valid) {
+                if (sanitized.length() > 0 && sanitized.charAt(sanitized.length() - 1) != '_') {
+                    sanitized.append('_');
+                }
+                continue;
+            }
+            if (snakeCase && Character.isUpperCase(c) && i > 0 && sanitized.length() > 0
+                    && sanitized.charAt(sanitized.length() - 1) != '_') {
+                final char previous = name.charAt(i - 1);
+                final boolean wordStart = Character.isLowerCase(previous) || Character.isDigit(previous)
+                        || (Character.isUpperCase(previous) && i + 1 < name.length() && Character.isLowerCase(name.charAt(i + 1)));
+                if (wordStart) {
+                    sanitized.append('_');
+                }
+            }
+            sanitized.append(snakeCase ? Character.toLowerCase(c) : c);
+        }
+        if (sanitized.length() > 1 && sanitized.charAt(sanitized.length() - 1) == '_') {
+            sanitized.setLength(sanitized.length() - 1);
+        }
+        if (sanitized.length() == 0 || Character.isDigit(sanitized.charAt(0))) {
+            sanitized.insert(0, '_');
+        }
+        return sanitized.toString();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventRepository;
+import org.apache.nifi.reporting.EventAccess;
+import org.apache.nifi.reporting.azmonitor.metrics.LatencySketch;
+import org.apache.nifi.reporting.azmonitor.metrics.LongIntHashMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.LATENCY_DIMENSIONS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.LINEAGE_LATENCY;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.LINEAGE_LATENCY_P50;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.LINEAGE_LATENCY_P95;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.LINEAGE_LATENCY_P99;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSING_LATENCY;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSING_LATENCY_P50;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSING_LATENCY_P95;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROCESSING_LATENCY_P99;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROVENANCE_EVENTS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROVENANCE_LAG;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PROVENANCE_SAMPLE_INTERVAL;
+
+/**
+ * Follows the provenance repository from a cursor and reports per-component latencies derived from the
+ * events: the processing latency, i.e. the duration of the event, and the lineage latency, i.e. the time
+ * since the FlowFile's lineage entered the flow. The lineage latency at the last component of a group is
+ * the time FlowFiles take to get through the flow up to there.
+ * <p>
+ * Events are read in pages of a bounded size on a daemon thread, never by the reporting thread. Each pass
+ * reads for at most {@link #PASS_BUDGET_MILLIS}. If a pass ends still behind the head of the repository,
+ * the next passes sample: they read one page and skip as many pages as needed to catch up, counting each
+ * event read with the number of events it stands for. The interval shrinks back once the collector keeps up.
+ * <p>
+ * Latencies are kept in a {@link LatencySketch} per component and metric, for at most a fixed number of
+ * components; the events of further components are counted under {@value #OTHER}. {@link #collect} drains
+ * the sketches into a batch as Min/Max/Sum/Count rows plus the 50th, 95th and 99th percentile.
+ * Components without events for {@link #MAX_IDLE_REPORTS} reports are evicted.
+ */
+public class ProvenanceLatencyCollector implements AutoCloseable {
+
+    static final long PASS_INTERVAL_MILLIS = 1000;
+    static final long PASS_BUDGET_MILLIS = 500;
+    static final int MAX_SAMPLE_INTERVAL = 1024;
+    static final int MAX_IDLE_REPORTS = 10;
+    static final String OTHER = "Other";
+
+    private static final long OTHER_KEY = SeriesKeys.component("\0other");
+    private static final String[] OTHER_DIMS = {OTHER, OTHER};
+
+    private final int pageSize;
+    private final int maxComponents;
+    private final ComponentLog logger;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private final LongIntHashMap slots;
+    private final Component[] components;
+    private final Component other = new Component();
+    private int size;
+    private int report;
+    private long eventsRead;
+    private long cursor;
+    private long lag;
+    private int sampleInterval = 1;
+
+    private static final class Component {
+        final LatencySketch processing = new LatencySketch();
+        final LatencySketch lineage = new LatencySketch();
+        long key;
+        String[] dims;
+        int lastReport;
+    }
+
+    /**
+     * @param cursor        id of the next event to read, or -1 to start at the newest event
+     * @param pageSize      maximum number of events read at once
+     * @param maxComponents maximum number of components with their own series
+     */
+    public ProvenanceLatencyCollector(long cursor, int pageSize, int maxComponents, ComponentLog logger) {
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+        this.maxComponents = maxComponents;
+        this.logger = logger;
+        this.slots = new LongIntHashMap(maxComponents);
+        this.components = new Component[maxComponents];
+        other.key = OTHER_KEY;
+        other.dims = OTHER_DIMS;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(AzureTokenManager.daemonThreads("AzMonitor-Provenance"));
+    }
+
+    public void start(EventAccess eventAccess) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                consume(eventAccess);
+            } catch (Exception e) {
+                logger.warn("Failed reading provenance events due to {}", new Object[]{e});
+            }
+        }, 0, PASS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads events from the cursor on the calling thread until the head of the repository or the end of
+     * the pass budget. {@link #start} calls this once per pass.
+     */
+    public void consume(EventAccess eventAccess) throws IOException {
+        final ProvenanceEventRepository repository = eventAccess.getProvenanceRepository();
+        // without a repository, e.g. in mock contexts, read until there are no more events
+        final Long newest = repository == null ? Long.valueOf(Long.MAX_VALUE - 1) : repository.getMaxEventId();
+        final long head = newest == null ? 0 : newest + 1;
+        long next;
+        final int interval;
+        synchronized (this) {
+            if (cursor < 0 || cursor > head) {
+                // no cursor yet, or the repository was wiped: start with what comes next
+                cursor = repository == null ? 0 : head;
+            }
+            next = cursor;
+            interval = sampleInterval;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PASS_BUDGET_MILLIS);
+        long read = 0;
+        while (next < head && System.nanoTime() < deadline) {
+            final List<ProvenanceEventRecord> events = eventAccess.getProvenanceEvents(next, pageSize);
+            if (events.isEmpty()) {
+                break;
+            }
+            synchronized (this) {
+                for (ProvenanceEventRecord event : events) {
+                    record(event, interval);
+                }
+                eventsRead += events.size();
+            }
+            read += events.size();
+            // skipping whole pages keeps the events read contiguous, so they are cheap to fetch
+            next = events.get(events.size() - 1).getEventId() + 1 + (long) (interval - 1) * pageSize;
+        }
+
+        synchronized (this) {
+            cursor = next;
+            lag = repository == null ? 0 : Math.max(0, head - next);
+            if (lag > 0 && read > 0 && System.nanoTime() >= deadline) {
+                // read as many events per pass, but cover what was left behind as well
+                final long covered = read * interval + lag;
+                final int needed = (int) Math.min(MAX_SAMPLE_INTERVAL, (covered + read - 1) / read);
+                if (needed > sampleInterval) {
+                    logger.debug("{} provenance events behind; sampling every {} pages", new Object[]{lag, needed});
+                }
+                sampleInterval = Math.max(sampleInterval, needed);
+            } else if (lag == 0 && sampleInterval > 1) {
+                sampleInterval = Math.max(1, sampleInterval / 2);
+            }
+        }
+    }
+
+    private void record(ProvenanceEventRecord event, int weight) {
+        final Component component = component(event);
+        if (event.getEventDuration() >= 0) {
+            component.processing.add(event.getEventDuration(), weight);
+        }
+        if (event.getLineageStartDate() > 0) {
+            component.lineage.add(event.getEventTime() - event.getLineageStartDate(), weight);
+        }
+    }
+
+    private Component component(ProvenanceEventRecord event) {
+        final long key = SeriesKeys.component(event.getComponentId());
+        final int slot = slots.get(key);
+        if (slot != LongIntHashMap.MISSING) {
+            return components[slot];
+        }
+        if (size == maxComponents) {
+            return other;
+        }
+        Component component = components[size];
+        if (component == null) {
+            component = new Component();
+            components[size] = component;
+        }
+        component.key = key;
+        component.dims = new String[]{
+                event.getComponentType() == null ? "" : event.getComponentType(),
+                event.getComponentId() == null ? "" : event.getComponentId()};
+        component.lastReport = report;
+        slots.put(key, size++);
+        return component;
+    }
+
+    /**
+     * @return id of the next event to read, to be kept across restarts
+     */
+    public synchronized long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Appends the latencies recorded since the previous call and the reader's progress to {@code batch},
+     * and starts a new interval.
+     */
+    public synchronized void collect(MetricBatch batch) {
+        report++;
+        for (int slot = 0; slot < size; slot++) {
+            final Component component = components[slot];
+            if (drain(component, batch)) {
+                component.lastReport = report;
+            }
+        }
+        drain(other, batch);
+        evictIdle();
+
+        batch.add(PROVENANCE_EVENTS.getId(), eventsRead);
+        batch.add(PROVENANCE_LAG.getId(), lag);
+        batch.add(PROVENANCE_SAMPLE_INTERVAL.getId(), sampleInterval);
+        eventsRead = 0;
+    }
+
+    private static boolean drain(Component component, MetricBatch batch) {
+        final boolean active = component.processing.getCount() > 0 || component.lineage.getCount() > 0;
+        add(component, component.processing, PROCESSING_LATENCY, PROCESSING_LATENCY_P50, PROCESSING_LATENCY_P95,
+                PROCESSING_LATENCY_P99, batch);
+        add(component, component.lineage, LINEAGE_LATENCY, LINEAGE_LATENCY_P50, LINEAGE_LATENCY_P95,
+                LINEAGE_LATENCY_P99, batch);
+        return active;
+    }
+
+    private static void add(Component component, LatencySketch sketch, MetricDescriptor<Void> latency,
+                            MetricDescriptor<Void> p50, MetricDescriptor<Void> p95, MetricDescriptor<Void> p99,
+                            MetricBatch batch) {
+        if (sketch.getCount() == 0) {
+            return;
+        }
+        batch.add(latency.getId(), component.key, LATENCY_DIMENSIONS, component.dims,
+                sketch.getMin(), sketch.getMax(), sketch.getSum(), sketch.getCount());
+        batch.add(p50.getId(), component.key, LATENCY_DIMENSIONS, component.dims, sketch.valueAt(50));
+        batch.add(p95.getId(), component.key, LATENCY_DIMENSIONS, component.dims, sketch.valueAt(95));
+        batch.add(p99.getId(), component.key, LATENCY_DIMENSIONS, component.dims, sketch.valueAt(99));
+        sketch.reset();
+    }
+
+    private void evictIdle() {
+        int slot = 0;
+        while (slot < size) {
+            if (report - components[slot].lastReport > MAX_IDLE_REPORTS) {
+                slots.remove(components[slot].key);
+                // swap the last component into the freed slot and keep the evicted one for reuse
+                final int last = --size;
+                if (slot != last) {
+                    final Component evicted = components[slot];
+                    components[slot] = components[last];
+                    components[last] = evicted;
+                    slots.put(components[slot].key, slot);
+                }
+                components[last].dims = null;
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Hands reports from the reporting thread to a publisher thread that encodes and sends them, so a
+ * slow endpoint or a full connection pool never holds the reporting thread, which NiFi shares between
+ * reporting tasks.
+ * <p>
+ * Reports wait in a bounded {@link ReportQueue}. When it is full, the reporting thread takes the oldest
+ * report out and, depending on the {@link OverflowPolicy}, drops it, spools it, or merges it into the new
+ * report. Reports and their batches are recycled, so a steady flow allocates nothing.
+ * <p>
+ * {@link #close} stops accepting reports and waits for the publisher to send what is queued.
+ */
+public class ReportPipeline implements AutoCloseable {
+
+    public enum OverflowPolicy {
+        /** The oldest report is dropped. */
+        DROP_OLDEST,
+        /** The oldest report is encoded and written to the spool on the reporting thread. */
+        SPOOL,
+        /** The oldest report is merged into the new one, so a Min/Max/Sum/Count spans both reports. */
+        COALESCE
+    }
+
+    // the publisher also wakes up this often to notice that the pipeline was closed
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final String name;
+    private final int partitions;
+    private final ReportQueue<PendingReport> queue;
+    private final Queue<PendingReport> spareReports = new ConcurrentLinkedQueue<>();
+    private final OverflowPolicy overflowPolicy;
+    private final Consumer<PendingReport> publisher;
+    private final Consumer<PendingReport> spiller;
+    private final ReporterHealth health;
+    private final ComponentLog logger;
+    private final Thread thread;
+    // only used by the reporting thread, when coalescing
+    private final SeriesAggregator aggregator = new SeriesAggregator(1024);
+    private volatile boolean closed;
+
+    /**
+     * @param name       names the publisher thread and its log messages, e.g. the sink it feeds
+     * @param partitions number of batches per report
+     * @param capacity   maximum number of reports waiting to be published
+     * @param publisher  encodes and sends a report, on the publisher thread
+     * @param spiller    writes a report to the spool, on the reporting thread; only used by
+     *                   {@link OverflowPolicy#SPOOL}
+     */
+    public ReportPipeline(String name, int partitions, int capacity, OverflowPolicy overflowPolicy, Consumer<PendingReport> publisher,
+                          Consumer<PendingReport> spiller, ReporterHealth health, ComponentLog logger) {
+        this.name = name;
+        this.partitions = partitions;
+        this.queue = new ReportQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.publisher = publisher;
+        this.spiller = spiller;
+        this.health = health;
+        this.logger = logger;
+        this.thread = AzureTokenManager.daemonThreads("AzMonitor-Publisher-" + name).newThread(this::run);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * @return an empty report to collect into and {@link #submit}
+     */
+    public PendingReport acquire() {
+        final PendingReport report = spareReports.poll();
+        return report != null ? report : new PendingReport(partitions);
+    }
+
+    /**
+     * Queues a report for the publisher, making room according to the overflow policy if the queue is
+     * full. Only to be called by the reporting thread; never blocks on the publisher.
+     */
+    public void submit(PendingReport report) {
+        if (closed) {
+            release(report);
+            return;
+        }
+        report.setQueuedNanos(System.nanoTime());
+        while (!queue.offer(report)) {
+            final PendingReport oldest = queue.poll();
+            if (oldest != null) {
+                overflow(oldest, report);
+            }
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private void overflow(PendingReport oldest, PendingReport report) {
+        health.recordOverflow();
+        try {
+            switch (overflowPolicy) {
+                case SPOOL:
+                    spiller.accept(oldest);
+                    break;
+                case COALESCE:
+                    coalesce(oldest, report);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed handling a report that did not fit into the queue of {} due to {}", new Object[]{name, e});
+        } finally {
+            release(oldest);
+        }
+    }
+
+    private void coalesce(PendingReport oldest, PendingReport report) {
+        for (int p = 0; p < partitions; p++) {
+            final MetricBatch target = report.getBatches()[p];
+            aggregator.fold(oldest.getBatches()[p]);
+            aggregator.fold(target);
+            target.clear(target.getTime());
+            aggregator.drain(target);
+        }
+    }
+
+    private void release(PendingReport report) {
+        spareReports.offer(report);
+    }
+
+    /**
+     * @return number of reports waiting to be published
+     */
+    public int pendingReports() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (true) {
+            final PendingReport report = queue.poll();
+            if (report == null) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            health.record(ReporterHealth.Phase.QUEUE, System.nanoTime() - report.getQueuedNanos());
+            try {
+                publisher.accept(report);
+            } catch (RuntimeException e) {
+                logger.error("Failed publishing report to {} due to {}", new Object[]{name, e});
+            } finally {
+                release(report);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting reports and waits up to {@value #DRAIN_MILLIS} ms for the queued ones to be handed to
+     * the dispatchers; reports still queued after that are dropped.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(thread);
+        thread.join(DRAIN_MILLIS);
+        if (thread.isAlive()) {
+            // e.g. waiting for a payload buffer while every connection is taken
+            thread.interrupt();
+            thread.join(DRAIN_MILLIS);
+            logger.warn("Dropped {} reports that were not published to {} within {} ms of stopping",
+                    new Object[]{queue.size(), name, DRAIN_MILLIS});
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring of reports between the reporting thread, which is the only one to offer, and the
+ * publisher thread.
+ * <p>
+ * The tail is only advanced by the producer. The head is advanced by compare-and-set, by the consumer
+ * taking the oldest report and by the producer taking it on overflow, so either side can remove the oldest
+ * report without a lock and each report is taken exactly once. Slots are not cleared when taken, since the
+ * producer may already reuse them; they are overwritten on the next lap of the ring.
+ */
+public class ReportQueue<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public ReportQueue(int capacity) {
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Appends a report unless the queue is full. Only to be called by the producer.
+     */
+    public boolean offer(T report) {
+        final long t = tail.get();
+        if (t - head.get() > mask) {
+            return false;
+        }
+        slots.lazySet((int) t & mask, report);
+        // publishes the slot to the consumer
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest report, or null if the queue is empty
+     */
+    public T poll() {
+        while (true) {
+            final long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            final T report = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                return report;
+            }
+        }
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
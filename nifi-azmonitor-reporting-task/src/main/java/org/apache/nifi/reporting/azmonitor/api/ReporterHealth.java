@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.nifi.reporting.azmonitor.metrics.LatencyHistogram;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.BYTES_ENCODED;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.HTTP_RESPONSES;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PHASE_DIMENSIONS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PHASE_DURATION;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PHASE_DURATION_P50;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.OVERFLOWED_REPORTS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.PHASE_DURATION_P99;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.QUEUED_REPORTS;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.RETRIES;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.SERIES_EMITTED;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.SKIPPED_SERIES;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.SPOOL_DEPTH;
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.STATUS_DIMENSIONS;
+
+/**
+ * Timings and counters of the reporting task itself, reported in the
+ * {@value AzMonitorMetricsFactory#REPORTER_HEALTH_NAMESPACE} namespace.
+ * <p>
+ * Phase durations are recorded into {@link LatencyHistogram}s and counters into atomics, from the reporting
+ * thread and the dispatcher thread alike, without allocating. Each report drains what was recorded since
+ * the previous one: one row per phase with the Min, Max, Sum and Count of its durations in milliseconds,
+ * the 50th and 99th percentile per phase, and the counters as deltas. Phases that end after the rows
+ * were collected, such as encoding and publishing the report itself, show up in the next report.
+ */
+public class ReporterHealth {
+
+    public enum Phase {
+        /** Collecting and preparing the series of a report. */
+        COLLECT("Collect"),
+        /** Waiting in the queue for the publisher thread. */
+        QUEUE("Queue"),
+        /** Encoding a report into payloads. */
+        ENCODE("Encode"),
+        /** Waiting for the bearer token before a request. */
+        TOKEN("Token"),
+        /** A single request to Azure Monitor, from sending it to its response. */
+        PUBLISH("Publish"),
+        /** A whole report, from the start of collecting until the last of its payloads is done. */
+        REPORT("Report");
+
+        private final String dimension;
+
+        Phase(String dimension) {
+            this.dimension = dimension;
+        }
+
+        public String getDimension() {
+            return dimension;
+        }
+    }
+
+    // index of requests that failed without a response
+    private static final int TRANSPORT_ERROR = 0;
+    private static final int MAX_STATUS = 600;
+    private static final Phase[] PHASES = Phase.values();
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    private final long[] phaseKeys = new long[PHASES.length];
+    private final String[][] phaseDims = new String[PHASES.length][];
+    private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS);
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private final AtomicLong seriesEmitted = new AtomicLong();
+    private final AtomicLong seriesSkipped = new AtomicLong();
+    private final AtomicLong overflowedReports = new AtomicLong();
+
+    // only used by collect, which runs on the reporting thread
+    private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+    private final long[] statusKeys = new long[MAX_STATUS];
+    private final String[][] statusDims = new String[MAX_STATUS][];
+
+    public ReporterHealth() {
+        for (Phase phase : PHASES) {
+            histograms[phase.ordinal()] = new LatencyHistogram();
+            phaseKeys[phase.ordinal()] = SeriesKeys.component("phase:" + phase.getDimension());
+            phaseDims[phase.ordinal()] = new String[]{phase.getDimension()};
+        }
+    }
+
+    public void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    public void recordResponse(int statusCode) {
+        statusCounts.incrementAndGet(statusCode > 0 && statusCode < MAX_STATUS ? statusCode : TRANSPORT_ERROR);
+    }
+
+    public void recordTransportError() {
+        statusCounts.incrementAndGet(TRANSPORT_ERROR);
+    }
+
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public void recordEncoded(long bytes) {
+        bytesEncoded.addAndGet(bytes);
+    }
+
+    public void recordSeries(long series) {
+        seriesEmitted.addAndGet(series);
+    }
+
+    public void recordSkipped(long series) {
+        seriesSkipped.addAndGet(series);
+    }
+
+    public void recordOverflow() {
+        overflowedReports.incrementAndGet();
+    }
+
+    /**
+     * Appends the rows of everything recorded since the previous call to {@code batch}.
+     *
+     * @param spoolDepth    number of reports waiting in the spool, or -1 if there is none
+     * @param queuedReports number of reports waiting for the publisher thread
+     */
+    public void collect(MetricBatch batch, long spoolDepth, int queuedReports) {
+        for (Phase phase : PHASES) {
+            final int p = phase.ordinal();
+            histograms[p].drainTo(snapshot);
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            batch.add(PHASE_DURATION.getId(), phaseKeys[p], PHASE_DIMENSIONS, phaseDims[p],
+                    millis(snapshot.getMin()), millis(snapshot.getMax()), millis(snapshot.getSum()), snapshot.getCount());
+            batch.add(PHASE_DURATION_P50.getId(), phaseKeys[p], PHASE_DIMENSIONS, phaseDims[p], millis(snapshot.valueAt(50)));
+            batch.add(PHASE_DURATION_P99.getId(), phaseKeys[p], PHASE_DIMENSIONS, phaseDims[p], millis(snapshot.valueAt(99)));
+        }
+
+        for (int status = 0; status < MAX_STATUS; status++) {
+            if (statusCounts.get(status) == 0) {
+                continue;
+            }
+            final long count = statusCounts.getAndSet(status, 0);
+            if (statusDims[status] == null) {
+                final String code = status == TRANSPORT_ERROR ? "Error" : String.valueOf(status);
+                statusKeys[status] = SeriesKeys.component("status:" + code);
+                statusDims[status] = new String[]{code};
+            }
+            batch.add(HTTP_RESPONSES.getId(), statusKeys[status], STATUS_DIMENSIONS, statusDims[status], count);
+        }
+
+        batch.add(RETRIES.getId(), retries.getAndSet(0));
+        batch.add(BYTES_ENCODED.getId(), bytesEncoded.getAndSet(0));
+        batch.add(SERIES_EMITTED.getId(), seriesEmitted.getAndSet(0));
+        batch.add(SKIPPED_SERIES.getId(), seriesSkipped.getAndSet(0));
+        if (spoolDepth >= 0) {
+            batch.add(SPOOL_DEPTH.getId(), spoolDepth);
+        }
+        batch.add(QUEUED_REPORTS.getId(), queuedReports);
+        batch.add(OVERFLOWED_REPORTS.getId(), overflowedReports.getAndSet(0));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
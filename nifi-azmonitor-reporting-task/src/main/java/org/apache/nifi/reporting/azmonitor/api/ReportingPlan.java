@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a reporting task reports and where to, resolved from its properties once when it is scheduled:
+ * expression language is evaluated, group id lists are split, endpoints are built and filters compiled.
+ * Reports only read the plan. Immutable.
+ */
+public final class ReportingPlan {
+
+    private final String authority;
+    private final List<Route> routes;
+    private final Set<String> routedGroupIds;
+    private final String instanceId;
+    private final boolean[] enabledMetrics;
+    private final ComponentFilter componentFilter;
+    private final DerivedMetrics derivedMetrics;
+
+    /**
+     * An Azure resource the series of some process groups are sent to, with the credentials to send them.
+     */
+    public static final class Route {
+
+        private final String name;
+        private final List<String> groupIds;
+        private final String endpoint;
+        private final String subject;
+        private final String tenantId;
+        private final String clientId;
+        private final String clientSecret;
+
+        /**
+         * @param groupIds ids of the process groups sent to this route; for the default route, empty for
+         *                 the whole flow
+         * @param endpoint the metrics endpoint including the subject
+         */
+        public Route(String name, List<String> groupIds, String endpoint, String subject, String tenantId,
+                     String clientId, String clientSecret) {
+            this.name = name;
+            this.groupIds = Collections.unmodifiableList(groupIds);
+            this.endpoint = endpoint;
+            this.subject = subject;
+            this.tenantId = tenantId;
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getGroupIds() {
+            return groupIds;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getClientSecret() {
+            return clientSecret;
+        }
+    }
+
+    /**
+     * @param routes         the default route first, then the routed destinations
+     * @param enabledMetrics flags indexed by metric id of the process group and component metrics to send,
+     *                       or null for all
+     * @param derivedMetrics the derived metrics to send, bound and registered
+     */
+    public ReportingPlan(String authority, List<Route> routes, String instanceId, boolean[] enabledMetrics,
+                         ComponentFilter componentFilter, DerivedMetrics derivedMetrics) {
+        this.authority = authority;
+        this.routes = Collections.unmodifiableList(routes);
+        final Set<String> routed = new HashSet<>();
+        for (Route route : routes.subList(1, routes.size())) {
+            routed.addAll(route.getGroupIds());
+        }
+        this.routedGroupIds = Collections.unmodifiableSet(routed);
+        this.instanceId = instanceId;
+        this.enabledMetrics = enabledMetrics == null ? null : enabledMetrics.clone();
+        this.componentFilter = componentFilter;
+        this.derivedMetrics = derivedMetrics;
+    }
+
+    public String getAuthority() {
+        return authority;
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return the ids of the process groups sent to other routes than the default one
+     */
+    public Set<String> getRoutedGroupIds() {
+        return routedGroupIds;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return flags indexed by metric id of the process group and component metrics to send, or null for
+     * all; shared, so not to be modified
+     */
+    public boolean[] getEnabledMetrics() {
+        return enabledMetrics;
+    }
+
+    public ComponentFilter getComponentFilter() {
+        return componentFilter;
+    }
+
+    public DerivedMetrics getDerivedMetrics() {
+        return derivedMetrics;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * Serves the latest report to scrapers over HTTP: {@value #PROMETHEUS_PATH} in the Prometheus text format
+ * and {@value #NDJSON_PATH} as the NDJSON sent to Azure Monitor.
+ * <p>
+ * Each report is rendered once into read-only direct buffers by {@link #publish}; a scrape only writes a
+ * retained duplicate of them to the socket, so scraping, however often, neither collects status nor
+ * serializes anything. Snapshots are replaced and released on the server's single event loop thread, the
+ * same one that serves the requests, so a request never sees a released snapshot, and a response that
+ * is still being written keeps its snapshot alive.
+ */
+public class ScrapeServer implements Closeable {
+
+    public static final String PROMETHEUS_PATH = "/metrics";
+    public static final String NDJSON_PATH = "/metrics/ndjson";
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+    // only used by the event loop
+    private ByteBuf prometheus = Unpooled.EMPTY_BUFFER;
+    private ByteBuf ndjson = Unpooled.EMPTY_BUFFER;
+
+    /**
+     * Starts listening.
+     *
+     * @param host the address to bind to, or null for all
+     * @throws IOException if the port cannot be bound
+     */
+    public ScrapeServer(String host, int port) throws IOException {
+        final boolean epoll = Epoll.isAvailable();
+        group = epoll
+                ? new EpollEventLoopGroup(1, AzureTokenManager.daemonThreads("AzMonitor-Scrape"))
+                : new NioEventLoopGroup(1, AzureTokenManager.daemonThreads("AzMonitor-Scrape"));
+        final ChannelFuture bound = new ServerBootstrap()
+                .group(group)
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec(), new ScrapeHandler());
+                    }
+                })
+                .bind(host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port))
+                .awaitUninterruptibly();
+        if (!bound.isSuccess()) {
+            group.shutdownGracefully(0, SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            throw new IOException("Failed listening on port " + port, bound.cause());
+        }
+        channel = bound.channel();
+    }
+
+    /**
+     * @return the port the server listens on, e.g. when it was started on port 0
+     */
+    public int getPort() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * Makes the rendered report the one served from now on. The bytes are copied, so the buffers can be
+     * reused right away.
+     */
+    public void publish(PayloadBuffer prometheusText, PayloadBuffer ndjsonText) {
+        final ByteBuf nextPrometheus = snapshot(prometheusText);
+        final ByteBuf nextNdjson = snapshot(ndjsonText);
+        try {
+            group.execute(() -> {
+                prometheus.release();
+                ndjson.release();
+                prometheus = nextPrometheus;
+                ndjson = nextNdjson;
+            });
+        } catch (RuntimeException e) {
+            // rejected once the server is closed
+            nextPrometheus.release();
+            nextNdjson.release();
+        }
+    }
+
+    private static ByteBuf snapshot(PayloadBuffer content) {
+        final ByteBuf buffer = Unpooled.directBuffer(content.size(), content.size());
+        buffer.writeBytes(content.array(), 0, content.size());
+        return buffer.asReadOnly();
+    }
+
+    private final class ScrapeHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext context, HttpObject message) {
+            if (!(message instanceof HttpRequest)) {
+                // the end of a request or a body, which scrapes don't have
+                return;
+            }
+            final HttpRequest request = (HttpRequest) message;
+            final String path = new QueryStringDecoder(request.uri()).path();
+            final boolean head = HttpMethod.HEAD.equals(request.method());
+            final FullHttpResponse response;
+            if (!head && !HttpMethod.GET.equals(request.method())) {
+                response = status(HttpResponseStatus.METHOD_NOT_ALLOWED);
+                response.headers().set(HttpHeaderNames.ALLOW, "GET, HEAD");
+            } else if (PROMETHEUS_PATH.equals(path)) {
+                response = snapshotResponse(prometheus, PROMETHEUS_CONTENT_TYPE, head);
+            } else if (NDJSON_PATH.equals(path)) {
+                response = snapshotResponse(ndjson, NDJSON_CONTENT_TYPE, head);
+            } else {
+                response = status(HttpResponseStatus.NOT_FOUND);
+            }
+            final boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            final ChannelFuture written = context.writeAndFlush(response);
+            if (!keepAlive) {
+                written.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private FullHttpResponse snapshotResponse(ByteBuf snapshot, String contentType, boolean head) {
+            final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    head ? Unpooled.EMPTY_BUFFER : snapshot.retainedDuplicate());
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            HttpUtil.setContentLength(response, snapshot.readableBytes());
+            return response;
+        }
+
+        private FullHttpResponse status(HttpResponseStatus status) {
+            final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+            HttpUtil.setContentLength(response, 0);
+            return response;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+            // e.g. a scraper that went away; nothing to report
+            context.close();
+        }
+    }
+
+    /**
+     * Stops listening, closes the open connections and releases the snapshot. Closing again has no effect.
+     */
+    @Override
+    public void close() {
+        if (group.isShuttingDown()) {
+            return;
+        }
+        channel.close().awaitUninterruptibly();
+        group.execute(() -> {
+            prometheus.release();
+            ndjson.release();
+            prometheus = Unpooled.EMPTY_BUFFER;
+            ndjson = Unpooled.EMPTY_BUFFER;
+        });
+        group.shutdownGracefully(0, SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).awaitUninterruptibly();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+
+import org.apache.nifi.reporting.azmonitor.metrics.LongIntHashMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Folds repeated samples of the same series into one Min/Max/Sum/Count aggregate per flush window, keeping
+ * the latest sample as well, since a running total is read from its last sample rather than its maximum.
+ * <p>
+ * Series are located by their key in a {@link LongIntHashMap} and accumulated in parallel primitive
+ * arrays, so folding a sample allocates nothing once the flow's series have been seen. Not thread-safe.
+ */
+public class SeriesAggregator {
+
+    private final LongIntHashMap slots;
+    private int size;
+    private int[] metricIds;
+    private long[] keys;
+    private long[] components;
+    private String[][] dimNames;
+    private String[][] dimValues;
+    private double[] min;
+    private double[] max;
+    private double[] sum;
+    private long[] count;
+    private double[] last;
+
+    public SeriesAggregator(int expectedSeries) {
+        slots = new LongIntHashMap(expectedSeries);
+        metricIds = new int[expectedSeries];
+        keys = new long[expectedSeries];
+        components = new long[expectedSeries];
+        dimNames = new String[expectedSeries][];
+        dimValues = new String[expectedSeries][];
+        min = new double[expectedSeries];
+        max = new double[expectedSeries];
+        sum = new double[expectedSeries];
+        count = new long[expectedSeries];
+        last = new double[expectedSeries];
+    }
+
+    /**
+     * Adds every row of the sample to the aggregate of its series. Samples must be folded in the order they were taken.
+     */
+    public void fold(MetricBatch sample) {
+        for (int row = 0; row < sample.size(); row++) {
+            final long key = sample.key(row);
+            int slot = slots.get(key);
+            if (slot == LongIntHashMap.MISSING) {
+                slot = newSlot(key, sample, row);
+                min[slot] = sample.min(row);
+                max[slot] = sample.max(row);
+                sum[slot] = sample.sum(row);
+                count[slot] = sample.count(row);
+                last[slot] = sample.last(row);
+            } else {
+                min[slot] = Math.min(min[slot], sample.min(row));
+                max[slot] = Math.max(max[slot], sample.max(row));
+                sum[slot] += sample.sum(row);
+                count[slot] += sample.count(row);
+                last[slot] = sample.last(row);
+                // keep the latest names, e.g. after a component was renamed
+                dimValues[slot] = sample.dimValues(row);
+            }
+        }
+    }
+
+    private int newSlot(long key, MetricBatch sample, int row) {
+        if (size == keys.length) {
+            final int capacity = Math.max(16, size << 1);
+            metricIds = Arrays.copyOf(metricIds, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            components = Arrays.copyOf(components, capacity);
+            dimNames = Arrays.copyOf(dimNames, capacity);
+            dimValues = Arrays.copyOf(dimValues, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            sum = Arrays.copyOf(sum, capacity);
+            count = Arrays.copyOf(count, capacity);
+            last = Arrays.copyOf(last, capacity);
+        }
+        final int slot = size++;
+        slots.put(key, slot);
+        metricIds[slot] = sample.metricId(row);
+        keys[slot] = key;
+        components[slot] = sample.component(row);
+        dimNames[slot] = sample.dimNames(row);
+        dimValues[slot] = sample.dimValues(row);
+        return slot;
+    }
+
+    /**
+     * Appends one row per aggregated series to {@code target} and starts a new window.
+     * Series that are not sampled again are forgotten.
+     */
+    public void drain(MetricBatch target) {
+        for (int slot = 0; slot < size; slot++) {
+            target.addKeyed(metricIds[slot], components[slot], keys[slot], dimNames[slot], dimValues[slot],
+                    min[slot], max[slot], sum[slot], count[slot], last[slot]);
+        }
+        Arrays.fill(dimNames, 0, size, null);
+        Arrays.fill(dimValues, 0, size, null);
+        slots.clear();
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
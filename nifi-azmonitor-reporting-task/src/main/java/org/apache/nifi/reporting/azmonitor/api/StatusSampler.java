@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Samples status at a sub-interval of the reporting schedule and pre-aggregates the samples, so that
+ * each report carries the real Min/Max/Sum/Count of every series over the window instead of one
+ * point-in-time value.
+ * <p>
+ * Samples can be split into partitions, e.g. one per destination, which are aggregated separately but
+ * collected by one callback, so the status is fetched once per sample for all of them.
+ * <p>
+ * Sampling runs on one daemon thread. The collection callback is only ever invoked by one thread at a
+ * time, so it may share collectors with the reporting thread as long as it goes through this sampler.
+ */
+public class StatusSampler implements AutoCloseable {
+
+    private final Consumer<MetricBatch[]> collector;
+    private final ComponentLog logger;
+    private final ScheduledExecutorService scheduler;
+    private final MetricBatch[] samples;
+    private final SeriesAggregator[] aggregators;
+
+    /**
+     * @param collector appends the current value of every series to the batch it is given
+     */
+    public StatusSampler(Consumer<MetricBatch> collector, ComponentLog logger) {
+        this(1, samples -> collector.accept(samples[0]), logger);
+    }
+
+    /**
+     * @param partitions number of separately aggregated partitions
+     * @param collector  appends the current value of every series to the batch of its partition
+     */
+    public StatusSampler(int partitions, Consumer<MetricBatch[]> collector, ComponentLog logger) {
+        this.collector = collector;
+        this.logger = logger;
+        this.samples = new MetricBatch[partitions];
+        this.aggregators = new SeriesAggregator[partitions];
+        for (int p = 0; p < partitions; p++) {
+            samples[p] = new MetricBatch(1024);
+            aggregators[p] = new SeriesAggregator(1024);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(AzureTokenManager.daemonThreads("AzMonitor-Sampler"));
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sample();
+            } catch (Exception e) {
+                logger.warn("Failed sampling Nifi-metrics due to {}", new Object[]{e});
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes one sample now and folds it into the current window. The samples carry the time they were taken at,
+     * which collectors that keep per-report state go by.
+     */
+    public synchronized void sample() {
+        final String time = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(OffsetDateTime.now(ZoneOffset.UTC));
+        for (MetricBatch sample : samples) {
+            sample.clear(time);
+        }
+        collector.accept(samples);
+        for (int p = 0; p < samples.length; p++) {
+            aggregators[p].fold(samples[p]);
+        }
+    }
+
+    /**
+     * Takes a final sample, then moves the window's aggregates into {@code target} and starts a new window.
+     */
+    public synchronized void flush(MetricBatch target) {
+        flush(new MetricBatch[]{target});
+    }
+
+    /**
+     * Takes a final sample, then moves the window's aggregates of each partition into the target of the same
+     * index and starts a new window.
+     */
+    public synchronized void flush(MetricBatch[] targets) {
+        if (targets.length != aggregators.length) {
+            throw new IllegalArgumentException("Expected " + aggregators.length + " targets but got " + targets.length);
+        }
+        sample();
+        for (int p = 0; p < targets.length; p++) {
+            aggregators[p].drain(targets[p]);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
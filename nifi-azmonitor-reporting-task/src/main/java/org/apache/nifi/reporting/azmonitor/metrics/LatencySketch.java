@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Compact sketch of non-negative values, e.g. the latencies of one component, for estimating percentiles
+ * with a bounded relative error. Not thread-safe.
+ * <p>
+ * Values are bucketed like in {@link LatencyHistogram}, at most 12.5% apart, but only the range of buckets
+ * between the smallest and largest value is stored, in at most {@value #MAX_BUCKETS} counters. That spans
+ * 16 powers of two, e.g. 1 ms to 65 s. When a wider range is seen, the lowest buckets are folded
+ * together, as DDSketch does, so the upper percentiles keep their accuracy. Min, max, sum and count are
+ * kept exactly. Values may carry a weight, e.g. when only every n-th value is recorded.
+ */
+public class LatencySketch {
+
+    static final int MAX_BUCKETS = 16 * LatencyHistogram.SUB_BUCKETS;
+    static final int INITIAL_BUCKETS = 16;
+
+    private long[] counts = new long[INITIAL_BUCKETS];
+    // bucket of counts[0] and the number of counters in use
+    private int offset;
+    private int length;
+    private long count;
+    private double sum;
+    private long min;
+    private long max;
+
+    public void add(long value, long weight) {
+        final long v = Math.max(0, value);
+        // may grow the counters, so before indexing them
+        final int slot = slot(LatencyHistogram.bucket(v));
+        counts[slot] += weight;
+        if (count == 0) {
+            min = v;
+            max = v;
+        } else {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        count += weight;
+        sum += (double) v * weight;
+    }
+
+    private int slot(int bucket) {
+        if (length == 0) {
+            offset = bucket;
+            length = 1;
+            return 0;
+        }
+        if (bucket < offset) {
+            final int grow = offset - bucket;
+            if (length + grow > MAX_BUCKETS) {
+                // below the kept range: counted in its lowest bucket
+                return 0;
+            }
+            ensureCapacity(length + grow);
+            System.arraycopy(counts, 0, counts, grow, length);
+            Arrays.fill(counts, 0, grow, 0);
+            offset = bucket;
+            length += grow;
+            return 0;
+        }
+        int index = bucket - offset;
+        if (index >= length) {
+            if (index >= MAX_BUCKETS) {
+                collapse(index - MAX_BUCKETS + 1);
+                index = MAX_BUCKETS - 1;
+            }
+            ensureCapacity(index + 1);
+            length = index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Folds the lowest {@code buckets} buckets into the one above them.
+     */
+    private void collapse(int buckets) {
+        long folded = 0;
+        for (int i = 0; i < Math.min(buckets, length); i++) {
+            folded += counts[i];
+        }
+        if (buckets < length) {
+            System.arraycopy(counts, buckets, counts, 0, length - buckets);
+            Arrays.fill(counts, length - buckets, length, 0);
+            counts[0] += folded;
+            length -= buckets;
+        } else {
+            Arrays.fill(counts, 0, length, 0);
+            counts[0] = folded;
+            length = 1;
+        }
+        offset += buckets;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > counts.length) {
+            counts = Arrays.copyOf(counts, Math.min(MAX_BUCKETS, Math.max(capacity, counts.length << 1)));
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the value at the percentile, within min and max, or 0
+     * if the sketch is empty
+     */
+    public long valueAt(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, LatencyHistogram.upperBound(offset + i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Empties the sketch, keeping its counters for reuse.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0, length, 0);
+        length = 0;
+        count = 0;
+        sum = 0;
+    }
+}
@@ -6,5 +6,6 @@ public class MetricBaseData
 {
     public String Metric;
     public String Namespace;
+    public List<String> DimNames;
     public List<MetricSeries> Series;
 }
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Column-oriented, reusable set of metric series for one report.
+ * <p>
+ * Each row is one series of the metric identified by its {@link MetricDescriptor} id, with the
+ * aggregate held in parallel primitive arrays, its {@link SeriesKeys series key} and the key of the component it belongs to.
+ * Besides Min/Max/Sum/Count the aggregate keeps the last sample, which is the current reading of a running total;
+ * rows added without one take their maximum as the last sample.
+ * Rows may carry dimensions; the names array is
+ * shared by all rows of a component type and the values array by all rows of a component. {@link #clear(String)} keeps the arrays, so a batch
+ * that is reused between reports stops allocating once it has grown to the flow's size.
+ */
+public class MetricBatch {
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private String time;
+    private int size;
+    private int[] metricIds;
+    private long[] keys;
+    private long[] components;
+    private double[] min;
+    private double[] max;
+    private double[] sum;
+    private long[] count;
+    private double[] last;
+    private String[][] dimNames;
+    private String[][] dimValues;
+
+    public MetricBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MetricBatch(int capacity) {
+        metricIds = new int[capacity];
+        keys = new long[capacity];
+        components = new long[capacity];
+        min = new double[capacity];
+        max = new double[capacity];
+        sum = new double[capacity];
+        count = new long[capacity];
+        last = new double[capacity];
+        dimNames = new String[capacity][];
+        dimValues = new String[capacity][];
+    }
+
+    /**
+     * Empties the batch for a new report.
+     *
+     * @param time ISO-8601 timestamp shared by all rows of the report
+     */
+    public void clear(String time) {
+        this.time = time;
+        // drop references to the previous report's components
+        Arrays.fill(dimNames, 0, size, null);
+        Arrays.fill(dimValues, 0, size, null);
+        this.size = 0;
+    }
+
+    /**
+     * Adds a series holding a single sample.
+     */
+    public int add(int metricId, double value) {
+        return add(metricId, value, value, value, 1);
+    }
+
+    public int add(int metricId, double min, double max, double sum, long count) {
+        return add(metricId, 0, null, null, min, max, sum, count);
+    }
+
+    /**
+     * Adds a series of a component holding a single sample.
+     *
+     * @param componentKey {@link SeriesKeys#component key} of the component the series belongs to
+     */
+    public int add(int metricId, long componentKey, String[] dimNames, String[] dimValues, double value) {
+        return add(metricId, componentKey, dimNames, dimValues, value, value, value, 1);
+    }
+
+    public int add(int metricId, long componentKey, String[] dimNames, String[] dimValues,
+                   double min, double max, double sum, long count) {
+        return addKeyed(metricId, componentKey, SeriesKeys.series(componentKey, metricId), dimNames, dimValues,
+                min, max, sum, count);
+    }
+
+    /**
+     * Adds a row whose series key has already been derived, e.g. when copying from other per-series state.
+     */
+    public int addKeyed(int metricId, long componentKey, long seriesKey, String[] dimNames, String[] dimValues,
+                        double min, double max, double sum, long count) {
+        return addKeyed(metricId, componentKey, seriesKey, dimNames, dimValues, min, max, sum, count, max);
+    }
+
+    /**
+     * Like {@link #addKeyed(int, long, long, String[], String[], double, double, double, long)}, for an aggregate
+     * whose last sample is known, e.g. one folded from several samples.
+     */
+    public int addKeyed(int metricId, long componentKey, long seriesKey, String[] dimNames, String[] dimValues,
+                        double min, double max, double sum, long count, double last) {
+        if (size == metricIds.length) {
+            grow(size + 1);
+        }
+        final int row = size++;
+        this.metricIds[row] = metricId;
+        this.keys[row] = seriesKey;
+        this.components[row] = componentKey;
+        this.dimNames[row] = dimNames;
+        this.dimValues[row] = dimValues;
+        this.min[row] = min;
+        this.max[row] = max;
+        this.sum[row] = sum;
+        this.count[row] = count;
+        this.last[row] = last;
+        return row;
+    }
+
+    /**
+     * Appends all rows of another batch, keeping this batch's time.
+     */
+    public void addAll(MetricBatch other) {
+        final int total = size + other.size;
+        if (total > metricIds.length) {
+            grow(total);
+        }
+        System.arraycopy(other.metricIds, 0, metricIds, size, other.size);
+        System.arraycopy(other.keys, 0, keys, size, other.size);
+        System.arraycopy(other.components, 0, components, size, other.size);
+        System.arraycopy(other.dimNames, 0, dimNames, size, other.size);
+        System.arraycopy(other.dimValues, 0, dimValues, size, other.size);
+        System.arraycopy(other.min, 0, min, size, other.size);
+        System.arraycopy(other.max, 0, max, size, other.size);
+        System.arraycopy(other.sum, 0, sum, size, other.size);
+        System.arraycopy(other.count, 0, count, size, other.size);
+        System.arraycopy(other.last, 0, last, size, other.size);
+        size = total;
+    }
+
+    /**
+     * Replaces the aggregate of a row, taking its maximum as the last sample.
+     */
+    public void set(int row, double min, double max, double sum, long count) {
+        this.min[row] = min;
+        this.max[row] = max;
+        this.sum[row] = sum;
+        this.count[row] = count;
+        this.last[row] = max;
+    }
+
+    /**
+     * Overwrites row {@code to} with row {@code from}, for compacting the batch in place.
+     */
+    public void copyRow(int from, int to) {
+        metricIds[to] = metricIds[from];
+        keys[to] = keys[from];
+        components[to] = components[from];
+        dimNames[to] = dimNames[from];
+        dimValues[to] = dimValues[from];
+        min[to] = min[from];
+        max[to] = max[from];
+        sum[to] = sum[from];
+        count[to] = count[from];
+        last[to] = last[from];
+    }
+
+    /**
+     * Drops all rows from {@code newSize} on.
+     */
+    public void truncate(int newSize) {
+        Arrays.fill(dimNames, newSize, size, null);
+        Arrays.fill(dimValues, newSize, size, null);
+        size = newSize;
+    }
+
+    private void grow(int minCapacity) {
+        final int capacity = Math.max(minCapacity, metricIds.length << 1);
+        metricIds = Arrays.copyOf(metricIds, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        components = Arrays.copyOf(components, capacity);
+        dimNames = Arrays.copyOf(dimNames, capacity);
+        dimValues = Arrays.copyOf(dimValues, capacity);
+        min = Arrays.copyOf(min, capacity);
+        max = Arrays.copyOf(max, capacity);
+        sum = Arrays.copyOf(sum, capacity);
+        count = Arrays.copyOf(count, capacity);
+        last = Arrays.copyOf(last, capacity);
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int metricId(int row) {
+        return metricIds[row];
+    }
+
+    public long key(int row) {
+        return keys[row];
+    }
+
+    /**
+     * @return the {@link SeriesKeys#component key} of the component the row belongs to, or 0 for global series
+     */
+    public long component(int row) {
+        return components[row];
+    }
+
+    /**
+     * @return the dimension names of the row, or null if it has none
+     */
+    public String[] dimNames(int row) {
+        return dimNames[row];
+    }
+
+    public String[] dimValues(int row) {
+        return dimValues[row];
+    }
+
+    public double min(int row) {
+        return min[row];
+    }
+
+    public double max(int row) {
+        return max[row];
+    }
+
+    public double sum(int row) {
+        return sum[row];
+    }
+
+    public long count(int row) {
+        return count[row];
+    }
+
+    /**
+     * @return the latest sample of the row's aggregate
+     */
+    public double last(int row) {
+        return last[row];
+    }
+}
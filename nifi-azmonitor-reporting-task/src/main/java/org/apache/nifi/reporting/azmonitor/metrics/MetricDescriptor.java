@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Describes one metric: its name, namespace and how to read its value from a status object.
+ * Descriptors are created through {@link MetricRegistry#register} which assigns the id used
+ * to key {@link MetricBatch} rows.
+ * <p>
+ * A cumulative descriptor reads a counter-like value (a running or rolling-window total) rather than
+ * a gauge, and has a companion descriptor for its per-second rate. A derived descriptor is registered
+ * when a reporting task is scheduled, for a gauge computed from other values rather than extracted.
+ *
+ * @param <T> the status type the value is extracted from
+ */
+public final class MetricDescriptor<T> {
+
+    private final int id;
+    private final String name;
+    private final String namespace;
+    private final ToLongFunction<T> extractor;
+    private final boolean cumulative;
+    private final boolean derived;
+    private int rateId = -1;
+
+    MetricDescriptor(int id, String name, String namespace, ToLongFunction<T> extractor, boolean cumulative, boolean derived) {
+        this.id = id;
+        this.name = name;
+        this.namespace = namespace;
+        this.extractor = extractor;
+        this.cumulative = cumulative;
+        this.derived = derived;
+    }
+
+    void setRateId(int rateId) {
+        this.rateId = rateId;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public boolean isCumulative() {
+        return cumulative;
+    }
+
+    public boolean isDerived() {
+        return derived;
+    }
+
+    /**
+     * @return id of the per-second rate descriptor of a cumulative metric, or -1
+     */
+    public int getRateId() {
+        return rateId;
+    }
+
+    public long extract(T status) {
+        return extractor.applyAsLong(status);
+    }
+
+    @Override
+    public String toString() {
+        return namespace + "/" + name;
+    }
+}
@@ -43,13 +43,62 @@ public interface MetricNames {
     String OUTPUT_COUNT = "OutputCount";
     String INPUT_COUNT = "InputCount";
     String QUEUED_COUNT = "QueuedCount";
+    String INVOCATIONS = "Invocations";
+    String FLOW_FILES_REMOVED = "FlowFilesRemoved";
+
+    // Status fields only read by derived metrics
+    String BACK_PRESSURE_OBJECT_THRESHOLD = "BackPressureObjectThreshold";
+    String BACK_PRESSURE_BYTES_THRESHOLD = "BackPressureBytesThreshold";
+    String TERMINATED_THREADS = "TerminatedThreads";
+    String AVERAGE_LINEAGE_DURATION = "AverageLineageDurationMillis";
+
+    // Provenance latencies
+    String PROCESSING_LATENCY = "ProcessingLatencyMillis";
+    String PROCESSING_LATENCY_P50 = "ProcessingLatencyP50Millis";
+    String PROCESSING_LATENCY_P95 = "ProcessingLatencyP95Millis";
+    String PROCESSING_LATENCY_P99 = "ProcessingLatencyP99Millis";
+    String LINEAGE_LATENCY = "LineageLatencyMillis";
+    String LINEAGE_LATENCY_P50 = "LineageLatencyP50Millis";
+    String LINEAGE_LATENCY_P95 = "LineageLatencyP95Millis";
+    String LINEAGE_LATENCY_P99 = "LineageLatencyP99Millis";
+
+    // Reporter health
+    String REPORTED_SERIES = "ReportedSeries";
+    String DROPPED_SERIES = "DroppedSeries";
+    String SUPPRESSED_SERIES = "SuppressedSeries";
+    String PHASE_DURATION = "PhaseDurationMillis";
+    String PHASE_DURATION_P50 = "PhaseDurationP50Millis";
+    String PHASE_DURATION_P99 = "PhaseDurationP99Millis";
+    String HTTP_RESPONSES = "HttpResponses";
+    String RETRIES = "Retries";
+    String BYTES_ENCODED = "BytesEncoded";
+    String SERIES_EMITTED = "SeriesEmitted";
+    String SKIPPED_SERIES = "SkippedSeries";
+    String SPOOL_DEPTH = "SpoolDepth";
+    String QUEUED_REPORTS = "QueuedReports";
+    String OVERFLOWED_REPORTS = "OverflowedReports";
+    String PROVENANCE_EVENTS = "ProvenanceEventsRead";
+    String PROVENANCE_LAG = "ProvenanceLag";
+    String PROVENANCE_SAMPLE_INTERVAL = "ProvenanceSampleInterval";
+
+    // Dimension names
+    String DIM_COMPONENT_NAME = "ComponentName";
+    String DIM_COMPONENT_TYPE = "ComponentType";
+    String DIM_COMPONENT_ID = "ComponentId";
+    String DIM_PARENT_GROUP = "ParentGroup";
+    String DIM_GARBAGE_COLLECTOR = "GarbageCollector";
+    String DIM_PHASE = "Phase";
+    String DIM_STATUS_CODE = "StatusCode";
+    String DIM_NODE = "Node";
 
     // JVM Metrics
     String JVM_UPTIME = "jvm.uptime";
     String JVM_HEAP_USED = "jvm.heap_used";
     String JVM_HEAP_USAGE = "jvm.heap_usage";
     String JVM_NON_HEAP_USAGE = "jvm.non_heap_usage";
+    String JVM_THREAD_STATES_NEW = "jvm.thread_states.new";
     String JVM_THREAD_STATES_RUNNABLE = "jvm.thread_states.runnable";
+    String JVM_THREAD_STATES_WAITING = "jvm.thread_states.waiting";
     String JVM_THREAD_STATES_BLOCKED = "jvm.thread_states.blocked";
     String JVM_THREAD_STATES_TIMED_WAITING = "jvm.thread_states.timed_waiting";
     String JVM_THREAD_STATES_TERMINATED = "jvm.thread_states.terminated";
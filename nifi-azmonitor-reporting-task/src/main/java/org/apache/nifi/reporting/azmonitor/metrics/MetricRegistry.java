@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * Global table of {@link MetricDescriptor}s, indexed by the dense id assigned at registration.
+ * Descriptors are registered from static initializers, except for derived metrics, which are registered
+ * when a reporting task is scheduled. The table is copied on registration, so lookups need no locking.
+ * <p>
+ * A name and namespace has one id: registering them again, e.g. for another status type with its own
+ * extractor, returns a descriptor sharing the id of the first registration, so the same series in Azure
+ * Monitor is keyed the same way whatever component reported it.
+ */
+public final class MetricRegistry {
+
+    private static volatile MetricDescriptor<?>[] descriptors = new MetricDescriptor<?>[0];
+
+    private MetricRegistry() {
+    }
+
+    static final String RATE_SUFFIX = "PerSecond";
+
+    /**
+     * Registers a gauge.
+     */
+    public static synchronized <T> MetricDescriptor<T> register(String name, String namespace, ToLongFunction<T> extractor) {
+        final MetricDescriptor<?> registered = find(name, namespace, false);
+        if (registered != null) {
+            return share(registered, extractor, false);
+        }
+        return add(new MetricDescriptor<>(descriptors.length, name, namespace, extractor, false, false));
+    }
+
+    /**
+     * Registers a cumulative metric together with its {@code <name>PerSecond} rate descriptor.
+     */
+    public static synchronized <T> MetricDescriptor<T> registerCounter(String name, String namespace, ToLongFunction<T> extractor) {
+        final MetricDescriptor<?> registered = find(name, namespace, false);
+        if (registered != null) {
+            return share(registered, extractor, true);
+        }
+        final MetricDescriptor<T> descriptor = add(new MetricDescriptor<>(descriptors.length, name, namespace, extractor, true, false));
+        final MetricDescriptor<T> rate = add(new MetricDescriptor<>(descriptors.length, name + RATE_SUFFIX, namespace, null, false, false));
+        descriptor.setRateId(rate.getId());
+        return descriptor;
+    }
+
+    /**
+     * Registers a derived gauge, or returns the one registered before under the same name and namespace, so
+     * scheduling a reporting task again does not use up ids.
+     */
+    public static synchronized MetricDescriptor<?> registerDerived(String name, String namespace) {
+        final MetricDescriptor<?> registered = find(name, namespace, true);
+        if (registered != null) {
+            return registered;
+        }
+        return add(new MetricDescriptor<Void>(descriptors.length, name, namespace, null, false, true));
+    }
+
+    private static MetricDescriptor<?> find(String name, String namespace, boolean derived) {
+        for (MetricDescriptor<?> descriptor : descriptors) {
+            if (descriptor.isDerived() == derived && descriptor.getName().equals(name) && descriptor.getNamespace().equals(namespace)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    private static <T> MetricDescriptor<T> share(MetricDescriptor<?> registered, ToLongFunction<T> extractor, boolean cumulative) {
+        if (registered.isCumulative() != cumulative) {
+            throw new IllegalStateException(registered + " is registered both as a counter and as a gauge");
+        }
+        final MetricDescriptor<T> descriptor = new MetricDescriptor<>(registered.getId(), registered.getName(),
+                registered.getNamespace(), extractor, cumulative, false);
+        descriptor.setRateId(registered.getRateId());
+        return descriptor;
+    }
+
+    private static <T> MetricDescriptor<T> add(MetricDescriptor<T> descriptor) {
+        final MetricDescriptor<?>[] grown = Arrays.copyOf(descriptors, descriptors.length + 1);
+        grown[descriptor.getId()] = descriptor;
+        descriptors = grown;
+        return descriptor;
+    }
+
+    public static MetricDescriptor<?> get(int id) {
+        return descriptors[id];
+    }
+
+    public static int size() {
+        return descriptors.length;
+    }
+}
@@ -1,8 +1,11 @@
 package org.apache.nifi.reporting.azmonitor.metrics;
 
+import java.util.List;
+
 
 public class MetricSeries
 {
+    public List<String> DimValues;
     public double Min;
     public double Max;
     public double Sum;
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+/**
+ * 64-bit series identities, used to key per-series state in primitive hash tables instead of
+ * composite string keys.
+ * <p>
+ * A component key is hashed once from the component id; the key of each of its series is then
+ * derived from it and the metric id without touching the strings again.
+ */
+public final class SeriesKeys {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private SeriesKeys() {
+    }
+
+    /**
+     * @return the key of a component, or 0 for a null id
+     */
+    public static long component(String id) {
+        if (id == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return the key of one metric's series of a component
+     */
+    public static long series(long componentKey, int metricId) {
+        return mix(componentKey ^ ((metricId + 1) * GOLDEN));
+    }
+
+    /**
+     * @return the key of a component combined with extra dimension values such as a node id
+     */
+    public static long combine(long key, long other) {
+        return mix(key ^ Long.rotateLeft(other, 31) ^ GOLDEN);
+    }
+
+    // murmur3 finalizer
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e8b53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
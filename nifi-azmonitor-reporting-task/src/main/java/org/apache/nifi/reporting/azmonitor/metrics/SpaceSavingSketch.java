@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Space-Saving heavy-hitters sketch over {@code long} keys with weighted updates.
+ * <p>
+ * At most {@code capacity} keys are monitored. A key that is not monitored replaces the one with the
+ * smallest weight and inherits that weight as its overestimation error, so any key whose true weight
+ * exceeds {@code total / capacity} is guaranteed to be monitored. The monitored keys are kept in an
+ * indexed min-heap, making an update {@code O(log capacity)}. Not thread-safe.
+ */
+public class SpaceSavingSketch {
+
+    private final int capacity;
+    private final LongIntHashMap slots;
+    private final long[] keys;
+    private final double[] weights;
+    private final double[] errors;
+    // heap of slot indexes ordered by weight, and the heap position of each slot
+    private final int[] heap;
+    private final int[] positions;
+    private int size;
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots = new LongIntHashMap(capacity);
+        this.keys = new long[capacity];
+        this.weights = new double[capacity];
+        this.errors = new double[capacity];
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+    }
+
+    /**
+     * Adds {@code weight} to the key, evicting the lightest monitored key if the key is new and the
+     * sketch is full.
+     */
+    public void offer(long key, double weight) {
+        int slot = slots.get(key);
+        if (slot == LongIntHashMap.MISSING) {
+            if (size < capacity) {
+                slot = size;
+                heap[size] = slot;
+                positions[slot] = size;
+                size++;
+                weights[slot] = 0;
+                errors[slot] = 0;
+                siftUp(positions[slot]);
+            } else {
+                slot = heap[0];
+                slots.remove(keys[slot]);
+                errors[slot] = weights[slot];
+            }
+            keys[slot] = key;
+            slots.put(key, slot);
+        }
+        weights[slot] += weight;
+        siftDown(positions[slot]);
+    }
+
+    /**
+     * Scales all weights, e.g. by a factor below 1 once per report so that the sketch follows
+     * the recent heavy hitters rather than all-time ones. Keeps the heap order.
+     */
+    public void decay(double factor) {
+        for (int slot = 0; slot < size; slot++) {
+            weights[slot] *= factor;
+            errors[slot] *= factor;
+        }
+    }
+
+    /**
+     * @return the estimated weight of the key, an upper bound of its true weight, or 0 if it is not monitored
+     */
+    public double estimate(long key) {
+        final int slot = slots.get(key);
+        return slot == LongIntHashMap.MISSING ? 0 : weights[slot];
+    }
+
+    /**
+     * @return the guaranteed part of the key's weight, i.e. the estimate minus its overestimation error
+     */
+    public double lowerBound(long key) {
+        final int slot = slots.get(key);
+        return slot == LongIntHashMap.MISSING ? 0 : weights[slot] - errors[slot];
+    }
+
+    /**
+     * Puts the keys of the {@code k} heaviest monitored keys into {@code target}, mapped to their rank.
+     *
+     * @param scratch array of at least {@link #capacity()} elements used for ranking
+     * @return the number of keys added
+     */
+    public int top(int k, LongIntHashMap target, double[] scratch) {
+        if (size == 0 || k <= 0) {
+            return 0;
+        }
+        System.arraycopy(weights, 0, scratch, 0, size);
+        Arrays.sort(scratch, 0, size);
+        final int limit = Math.min(k, size);
+        final double threshold = scratch[size - limit];
+        int added = 0;
+        // keys strictly above the threshold first, then fill up with ties
+        for (int slot = 0; slot < size && added < limit; slot++) {
+            if (weights[slot] > threshold) {
+                target.put(keys[slot], added++);
+            }
+        }
+        for (int slot = 0; slot < size && added < limit; slot++) {
+            if (weights[slot] == threshold) {
+                target.put(keys[slot], added++);
+            }
+        }
+        return added;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        slots.clear();
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        final int slot = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if (weights[heap[parent]] <= weights[slot]) {
+                break;
+            }
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(slot, position);
+    }
+
+    private void siftDown(int position) {
+        final int slot = heap[position];
+        while (true) {
+            int child = (position << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && weights[heap[child + 1]] < weights[heap[child]]) {
+                child++;
+            }
+            if (weights[heap[child]] >= weights[slot]) {
+                break;
+            }
+            move(heap[child], position);
+            position = child;
+        }
+        move(slot, position);
+    }
+
+    private void move(int slot, int position) {
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+}
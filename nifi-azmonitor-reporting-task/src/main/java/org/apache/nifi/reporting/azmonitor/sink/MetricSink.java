@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+
+/**
+ * Exports the reports of the reporting task somewhere, e.g. to Azure Monitor or a local file, so one
+ * collection pass feeds several exporters.
+ * <p>
+ * Sinks are discovered with {@link java.util.ServiceLoader}: an implementation is listed in
+ * {@code META-INF/services/org.apache.nifi.reporting.azmonitor.sink.MetricSink} and needs a public no-argument
+ * constructor. Every reporting task loads its own instances, which are opened when the task is scheduled
+ * and closed when it is stopped, possibly several times.
+ * <p>
+ * Each enabled sink is fed by its own publisher thread and report queue, so a slow sink holds back
+ * neither the others nor the collection of the next report.
+ */
+public interface MetricSink extends Closeable {
+
+    /**
+     * @return the name that enables this sink in the Metric Sinks property, e.g. ndjson-file
+     */
+    String getName();
+
+    /**
+     * @return what the sink does, for the documentation of the Metric Sinks property
+     */
+    String getDescription();
+
+    /**
+     * @return properties the sink adds to the reporting task; their names must not clash with those of
+     * the task or other sinks
+     */
+    default List<PropertyDescriptor> getPropertyDescriptors() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Validates the sink's configuration. Only called when the sink is enabled.
+     */
+    default Collection<ValidationResult> validate(ValidationContext context) {
+        return Collections.emptyList();
+    }
+
+    void open(MetricSinkContext context) throws IOException;
+
+    /**
+     * Exports a report, on the sink's publisher thread. The report is reused once this returns, so a sink
+     * that sends asynchronously has to encode or copy what it sends before returning.
+     */
+    void publish(PendingReport report);
+
+    /**
+     * Keeps a report that did not fit into the sink's queue to export it later, on the reporting thread.
+     * By default the report is dropped.
+     */
+    default void spill(PendingReport report) {
+    }
+
+    /**
+     * @return number of records kept to export later, or -1 if the sink keeps none
+     */
+    default long pendingRecords() {
+        return -1;
+    }
+}
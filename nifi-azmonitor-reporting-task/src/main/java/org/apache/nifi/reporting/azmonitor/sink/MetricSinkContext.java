@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.api.ReportingPlan;
+
+/**
+ * What a {@link MetricSink} is opened with: the configuration of the reporting task, including the
+ * properties of the sink, and the plan its reports follow. The batches of a report are in the order of
+ * the plan's routes.
+ */
+public final class MetricSinkContext {
+
+    private final String identifier;
+    private final ConfigurationContext configuration;
+    private final ReportingPlan plan;
+    private final ReporterHealth health;
+    private final ComponentLog logger;
+
+    public MetricSinkContext(String identifier, ConfigurationContext configuration, ReportingPlan plan,
+                             ReporterHealth health, ComponentLog logger) {
+        this.identifier = identifier;
+        this.configuration = configuration;
+        this.plan = plan;
+        this.health = health;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the identifier of the reporting task, e.g. to name the files of a sink
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public ConfigurationContext getConfiguration() {
+        return configuration;
+    }
+
+    public ReportingPlan getPlan() {
+        return plan;
+    }
+
+    public ReporterHealth getHealth() {
+        return health;
+    }
+
+    public ComponentLog getLogger() {
+        return logger;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Discovers the {@link MetricSink}s on the class path.
+ */
+public final class MetricSinks {
+
+    private MetricSinks() {
+    }
+
+    /**
+     * @return new instances of the sinks registered with {@link ServiceLoader}, by name in the order they are
+     * found; of sinks with the same name, the first one wins
+     */
+    public static Map<String, MetricSink> load(ClassLoader classLoader) {
+        final Map<String, MetricSink> sinks = new LinkedHashMap<>();
+        for (MetricSink sink : ServiceLoader.load(MetricSink.class, classLoader)) {
+            sinks.putIfAbsent(sink.getName(), sink);
+        }
+        return Collections.unmodifiableMap(sinks);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.azmonitor.api.NdjsonMetricEncoder;
+import org.apache.nifi.reporting.azmonitor.api.PayloadBuffer;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Appends reports to a local file as the same NDJSON documents that are sent to Azure Monitor, one line per
+ * metric. When the file reaches its maximum size it is rolled over like a log file: {@code <name>.ndjson}
+ * becomes {@code <name>.1.ndjson}, the previous {@code <name>.1.ndjson} becomes {@code <name>.2.ndjson} and so
+ * on, and the oldest file is deleted. Lines are never split across files.
+ */
+public class NdjsonFileSink implements MetricSink {
+
+    public static final String NAME = "ndjson-file";
+
+    static final PropertyDescriptor FILE_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("NDJSON File Directory")
+            .description("Directory the " + NAME + " sink writes to, e.g. ./logs/azmonitor. Each reporting task writes "
+                    + "a file named after its identifier")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    static final PropertyDescriptor FILE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("NDJSON File Max Size")
+            .description("The " + NAME + " sink rolls over to a new file once the current one reaches this size")
+            .required(true)
+            .defaultValue("64 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    static final PropertyDescriptor FILE_MAX_ROLLED = new PropertyDescriptor.Builder()
+            .name("NDJSON Rolled Files")
+            .description("Number of rolled-over files the " + NAME + " sink keeps besides the current one")
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(false);
+    private final PayloadBuffer buffer = new PayloadBuffer(64 * 1024);
+    private ComponentLog logger;
+    private ReporterHealth health;
+    private Path directory;
+    private String name;
+    private long maxBytes;
+    private int maxRolled;
+    private FileChannel channel;
+    private long size;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDescription() {
+        return "appends the metrics as NDJSON to a rolling file in the " + FILE_DIRECTORY.getDisplayName();
+    }
+
+    @Override
+    public List<PropertyDescriptor> getPropertyDescriptors() {
+        return Arrays.asList(FILE_DIRECTORY, FILE_MAX_SIZE, FILE_MAX_ROLLED);
+    }
+
+    @Override
+    public Collection<ValidationResult> validate(ValidationContext context) {
+        if (context.getProperty(FILE_DIRECTORY).isSet()) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new ValidationResult.Builder()
+                .subject(FILE_DIRECTORY.getDisplayName())
+                .valid(false)
+                .explanation("the " + NAME + " sink requires a " + FILE_DIRECTORY.getDisplayName())
+                .build());
+    }
+
+    @Override
+    public synchronized void open(MetricSinkContext context) throws IOException {
+        logger = context.getLogger();
+        health = context.getHealth();
+        directory = Paths.get(context.getConfiguration().getProperty(FILE_DIRECTORY).evaluateAttributeExpressions().getValue());
+        name = context.getIdentifier();
+        maxBytes = context.getConfiguration().getProperty(FILE_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+        maxRolled = context.getConfiguration().getProperty(FILE_MAX_ROLLED).asInteger();
+        Files.createDirectories(directory);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file(0), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * @return the current file for 0, otherwise the rolled-over file of that number
+     */
+    private Path file(int number) {
+        return directory.resolve(number == 0 ? name + ".ndjson" : name + "." + number + ".ndjson");
+    }
+
+    @Override
+    public synchronized void publish(PendingReport report) {
+        if (channel == null) {
+            return;
+        }
+        encoder.setNodeDimension(report.getNode());
+        try {
+            for (MetricBatch batch : report.getBatches()) {
+                encoder.encode(batch, buffer);
+                if (size > 0 && size + buffer.size() > maxBytes) {
+                    roll();
+                }
+                final ByteBuffer bytes = buffer.asByteBuffer();
+                while (bytes.hasRemaining()) {
+                    size += channel.write(bytes);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed writing metrics to {} due to {}", new Object[]{file(0), e});
+        }
+        health.recordSkipped(encoder.takeSkippedSeries());
+    }
+
+    private void roll() throws IOException {
+        channel.close();
+        channel = null;
+        if (maxRolled == 0) {
+            Files.delete(file(0));
+        } else {
+            Files.deleteIfExists(file(maxRolled));
+            for (int number = maxRolled - 1; number >= 0; number--) {
+                if (Files.exists(file(number))) {
+                    Files.move(file(number), file(number + 1), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+        openFile();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
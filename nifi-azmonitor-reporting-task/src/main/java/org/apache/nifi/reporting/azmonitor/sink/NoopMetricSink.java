@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Discards reports after counting them, e.g. to measure collection without exporting anything or to
+ * stand in for a sink in benchmarks.
+ */
+public class NoopMetricSink implements MetricSink {
+
+    public static final String NAME = "noop";
+
+    private final AtomicLong reports = new AtomicLong();
+    private final AtomicLong series = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDescription() {
+        return "discards the reports";
+    }
+
+    @Override
+    public void open(MetricSinkContext context) {
+        reports.set(0);
+        series.set(0);
+    }
+
+    @Override
+    public void publish(PendingReport report) {
+        long rows = 0;
+        for (MetricBatch batch : report.getBatches()) {
+            rows += batch.size();
+        }
+        series.addAndGet(rows);
+        reports.incrementAndGet();
+    }
+
+    /**
+     * @return number of reports published since the sink was opened
+     */
+    public long getReports() {
+        return reports.get();
+    }
+
+    /**
+     * @return number of series published since the sink was opened
+     */
+    public long getSeries() {
+        return series.get();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.azmonitor.api.NdjsonMetricEncoder;
+import org.apache.nifi.reporting.azmonitor.api.PayloadBuffer;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.PrometheusTextEncoder;
+import org.apache.nifi.reporting.azmonitor.api.ScrapeServer;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+
+/**
+ * Lets tools pull the latest report instead of having it pushed, from an embedded {@link ScrapeServer}. Every
+ * report is rendered once, in the Prometheus text format and as NDJSON, and served as is until the next
+ * one; scrapes between reports see the same snapshot.
+ */
+public class ScrapeEndpointSink implements MetricSink {
+
+    public static final String NAME = "scrape";
+
+    static final PropertyDescriptor SCRAPE_PORT = new PropertyDescriptor.Builder()
+            .name("Scrape Port")
+            .description("Port the " + NAME + " sink listens on. The latest report is served at "
+                    + ScrapeServer.PROMETHEUS_PATH + " in the Prometheus text format and at " + ScrapeServer.NDJSON_PATH
+                    + " as NDJSON")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .build();
+    static final PropertyDescriptor SCRAPE_ADDRESS = new PropertyDescriptor.Builder()
+            .name("Scrape Address")
+            .description("Address the " + NAME + " sink listens on, e.g. 127.0.0.1 to allow only local scrapers. "
+                    + "All addresses if not set")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    private final PrometheusTextEncoder prometheusEncoder = new PrometheusTextEncoder();
+    private final NdjsonMetricEncoder ndjsonEncoder = new NdjsonMetricEncoder(false);
+    private final PayloadBuffer prometheus = new PayloadBuffer(64 * 1024);
+    private final PayloadBuffer ndjson = new PayloadBuffer(64 * 1024);
+    private final PayloadBuffer batchNdjson = new PayloadBuffer(64 * 1024);
+    private ScrapeServer server;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getDescription() {
+        return "serves the latest report to scrapers on the " + SCRAPE_PORT.getDisplayName();
+    }
+
+    @Override
+    public List<PropertyDescriptor> getPropertyDescriptors() {
+        return Arrays.asList(SCRAPE_PORT, SCRAPE_ADDRESS);
+    }
+
+    @Override
+    public Collection<ValidationResult> validate(ValidationContext context) {
+        if (context.getProperty(SCRAPE_PORT).isSet()) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new ValidationResult.Builder()
+                .subject(SCRAPE_PORT.getDisplayName())
+                .valid(false)
+                .explanation("the " + NAME + " sink requires a " + SCRAPE_PORT.getDisplayName())
+                .build());
+    }
+
+    @Override
+    public synchronized void open(MetricSinkContext context) throws IOException {
+        server = new ScrapeServer(
+                context.getConfiguration().getProperty(SCRAPE_ADDRESS).evaluateAttributeExpressions().getValue(),
+                context.getConfiguration().getProperty(SCRAPE_PORT).evaluateAttributeExpressions().asInteger());
+    }
+
+    /**
+     * @return the port the sink listens on, or -1 if it is closed
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getPort();
+    }
+
+    @Override
+    public synchronized void publish(PendingReport report) {
+        if (server == null) {
+            return;
+        }
+        prometheusEncoder.setNodeDimension(report.getNode());
+        prometheusEncoder.encode(report.getBatches(), report.getTimeMillis(), prometheus);
+        ndjsonEncoder.setNodeDimension(report.getNode());
+        ndjson.reset();
+        for (MetricBatch batch : report.getBatches()) {
+            ndjsonEncoder.encode(batch, batchNdjson);
+            ndjson.write(batchNdjson.array(), 0, batchNdjson.size());
+        }
+        server.publish(prometheus, ndjson);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+    }
+}
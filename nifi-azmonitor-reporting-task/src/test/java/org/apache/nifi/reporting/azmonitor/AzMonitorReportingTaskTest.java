@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.annotation.notification.PrimaryNodeState;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.registry.VariableRegistry;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
+import org.apache.nifi.reporting.azmonitor.api.ComponentFilter;
+import org.apache.nifi.reporting.azmonitor.api.ReportingPlan;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.sink.NdjsonFileSink;
+import org.apache.nifi.state.MockStateManager;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.apache.nifi.util.MockReportingContext;
+import org.apache.nifi.util.MockReportingInitializationContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AzMonitorReportingTaskTest {
+
+    private static final String DERIVED = "TestReceivedPerThread = FlowFilesReceived / ActiveThreads";
+    private static final String TASK_ID = "task";
+    private static final String NODE_ID = "node-1";
+    private static final Pattern TIME = Pattern.compile("\"time\":\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
+    private static final Pattern METRIC = Pattern.compile("\"metric\":\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSuppressDerivedInputsRemovesCounterAndRate() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.DERIVED_METRICS, DERIVED);
+        properties.put(AzMonitorReportingTask.SUPPRESS_DERIVED_INPUTS, "true");
+        final boolean[] enabled = plan(properties).getEnabledMetrics();
+
+        final MetricDescriptor<ProcessorStatus> received = descriptor(MetricNames.FLOW_FILES_RECEIVED);
+        assertFalse(enabled[received.getId()]);
+        assertFalse(enabled[received.getRateId()]);
+        assertFalse(enabled[descriptor(MetricNames.ACTIVE_THREADS).getId()]);
+        assertTrue(enabled[descriptor(MetricNames.INVOCATIONS).getId()]);
+        assertTrue(enabled[descriptor(MetricNames.INVOCATIONS).getRateId()]);
+    }
+
+    @Test
+    public void testSuppressDerivedInputsNarrowsMetricNames() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.METRIC_NAMES, MetricNames.FLOW_FILES_RECEIVED + "PerSecond, " + MetricNames.INVOCATIONS);
+        properties.put(AzMonitorReportingTask.DERIVED_METRICS, DERIVED);
+        properties.put(AzMonitorReportingTask.SUPPRESS_DERIVED_INPUTS, "true");
+        final boolean[] enabled = plan(properties).getEnabledMetrics();
+
+        final MetricDescriptor<ProcessorStatus> received = descriptor(MetricNames.FLOW_FILES_RECEIVED);
+        assertFalse(enabled[received.getId()]);
+        assertFalse(enabled[received.getRateId()]);
+        assertTrue(enabled[descriptor(MetricNames.INVOCATIONS).getId()]);
+        assertFalse(enabled[descriptor(MetricNames.BYTES_SENT).getId()]);
+    }
+
+    @Test
+    public void testDerivedInputsAreKeptByDefault() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.DERIVED_METRICS, DERIVED);
+        // every metric is enabled
+        assertNull(plan(properties).getEnabledMetrics());
+    }
+
+    @Test
+    public void testPlanCompilesComponentFilter() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        assertSame(ComponentFilter.ALL, plan(properties).getComponentFilter());
+
+        properties.put(AzMonitorReportingTask.INCLUDE_COMPONENT_NAMES, "Ingest.*");
+        properties.put(AzMonitorReportingTask.EXCLUDE_COMPONENT_TYPES, "LogAttribute");
+        final ComponentFilter filter = plan(properties).getComponentFilter();
+        assertTrue(filter.accepts("1", "Ingest Files", "GetFile"));
+        assertFalse(filter.accepts("2", "Ingest Logs", "LogAttribute"));
+        assertFalse(filter.accepts("3", "Archive Files", "PutFile"));
+    }
+
+    @Test
+    public void testPlanSplitsGroupIds() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        assertTrue(plan(properties).getRoutes().get(0).getGroupIds().isEmpty());
+        properties.put(AzMonitorReportingTask.PROCESS_GROUP_IDS, " a ,b,, c ");
+        assertEquals(Arrays.asList("a", "b", "c"), plan(properties).getRoutes().get(0).getGroupIds());
+        assertTrue(plan(properties).getRoutedGroupIds().isEmpty());
+    }
+
+    @Test
+    public void testEveryNodeTagsSeriesWithNode() throws Exception {
+        final AzMonitorReportingTask task = task();
+        task.onScheduled(configuration(task, Collections.emptyMap()));
+        task.onTrigger(clusteredContext(task));
+        task.onStopped();
+
+        final List<String> lines = lines();
+        assertFalse(lines.isEmpty());
+        for (String line : lines) {
+            assertTrue(line, line.contains("\"" + MetricNames.DIM_NODE + "\""));
+            assertTrue(line, line.contains("\"" + NODE_ID + "\""));
+        }
+    }
+
+    @Test
+    public void testPrimaryNodeOnlyReportsFromPrimaryWithoutNode() throws Exception {
+        final AzMonitorReportingTask task = task();
+        task.onScheduled(configuration(task, Collections.singletonMap(AzMonitorReportingTask.CLUSTER_REPORTING,
+                AzMonitorReportingTask.CLUSTER_PRIMARY_NODE.getValue())));
+        final MockReportingContext context = clusteredContext(task);
+        task.onTrigger(context);
+        task.onPrimaryNodeStateChange(PrimaryNodeState.ELECTED_PRIMARY_NODE);
+        task.onTrigger(context);
+        task.onStopped();
+
+        final Map<String, List<String>> reports = reports(lines());
+        assertEquals(1, reports.size());
+        for (String line : reports.values().iterator().next()) {
+            assertFalse(line, line.contains("\"" + MetricNames.DIM_NODE + "\""));
+        }
+    }
+
+    @Test
+    public void testPrimaryNodeHandoverForgetsCounterReadings() throws Exception {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.CLUSTER_REPORTING, AzMonitorReportingTask.CLUSTER_PRIMARY_NODE.getValue());
+        properties.put(AzMonitorReportingTask.COUNTER_MODE, AzMonitorReportingTask.COUNTERS_DELTA.getValue());
+        final AzMonitorReportingTask task = task();
+        task.onScheduled(configuration(task, properties));
+        final MockReportingContext context = clusteredContext(task);
+
+        task.onPrimaryNodeStateChange(PrimaryNodeState.ELECTED_PRIMARY_NODE);
+        triggerLater(task, context);
+        triggerLater(task, context);
+        // another node is primary for a while
+        task.onPrimaryNodeStateChange(PrimaryNodeState.PRIMARY_NODE_REVOKED);
+        triggerLater(task, context);
+        task.onPrimaryNodeStateChange(PrimaryNodeState.ELECTED_PRIMARY_NODE);
+        triggerLater(task, context);
+        task.onStopped();
+
+        final List<List<String>> reports = new ArrayList<>(reports(lines()).values());
+        assertEquals(3, reports.size());
+        // the first reading of a counter only primes the store, also after taking over again
+        assertFalse(metrics(reports.get(0)).contains(MetricNames.FLOW_FILES_RECEIVED));
+        assertTrue(metrics(reports.get(1)).contains(MetricNames.FLOW_FILES_RECEIVED));
+        assertFalse(metrics(reports.get(2)).contains(MetricNames.FLOW_FILES_RECEIVED));
+        assertTrue(metrics(reports.get(2)).contains(MetricNames.QUEUED_COUNT));
+    }
+
+    @Test
+    public void testRoutesFallBackToTaskProperties() {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.AZURE_MONITOR_REGION, "westeurope");
+        properties.put(AzMonitorReportingTask.CUSTOM_METRICS_SUBJECT, "/subscriptions/s/default");
+        properties.put(AzMonitorReportingTask.AAD_TENANT, "tenant");
+        properties.put(AzMonitorReportingTask.OAUTH_CLIENT_ID, "client");
+        properties.put(AzMonitorReportingTask.OAUTH_CLIENT_SECRET, "secret");
+        properties.put(AzMonitorReportingTask.PROCESS_GROUP_IDS, "a, b");
+        properties.put(dynamic("east.groups"), "c");
+        properties.put(dynamic("east.subject"), "/subscriptions/s/east");
+        properties.put(dynamic("east.region"), "eastus");
+        properties.put(dynamic("east.clientSecret"), "east-secret");
+        properties.put(dynamic("local.groups"), "d,e");
+        properties.put(dynamic("local.subject"), "/subscriptions/s/local");
+        properties.put(dynamic("local.endpoint"), "http://localhost:8080/");
+        properties.put(dynamic("local.tenant"), "local-tenant");
+
+        final List<ReportingPlan.Route> routes = plan(properties).getRoutes();
+        assertEquals(3, routes.size());
+        final ReportingPlan.Route defaultRoute = routes.get(0);
+        assertEquals(AzMonitorReportingTask.DEFAULT_DESTINATION, defaultRoute.getName());
+        assertEquals(Arrays.asList("a", "b"), defaultRoute.getGroupIds());
+        assertEquals("https://westeurope.monitoring.azure.com/subscriptions/s/default/metrics", defaultRoute.getEndpoint());
+
+        final ReportingPlan.Route east = routes.get(1);
+        assertEquals("east", east.getName());
+        assertEquals(Collections.singletonList("c"), east.getGroupIds());
+        assertEquals("https://eastus.monitoring.azure.com/subscriptions/s/east/metrics", east.getEndpoint());
+        assertEquals("tenant", east.getTenantId());
+        assertEquals("client", east.getClientId());
+        assertEquals("east-secret", east.getClientSecret());
+
+        final ReportingPlan.Route local = routes.get(2);
+        assertEquals(Arrays.asList("d", "e"), local.getGroupIds());
+        assertEquals("http://localhost:8080/subscriptions/s/local/metrics", local.getEndpoint());
+        assertEquals("local-tenant", local.getTenantId());
+        assertEquals("secret", local.getClientSecret());
+        assertEquals(new HashSet<>(Arrays.asList("c", "d", "e")), plan(properties).getRoutedGroupIds());
+    }
+
+    @Test
+    public void testRoutedGroupIsSentOnce() throws Exception {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.REPORT_COMPONENT_METRICS, "true");
+        properties.put(AzMonitorReportingTask.METRIC_NAMES, MetricNames.FLOW_FILES_RECEIVED);
+        properties.put(dynamic("routed.groups"), "child");
+        properties.put(dynamic("routed.subject"), "/subscriptions/s/routed");
+        final AzMonitorReportingTask task = task();
+        task.onScheduled(configuration(task, properties));
+        final MockReportingContext context = clusteredContext(task);
+        final ProcessGroupStatus root = context.getEventAccess().getControllerStatus();
+        final ProcessGroupStatus child = new ProcessGroupStatus();
+        child.setId("child");
+        child.setName("Routed");
+        final ProcessorStatus processor = new ProcessorStatus();
+        processor.setId("routed-processor");
+        processor.setName("Routed Processor");
+        processor.setType("UpdateAttribute");
+        processor.setFlowFilesReceived(3);
+        child.setProcessorStatus(Collections.singletonList(processor));
+        root.setProcessGroupStatus(Collections.singletonList(child));
+        task.onTrigger(context);
+        task.onStopped();
+
+        int routedProcessorSeries = 0;
+        int routedGroupSeries = 0;
+        for (String line : lines()) {
+            routedProcessorSeries += occurrences(line, "\"routed-processor\"");
+            routedGroupSeries += occurrences(line, "\"child\"");
+        }
+        assertEquals(1, routedProcessorSeries);
+        assertEquals(1, routedGroupSeries);
+    }
+
+    @Test
+    public void testProvenanceCursorIsRestoredAndSaved() throws Exception {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(AzMonitorReportingTask.REPORT_PROVENANCE_LATENCY, "true");
+        final AzMonitorReportingTask task = task();
+        task.onScheduled(configuration(task, properties));
+        final MockReportingContext context = clusteredContext(task);
+        context.getStateManager().setState(
+                Collections.singletonMap(AzMonitorReportingTask.PROVENANCE_CURSOR_STATE, "2"), Scope.LOCAL);
+        for (long id = 0; id < 5; id++) {
+            final ProvenanceEventRecord event = mock(ProvenanceEventRecord.class);
+            when(event.getEventId()).thenReturn(id);
+            when(event.getComponentId()).thenReturn("processor-" + id);
+            when(event.getEventDuration()).thenReturn(10L);
+            context.getEventAccess().addProvenanceEvent(event);
+        }
+
+        // the events are read in the background from the first report on, and the cursor is saved with every report
+        final long deadline = System.currentTimeMillis() + 10000;
+        String cursor;
+        do {
+            triggerLater(task, context);
+            cursor = context.getStateManager().getState(Scope.LOCAL).get(AzMonitorReportingTask.PROVENANCE_CURSOR_STATE);
+        } while (!"5".equals(cursor) && System.currentTimeMillis() < deadline);
+        task.onStopped();
+        assertEquals("5", cursor);
+
+        final String lines = String.join("\n", lines());
+        assertFalse(lines.contains("\"processor-1\""));
+        assertTrue(lines.contains("\"processor-2\""));
+        assertTrue(lines.contains("\"processor-4\""));
+    }
+
+    private static int occurrences(String line, String token) {
+        int count = 0;
+        for (int i = line.indexOf(token); i >= 0; i = line.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static PropertyDescriptor dynamic(String name) {
+        return new PropertyDescriptor.Builder().name(name).dynamic(true).addValidator(Validator.VALID).build();
+    }
+
+    private AzMonitorReportingTask task() throws InitializationException {
+        final AzMonitorReportingTask task = new AzMonitorReportingTask();
+        task.initialize(new MockReportingInitializationContext(TASK_ID, "AzMonitor", new MockComponentLog(TASK_ID, task)));
+        return task;
+    }
+
+    private MockConfigurationContext configuration(AzMonitorReportingTask task, Map<PropertyDescriptor, String> overrides)
+            throws IOException {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>(overrides);
+        properties.put(AzMonitorReportingTask.METRIC_SINKS, NdjsonFileSink.NAME);
+        properties.put(task.getPropertyDescriptor("NDJSON File Directory"), folder.getRoot().getAbsolutePath());
+        properties.put(AzMonitorReportingTask.SEND_HEALTH_METRICS, "false");
+        return new MockConfigurationContext(properties, null);
+    }
+
+    private static MockReportingContext clusteredContext(AzMonitorReportingTask task) {
+        final MockReportingContext context = new MockReportingContext(Collections.emptyMap(), new MockStateManager(task),
+                VariableRegistry.EMPTY_REGISTRY) {
+            @Override
+            public boolean isClustered() {
+                return true;
+            }
+
+            @Override
+            public String getClusterNodeIdentifier() {
+                return NODE_ID;
+            }
+        };
+        final ProcessGroupStatus root = new ProcessGroupStatus();
+        root.setId("root");
+        root.setName("NiFi Flow");
+        root.setFlowFilesReceived(7);
+        root.setQueuedCount(3);
+        context.getEventAccess().setProcessGroupStatus(root);
+        return context;
+    }
+
+    /**
+     * Triggers the task a little later than the previous report, so every report has its own time.
+     */
+    private static void triggerLater(AzMonitorReportingTask task, MockReportingContext context) throws InterruptedException {
+        Thread.sleep(5);
+        task.onTrigger(context);
+    }
+
+    private List<String> lines() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(folder.getRoot().toPath().resolve(TASK_ID + ".ndjson"), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the lines of each report by the time of the report, in order
+     */
+    private static Map<String, List<String>> reports(List<String> lines) {
+        final Map<String, List<String>> reports = new LinkedHashMap<>();
+        for (String line : lines) {
+            final Matcher time = TIME.matcher(line);
+            assertTrue(line, time.find());
+            reports.computeIfAbsent(time.group(1), t -> new ArrayList<>()).add(line);
+        }
+        return reports;
+    }
+
+    private static List<String> metrics(List<String> lines) {
+        final List<String> metrics = new ArrayList<>();
+        for (String line : lines) {
+            final Matcher metric = METRIC.matcher(line);
+            assertTrue(line, metric.find());
+            metrics.add(metric.group(1));
+        }
+        return metrics;
+    }
+
+    private static ReportingPlan plan(Map<PropertyDescriptor, String> properties) {
+        return AzMonitorReportingTask.plan(new MockConfigurationContext(properties, null));
+    }
+
+    private static MetricDescriptor<ProcessorStatus> descriptor(String name) {
+        for (MetricDescriptor<ProcessorStatus> descriptor : AzMonitorMetricsFactory.PROCESSOR_METRICS) {
+            if (descriptor.getName().equals(name)) {
+                return descriptor;
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.asynchttpclient.Response;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AzMonitorDispatcherTest {
+
+    private static final String ENDPOINT = "https://westeurope.monitoring.azure.com/metrics";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final MockComponentLog logger = new MockComponentLog("dispatcher", this);
+    private final StubPublisher publisher = new StubPublisher();
+    private AzMonitorDispatcher dispatcher;
+
+    @After
+    public void close() throws IOException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        publisher.close();
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        final Post post = publisher.next();
+        assertEquals(ENDPOINT, post.endpoint);
+        assertEquals("token", post.token);
+        assertEquals("a\n", post.body);
+        final Response ok = status(200);
+        post.response.complete(ok);
+        assertSame(ok, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(publisher.spooled.isEmpty());
+    }
+
+    @Test
+    public void testRetryAfterServerError() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        publisher.next().response.complete(status(500));
+        final Post retry = publisher.next();
+        assertEquals("a\n", retry.body);
+        retry.response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        assertTrue(publisher.spooled.isEmpty());
+    }
+
+    @Test
+    public void testRetryAfterTransportError() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        publisher.next().response.completeExceptionally(new IOException("Connection reset"));
+        publisher.next().response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testRejectedPayloadIsNotRetried() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        publisher.next().response.complete(status(400));
+        assertEquals(400, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        assertNull(publisher.posts.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(publisher.spooled.isEmpty());
+        assertEquals(1, logger.getErrorMessages().size());
+    }
+
+    @Test
+    public void testBackoffIsBoundedAndGrows() {
+        for (int attempts = 1; attempts <= 30; attempts++) {
+            final long ceiling = Math.min(AzMonitorDispatcher.MAX_BACKOFF_MILLIS, AzMonitorDispatcher.BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                final long backoff = AzMonitorDispatcher.backoffMillis(attempts);
+                assertTrue(backoff >= 0 && backoff <= ceiling);
+                max = Math.max(max, backoff);
+            }
+            // full jitter spreads the delays over the whole range
+            assertTrue(max > ceiling / 2);
+        }
+    }
+
+    @Test
+    public void testRetryAfterHeaderIsHonoured() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        final long start = System.nanoTime();
+        publisher.next().response.complete(status(429, "1"));
+        final Post retry = publisher.next();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+        retry.response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testLongRetryAfterGoesToSpool() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        final long retryAfter = TimeUnit.MILLISECONDS.toSeconds(AzMonitorDispatcher.MAX_RETRY_AFTER_MILLIS) + 1;
+        publisher.next().response.complete(status(429, String.valueOf(retryAfter)));
+        assertEquals(429, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(1, publisher.spooled.size());
+        assertNull(publisher.posts.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testThrottlingHalvesConcurrencyAndSuccessGrowsIt() throws Exception {
+        dispatcher = dispatcher(4);
+        final List<CompletableFuture<Response>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(dispatcher.dispatch(ENDPOINT, payload(i + "\n")));
+        }
+        final List<Post> sent = publisher.drain(4);
+        assertNull(publisher.posts.poll(200, TimeUnit.MILLISECONDS));
+
+        sent.get(0).response.complete(status(503));
+        sent.get(1).response.complete(status(429));
+        awaitLimit(2);
+        // the limit is halved at most once a second
+        sent.get(2).response.complete(status(200));
+        awaitLimit(2.5);
+        sent.get(3).response.complete(status(200));
+        awaitLimit(2.9);
+
+        // nothing more was sent until the requests in flight fell below the limit
+        final List<Post> next = publisher.drain(2);
+        assertNull(publisher.posts.poll(200, TimeUnit.MILLISECONDS));
+        for (Post post : next) {
+            post.response.complete(status(200));
+        }
+        completeAll(results);
+        assertEquals(4.0, dispatcher.getConcurrencyLimit(), 0.0);
+    }
+
+    @Test
+    public void testPayloadTooLargeIsSplit() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\nb\n"));
+        publisher.next().response.complete(status(413));
+
+        final List<Post> halves = publisher.drain(2);
+        assertEquals("a\n", halves.get(0).body);
+        assertEquals("b\n", halves.get(1).body);
+        assertEquals(AzMonitorDispatcher.MAX_PAYLOAD_BYTES / 2, dispatcher.getMaxPayloadBytes());
+        halves.get(1).response.complete(status(200));
+        assertFalse(result.isDone());
+        halves.get(0).response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testSingleLineTooLargeIsDropped() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        publisher.next().response.complete(status(413));
+        assertEquals(413, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        assertTrue(publisher.spooled.isEmpty());
+    }
+
+    @Test
+    public void testCircuitOpensAfterConsecutiveFailures() throws Exception {
+        dispatcher = dispatcher(AzMonitorDispatcher.FAILURE_THRESHOLD);
+        final List<CompletableFuture<Response>> results = new ArrayList<>();
+        for (int i = 0; i < AzMonitorDispatcher.FAILURE_THRESHOLD; i++) {
+            results.add(dispatcher.dispatch(ENDPOINT, payload(i + "\n")));
+        }
+        for (Post post : publisher.drain(AzMonitorDispatcher.FAILURE_THRESHOLD)) {
+            post.response.complete(status(500));
+        }
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (dispatcher.getCircuitState() != AzMonitorDispatcher.CircuitState.OPEN && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(AzMonitorDispatcher.CircuitState.OPEN, dispatcher.getCircuitState());
+        assertEquals(1, logger.getWarnMessages().size());
+
+        // payloads go straight to the spool while the circuit is open, the retries included
+        final CompletableFuture<Response> rejected = dispatcher.dispatch(ENDPOINT, payload("x\n"));
+        assertFailed(rejected, "circuit breaker is open");
+        for (CompletableFuture<Response> result : results) {
+            assertFailed(result, "circuit breaker is open");
+        }
+        assertNull(publisher.posts.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(AzMonitorDispatcher.FAILURE_THRESHOLD + 1, publisher.spooled.size());
+    }
+
+    @Test
+    public void testPersistentServiceUnavailableOpensCircuit() throws Exception {
+        dispatcher = dispatcher(AzMonitorDispatcher.FAILURE_THRESHOLD);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        // the endpoint answers every attempt with 503, which also brings the concurrency down to 1
+        for (int attempt = 1; attempt < AzMonitorDispatcher.FAILURE_THRESHOLD; attempt++) {
+            publisher.next().response.complete(status(503));
+            assertEquals(AzMonitorDispatcher.CircuitState.CLOSED, dispatcher.getCircuitState());
+        }
+        publisher.next().response.complete(status(503));
+        assertEquals(503, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        assertEquals(AzMonitorDispatcher.CircuitState.OPEN, dispatcher.getCircuitState());
+        assertFailed(dispatcher.dispatch(ENDPOINT, payload("b\n")), "circuit breaker is open");
+    }
+
+    @Test
+    public void testTooManyRequestsDoNotOpenCircuit() throws Exception {
+        dispatcher = dispatcher(AzMonitorDispatcher.FAILURE_THRESHOLD);
+        final List<CompletableFuture<Response>> results = new ArrayList<>();
+        for (int i = 0; i < AzMonitorDispatcher.FAILURE_THRESHOLD; i++) {
+            results.add(dispatcher.dispatch(ENDPOINT, payload(i + "\n")));
+        }
+        for (Post post : publisher.drain(AzMonitorDispatcher.FAILURE_THRESHOLD)) {
+            post.response.complete(status(429));
+        }
+        awaitLimit(AzMonitorDispatcher.FAILURE_THRESHOLD / 2.0);
+        assertEquals(AzMonitorDispatcher.CircuitState.CLOSED, dispatcher.getCircuitState());
+        completeAll(results);
+    }
+
+    @Test
+    public void testMissingTokenFailsFastAndIsRetried() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        dispatcher = new AzMonitorDispatcher(publisher, () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IOException("No valid bearer token has been acquired from AAD yet");
+            }
+            return "token";
+        }, 4, new ReporterHealth(), logger);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"));
+        final Post post = publisher.next();
+        assertEquals(2, calls.get());
+        post.response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testDispatchDelayHoldsPayloadBack() throws Exception {
+        dispatcher = dispatcher(4);
+        final long delayMillis = 300;
+        final long start = System.nanoTime();
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"), delayMillis);
+        final Post post = publisher.next();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= delayMillis);
+        post.response.complete(status(200));
+        assertEquals(200, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+    }
+
+    @Test
+    public void testCloseSpoolsWaitingPayloads() throws Exception {
+        dispatcher = dispatcher(4);
+        final CompletableFuture<Response> result = dispatcher.dispatch(ENDPOINT, payload("a\n"), TimeUnit.MINUTES.toMillis(1));
+        dispatcher.close();
+        assertFailed(result, "reporting task was stopped");
+        assertEquals(1, publisher.spooled.size());
+    }
+
+    private AzMonitorDispatcher dispatcher(int maxConcurrency) {
+        return new AzMonitorDispatcher(publisher, () -> "token", maxConcurrency, new ReporterHealth(), logger);
+    }
+
+    private void awaitLimit(double expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (Math.abs(dispatcher.getConcurrencyLimit() - expected) > 0.01 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, dispatcher.getConcurrencyLimit(), 0.01);
+    }
+
+    private void completeAll(List<CompletableFuture<Response>> results) throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS * 3);
+        while (!results.stream().allMatch(CompletableFuture::isDone)) {
+            final Post post = publisher.posts.poll(100, TimeUnit.MILLISECONDS);
+            if (post != null) {
+                post.response.complete(status(200));
+            }
+            assertTrue(System.currentTimeMillis() < deadline);
+        }
+        for (CompletableFuture<Response> result : results) {
+            assertEquals(200, result.get().getStatusCode());
+        }
+    }
+
+    private static void assertFailed(CompletableFuture<Response> result, String reason) throws Exception {
+        try {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("Expected the payload not to be sent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains(reason));
+        }
+    }
+
+    private static Response status(int code) {
+        return status(code, null);
+    }
+
+    private static Response status(int code, String retryAfter) {
+        final Response response = mock(Response.class);
+        when(response.getStatusCode()).thenReturn(code);
+        when(response.getHeader("Retry-After")).thenReturn(retryAfter);
+        when(response.getResponseBody()).thenReturn("");
+        return response;
+    }
+
+    private static PayloadBuffer payload(String lines) {
+        final PayloadBuffer payload = new PayloadBuffer(16);
+        payload.write(lines.getBytes(StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    private static final class Post {
+        final String endpoint;
+        final String token;
+        final String body;
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        Post(String endpoint, String token, String body) {
+            this.endpoint = endpoint;
+            this.token = token;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Records the requests instead of sending them; the test completes their responses.
+     */
+    private static final class StubPublisher extends AzMonitorPublisher {
+
+        final BlockingQueue<Post> posts = new LinkedBlockingQueue<>();
+        final List<String> spooled = new ArrayList<>();
+
+        StubPublisher() {
+            super(1);
+        }
+
+        @Override
+        public CompletableFuture<Response> post(String endpoint, String accessToken, PayloadBuffer body) {
+            final Post post = new Post(endpoint, accessToken, new String(body.array(), 0, body.size(), StandardCharsets.UTF_8));
+            posts.add(post);
+            return post.response;
+        }
+
+        @Override
+        public synchronized void spool(String endpoint, long timeMillis, PayloadBuffer body) {
+            spooled.add(new String(body.array(), 0, body.size(), StandardCharsets.UTF_8));
+            super.spool(endpoint, timeMillis, body);
+        }
+
+        Post next() throws InterruptedException {
+            final Post post = posts.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("Expected a request", post);
+            return post;
+        }
+
+        List<Post> drain(int count) throws InterruptedException {
+            final List<Post> drained = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                drained.add(next());
+            }
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.Metric;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AzMonitorMetricsFactoryTest {
+
+    @Test
+    public void testComponentTablesShareOneIdPerName() {
+        final int processorReceived = id(AzMonitorMetricsFactory.PROCESSOR_METRICS, MetricNames.FLOW_FILES_RECEIVED);
+        assertEquals(processorReceived, id(AzMonitorMetricsFactory.PORT_METRICS, MetricNames.FLOW_FILES_RECEIVED));
+        assertEquals(processorReceived, id(AzMonitorMetricsFactory.REMOTE_GROUP_METRICS, MetricNames.FLOW_FILES_RECEIVED));
+        assertEquals(processorReceived, id(AzMonitorMetricsFactory.COMPONENT_GROUP_METRICS, MetricNames.FLOW_FILES_RECEIVED));
+        assertEquals(id(AzMonitorMetricsFactory.PROCESSOR_METRICS, MetricNames.ACTIVE_THREADS),
+                id(AzMonitorMetricsFactory.PORT_METRICS, MetricNames.ACTIVE_THREADS));
+        // a different namespace is a different metric
+        assertNotEquals(processorReceived, id(AzMonitorMetricsFactory.GROUP_METRICS, MetricNames.FLOW_FILES_RECEIVED));
+    }
+
+    @Test
+    public void testRegistryHoldsEachNameAndNamespaceOnce() {
+        for (int id = 0; id < MetricRegistry.size(); id++) {
+            final MetricDescriptor<?> descriptor = MetricRegistry.get(id);
+            assertEquals(id, descriptor.getId());
+            for (int other = id + 1; other < MetricRegistry.size(); other++) {
+                assertFalse(descriptor + " is registered twice",
+                        MetricRegistry.get(other).toString().equals(descriptor.toString()) && !MetricRegistry.get(other).isDerived());
+            }
+        }
+    }
+
+    @Test
+    public void testMetricNamesEnableEveryComponentType() {
+        final boolean[] enabled = AzMonitorMetricsFactory.flowMetricIds(Collections.singleton(MetricNames.FLOW_FILES_RECEIVED));
+        assertTrue(enabled[id(AzMonitorMetricsFactory.PROCESSOR_METRICS, MetricNames.FLOW_FILES_RECEIVED)]);
+        assertTrue(enabled[id(AzMonitorMetricsFactory.PORT_METRICS, MetricNames.FLOW_FILES_RECEIVED)]);
+        assertTrue(enabled[MetricRegistry.get(id(AzMonitorMetricsFactory.PORT_METRICS, MetricNames.FLOW_FILES_RECEIVED)).getRateId()]);
+        assertFalse(enabled[id(AzMonitorMetricsFactory.PORT_METRICS, MetricNames.BYTES_SENT)]);
+    }
+
+    @Test
+    public void testCreateNifiMetrics() {
+        final ProcessGroupStatus status = new ProcessGroupStatus();
+        status.setId("root");
+        status.setFlowFilesReceived(7);
+        status.setQueuedCount(3);
+        final List<Metric> metrics = AzMonitorMetricsFactory.createNifiMetrics(status,
+                OffsetDateTime.of(2019, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        assertEquals(AzMonitorMetricsFactory.GROUP_METRICS.size(), metrics.size());
+        for (Metric metric : metrics) {
+            assertEquals("2019-06-01T00:00:00Z", metric.Time);
+            if (metric.Data.BaseData.Metric.equals(MetricNames.FLOW_FILES_RECEIVED)) {
+                assertEquals(7, metric.Data.BaseData.Series.get(0).Sum, 0);
+            }
+        }
+    }
+
+    private static <T> int id(List<MetricDescriptor<T>> descriptors, String name) {
+        for (MetricDescriptor<T> descriptor : descriptors) {
+            if (descriptor.getName().equals(name)) {
+                return descriptor.getId();
+            }
+        }
+        throw new AssertionError(name + " not found");
+    }
+}
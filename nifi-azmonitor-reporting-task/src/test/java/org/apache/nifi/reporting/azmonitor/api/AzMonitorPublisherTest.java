@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.asynchttpclient.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AzMonitorPublisherTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private HttpServer server;
+    private String endpoint;
+    private AzMonitorPublisher publisher;
+    private volatile int status = 200;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/subscriptions/s/metrics";
+        publisher = new AzMonitorPublisher(2);
+    }
+
+    @After
+    public void stop() throws IOException {
+        publisher.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testPostSendsPayloadWithBearerToken() throws Exception {
+        final PayloadBuffer body = publisher.newBuffer();
+        body.write("{\"time\":\"t\"}\n".getBytes(StandardCharsets.UTF_8));
+
+        final Response response = publisher.post(endpoint, "token", body).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatusCode());
+
+        final Request request = requests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("POST", request.method);
+        assertEquals("Bearer token", request.headers.getFirst("Authorization"));
+        assertEquals("application/x-ndjson", request.headers.getFirst("Content-Type"));
+        assertNull(request.headers.getFirst("Content-Encoding"));
+        assertEquals("{\"time\":\"t\"}\n", new String(request.body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGzippedPayloadIsMarked() throws Exception {
+        final PayloadBuffer body = publisher.newBuffer();
+        body.write(new byte[]{0x1f, (byte) 0x8b});
+        body.setGzipped(true);
+
+        publisher.post(endpoint, "token", body).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("gzip", requests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).headers.getFirst("Content-Encoding"));
+    }
+
+    @Test
+    public void testPublishReleasesBufferWhenDone() throws Exception {
+        status = 503;
+        final PayloadBuffer body = publisher.newBuffer();
+        body.write('a');
+        body.setGzipped(true);
+
+        assertEquals(503, publisher.publish(endpoint, "token", body).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatusCode());
+        final PayloadBuffer reused = publisher.newBuffer();
+        assertSame(body, reused);
+        assertEquals(0, reused.size());
+        assertFalse(reused.isGzipped());
+    }
+
+    @Test
+    public void testHugeBufferIsNotPooled() {
+        final PayloadBuffer huge = new PayloadBuffer(AzMonitorPublisher.MAX_POOLED_BUFFER_SIZE + 1);
+        publisher.release(huge);
+        assertNotSame(huge, publisher.newBuffer());
+    }
+
+    @Test
+    public void testSpoolWithoutSpoolReleasesBuffer() {
+        assertFalse(publisher.isSpooling());
+        final PayloadBuffer body = publisher.newBuffer();
+        publisher.spool(endpoint, System.currentTimeMillis(), body);
+        assertSame(body, publisher.newBuffer());
+    }
+
+    @Test
+    public void testResponseClassification() {
+        assertTrue(AzMonitorPublisher.isSuccess(status(204)));
+        assertFalse(AzMonitorPublisher.isSuccess(status(302)));
+        for (int code : new int[]{401, 403, 408, 429, 500, 503}) {
+            assertTrue(String.valueOf(code), AzMonitorPublisher.isRetriable(status(code)));
+        }
+        for (int code : new int[]{400, 404, 413}) {
+            assertFalse(String.valueOf(code), AzMonitorPublisher.isRetriable(status(code)));
+        }
+        assertTrue(AzMonitorPublisher.isThrottled(status(429)));
+        assertTrue(AzMonitorPublisher.isThrottled(status(503)));
+        assertFalse(AzMonitorPublisher.isThrottled(status(500)));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertEquals(-1, AzMonitorPublisher.retryAfterMillis(status(429, null)));
+        assertEquals(-1, AzMonitorPublisher.retryAfterMillis(status(429, "soon")));
+        assertEquals(120000, AzMonitorPublisher.retryAfterMillis(status(429, " 120 ")));
+        assertEquals(0, AzMonitorPublisher.retryAfterMillis(status(429, "Mon, 03 Jun 2019 12:00:00 GMT")));
+
+        final String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1));
+        final long millis = AzMonitorPublisher.retryAfterMillis(status(429, inAMinute));
+        // the date has a resolution of seconds
+        assertTrue(String.valueOf(millis), millis > TimeUnit.SECONDS.toMillis(58) && millis <= TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                body.write(chunk, 0, read);
+            }
+        }
+        requests.add(new Request(exchange.getRequestMethod(), exchange.getRequestHeaders(), body.toByteArray()));
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private static Response status(int code) {
+        return status(code, null);
+    }
+
+    private static Response status(int code, String retryAfter) {
+        final Response response = mock(Response.class);
+        when(response.getStatusCode()).thenReturn(code);
+        when(response.getHeader("Retry-After")).thenReturn(retryAfter);
+        return response;
+    }
+
+    private static final class Request {
+
+        final String method;
+        final Headers headers;
+        final byte[] body;
+
+        Request(String method, Headers headers, byte[] body) {
+            this.method = method;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+}
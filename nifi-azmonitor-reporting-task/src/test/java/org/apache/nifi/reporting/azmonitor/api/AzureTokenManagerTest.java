@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.aad.adal4j.AuthenticationResult;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AzureTokenManagerTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final MockComponentLog logger = new MockComponentLog("tokens", this);
+    // lifetimes in seconds of the tokens the source issues, in order
+    private final BlockingQueue<Long> lifetimes = new LinkedBlockingQueue<>();
+    private final AtomicInteger issued = new AtomicInteger();
+    private AzureTokenManager tokens;
+
+    @After
+    public void close() {
+        if (tokens != null) {
+            tokens.close();
+        }
+    }
+
+    @Test
+    public void testStartAcquiresTokenInBackground() throws Exception {
+        lifetimes.add(TimeUnit.HOURS.toSeconds(1));
+        tokens = new AzureTokenManager(this::issue, logger);
+        tokens.start();
+
+        assertEquals("token-1", awaitCachedToken());
+        // both paths read the cached token
+        assertEquals("token-1", tokens.getAccessToken());
+        assertEquals(1, issued.get());
+    }
+
+    @Test
+    public void testCachedTokenFailsFastBeforeFirstAcquisition() {
+        tokens = new AzureTokenManager(this::issue, logger);
+        try {
+            tokens.getCachedAccessToken();
+            fail("No token has been acquired");
+        } catch (IOException e) {
+            assertEquals(0, issued.get());
+        }
+    }
+
+    @Test
+    public void testFailedRefreshIsLoggedAndBlockingPathReportsFailure() throws Exception {
+        tokens = new AzureTokenManager(this::issue, logger);
+        tokens.start();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (logger.getWarnMessages().isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The failed refresh was not logged");
+            }
+            Thread.sleep(10);
+        }
+        try {
+            tokens.getAccessToken();
+            fail("AAD is unreachable");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testCloseForgetsToken() throws Exception {
+        lifetimes.add(TimeUnit.HOURS.toSeconds(1));
+        tokens = new AzureTokenManager(this::issue, logger);
+        assertEquals("token-1", tokens.getAccessToken());
+        tokens.close();
+        try {
+            tokens.getCachedAccessToken();
+            fail("A closed manager has no token");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTokenCloseToExpiryIsNotCached() throws Exception {
+        lifetimes.add(TimeUnit.MILLISECONDS.toSeconds(AzureTokenManager.EXPIRY_MARGIN_MILLIS) / 2);
+        lifetimes.add(TimeUnit.HOURS.toSeconds(1));
+        tokens = new AzureTokenManager(this::issue, logger);
+        assertEquals("token-1", tokens.getAccessToken());
+
+        try {
+            tokens.getCachedAccessToken();
+            fail("A token that expires within the margin must not be used");
+        } catch (IOException e) {
+            // the caller tries again later
+        }
+        // the blocking path replaces it
+        assertEquals("token-2", tokens.getAccessToken());
+        assertEquals("token-2", tokens.getCachedAccessToken());
+    }
+
+    private CompletableFuture<AuthenticationResult> issue() {
+        final Long lifetime = lifetimes.poll();
+        if (lifetime == null) {
+            final CompletableFuture<AuthenticationResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("AAD is unreachable"));
+            return failed;
+        }
+        return CompletableFuture.completedFuture(
+                new AuthenticationResult("Bearer", "token-" + issued.incrementAndGet(), null, lifetime, null, null, false));
+    }
+
+    private String awaitCachedToken() throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                return tokens.getCachedAccessToken();
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
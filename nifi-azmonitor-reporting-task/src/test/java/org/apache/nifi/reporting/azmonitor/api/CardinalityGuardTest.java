@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory.COMPONENT_DIMENSIONS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CardinalityGuardTest {
+
+    private static final int RANKED = id(MetricNames.INPUT_CONTENT_SIZE);
+    private static final int OTHER_METRIC = id(MetricNames.FLOW_FILES_RECEIVED);
+
+    @Test
+    public void testWithinLimitKeepsEverySeries() {
+        final CardinalityGuard guard = new CardinalityGuard(5, MetricNames.INPUT_CONTENT_SIZE);
+        final MetricBatch batch = components(5);
+        final int rows = batch.size();
+        guard.apply(batch);
+
+        assertEquals(rows + 2, batch.size());
+        assertHealth(batch, rows, 0);
+    }
+
+    @Test
+    public void testOtherRollUp() {
+        final CardinalityGuard guard = new CardinalityGuard(3, MetricNames.INPUT_CONTENT_SIZE);
+        final MetricBatch batch = components(10);
+        // a series without component dimensions is never rolled up
+        batch.add(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), 4);
+        guard.apply(batch);
+
+        // components 9, 8 and 7 are the heaviest, the other 7 share one series per metric
+        final int kept = 3 * 2 + 1 + 2;
+        assertEquals(kept + 2, batch.size());
+        assertHealth(batch, kept, 7 * 2);
+        int other = 0;
+        for (int row = 0; row < kept; row++) {
+            if (batch.dimNames(row) != COMPONENT_DIMENSIONS) {
+                assertEquals(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), batch.metricId(row));
+                continue;
+            }
+            final String name = batch.dimValues(row)[0];
+            if (!CardinalityGuard.OTHER.equals(name)) {
+                assertTrue(name, name.equals("c9") || name.equals("c8") || name.equals("c7"));
+                continue;
+            }
+            other++;
+            assertEquals(CardinalityGuard.OTHER_COMPONENT_KEY, batch.component(row));
+            if (batch.metricId(row) == RANKED) {
+                // weights 0..6 and one sample each
+                assertEquals(0, batch.min(row), 0);
+                assertEquals(6, batch.max(row), 0);
+                assertEquals(21, batch.sum(row), 0);
+                assertEquals(7, batch.count(row));
+            } else {
+                assertEquals(OTHER_METRIC, batch.metricId(row));
+                // min, max and sum of 1, 2 and 3 per component
+                assertEquals(1, batch.min(row), 0);
+                assertEquals(3, batch.max(row), 0);
+                assertEquals(7 * 6, batch.sum(row), 0);
+                assertEquals(7 * 3, batch.count(row));
+            }
+        }
+        assertEquals(2, other);
+
+        // the roll-up starts over with the next report
+        final MetricBatch next = components(10);
+        guard.apply(next);
+        for (int row = 0; row < next.size(); row++) {
+            if (next.metricId(row) == RANKED && next.component(row) == CardinalityGuard.OTHER_COMPONENT_KEY) {
+                assertEquals(21, next.sum(row), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRankingFollowsRecentWeight() {
+        final CardinalityGuard guard = new CardinalityGuard(1, MetricNames.INPUT_CONTENT_SIZE);
+        for (int report = 0; report < 3; report++) {
+            final MetricBatch batch = new MetricBatch();
+            add(batch, "old", RANKED, 1000);
+            add(batch, "new", RANKED, 0);
+            guard.apply(batch);
+        }
+        // the former heavy hitter decays away within a few reports once the other one is busier
+        String top = null;
+        for (int report = 0; report < 6; report++) {
+            final MetricBatch batch = new MetricBatch();
+            add(batch, "old", RANKED, 10);
+            add(batch, "new", RANKED, 500);
+            guard.apply(batch);
+            top = batch.dimValues(0)[0];
+        }
+        assertEquals("new", top);
+    }
+
+    @Test
+    public void testComponentCountIsBounded() {
+        final CardinalityGuard guard = new CardinalityGuard(3, MetricNames.INPUT_CONTENT_SIZE);
+        guard.apply(components(1000));
+        assertEquals(4, guard.countedComponents());
+        guard.apply(components(2));
+        assertEquals(2, guard.countedComponents());
+    }
+
+    /**
+     * @return a batch with a ranked series of weight i and a series of three samples 1, 2 and 3 for each component ci
+     */
+    private static MetricBatch components(int count) {
+        final MetricBatch batch = new MetricBatch();
+        for (int c = 0; c < count; c++) {
+            add(batch, "c" + c, RANKED, c);
+            final String name = "c" + c;
+            batch.add(OTHER_METRIC, SeriesKeys.component(name), COMPONENT_DIMENSIONS,
+                    new String[]{name, "Processor", name, "root"}, 1, 3, 6, 3);
+        }
+        return batch;
+    }
+
+    private static void add(MetricBatch batch, String name, int metricId, double value) {
+        batch.add(metricId, SeriesKeys.component(name), COMPONENT_DIMENSIONS, new String[]{name, "Processor", name, "root"}, value);
+    }
+
+    private static void assertHealth(MetricBatch batch, int reported, int dropped) {
+        final int last = batch.size() - 1;
+        assertEquals(AzMonitorMetricsFactory.REPORTED_SERIES.getId(), batch.metricId(last - 1));
+        assertEquals(reported, batch.sum(last - 1), 0);
+        assertEquals(AzMonitorMetricsFactory.DROPPED_SERIES.getId(), batch.metricId(last));
+        assertEquals(dropped, batch.sum(last), 0);
+    }
+
+    private static int id(String name) {
+        for (MetricDescriptor<?> descriptor : AzMonitorMetricsFactory.PROCESSOR_METRICS) {
+            if (descriptor.getName().equals(name)) {
+                return descriptor.getId();
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeSuppressorTest {
+
+    private static final long HEARTBEAT = 60000;
+
+    @Test
+    public void testUnchangedSeriesAreSuppressed() {
+        final ChangeSuppressor suppressor = new ChangeSuppressor(HEARTBEAT, 4);
+        MetricBatch batch = batch(0, 0, 5);
+        suppressor.apply(batch, 0);
+        assertEquals(Arrays.asList(0, 1, 2), metrics(batch));
+        assertEquals(0, suppressed(batch), 0);
+
+        batch = batch(0, 0, 6);
+        suppressor.apply(batch, 1000);
+        assertEquals(Arrays.asList(2), metrics(batch));
+        assertEquals(2, suppressed(batch), 0);
+    }
+
+    @Test
+    public void testAnyChangeOfTheAggregateIsSent() {
+        final ChangeSuppressor suppressor = new ChangeSuppressor(HEARTBEAT, 4);
+        final MetricBatch first = new MetricBatch();
+        first.clear("t");
+        first.add(0, 1, 3, 4, 2);
+        suppressor.apply(first, 0);
+
+        // same min and max, another sum and count
+        final MetricBatch second = new MetricBatch();
+        second.clear("t");
+        second.add(0, 1, 3, 6, 3);
+        suppressor.apply(second, 1000);
+        assertEquals(Arrays.asList(0), metrics(second));
+    }
+
+    @Test
+    public void testHeartbeatResendsUnchangedSeries() {
+        final ChangeSuppressor suppressor = new ChangeSuppressor(HEARTBEAT, 4);
+        suppressor.apply(batch(1, 1), 0);
+        MetricBatch batch = batch(1, 1);
+        suppressor.apply(batch, HEARTBEAT - 1);
+        assertEquals(0, metrics(batch).size());
+
+        batch = batch(1, 1);
+        suppressor.apply(batch, HEARTBEAT);
+        assertEquals(Arrays.asList(0, 1), metrics(batch));
+        // the heartbeat starts over from the series' last send
+        batch = batch(1, 1);
+        suppressor.apply(batch, HEARTBEAT + 1000);
+        assertEquals(0, metrics(batch).size());
+    }
+
+    @Test
+    public void testIdleSeriesAreEvicted() {
+        final ChangeSuppressor suppressor = new ChangeSuppressor(HEARTBEAT, 2);
+        suppressor.apply(batch(1, 2, 3), 0);
+        for (int report = 1; report <= ChangeSuppressor.MAX_IDLE_REPORTS; report++) {
+            suppressor.apply(series(1, 2), report);
+        }
+        assertEquals(3, suppressor.size());
+        suppressor.apply(series(1, 2), ChangeSuppressor.MAX_IDLE_REPORTS + 1);
+        // only the series that kept coming is left, and the others are new when they come back
+        assertEquals(1, suppressor.size());
+        final MetricBatch batch = batch(1, 2, 3);
+        suppressor.apply(batch, ChangeSuppressor.MAX_IDLE_REPORTS + 2);
+        assertEquals(Arrays.asList(0, 2), metrics(batch));
+    }
+
+    @Test
+    public void testClearSendsNextBatchInFull() {
+        final ChangeSuppressor suppressor = new ChangeSuppressor(HEARTBEAT, 4);
+        suppressor.apply(batch(1, 2), 0);
+        suppressor.clear();
+        assertEquals(0, suppressor.size());
+        final MetricBatch batch = batch(1, 2);
+        suppressor.apply(batch, 1000);
+        assertEquals(Arrays.asList(0, 1), metrics(batch));
+    }
+
+    /**
+     * @return a batch with one series per value, the metric id being the index of the value
+     */
+    private static MetricBatch batch(double... values) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        for (int metric = 0; metric < values.length; metric++) {
+            batch.add(metric, values[metric]);
+        }
+        return batch;
+    }
+
+    private static MetricBatch series(int metric, double value) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        batch.add(metric, value);
+        return batch;
+    }
+
+    /**
+     * @return the ids of the metrics that are sent, without the suppressed series row
+     */
+    private static List<Integer> metrics(MetricBatch batch) {
+        final List<Integer> metrics = new ArrayList<>();
+        for (int row = 0; row < batch.size() - 1; row++) {
+            metrics.add(batch.metricId(row));
+        }
+        assertEquals(AzMonitorMetricsFactory.SUPPRESSED_SERIES.getId(), batch.metricId(batch.size() - 1));
+        return metrics;
+    }
+
+    private static double suppressed(MetricBatch batch) {
+        return batch.max(batch.size() - 1);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ComponentFilterTest {
+
+    @Test
+    public void testUnsetPatternsAcceptEverything() {
+        assertTrue(ComponentFilter.ALL.isAll());
+        assertTrue(new ComponentFilter(null, "", null, "").isAll());
+        assertTrue(ComponentFilter.ALL.accepts("id", null, null));
+    }
+
+    @Test
+    public void testPatternsMatchWholeNameAndType() {
+        final ComponentFilter filter = new ComponentFilter("Ingest.*", ".*Test.*", null, "Log.*");
+        assertFalse(filter.isAll());
+        assertTrue(filter.accepts("1", "Ingest Files", "GetFile"));
+        // a match inside the name is not enough
+        assertFalse(filter.accepts("2", "Stage Ingest", "GetFile"));
+        assertFalse(filter.accepts("3", "Ingest Test Files", "GetFile"));
+        assertFalse(filter.accepts("4", "Ingest Logs", "LogAttribute"));
+        assertFalse(filter.accepts("5", null, "GetFile"));
+    }
+
+    @Test
+    public void testIncludeAndExcludeTypes() {
+        final ComponentFilter filter = new ComponentFilter(null, null, "Put.*|ProcessGroup", "PutEmail");
+        assertTrue(filter.accepts("1", "any", "PutS3Object"));
+        assertTrue(filter.accepts("2", "any", "ProcessGroup"));
+        assertFalse(filter.accepts("3", "any", "PutEmail"));
+        assertFalse(filter.accepts("4", "any", "GetFile"));
+        assertFalse(filter.accepts("5", "any", null));
+    }
+
+    @Test
+    public void testRenamedComponentIsMatchedAgain() {
+        final ComponentFilter filter = new ComponentFilter("Ingest.*", null, null, null);
+        assertTrue(filter.accepts("1", "Ingest Files", "GetFile"));
+        assertTrue(filter.accepts("1", "Ingest Files", "GetFile"));
+        assertFalse(filter.accepts("1", "Archive Files", "GetFile"));
+        assertFalse(filter.accepts("1", "Archive Files", "GetFile"));
+        assertTrue(filter.accepts("1", "Ingest Files", "GetFile"));
+    }
+
+    @Test
+    public void testDecisionsAreBounded() {
+        final ComponentFilter filter = new ComponentFilter("a.*", null, null, null);
+        for (int id = 0; id <= ComponentFilter.MAX_DECISIONS; id++) {
+            assertTrue(filter.accepts(Integer.toString(id), "a" + id, "GetFile"));
+        }
+        // still correct for components seen before the decisions were dropped
+        assertTrue(filter.accepts("0", "a0", "GetFile"));
+        assertFalse(filter.accepts("1", "b1", "GetFile"));
+    }
+}
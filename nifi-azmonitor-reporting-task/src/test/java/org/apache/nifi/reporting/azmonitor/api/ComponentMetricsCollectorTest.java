@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ComponentMetricsCollectorTest {
+
+    private final ComponentMetricsCollector collector = new ComponentMetricsCollector(4);
+
+    @After
+    public void tearDown() {
+        collector.close();
+    }
+
+    @Test
+    public void testDeepNarrowFlowIsNotForked() {
+        // ten nested groups with one processor each: 20 components
+        assertFalse(ComponentMetricsCollector.isLarge(chain(10, 1)));
+        assertTrue(ComponentMetricsCollector.isLarge(chain(10, 10)));
+        assertTrue(ComponentMetricsCollector.isLarge(group("wide", ComponentMetricsCollector.FORK_THRESHOLD, 0)));
+    }
+
+    @Test
+    public void testCollectsEveryComponentOfForkedAndInlineGroups() {
+        final ProcessGroupStatus root = group("root", 2, 0);
+        final List<ProcessGroupStatus> children = new ArrayList<>();
+        children.add(group("large", 100, 100));
+        children.add(chain(5, 2));
+        root.setProcessGroupStatus(children);
+
+        final MetricBatch batch = collect(root);
+        final Set<String> ids = new HashSet<>();
+        for (int row = 0; row < batch.size(); row++) {
+            ids.add(batch.dimValues(row)[2]);
+        }
+        // root: 1 + 2; large: 1 + 100 + 100; chain: 5 * (1 + 2)
+        assertEquals(3 + 201 + 15, ids.size());
+    }
+
+    @Test
+    public void testSkippedGroupsAreLeftOut() {
+        final ProcessGroupStatus root = group("root", 2, 0);
+        final List<ProcessGroupStatus> children = new ArrayList<>();
+        children.add(group("large", 100, 100));
+        children.add(chain(5, 2));
+        root.setProcessGroupStatus(children);
+
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        // a forked group and a group nested in an inline one
+        collector.collect(root, null, batch, new HashSet<>(Arrays.asList("large", "chain-3")));
+        final Set<String> ids = new HashSet<>();
+        for (int row = 0; row < batch.size(); row++) {
+            ids.add(batch.dimValues(row)[2]);
+        }
+        // root: 1 + 2; chain-5 and chain-4: 2 * (1 + 2)
+        assertEquals(3 + 6, ids.size());
+        assertTrue(ids.contains("chain-4-processor-0"));
+        assertFalse(ids.contains("chain-3-processor-0"));
+        assertFalse(ids.contains("large-processor-0"));
+    }
+
+    @Test
+    public void testFilterAndEnabledMetricsAreApplied() {
+        final ComponentFilter filter = new ComponentFilter(null, "processor 1", null, null);
+        final boolean[] enabled = AzMonitorMetricsFactory.flowMetricIds(Collections.singletonList(MetricNames.FLOW_FILES_RECEIVED));
+        final ComponentMetricsCollector filtered = new ComponentMetricsCollector(1, enabled, filter, DerivedMetrics.NONE);
+        try {
+            final MetricBatch batch = new MetricBatch();
+            batch.clear("2019-06-01T00:00:00Z");
+            filtered.collect(group("root", 3, 0), null, batch);
+            final Set<String> ids = new HashSet<>();
+            for (int row = 0; row < batch.size(); row++) {
+                assertTrue(enabled[batch.metricId(row)]);
+                ids.add(batch.dimValues(row)[2]);
+            }
+            assertEquals(new HashSet<>(Arrays.asList("root", "root-processor-0", "root-processor-2")), ids);
+        } finally {
+            filtered.close();
+        }
+    }
+
+    @Test
+    public void testDimensionsAreReusedUntilComponentChanges() {
+        final ProcessGroupStatus root = group("root", 3, 0);
+        final String[] first = dimensionsOf(collect(root), "root-processor-1");
+        final String[] second = dimensionsOf(collect(root), "root-processor-1");
+        assertSame(first, second);
+
+        new ArrayList<>(root.getProcessorStatus()).get(1).setName("renamed");
+        final String[] renamed = dimensionsOf(collect(root), "root-processor-1");
+        assertNotSame(first, renamed);
+        assertEquals("renamed", renamed[0]);
+        assertEquals("root", renamed[3]);
+    }
+
+    @Test
+    public void testRemovedComponentsAreForgotten() {
+        final ProcessGroupStatus root = group("root", 3, 0);
+        collect(root);
+        assertEquals(4, collector.cachedDimensions());
+        root.setProcessorStatus(Collections.emptyList());
+        for (int report = 0; report <= 2 * ComponentMetricsCollector.MAX_IDLE_GENERATIONS; report++) {
+            collect(root, "t" + report);
+        }
+        assertEquals(1, collector.cachedDimensions());
+    }
+
+    @Test
+    public void testRemovedComponentsAreForgottenWhenSampling() {
+        final ProcessGroupStatus root = group("root", 3, 0);
+        final StatusSampler sampler = new StatusSampler(batch -> collector.collect(root, null, batch), new MockComponentLog("sampler", this));
+        try {
+            sampler.sample();
+            assertEquals(4, collector.cachedDimensions());
+            root.setProcessorStatus(Collections.emptyList());
+            for (int sample = 0; sample <= 2 * ComponentMetricsCollector.MAX_IDLE_GENERATIONS; sample++) {
+                sampler.sample();
+            }
+            assertEquals(1, collector.cachedDimensions());
+        } finally {
+            sampler.close();
+        }
+    }
+
+    @Test
+    public void testBatchWithoutTimeAdvancesGeneration() {
+        final ProcessGroupStatus root = group("root", 3, 0);
+        collect(root, null);
+        root.setProcessorStatus(Collections.emptyList());
+        for (int report = 0; report <= 2 * ComponentMetricsCollector.MAX_IDLE_GENERATIONS; report++) {
+            collect(root, null);
+        }
+        assertEquals(1, collector.cachedDimensions());
+    }
+
+    private MetricBatch collect(ProcessGroupStatus root) {
+        return collect(root, "2019-06-01T00:00:00Z");
+    }
+
+    private MetricBatch collect(ProcessGroupStatus root, String time) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear(time);
+        collector.collect(root, null, batch);
+        return batch;
+    }
+
+    private static String[] dimensionsOf(MetricBatch batch, String componentId) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.dimValues(row)[2].equals(componentId)) {
+                return batch.dimValues(row);
+            }
+        }
+        throw new AssertionError(componentId + " not collected");
+    }
+
+    private static ProcessGroupStatus chain(int depth, int processors) {
+        final ProcessGroupStatus group = group("chain-" + depth, processors, 0);
+        if (depth > 1) {
+            group.setProcessGroupStatus(Collections.singletonList(chain(depth - 1, processors)));
+        }
+        return group;
+    }
+
+    static ProcessGroupStatus group(String id, int processors, int connections) {
+        final ProcessGroupStatus group = new ProcessGroupStatus();
+        group.setId(id);
+        group.setName(id);
+        final List<ProcessorStatus> processorStatus = new ArrayList<>();
+        for (int p = 0; p < processors; p++) {
+            final ProcessorStatus processor = new ProcessorStatus();
+            processor.setId(id + "-processor-" + p);
+            processor.setName("processor " + p);
+            processor.setType("UpdateAttribute");
+            processorStatus.add(processor);
+        }
+        group.setProcessorStatus(processorStatus);
+        final List<ConnectionStatus> connectionStatus = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            final ConnectionStatus connection = new ConnectionStatus();
+            connection.setId(id + "-connection-" + c);
+            connection.setName("success");
+            connectionStatus.add(connection);
+        }
+        group.setConnectionStatus(connectionStatus);
+        return group;
+    }
+}
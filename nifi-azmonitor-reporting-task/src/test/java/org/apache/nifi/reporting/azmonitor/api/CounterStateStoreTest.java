@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CounterStateStoreTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toMillis(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long WINDOW = CounterStateStore.WINDOW_MILLIS;
+    private static final MetricDescriptor<?> RECEIVED = counter();
+    private static final long COMPONENT = SeriesKeys.component("processor");
+
+    @Test
+    public void testFirstReadingOnlyPrimes() {
+        final CounterStateStore store = new CounterStateStore(16);
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), COMPONENT, null, null, 50);
+        batch.add(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), 3);
+        store.apply(batch, 0, true);
+
+        // the gauge is kept as it is, the counter has nothing to compare with yet
+        assertEquals(1, batch.size());
+        assertEquals(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), batch.metricId(0));
+        assertEquals(3, batch.sum(0), 0);
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testBurstThenIdleInventsNothing() {
+        for (long schedule : new long[]{MINUTE, 45 * SECOND, 30 * SECOND, 10 * SECOND}) {
+            final Flow flow = new Flow();
+            flow.add(30 * SECOND, 100);
+            final double counted = run(new CounterStateStore(16), flow, 0, schedule, 20 * MINUTE);
+            assertEquals("schedule " + schedule, 100, counted, 1e-9);
+        }
+        // with a schedule longer than the window, data that came and went between reports is never seen
+        final Flow flow = new Flow();
+        flow.add(30 * SECOND, 100);
+        flow.add(400 * SECOND, 10);
+        assertEquals(10, run(new CounterStateStore(16), flow, 0, 7 * MINUTE, 20 * MINUTE), 1e-9);
+    }
+
+    @Test
+    public void testSampledAggregateIsReadAtItsLastSample() {
+        final Flow flow = new Flow();
+        flow.add(30 * SECOND, 100);
+        final CounterStateStore store = new CounterStateStore(16);
+        final SeriesAggregator aggregator = new SeriesAggregator(16);
+        sampled(store, aggregator, flow, 0);
+        double counted = 0;
+        for (long t = MINUTE; t <= 20 * MINUTE; t += MINUTE) {
+            final MetricBatch batch = sampled(store, aggregator, flow, t);
+            assertEquals(1, batch.size());
+            counted += batch.sum(0);
+        }
+        // the burst is the maximum of the report in which it leaves the window, but not its last reading
+        assertEquals(100, counted, 1e-9);
+    }
+
+    @Test
+    public void testOverlappingBurstsLeavingTheWindow() {
+        for (long schedule : new long[]{MINUTE, 45 * SECOND, 20 * SECOND}) {
+            final Flow flow = new Flow();
+            flow.add(30 * SECOND, 100);
+            flow.add(200 * SECOND, 50);
+            flow.add(400 * SECOND, 20);
+            final double counted = run(new CounterStateStore(16), flow, 0, schedule, 20 * MINUTE);
+            assertEquals("schedule " + schedule, 170, counted, 1e-9);
+        }
+    }
+
+    @Test
+    public void testSteadyFlowIsExact() {
+        for (long schedule : new long[]{MINUTE, 30 * SECOND, 5 * MINUTE}) {
+            final Flow flow = new Flow();
+            for (long t = -10 * MINUTE; t <= 30 * MINUTE; t += SECOND) {
+                flow.add(t, 10);
+            }
+            final CounterStateStore store = new CounterStateStore(16);
+            reading(store, flow, 0, false);
+            for (long t = schedule; t <= 30 * MINUTE; t += schedule) {
+                final MetricBatch batch = reading(store, flow, t, false);
+                assertEquals("schedule " + schedule + " at " + t, flow.arrived(t - schedule, t), batch.sum(0), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testRolloverIsNotNewData() {
+        final CounterStateStore store = new CounterStateStore(16);
+        assertEquals(0, apply(store, 0, 0), 0);
+        assertEquals(80, apply(store, 80, MINUTE), 0);
+        assertEquals(30, apply(store, 110, 2 * MINUTE), 0);
+        // the 80 leave the window; the decrease is not 30 new ones
+        assertEquals(0, apply(store, 30, 6 * MINUTE), 0);
+        assertEquals(0, apply(store, 0, 7 * MINUTE), 0);
+        assertEquals(5, apply(store, 5, 8 * MINUTE), 0);
+    }
+
+    @Test
+    public void testReset() {
+        final CounterStateStore store = new CounterStateStore(16);
+        apply(store, 0, 0);
+        assertEquals(500, apply(store, 500, MINUTE), 0);
+        // NiFi restarted and its window starts empty; what follows is counted from scratch
+        assertEquals(0, apply(store, 0, 2 * MINUTE), 0);
+        assertEquals(40, apply(store, 40, 3 * MINUTE), 0);
+        assertEquals(60, apply(store, 100, 4 * MINUTE), 0);
+        // the 500 booked before the restart are gone and do not offset anything when they would have left
+        assertEquals(10, apply(store, 110, 7 * MINUTE), 0);
+    }
+
+    @Test
+    public void testRates() {
+        final CounterStateStore store = new CounterStateStore(16);
+        apply(store, 0, 0);
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), COMPONENT, null, null, 120);
+        store.apply(batch, 30 * SECOND, true);
+
+        assertEquals(2, batch.size());
+        assertEquals(RECEIVED.getId(), batch.metricId(0));
+        assertEquals(120, batch.sum(0), 0);
+        assertEquals(RECEIVED.getRateId(), batch.metricId(1));
+        assertEquals(4, batch.sum(1), 0);
+        assertEquals(COMPONENT, batch.component(1));
+        assertEquals(SeriesKeys.combine(batch.key(0), RECEIVED.getRateId()), batch.key(1));
+
+        // no rate without elapsed time
+        final MetricBatch again = new MetricBatch();
+        again.add(RECEIVED.getId(), COMPONENT, null, null, 120);
+        store.apply(again, 30 * SECOND, true);
+        assertEquals(1, again.size());
+    }
+
+    @Test
+    public void testIdleSeriesAreEvicted() {
+        final CounterStateStore store = new CounterStateStore(16);
+        apply(store, 0, 0);
+        assertEquals(1, store.size());
+        for (int report = 1; report <= CounterStateStore.MAX_IDLE_REPORTS; report++) {
+            store.apply(new MetricBatch(), report * MINUTE, false);
+            assertEquals(1, store.size());
+        }
+        store.apply(new MetricBatch(), (CounterStateStore.MAX_IDLE_REPORTS + 1) * MINUTE, false);
+        assertEquals(0, store.size());
+
+        // a returning series is primed again
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), COMPONENT, null, null, 7);
+        store.apply(batch, 20 * MINUTE, false);
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void testEvictionMovesTheLastSeries() {
+        final CounterStateStore store = new CounterStateStore(2);
+        final long other = SeriesKeys.component("other");
+        final MetricBatch both = new MetricBatch();
+        both.add(RECEIVED.getId(), COMPONENT, null, null, 0);
+        both.add(RECEIVED.getId(), other, null, null, 0);
+        store.apply(both, 0, false);
+        for (int report = 1; report <= CounterStateStore.MAX_IDLE_REPORTS + 1; report++) {
+            final MetricBatch batch = new MetricBatch();
+            batch.add(RECEIVED.getId(), other, null, null, report);
+            store.apply(batch, report * SECOND, false);
+        }
+        // the first series went idle, so the other one now sits in its slot with its readings
+        assertEquals(1, store.size());
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), other, null, null, 20);
+        store.apply(batch, MINUTE, false);
+        assertEquals(20 - CounterStateStore.MAX_IDLE_REPORTS - 1, batch.sum(0), 0);
+    }
+
+    @Test
+    public void testStateRoundTripThroughStateManager() throws IOException {
+        final int series = CounterStateStore.ENTRIES_PER_CHUNK * 2 + 10;
+        final CounterStateStore store = new CounterStateStore(16);
+        final Flow flow = new Flow();
+        for (long t = -10 * MINUTE; t <= 10 * MINUTE; t += 7 * SECOND) {
+            flow.add(t, 3);
+        }
+        for (long t = 0; t <= 3 * MINUTE; t += MINUTE) {
+            store.apply(readings(flow, series, t), t, false);
+        }
+
+        final StateManager stateManager = mock(StateManager.class);
+        stateManager.setState(store.toState(), Scope.LOCAL);
+        @SuppressWarnings("unchecked")
+        final ArgumentCaptor<Map<String, String>> saved = ArgumentCaptor.forClass((Class) Map.class);
+        verify(stateManager).setState(saved.capture(), eq(Scope.LOCAL));
+        assertEquals("3", saved.getValue().get(CounterStateStore.STATE_CHUNKS));
+        assertTrue(saved.getValue().containsKey(CounterStateStore.STATE_PREFIX + 2));
+        assertNull(saved.getValue().get(CounterStateStore.STATE_PREFIX + 3));
+
+        final StateMap stateMap = mock(StateMap.class);
+        when(stateMap.toMap()).thenReturn(saved.getValue());
+        when(stateManager.getState(Scope.LOCAL)).thenReturn(stateMap);
+        final CounterStateStore restored = new CounterStateStore(16);
+        restored.fromState(stateManager.getState(Scope.LOCAL).toMap());
+        assertEquals(series, restored.size());
+
+        // both continue with the same deltas
+        for (long t = 4 * MINUTE; t <= 8 * MINUTE; t += MINUTE) {
+            final MetricBatch expected = readings(flow, series, t);
+            final MetricBatch actual = readings(flow, series, t);
+            store.apply(expected, t, false);
+            restored.apply(actual, t, false);
+            assertEquals(series, actual.size());
+            for (int row = 0; row < series; row++) {
+                assertEquals(expected.key(row), actual.key(row));
+                assertEquals(expected.sum(row), actual.sum(row), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testStateOfOtherFormatIsIgnored() {
+        final CounterStateStore store = new CounterStateStore(16);
+        apply(store, 10, 0);
+        final Map<String, String> state = new HashMap<>(store.toState());
+        state.remove(CounterStateStore.STATE_FORMAT);
+
+        final CounterStateStore restored = new CounterStateStore(16);
+        restored.fromState(state);
+        assertEquals(0, restored.size());
+        restored.fromState(new HashMap<>());
+        assertEquals(0, restored.size());
+    }
+
+    /**
+     * Reports the flow at every schedule until the end, checking that no report counts more than arrived.
+     *
+     * @return the sum of the deltas
+     */
+    private static double run(CounterStateStore store, Flow flow, long start, long schedule, long end) {
+        reading(store, flow, start, false);
+        double counted = 0;
+        for (long t = start + schedule; t <= end; t += schedule) {
+            final MetricBatch batch = reading(store, flow, t, false);
+            assertEquals(1, batch.size());
+            assertTrue(batch.sum(0) >= 0);
+            counted += batch.sum(0);
+            assertTrue("counted " + counted + " at " + t, counted <= flow.arrived(start, t) + 1e-9);
+        }
+        return counted;
+    }
+
+    private static MetricBatch reading(CounterStateStore store, Flow flow, long t, boolean rates) {
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), COMPONENT, null, null, flow.reading(t));
+        store.apply(batch, t, rates);
+        return batch;
+    }
+
+    /**
+     * Samples the flow every 10 seconds of the minute up to the time, and applies the aggregate of the samples.
+     */
+    private static MetricBatch sampled(CounterStateStore store, SeriesAggregator aggregator, Flow flow, long t) {
+        final MetricBatch sample = new MetricBatch();
+        for (long at = t - MINUTE + 10 * SECOND; at <= t; at += 10 * SECOND) {
+            sample.clear(null);
+            sample.add(RECEIVED.getId(), COMPONENT, null, null, flow.reading(at));
+            aggregator.fold(sample);
+        }
+        final MetricBatch batch = new MetricBatch();
+        aggregator.drain(batch);
+        store.apply(batch, t, false);
+        return batch;
+    }
+
+    private static MetricBatch readings(Flow flow, int series, long t) {
+        final MetricBatch batch = new MetricBatch();
+        for (int s = 0; s < series; s++) {
+            // shift the flow per series so they differ
+            batch.add(RECEIVED.getId(), SeriesKeys.component("p" + s), null, null, flow.reading(t + s * SECOND) + s);
+        }
+        return batch;
+    }
+
+    private static double apply(CounterStateStore store, double reading, long t) {
+        final MetricBatch batch = new MetricBatch();
+        batch.add(RECEIVED.getId(), COMPONENT, null, null, reading);
+        store.apply(batch, t, false);
+        return batch.size() == 0 ? 0 : batch.sum(0);
+    }
+
+    private static MetricDescriptor<?> counter() {
+        for (MetricDescriptor<?> descriptor : AzMonitorMetricsFactory.PROCESSOR_METRICS) {
+            if (descriptor.getName().equals(MetricNames.FLOW_FILES_RECEIVED)) {
+                return descriptor;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Data arriving at given times, read as NiFi does: the total of the window up to the time.
+     */
+    private static final class Flow {
+        private final TreeMap<Long, Double> arrivals = new TreeMap<>();
+
+        void add(long t, double count) {
+            arrivals.merge(t, count, Double::sum);
+        }
+
+        double reading(long t) {
+            return arrived(t - WINDOW, t);
+        }
+
+        double arrived(long from, long to) {
+            double sum = 0;
+            for (double count : arrivals.subMap(from, false, to, true).values()) {
+                sum += count;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DerivedMetricExpressionTest {
+
+    @Test
+    public void testPrecedence() {
+        assertEquals(7, evaluate("1 + 2 * 3"), 0);
+        assertEquals(9, evaluate("(1 + 2) * 3"), 0);
+        assertEquals(5, evaluate("1 + 8 / 2"), 0);
+        assertEquals(-1, evaluate("-2 + 1"), 0);
+        assertEquals(-6, evaluate("-2 * 3"), 0);
+        assertEquals(2, evaluate("- -2"), 0);
+    }
+
+    @Test
+    public void testLeftAssociativity() {
+        assertEquals(3, evaluate("8 - 3 - 2"), 0);
+        assertEquals(2, evaluate("16 / 4 / 2"), 0);
+        assertEquals(7, evaluate("8 - 3 + 2"), 0);
+        assertEquals(6, evaluate("12 / 4 * 2"), 0);
+    }
+
+    @Test
+    public void testNumbersAndFunctions() {
+        assertEquals(0.5, evaluate(".5"), 0);
+        assertEquals(1500, evaluate("1.5e3"), 0);
+        assertEquals(2, evaluate("min(2, 3)"), 0);
+        assertEquals(3, evaluate("max(2, 3)"), 0);
+        assertEquals(4, evaluate("abs(1 - 5)"), 0);
+        assertEquals(1, evaluate("max(min(1, 2), abs(-1)) "), 0);
+    }
+
+    @Test
+    public void testDivisionByZeroIsUndefined() {
+        assertTrue(Double.isNaN(evaluate("1 / 0")));
+        assertTrue(Double.isNaN(evaluate("1 / (2 - 2) + 1")));
+    }
+
+    @Test
+    public void testNamesAreReadFromSlots() {
+        final DerivedMetricExpression expression = DerivedMetricExpression.parse("QueuedCount / BackPressureObjectThreshold + QueuedCount");
+        assertEquals(Arrays.asList("QueuedCount", "BackPressureObjectThreshold"), expression.getNames());
+        final double[] scratch = new double[2 + expression.getMaxDepth()];
+        scratch[0] = 50;
+        scratch[1] = 100;
+        assertEquals(50.5, expression.evaluate(scratch, 2), 0);
+
+        // bound to other slots, the names are read from there
+        final DerivedMetricExpression bound = expression.bind(new int[]{2, 0});
+        final double[] other = new double[3 + bound.getMaxDepth()];
+        other[0] = 10;
+        other[2] = 5;
+        assertEquals(5.5, bound.evaluate(other, 3), 0);
+        assertEquals(expression.toString(), bound.toString());
+    }
+
+    @Test
+    public void testMaxDepth() {
+        assertEquals(1, DerivedMetricExpression.parse("1").getMaxDepth());
+        assertEquals(2, DerivedMetricExpression.parse("1 + 2 + 3").getMaxDepth());
+        assertEquals(3, DerivedMetricExpression.parse("1 + 2 * 3").getMaxDepth());
+    }
+
+    @Test
+    public void testMalformed() {
+        assertMalformed("", "unexpected end");
+        assertMalformed("1 +", "unexpected end");
+        assertMalformed("(1 + 2", "expected ')'");
+        assertMalformed("1 + 2)", "unexpected ')'");
+        assertMalformed("1 2", "unexpected '2'");
+        assertMalformed("1..2", "malformed number");
+        assertMalformed("* 2", "unexpected '*'");
+        assertMalformed("min(1)", "expected ','");
+        assertMalformed("abs(1, 2)", "expected ')'");
+        assertMalformed("sqrt(4)", "unknown function sqrt");
+        assertMalformed("QueuedCount % 2", "unexpected '%'");
+    }
+
+    private static double evaluate(String text) {
+        final DerivedMetricExpression expression = DerivedMetricExpression.parse(text);
+        return expression.evaluate(new double[expression.getMaxDepth()], 0);
+    }
+
+    private static void assertMalformed(String text, String message) {
+        try {
+            DerivedMetricExpression.parse(text);
+            fail("Expected '" + text + "' to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DerivedMetricsTest {
+
+    private static final String[] DIM_NAMES = {"ComponentId"};
+    private static final String[] DIM_VALUES = {"c1"};
+
+    @Test
+    public void testParseInOrderOfDefinition() {
+        final Map<String, DerivedMetricExpression> definitions = DerivedMetrics.parse(
+                "QueueFill = QueuedCount / BackPressureObjectThreshold\n\n  ThreadsPerInvocation=ActiveThreads/Invocations  \r\n");
+        assertEquals(Arrays.asList("QueueFill", "ThreadsPerInvocation"), Arrays.asList(definitions.keySet().toArray()));
+        assertEquals("QueuedCount / BackPressureObjectThreshold", definitions.get("QueueFill").toString());
+    }
+
+    @Test
+    public void testInvalidDefinitions() {
+        assertInvalid("QueuedCount / 2", "expected '<name> = <expression>'");
+        assertInvalid("1Fill = QueuedCount", "'1Fill' is not a valid metric name");
+        assertInvalid("Queue Fill = QueuedCount", "'Queue Fill' is not a valid metric name");
+        assertInvalid("Fill = QueuedCount / Threshold", "Fill reads unknown field Threshold");
+        assertInvalid("Fill = QueuedCount +", "unexpected end");
+        assertInvalid("Fill = QueuedCount\nFill = QueuedContentSize", "Fill is defined more than once");
+        // no status type has both
+        assertInvalid("Mixed = QueuedCount / Invocations", "Mixed reads [QueuedCount, Invocations], which no process group or component has all of");
+    }
+
+    @Test
+    public void testNamesClashingWithFlowMetrics() {
+        assertInvalid(MetricNames.QUEUED_COUNT + " = QueuedCount * 2", "QueuedCount is already the name of a process group or component metric");
+        // the rate of a counter is a flow metric too
+        assertInvalid("FlowFilesReceivedPerSecond = FlowFilesReceived / 60", "FlowFilesReceivedPerSecond is already the name");
+    }
+
+    @Test
+    public void testConnectionStatus() {
+        final DerivedMetrics derived = DerivedMetrics.compile(
+                "TestQueueFill = QueuedCount / BackPressureObjectThreshold\nTestQueueGrowth = InputCount - OutputCount");
+        assertFalse(derived.connections().isEmpty());
+        // the growth applies to everything that has an input and output count
+        assertFalse(derived.processors().isEmpty());
+        assertFalse(derived.ports().isEmpty());
+        assertFalse(derived.groups().isEmpty());
+
+        final ConnectionStatus status = new ConnectionStatus();
+        status.setQueuedCount(25);
+        status.setBackPressureObjectThreshold(100);
+        status.setInputCount(40);
+        status.setOutputCount(30);
+        final MetricBatch batch = new MetricBatch();
+        derived.connections().collect(status, 42L, DIM_NAMES, DIM_VALUES, derived.newScratch(), batch);
+
+        assertEquals(2, batch.size());
+        assertEquals(id("TestQueueFill"), batch.metricId(0));
+        assertEquals(0.25, batch.sum(0), 0);
+        assertEquals(1, batch.count(0));
+        assertEquals(42L, batch.component(0));
+        assertEquals("c1", batch.dimValues(0)[0]);
+        assertEquals(id("TestQueueGrowth"), batch.metricId(1));
+        assertEquals(10, batch.sum(1), 0);
+    }
+
+    @Test
+    public void testUndefinedValueIsLeftOut() {
+        final DerivedMetrics derived = DerivedMetrics.compile(
+                "TestQueueFill = QueuedCount / BackPressureObjectThreshold\nTestQueueGrowth = InputCount - OutputCount");
+        final ConnectionStatus status = new ConnectionStatus();
+        status.setQueuedCount(25);
+        status.setInputCount(1);
+        final MetricBatch batch = new MetricBatch();
+        derived.connections().collect(status, 42L, DIM_NAMES, DIM_VALUES, derived.newScratch(), batch);
+        // no back pressure threshold
+        assertEquals(1, batch.size());
+        assertEquals(id("TestQueueGrowth"), batch.metricId(0));
+        assertEquals(1, batch.sum(0), 0);
+    }
+
+    @Test
+    public void testProcessorStatus() {
+        final DerivedMetrics derived = DerivedMetrics.compile(
+                "TestNanosPerInvocation = TotalTaskDurationNanoSeconds / Invocations\nTestQueueFill = QueuedCount / BackPressureObjectThreshold");
+        assertFalse(derived.processors().isEmpty());
+
+        final ProcessorStatus status = new ProcessorStatus();
+        status.setProcessingNanos(3_000_000);
+        status.setInvocations(4);
+        final MetricBatch batch = new MetricBatch();
+        derived.processors().collect(status, 7L, DIM_NAMES, DIM_VALUES, derived.newScratch(), batch);
+        // the connection metric does not apply to processors
+        assertEquals(1, batch.size());
+        assertEquals(id("TestNanosPerInvocation"), batch.metricId(0));
+        assertEquals(750_000, batch.sum(0), 0);
+    }
+
+    @Test
+    public void testNestedExpressionFitsScratch() {
+        final DerivedMetrics derived = DerivedMetrics.compile("TestDeep = (InputCount + (OutputCount * (QueuedCount - 1))) / 2");
+        final double[] scratch = derived.newScratch();
+        // three fields and a stack of four
+        assertTrue(scratch.length >= 7);
+        final ConnectionStatus status = new ConnectionStatus();
+        status.setInputCount(2);
+        status.setOutputCount(3);
+        status.setQueuedCount(5);
+        final MetricBatch batch = new MetricBatch();
+        derived.connections().collect(status, 1L, DIM_NAMES, DIM_VALUES, scratch, batch);
+        assertEquals(7, batch.sum(0), 0);
+    }
+
+    @Test
+    public void testDerivedMetricsAreRegisteredOnce() {
+        DerivedMetrics.compile("TestOnce = QueuedCount * 2");
+        final int size = MetricRegistry.size();
+        DerivedMetrics.compile("TestOnce = QueuedCount * 3");
+        assertEquals(size, MetricRegistry.size());
+        assertTrue(MetricRegistry.get(id("TestOnce")).isDerived());
+    }
+
+    @Test
+    public void testInputsSuppressCounterAndRate() {
+        final DerivedMetrics derived = DerivedMetrics.compile("TestReceivedPerThread = FlowFilesReceived / ActiveThreads");
+        assertEquals(Arrays.asList(MetricNames.FLOW_FILES_RECEIVED, MetricNames.ACTIVE_THREADS), Arrays.asList(derived.getInputs().toArray()));
+
+        final boolean[] inputs = AzMonitorMetricsFactory.flowMetricIds(derived.getInputs());
+        final MetricDescriptor<ProcessorStatus> received = descriptor(MetricNames.FLOW_FILES_RECEIVED);
+        assertTrue(inputs[received.getId()]);
+        assertTrue(inputs[received.getRateId()]);
+        assertTrue(inputs[descriptor(MetricNames.ACTIVE_THREADS).getId()]);
+        assertFalse(inputs[descriptor(MetricNames.INVOCATIONS).getId()]);
+        assertFalse(inputs[descriptor(MetricNames.INVOCATIONS).getRateId()]);
+        assertFalse(inputs[id("TestReceivedPerThread")]);
+    }
+
+    @Test
+    public void testNone() {
+        assertTrue(DerivedMetrics.NONE.getInputs().isEmpty());
+        assertTrue(DerivedMetrics.NONE.connections().isEmpty());
+        final MetricBatch batch = new MetricBatch();
+        DerivedMetrics.NONE.connections().collect(new ConnectionStatus(), 1L, DIM_NAMES, DIM_VALUES, DerivedMetrics.NONE.newScratch(), batch);
+        assertEquals(0, batch.size());
+        assertEquals(Collections.emptyMap(), DerivedMetrics.parse("\n  \n"));
+    }
+
+    private static int id(String derivedName) {
+        return MetricRegistry.registerDerived(derivedName, AzMonitorMetricsFactory.COMPONENT_METRICS_NAMESPACE).getId();
+    }
+
+    private static MetricDescriptor<ProcessorStatus> descriptor(String name) {
+        for (MetricDescriptor<ProcessorStatus> descriptor : AzMonitorMetricsFactory.PROCESSOR_METRICS) {
+            if (descriptor.getName().equals(name)) {
+                return descriptor;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static void assertInvalid(String text, String message) {
+        try {
+            DerivedMetrics.parse(text);
+            fail("Expected '" + text + "' to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JvmMetricsCollectorTest {
+
+    @Test
+    public void testCollectsMemoryAndThreads() {
+        final MetricBatch batch = collect(new JvmMetricsCollector());
+
+        assertTrue(value(batch, AzMonitorMetricsFactory.JVM_UPTIME) >= 0);
+        assertTrue(value(batch, AzMonitorMetricsFactory.JVM_HEAP_USED) > 0);
+        final double heapUsage = value(batch, AzMonitorMetricsFactory.JVM_HEAP_USAGE);
+        assertTrue(String.valueOf(heapUsage), heapUsage > 0 && heapUsage <= 1);
+        assertTrue(value(batch, AzMonitorMetricsFactory.JVM_NON_HEAP_USAGE) > 0);
+        final double threads = value(batch, AzMonitorMetricsFactory.JVM_THREAD_COUNT);
+        assertTrue(threads >= 1);
+        assertTrue(value(batch, AzMonitorMetricsFactory.JVM_DAEMON_THREAD_COUNT) <= threads);
+        // this thread
+        assertTrue(value(batch, AzMonitorMetricsFactory.JVM_THREAD_STATES_RUNNABLE) >= 1);
+    }
+
+    @Test
+    public void testCountsWaitingThreads() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> waiting = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            waiting.add(thread);
+        }
+        try {
+            for (Thread thread : waiting) {
+                while (thread.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(value(collect(new JvmMetricsCollector()), AzMonitorMetricsFactory.JVM_THREAD_STATES_WAITING) >= 3);
+        } finally {
+            release.countDown();
+            for (Thread thread : waiting) {
+                thread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testReportsGarbageCollectionSincePreviousReport() {
+        final JvmMetricsCollector collector = new JvmMetricsCollector();
+        collect(collector);
+        System.gc();
+        final MetricBatch batch = collect(collector);
+
+        long runs = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            final int row = row(batch, AzMonitorMetricsFactory.JVM_GC_RUNS, SeriesKeys.component("gc:" + bean.getName()));
+            if (bean.getCollectionCount() < 0) {
+                continue;
+            }
+            assertArrayEquals(new String[]{bean.getName()}, batch.dimValues(row));
+            assertTrue(batch.max(row) >= 0);
+            assertTrue(batch.max(row) <= bean.getCollectionCount());
+            runs += (long) batch.max(row);
+        }
+        assertTrue("System.gc() should have run a collector", runs >= 1);
+    }
+
+    private static MetricBatch collect(JvmMetricsCollector collector) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        collector.collect(batch);
+        return batch;
+    }
+
+    private static double value(MetricBatch batch, MetricDescriptor<?> metric) {
+        return batch.max(row(batch, metric, 0));
+    }
+
+    private static int row(MetricBatch batch, MetricDescriptor<?> metric, long component) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.metricId(row) == metric.getId() && batch.component(row) == component) {
+                return row;
+            }
+        }
+        throw new AssertionError("No " + metric + " row");
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.asynchttpclient.Response;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MetricSpoolTest {
+
+    private static final String ENDPOINT = "https://westeurope.monitoring.azure.com/metrics";
+    private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(30);
+    // two of these fill a segment, so a third starts the next one
+    private static final int LARGE = MetricSpool.SEGMENT_SIZE * 2 / 5;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockComponentLog logger = new MockComponentLog("spool", this);
+
+    @Test
+    public void testReplayOldestFirst() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            final long now = System.currentTimeMillis();
+            assertTrue(spool.append(ENDPOINT, now, payload("a")));
+            assertTrue(spool.append(ENDPOINT, now, gzipped("b")));
+            assertEquals(2, spool.pendingRecords());
+
+            final List<PayloadBuffer> replayed = replayAll(spool);
+            assertEquals(Arrays.asList("a", "b"), texts(replayed));
+            assertFalse(replayed.get(0).isGzipped());
+            assertTrue(replayed.get(1).isGzipped());
+            assertEquals(0, spool.pendingRecords());
+            assertEquals(2, spool.getReplayedRecords());
+        }
+    }
+
+    @Test
+    public void testRecoveryIgnoresTornRecord() throws IOException {
+        final Path directory = path();
+        final long now = System.currentTimeMillis();
+        try (MetricSpool spool = open(directory, 2)) {
+            spool.append(ENDPOINT, now, payload("a"));
+            spool.append(ENDPOINT, now, payload("b"));
+            spool.append(ENDPOINT, now, payload("c"));
+            // a was sent before the crash
+            assertEquals(Arrays.asList("a"), texts(replay(spool, 1)));
+        }
+
+        // a crash while appending d: its fields are written but not yet its length, which is written last
+        final int end = MetricSpool.HEADER_SIZE + 3 * recordSize("a");
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve("segment-0.spool").toFile(), "rw")) {
+            file.seek(end + 4);
+            file.write(MetricSpool.PENDING);
+            file.writeLong(now);
+            file.write(new byte[]{0, 0, (byte) ENDPOINT.length()});
+            file.write(ENDPOINT.getBytes(StandardCharsets.UTF_8));
+            file.write('d');
+        }
+
+        try (MetricSpool spool = open(directory, 2)) {
+            assertEquals(2, spool.pendingRecords());
+            spool.append(ENDPOINT, now, payload("e"));
+            assertEquals(Arrays.asList("b", "c", "e"), texts(replayAll(spool)));
+        }
+    }
+
+    @Test
+    public void testRecoveryIgnoresRecordBeyondSegment() throws IOException {
+        final Path directory = path();
+        final long now = System.currentTimeMillis();
+        try (MetricSpool spool = open(directory, 2)) {
+            spool.append(ENDPOINT, now, payload("a"));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve("segment-0.spool").toFile(), "rw")) {
+            file.seek(MetricSpool.HEADER_SIZE + recordSize("a"));
+            file.writeInt(MetricSpool.SEGMENT_SIZE);
+        }
+        try (MetricSpool spool = open(directory, 2)) {
+            assertEquals(Arrays.asList("a"), texts(replayAll(spool)));
+        }
+    }
+
+    @Test
+    public void testWrapAroundOverwritesOldestSegment() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            final long now = System.currentTimeMillis();
+            for (int record = 0; record < 5; record++) {
+                assertTrue(spool.append(ENDPOINT, now, large(record)));
+            }
+            // records 0 and 1 filled the first segment, which was overwritten by record 4
+            assertEquals(2, spool.getDroppedRecords());
+            assertEquals(3, spool.pendingRecords());
+            assertEquals(1, logger.getWarnMessages().size());
+
+            final List<PayloadBuffer> replayed = replayAll(spool);
+            assertEquals(3, replayed.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(LARGE, replayed.get(i).size());
+                assertEquals(2 + i, replayed.get(i).array()[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testRecoveryIntoSmallerSpoolKeepsNewestSegments() throws IOException {
+        final Path directory = path();
+        final long now = System.currentTimeMillis();
+        try (MetricSpool spool = open(directory, 3)) {
+            for (int record = 0; record < 7; record++) {
+                spool.append(ENDPOINT, now, large(record));
+            }
+        }
+        // record 6 overwrote segment-0, so the oldest segment is now segment-1 with records 2 and 3
+        try (MetricSpool spool = open(directory, 2)) {
+            assertFalse(directory.resolve("segment-1.spool").toFile().exists());
+            assertEquals(3, spool.pendingRecords());
+            final List<PayloadBuffer> replayed = replayAll(spool);
+            assertEquals(3, replayed.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(4 + i, replayed.get(i).array()[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testTooLargeForSegment() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            final PayloadBuffer payload = new PayloadBuffer(MetricSpool.SEGMENT_SIZE);
+            payload.setSize(MetricSpool.SEGMENT_SIZE);
+            assertFalse(spool.append(ENDPOINT, System.currentTimeMillis(), payload));
+            assertEquals(1, spool.getDroppedRecords());
+        }
+    }
+
+    @Test
+    public void testExpiryByAge() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            final long now = System.currentTimeMillis();
+            spool.append(ENDPOINT, now - MAX_AGE - 1000, payload("old"));
+            spool.append(ENDPOINT, now - MAX_AGE - 500, payload("older than allowed"));
+            spool.append(ENDPOINT, now, payload("new"));
+
+            assertEquals(Arrays.asList("new"), texts(replayAll(spool)));
+            assertEquals(2, spool.getExpiredRecords());
+            assertEquals(0, spool.pendingRecords());
+        }
+    }
+
+    @Test
+    public void testOverwrittenRecordIsNotConsumed() throws Exception {
+        try (MetricSpool spool = open(path(), 2)) {
+            final long now = System.currentTimeMillis();
+            spool.append(ENDPOINT, now, large(0));
+
+            final CountDownLatch sending = new CountDownLatch(1);
+            final CompletableFuture<Response> response = new CompletableFuture<>();
+            final Thread replay = new Thread(() -> spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> {
+                sending.countDown();
+                return response;
+            }));
+            replay.start();
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+            // meanwhile the spool wraps around, and record 4 takes the place of record 0 in a new segment
+            for (int record = 1; record < 5; record++) {
+                spool.append(ENDPOINT, now, large(record));
+            }
+            // records 0 and 1 went with the overwritten segment
+            assertEquals(3, spool.pendingRecords());
+            response.complete(status(200));
+            replay.join(10_000);
+
+            // the success of record 0 must not mark record 4 as done
+            assertEquals(3, spool.pendingRecords());
+            final List<PayloadBuffer> replayed = replayAll(spool);
+            assertEquals(3, replayed.size());
+            assertEquals(4, replayed.get(2).array()[0]);
+        }
+    }
+
+    @Test
+    public void testRetriableFailureKeepsRecord() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            spool.append(ENDPOINT, System.currentTimeMillis(), payload("a"));
+            final int[] calls = new int[1];
+            spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> {
+                calls[0]++;
+                return CompletableFuture.completedFuture(status(503));
+            });
+            assertEquals(1, calls[0]);
+            assertEquals(1, spool.pendingRecords());
+            // backing off
+            spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> {
+                calls[0]++;
+                return CompletableFuture.completedFuture(status(200));
+            });
+            assertEquals(1, calls[0]);
+        }
+    }
+
+    @Test
+    public void testRejectedRecordIsDropped() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            spool.append(ENDPOINT, System.currentTimeMillis(), payload("a"));
+            spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> CompletableFuture.completedFuture(status(400)));
+            assertEquals(0, spool.pendingRecords());
+            assertEquals(1, spool.getDroppedRecords());
+        }
+    }
+
+    @Test
+    public void testRecordWithoutDestinationIsDropped() throws IOException {
+        try (MetricSpool spool = open(path(), 2)) {
+            spool.append(ENDPOINT, System.currentTimeMillis(), payload("a"));
+            spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> null);
+            assertEquals(0, spool.pendingRecords());
+            assertEquals(1, spool.getDroppedRecords());
+            assertEquals(0, spool.getReplayedRecords());
+        }
+    }
+
+    @Test
+    public void testClosedSpoolDropsAndDoesNotReplay() throws IOException {
+        final Path directory = path();
+        final MetricSpool spool = open(directory, 2);
+        spool.append(ENDPOINT, System.currentTimeMillis(), payload("a"));
+        spool.close();
+        spool.close();
+
+        assertFalse(spool.append(ENDPOINT, System.currentTimeMillis(), payload("b")));
+        assertEquals(1, spool.getDroppedRecords());
+        assertTrue(logger.getWarnMessages().get(0).getMsg().contains("closed"));
+        final int[] calls = new int[1];
+        spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> {
+            calls[0]++;
+            return CompletableFuture.completedFuture(status(200));
+        });
+        assertEquals(0, calls[0]);
+
+        // the record written before closing is still there for the next run
+        try (MetricSpool reopened = open(directory, 2)) {
+            assertEquals(Arrays.asList("a"), texts(replayAll(reopened)));
+        }
+    }
+
+    private Path path() throws IOException {
+        return folder.newFolder().toPath();
+    }
+
+    private MetricSpool open(Path directory, int segments) throws IOException {
+        return new MetricSpool(directory, (long) segments * MetricSpool.SEGMENT_SIZE, MAX_AGE, 10, logger);
+    }
+
+    private static List<PayloadBuffer> replayAll(MetricSpool spool) {
+        return replay(spool, Integer.MAX_VALUE);
+    }
+
+    private static List<PayloadBuffer> replay(MetricSpool spool, int max) {
+        final List<PayloadBuffer> replayed = new ArrayList<>();
+        while (replayed.size() < max) {
+            final int before = replayed.size();
+            spool.replayNext(() -> new PayloadBuffer(64), (endpoint, payload) -> {
+                assertEquals(ENDPOINT, endpoint);
+                replayed.add(payload);
+                return CompletableFuture.completedFuture(status(200));
+            });
+            if (replayed.size() == before) {
+                break;
+            }
+        }
+        return replayed;
+    }
+
+    private static Response status(int code) {
+        final Response response = mock(Response.class);
+        when(response.getStatusCode()).thenReturn(code);
+        when(response.getResponseBody()).thenReturn("");
+        return response;
+    }
+
+    private static int recordSize(String text) {
+        return 4 + MetricSpool.RECORD_FIELDS_SIZE + ENDPOINT.length() + text.length();
+    }
+
+    private static PayloadBuffer payload(String text) {
+        final PayloadBuffer payload = new PayloadBuffer(16);
+        payload.write(text.getBytes(StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    private static PayloadBuffer gzipped(String text) {
+        final PayloadBuffer payload = payload(text);
+        payload.setGzipped(true);
+        return payload;
+    }
+
+    private static PayloadBuffer large(int record) {
+        final PayloadBuffer payload = new PayloadBuffer(LARGE);
+        payload.setSize(LARGE);
+        payload.array()[0] = (byte) record;
+        return payload;
+    }
+
+    private static List<String> texts(List<PayloadBuffer> payloads) {
+        final List<String> texts = new ArrayList<>();
+        for (PayloadBuffer payload : payloads) {
+            texts.add(new String(payload.array(), 0, payload.size(), StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NdjsonMetricEncoderTest {
+
+    private static final Pattern SERIES_VALUE = Pattern.compile("\\{\"DimValues\":\\[\"([^\"]+)\"");
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        final MetricBatch batch = batch(2000);
+        final PayloadBuffer plain = new PayloadBuffer(1024);
+        final PayloadBuffer gzipped = new PayloadBuffer(16);
+        new NdjsonMetricEncoder(false).encode(batch, plain);
+        new NdjsonMetricEncoder(true).encode(batch, gzipped);
+
+        assertTrue(gzipped.isGzipped());
+        assertTrue(gzipped.size() < plain.size());
+        assertEquals(text(plain), text(gzipped));
+    }
+
+    @Test
+    public void testGzipRoundTripOfEmptyBatch() throws IOException {
+        final PayloadBuffer gzipped = new PayloadBuffer(16);
+        new NdjsonMetricEncoder(true).encode(batch(0), gzipped);
+        assertEquals("", text(gzipped));
+    }
+
+    @Test
+    public void testSplitEncodeRespectsLimit() throws Exception {
+        for (boolean gzip : new boolean[]{false, true}) {
+            final MetricBatch batch = batch(1500);
+            final int maxBytes = 4096;
+            final List<PayloadBuffer> payloads = new ArrayList<>();
+            final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(gzip);
+            encoder.encode(batch, maxBytes, () -> new PayloadBuffer(1024), payloads::add);
+
+            assertTrue(payloads.size() > 1);
+            final StringBuilder all = new StringBuilder();
+            for (PayloadBuffer payload : payloads) {
+                assertEquals(gzip, payload.isGzipped());
+                final String json = text(payload);
+                assertTrue(json.length() + " bytes", json.getBytes(StandardCharsets.UTF_8).length <= maxBytes);
+                assertTrue(json.endsWith("}}}\n"));
+                all.append(json);
+            }
+            assertEachSeriesOnce(batch.size(), all.toString());
+        }
+    }
+
+    @Test
+    public void testSplitEncodeKeepsOversizedSeries() throws Exception {
+        final MetricBatch batch = batch(3);
+        final List<PayloadBuffer> payloads = new ArrayList<>();
+        new NdjsonMetricEncoder(false).encode(batch, 16, () -> new PayloadBuffer(64), payloads::add);
+
+        // every series is on its own even though none fits
+        assertEquals(3, payloads.size());
+        final StringBuilder all = new StringBuilder();
+        for (PayloadBuffer payload : payloads) {
+            all.append(text(payload));
+        }
+        assertEachSeriesOnce(3, all.toString());
+    }
+
+    @Test
+    public void testSplit() throws IOException {
+        for (boolean gzip : new boolean[]{false, true}) {
+            final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(gzip);
+            final PayloadBuffer payload = new PayloadBuffer(1024);
+            encoder.encode(batch(500), payload);
+            final String original = text(payload);
+
+            final PayloadBuffer first = new PayloadBuffer(16);
+            final PayloadBuffer second = new PayloadBuffer(16);
+            assertTrue(encoder.split(payload, first, second));
+            assertEquals(gzip, first.isGzipped());
+            assertEquals(gzip, second.isGzipped());
+
+            final String head = text(first);
+            final String tail = text(second);
+            assertFalse(head.isEmpty());
+            assertFalse(tail.isEmpty());
+            assertTrue(head.endsWith("\n"));
+            assertEquals(original, head + tail);
+        }
+    }
+
+    @Test
+    public void testSplitSingleLine() {
+        for (boolean gzip : new boolean[]{false, true}) {
+            final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(gzip);
+            final MetricBatch batch = new MetricBatch();
+            batch.clear("2019-06-01T00:00:00Z");
+            batch.add(AzMonitorMetricsFactory.SPOOL_DEPTH.getId(), 1);
+            final PayloadBuffer payload = new PayloadBuffer(64);
+            encoder.encode(batch, payload);
+            assertFalse(encoder.split(payload, new PayloadBuffer(16), new PayloadBuffer(16)));
+        }
+    }
+
+    @Test
+    public void testNonFiniteSeriesAreSkipped() throws Exception {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        // the first series of a metric is skipped, so the header must come with the second
+        add(batch, "nan", Double.NaN);
+        add(batch, "finite", 4);
+        batch.add(AzMonitorMetricsFactory.SPOOL_DEPTH.getId(), Double.POSITIVE_INFINITY);
+        batch.add(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), 1, Double.NEGATIVE_INFINITY, 2, 2);
+
+        final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(false);
+        final PayloadBuffer payload = new PayloadBuffer(256);
+        encoder.encode(batch, payload);
+        final String json = text(payload);
+        assertEquals(1, json.split("\n").length);
+        assertTrue(json, json.contains("\"Series\":[{\"DimValues\":[\"finite\"],\"Min\":4,\"Max\":4,\"Sum\":4,\"Count\":1}]"));
+        assertFalse(json.contains("NaN") || json.contains("Infinity"));
+        assertEquals(3, encoder.takeSkippedSeries());
+        assertEquals(0, encoder.takeSkippedSeries());
+
+        final List<PayloadBuffer> payloads = new ArrayList<>();
+        encoder.encode(batch, 1024, () -> new PayloadBuffer(256), payloads::add);
+        assertEquals(1, payloads.size());
+        assertEquals(json, text(payloads.get(0)));
+        assertEquals(3, encoder.takeSkippedSeries());
+    }
+
+    @Test
+    public void testBatchOfOnlyNonFiniteSeries() throws IOException {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        add(batch, "nan", Double.NaN);
+        final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(false);
+        final PayloadBuffer payload = new PayloadBuffer(256);
+        encoder.encode(batch, payload);
+        assertEquals("", text(payload));
+        assertEquals(1, encoder.takeSkippedSeries());
+    }
+
+    @Test
+    public void testNodeDimensionIsAppendedToEverySeries() throws IOException {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        add(batch, "encode", 2);
+        batch.add(AzMonitorMetricsFactory.QUEUED_REPORTS.getId(), 1);
+
+        final NdjsonMetricEncoder encoder = new NdjsonMetricEncoder(false);
+        final PayloadBuffer payload = new PayloadBuffer(256);
+        encoder.setNodeDimension("node-1");
+        encoder.encode(batch, payload);
+        final String[] lines = text(payload).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].contains("\"DimNames\":[\"Phase\",\"Node\"]"));
+        assertTrue(lines[0], lines[0].contains("\"DimValues\":[\"encode\",\"node-1\"]"));
+        // a metric without dimensions gets only the node
+        assertTrue(lines[1], lines[1].contains("\"DimNames\":[\"Node\"]"));
+        assertTrue(lines[1], lines[1].contains("\"DimValues\":[\"node-1\"]"));
+
+        encoder.setNodeDimension(null);
+        encoder.encode(batch, payload);
+        assertFalse(text(payload).contains("node-1"));
+    }
+
+    /**
+     * @return a batch of {@code rows} series spread over two metrics, each with a distinct dimension value
+     */
+    private static MetricBatch batch(int rows) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        for (int row = 0; row < rows; row++) {
+            if (row % 2 == 0) {
+                add(batch, "s" + row, row);
+            } else {
+                batch.add(AzMonitorMetricsFactory.HTTP_RESPONSES.getId(), SeriesKeys.component("s" + row),
+                        AzMonitorMetricsFactory.STATUS_DIMENSIONS, new String[]{"s" + row}, row * 0.5);
+            }
+        }
+        return batch;
+    }
+
+    private static void add(MetricBatch batch, String series, double value) {
+        batch.add(AzMonitorMetricsFactory.PHASE_DURATION.getId(), SeriesKeys.component(series),
+                AzMonitorMetricsFactory.PHASE_DIMENSIONS, new String[]{series}, value);
+    }
+
+    private static void assertEachSeriesOnce(int rows, String json) {
+        final Map<String, Integer> seen = new HashMap<>();
+        final Matcher matcher = SERIES_VALUE.matcher(json);
+        while (matcher.find()) {
+            seen.merge(matcher.group(1), 1, Integer::sum);
+        }
+        assertEquals(rows, seen.size());
+        for (int row = 0; row < rows; row++) {
+            assertEquals("s" + row, Integer.valueOf(1), seen.get("s" + row));
+        }
+    }
+
+    private static String text(PayloadBuffer payload) throws IOException {
+        if (!payload.isGzipped()) {
+            return new String(payload.array(), 0, payload.size(), StandardCharsets.UTF_8);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload.array(), 0, payload.size()))) {
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
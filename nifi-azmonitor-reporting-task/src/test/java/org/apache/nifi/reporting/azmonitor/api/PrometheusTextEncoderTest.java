@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricNames;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrometheusTextEncoderTest {
+
+    private static final long TIME = 1559347200000L;
+    private static final String[] DIMS = {MetricNames.DIM_COMPONENT_ID};
+
+    private final PrometheusTextEncoder encoder = new PrometheusTextEncoder();
+    private final PayloadBuffer buffer = new PayloadBuffer(1024);
+
+    @Test
+    public void testSanitize() {
+        assertEquals("nifi_metrics", PrometheusTextEncoder.sanitize("Nifi Metrics", true));
+        assertEquals("queued_count", PrometheusTextEncoder.sanitize("QueuedCount", true));
+        assertEquals("http_responses", PrometheusTextEncoder.sanitize("HTTPResponses", true));
+        assertEquals("p99_millis", PrometheusTextEncoder.sanitize("P99Millis", true));
+        assertEquals("ComponentId", PrometheusTextEncoder.sanitize("ComponentId", false));
+        assertEquals("a_b", PrometheusTextEncoder.sanitize("a - b.", false));
+        assertEquals("_1st", PrometheusTextEncoder.sanitize("1st", false));
+        assertEquals("_", PrometheusTextEncoder.sanitize("!", false));
+    }
+
+    @Test
+    public void testSamplesAreGroupedByMetricAcrossBatches() {
+        final int received = received().getId();
+        final int encoded = AzMonitorMetricsFactory.BYTES_ENCODED.getId();
+        final MetricBatch first = batch();
+        first.add(received, SeriesKeys.component("a"), DIMS, new String[]{"a"}, 3);
+        first.add(encoded, 10, 30, 40, 2);
+        final MetricBatch second = batch();
+        second.add(received, SeriesKeys.component("b"), DIMS, new String[]{"b"}, 4);
+
+        assertEquals(""
+                + "# TYPE nifi_component_metrics_flow_files_received gauge\n"
+                + "nifi_component_metrics_flow_files_received{ComponentId=\"a\"} 3 " + TIME + "\n"
+                + "nifi_component_metrics_flow_files_received{ComponentId=\"b\"} 4 " + TIME + "\n"
+                + "# TYPE reporter_health_bytes_encoded gauge\n"
+                + "reporter_health_bytes_encoded 20 " + TIME + "\n",
+                encode(first, second));
+    }
+
+    @Test
+    public void testCountersReportSumAndGaugesMean() {
+        final MetricBatch batch = batch();
+        batch.add(received().getId(), SeriesKeys.component("a"), DIMS, new String[]{"a"}, 1, 5, 9, 3);
+        batch.add(AzMonitorMetricsFactory.BYTES_ENCODED.getId(), 1, 2, 3, 2);
+        final String text = encode(batch);
+        assertContains(text, "nifi_component_metrics_flow_files_received{ComponentId=\"a\"} 9 ");
+        assertContains(text, "reporter_health_bytes_encoded 1.5 ");
+    }
+
+    @Test
+    public void testLabelValuesAreEscaped() {
+        final MetricBatch batch = batch();
+        batch.add(received().getId(), SeriesKeys.component("x"), DIMS, new String[]{"say \"hi\"\\\nbye ü"}, 1);
+        assertContains(encode(batch), "{ComponentId=\"say \\\"hi\\\"\\\\\\nbye ü\"} 1 ");
+    }
+
+    @Test
+    public void testNodeLabel() {
+        final MetricBatch batch = batch();
+        batch.add(received().getId(), SeriesKeys.component("a"), DIMS, new String[]{"a"}, 1);
+        batch.add(AzMonitorMetricsFactory.BYTES_ENCODED.getId(), 2);
+        encoder.setNodeDimension("node-1");
+        String text = encode(batch);
+        assertContains(text, "{ComponentId=\"a\",Node=\"node-1\"} 1 ");
+        assertContains(text, "reporter_health_bytes_encoded{Node=\"node-1\"} 2 ");
+
+        encoder.setNodeDimension(null);
+        text = encode(batch);
+        assertContains(text, "{ComponentId=\"a\"} 1 ");
+        assertContains(text, "reporter_health_bytes_encoded 2 ");
+    }
+
+    @Test
+    public void testSpecialValues() {
+        final MetricBatch batch = batch();
+        batch.add(AzMonitorMetricsFactory.BYTES_ENCODED.getId(), Double.NaN);
+        batch.add(AzMonitorMetricsFactory.SPOOL_DEPTH.getId(), Double.POSITIVE_INFINITY);
+        batch.add(AzMonitorMetricsFactory.RETRIES.getId(), -7);
+        final String text = encode(batch);
+        assertContains(text, "reporter_health_bytes_encoded NaN ");
+        assertContains(text, "reporter_health_spool_depth +Inf ");
+        assertContains(text, "reporter_health_retries -7 ");
+    }
+
+    private String encode(MetricBatch... batches) {
+        encoder.encode(batches, TIME, buffer);
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+
+    private static MetricBatch batch() {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("2019-06-01T00:00:00Z");
+        return batch;
+    }
+
+    private static MetricDescriptor<ProcessorStatus> received() {
+        for (MetricDescriptor<ProcessorStatus> descriptor : AzMonitorMetricsFactory.PROCESSOR_METRICS) {
+            if (descriptor.getName().equals(MetricNames.FLOW_FILES_RECEIVED)) {
+                return descriptor;
+            }
+        }
+        throw new AssertionError(MetricNames.FLOW_FILES_RECEIVED);
+    }
+
+    private static void assertContains(String text, String expected) {
+        if (!text.contains(expected)) {
+            throw new AssertionError("expected " + expected + " in\n" + text);
+        }
+    }
+}
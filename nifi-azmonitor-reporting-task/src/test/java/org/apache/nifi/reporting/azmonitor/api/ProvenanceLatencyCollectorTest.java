@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventRepository;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockEventAccess;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProvenanceLatencyCollectorTest {
+
+    private static final long START = 1559347200000L;
+
+    private final MockComponentLog logger = new MockComponentLog("collector", this);
+
+    @Test
+    public void testReadsFromCursor() throws Exception {
+        final MockEventAccess access = new MockEventAccess();
+        for (long id = 0; id < 5; id++) {
+            access.addProvenanceEvent(event(id, "p", 10 * id, 100));
+        }
+        try (ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(2, 2, 10, logger)) {
+            collector.consume(access);
+            assertEquals(5, collector.getCursor());
+
+            final MetricBatch batch = collect(collector);
+            assertEquals(3, value(batch, AzMonitorMetricsFactory.PROVENANCE_EVENTS.getId()), 0);
+            final int processing = row(batch, AzMonitorMetricsFactory.PROCESSING_LATENCY.getId(), "p");
+            assertEquals(20, batch.min(processing), 0);
+            assertEquals(40, batch.max(processing), 0);
+            assertEquals(90, batch.sum(processing), 0);
+            assertEquals(3, batch.count(processing));
+            final int lineage = row(batch, AzMonitorMetricsFactory.LINEAGE_LATENCY.getId(), "p");
+            assertEquals(100, batch.min(lineage), 0);
+            assertEquals(3, batch.count(lineage));
+            assertEquals(40, value(batch, AzMonitorMetricsFactory.PROCESSING_LATENCY_P99.getId()), 0);
+
+            // the sketches start over after every report
+            final MetricBatch next = collect(collector);
+            assertEquals(-1, row(next, AzMonitorMetricsFactory.PROCESSING_LATENCY.getId(), "p"));
+            assertEquals(0, value(next, AzMonitorMetricsFactory.PROVENANCE_EVENTS.getId()), 0);
+        }
+    }
+
+    @Test
+    public void testStartsAtNewestEventWithoutCursor() throws Exception {
+        final Repository access = new Repository();
+        access.add(event(0, "p", 10, 0));
+        access.add(event(1, "p", 10, 0));
+        try (ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(-1, 10, 10, logger)) {
+            collector.consume(access);
+            assertEquals(2, collector.getCursor());
+
+            access.add(event(2, "p", 30, 0));
+            collector.consume(access);
+            assertEquals(3, collector.getCursor());
+            final MetricBatch batch = collect(collector);
+            assertEquals(1, value(batch, AzMonitorMetricsFactory.PROVENANCE_EVENTS.getId()), 0);
+            assertEquals(30, batch.max(row(batch, AzMonitorMetricsFactory.PROCESSING_LATENCY.getId(), "p")), 0);
+            assertEquals(0, value(batch, AzMonitorMetricsFactory.PROVENANCE_LAG.getId()), 0);
+        }
+    }
+
+    @Test
+    public void testCursorBeyondRepositoryRestartsAtNewestEvent() throws Exception {
+        final Repository access = new Repository();
+        access.add(event(0, "p", 10, 0));
+        // a cursor persisted before the repository was wiped
+        try (ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(1000, 10, 10, logger)) {
+            collector.consume(access);
+            assertEquals(1, collector.getCursor());
+        }
+    }
+
+    @Test
+    public void testComponentsBeyondLimitAreCountedAsOther() throws Exception {
+        final MockEventAccess access = new MockEventAccess();
+        access.addProvenanceEvent(event(0, "a", 10, 0));
+        access.addProvenanceEvent(event(1, "b", 20, 0));
+        access.addProvenanceEvent(event(2, "c", 30, 0));
+        try (ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(0, 10, 1, logger)) {
+            collector.consume(access);
+            final MetricBatch batch = collect(collector);
+            final int processing = AzMonitorMetricsFactory.PROCESSING_LATENCY.getId();
+            assertEquals(1, batch.count(row(batch, processing, "a")));
+            final int other = row(batch, processing, ProvenanceLatencyCollector.OTHER);
+            assertEquals(2, batch.count(other));
+            assertEquals(50, batch.sum(other), 0);
+        }
+    }
+
+    @Test
+    public void testIdleComponentsAreEvicted() throws Exception {
+        final MockEventAccess access = new MockEventAccess();
+        access.addProvenanceEvent(event(0, "a", 10, 0));
+        try (ProvenanceLatencyCollector collector = new ProvenanceLatencyCollector(0, 10, 1, logger)) {
+            collector.consume(access);
+            collect(collector);
+            for (int report = 0; report < ProvenanceLatencyCollector.MAX_IDLE_REPORTS; report++) {
+                collect(collector);
+            }
+            access.addProvenanceEvent(event(1, "b", 20, 0));
+            collector.consume(access);
+            MetricBatch batch = collect(collector);
+            // a still holds the only slot
+            assertTrue(row(batch, AzMonitorMetricsFactory.PROCESSING_LATENCY.getId(), ProvenanceLatencyCollector.OTHER) >= 0);
+
+            collect(collector);
+            access.addProvenanceEvent(event(2, "c", 30, 0));
+            collector.consume(access);
+            batch = collect(collector);
+            assertTrue(row(batch, AzMonitorMetricsFactory.PROCESSING_LATENCY.getId(), "c") >= 0);
+        }
+    }
+
+    /**
+     * An event access with a repository, whose newest event is the last one added.
+     */
+    private static final class Repository extends MockEventAccess {
+
+        private final ProvenanceEventRepository repository = mock(ProvenanceEventRepository.class);
+
+        void add(ProvenanceEventRecord event) {
+            addProvenanceEvent(event);
+            final long id = event.getEventId();
+            when(repository.getMaxEventId()).thenReturn(id);
+        }
+
+        @Override
+        public ProvenanceEventRepository getProvenanceRepository() {
+            return repository;
+        }
+    }
+
+    private static ProvenanceEventRecord event(long id, String componentId, long duration, long lineageAge) {
+        final ProvenanceEventRecord event = mock(ProvenanceEventRecord.class);
+        when(event.getEventId()).thenReturn(id);
+        when(event.getComponentId()).thenReturn(componentId);
+        when(event.getComponentType()).thenReturn("UpdateAttribute");
+        when(event.getEventDuration()).thenReturn(duration);
+        when(event.getEventTime()).thenReturn(START + lineageAge);
+        when(event.getLineageStartDate()).thenReturn(START);
+        return event;
+    }
+
+    private static MetricBatch collect(ProvenanceLatencyCollector collector) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        collector.collect(batch);
+        return batch;
+    }
+
+    /**
+     * @return the row of the metric for the component, or -1
+     */
+    private static int row(MetricBatch batch, int metricId, String componentId) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.metricId(row) == metricId && Arrays.asList(batch.dimValues(row)).contains(componentId)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private static double value(MetricBatch batch, int metricId) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.metricId(row) == metricId) {
+                return batch.max(row);
+            }
+        }
+        throw new AssertionError("no row of metric " + metricId);
+    }
+}
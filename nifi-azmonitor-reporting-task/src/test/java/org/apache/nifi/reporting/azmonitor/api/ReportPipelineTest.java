@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReportPipelineTest {
+
+    private static final int METRIC = 0;
+
+    private final ReporterHealth health = new ReporterHealth();
+    private final MockComponentLog logger = new MockComponentLog("pipeline", this);
+    private final List<String> published = new CopyOnWriteArrayList<>();
+    private final List<String> spooled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch publishing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ReportPipeline pipeline;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testReportsArePublishedInOrderAndDrainedOnClose() throws InterruptedException {
+        pipeline = pipeline(ReportPipeline.OverflowPolicy.DROP_OLDEST, 4, this::record);
+        release.countDown();
+        for (int value = 1; value <= 3; value++) {
+            submit(value);
+        }
+        pipeline.close();
+        assertEquals(3, published.size());
+        assertEquals("1/1", published.get(0));
+        assertEquals("3/1", published.get(2));
+        assertEquals(0, pipeline.pendingReports());
+
+        // reports submitted after closing are not published
+        submit(4);
+        Thread.sleep(50);
+        assertEquals(3, published.size());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        pipeline = pipeline(ReportPipeline.OverflowPolicy.DROP_OLDEST, 2, this::blockOnFirst);
+        fillWhilePublisherIsBlocked();
+        pipeline.close();
+        assertEquals("[1/1, 3/1, 4/1]", published.toString());
+        assertEquals(1, overflowed(), 0);
+    }
+
+    @Test
+    public void testSpool() throws InterruptedException {
+        pipeline = pipeline(ReportPipeline.OverflowPolicy.SPOOL, 2, this::blockOnFirst);
+        fillWhilePublisherIsBlocked();
+        pipeline.close();
+        assertEquals("[2/1]", spooled.toString());
+        assertEquals("[1/1, 3/1, 4/1]", published.toString());
+    }
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        pipeline = pipeline(ReportPipeline.OverflowPolicy.COALESCE, 2, this::blockOnFirst);
+        fillWhilePublisherIsBlocked();
+        pipeline.close();
+        // the second report is merged into the fourth, so both are counted
+        assertEquals("[1/1, 3/1, 6/2]", published.toString());
+        assertEquals(1, overflowed(), 0);
+    }
+
+    @Test
+    public void testFailedPublishDoesNotStopPublisher() throws InterruptedException {
+        pipeline = pipeline(ReportPipeline.OverflowPolicy.DROP_OLDEST, 4, report -> {
+            if (report.getBatches()[0].sum(0) == 1) {
+                throw new IllegalStateException("test");
+            }
+            record(report);
+        });
+        submit(1);
+        submit(2);
+        pipeline.close();
+        assertEquals("[2/1]", published.toString());
+        assertTrue(logger.getErrorMessages().size() > 0);
+    }
+
+    private ReportPipeline pipeline(ReportPipeline.OverflowPolicy policy, int capacity, Consumer<PendingReport> publisher) {
+        final ReportPipeline pipeline = new ReportPipeline("test", 1, capacity, policy, publisher,
+                report -> spooled.add(describe(report)), health, logger);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Submits report 1, which the publisher holds on to, then reports 2 to 4 into a queue of two.
+     */
+    private void fillWhilePublisherIsBlocked() throws InterruptedException {
+        submit(1);
+        assertTrue(publishing.await(10, TimeUnit.SECONDS));
+        submit(2);
+        submit(3);
+        assertEquals(2, pipeline.pendingReports());
+        submit(4);
+        assertEquals(2, pipeline.pendingReports());
+        release.countDown();
+    }
+
+    private void submit(double value) {
+        final PendingReport report = pipeline.acquire();
+        report.start("t", 0, System.nanoTime());
+        report.getBatches()[0].add(METRIC, value);
+        pipeline.submit(report);
+    }
+
+    private void blockOnFirst(PendingReport report) {
+        publishing.countDown();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        record(report);
+    }
+
+    private void record(PendingReport report) {
+        published.add(describe(report));
+    }
+
+    /**
+     * @return the sum and count of the report's only series, since reports are recycled once published
+     */
+    private static String describe(PendingReport report) {
+        final MetricBatch batch = report.getBatches()[0];
+        assertEquals(1, batch.size());
+        return (long) batch.sum(0) + "/" + batch.count(0);
+    }
+
+    private double overflowed() {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        health.collect(batch, -1, 0);
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.metricId(row) == AzMonitorMetricsFactory.OVERFLOWED_REPORTS.getId()) {
+                return batch.max(row);
+            }
+        }
+        throw new AssertionError("no overflow row");
+    }
+}
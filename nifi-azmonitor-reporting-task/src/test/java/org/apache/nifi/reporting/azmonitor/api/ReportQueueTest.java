@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReportQueueTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new ReportQueue<String>(0).capacity());
+        assertEquals(1, new ReportQueue<String>(1).capacity());
+        assertEquals(4, new ReportQueue<String>(3).capacity());
+        assertEquals(4, new ReportQueue<String>(4).capacity());
+        assertEquals(8, new ReportQueue<String>(5).capacity());
+    }
+
+    @Test
+    public void testFirstInFirstOutUntilFull() {
+        final ReportQueue<String> queue = new ReportQueue<>(2);
+        assertNull(queue.poll());
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals(2, queue.size());
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("c"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testEveryReportIsTakenOnce() throws InterruptedException {
+        final int reports = 200000;
+        final ReportQueue<Integer> queue = new ReportQueue<>(8);
+        final AtomicReferenceArray<Integer> taken = new AtomicReferenceArray<>(reports);
+        final AtomicInteger duplicates = new AtomicInteger();
+        final Thread consumer = new Thread(() -> {
+            Integer report;
+            while ((report = queue.poll()) == null || report >= 0) {
+                if (report != null && taken.getAndSet(report, report) != null) {
+                    duplicates.incrementAndGet();
+                }
+            }
+        });
+        consumer.start();
+        for (int report = 0; report < reports; report++) {
+            // the producer takes the oldest report itself on overflow, like the pipeline does
+            while (!queue.offer(report)) {
+                final Integer oldest = queue.poll();
+                if (oldest != null && taken.getAndSet(oldest, oldest) != null) {
+                    duplicates.incrementAndGet();
+                }
+            }
+        }
+        while (!queue.offer(-1)) {
+            Thread.yield();
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(0, duplicates.get());
+        for (int report = 0; report < reports; report++) {
+            assertEquals(Integer.valueOf(report), taken.get(report));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.MetricDescriptor;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReporterHealthTest {
+
+    @Test
+    public void testPhaseDurationsInMillis() {
+        final ReporterHealth health = new ReporterHealth();
+        health.record(ReporterHealth.Phase.ENCODE, TimeUnit.MILLISECONDS.toNanos(2));
+        health.record(ReporterHealth.Phase.ENCODE, TimeUnit.MILLISECONDS.toNanos(6));
+
+        final MetricBatch batch = collect(health, -1, 0);
+        final long encode = SeriesKeys.component("phase:Encode");
+        final int row = row(batch, AzMonitorMetricsFactory.PHASE_DURATION, encode);
+        assertArrayEquals(new String[]{"Encode"}, batch.dimValues(row));
+        assertEquals(2, batch.min(row), 0);
+        assertEquals(6, batch.max(row), 0);
+        assertEquals(8, batch.sum(row), 0);
+        assertEquals(2, batch.count(row));
+        assertEquals(6, batch.max(row(batch, AzMonitorMetricsFactory.PHASE_DURATION_P99, encode)), 0);
+        final double p50 = batch.max(row(batch, AzMonitorMetricsFactory.PHASE_DURATION_P50, encode));
+        assertTrue(String.valueOf(p50), p50 >= 2 && p50 <= 2.25);
+        // phases without durations have no rows
+        assertEquals(-1, find(batch, AzMonitorMetricsFactory.PHASE_DURATION, SeriesKeys.component("phase:Publish")));
+    }
+
+    @Test
+    public void testResponsesPerStatus() {
+        final ReporterHealth health = new ReporterHealth();
+        health.recordResponse(200);
+        health.recordResponse(200);
+        health.recordResponse(429);
+        health.recordTransportError();
+        health.recordResponse(999);
+
+        final MetricBatch batch = collect(health, -1, 0);
+        assertEquals(2, value(batch, AzMonitorMetricsFactory.HTTP_RESPONSES, SeriesKeys.component("status:200")), 0);
+        assertEquals(1, value(batch, AzMonitorMetricsFactory.HTTP_RESPONSES, SeriesKeys.component("status:429")), 0);
+        // unknown status codes count as errors
+        final int error = row(batch, AzMonitorMetricsFactory.HTTP_RESPONSES, SeriesKeys.component("status:Error"));
+        assertEquals(2, batch.max(error), 0);
+        assertArrayEquals(new String[]{"Error"}, batch.dimValues(error));
+    }
+
+    @Test
+    public void testCountersAreDeltas() {
+        final ReporterHealth health = new ReporterHealth();
+        health.recordRetry();
+        health.recordEncoded(100);
+        health.recordEncoded(50);
+        health.recordSeries(10);
+        health.recordSkipped(3);
+        health.recordOverflow();
+
+        MetricBatch batch = collect(health, 7, 2);
+        assertEquals(1, value(batch, AzMonitorMetricsFactory.RETRIES, 0), 0);
+        assertEquals(150, value(batch, AzMonitorMetricsFactory.BYTES_ENCODED, 0), 0);
+        assertEquals(10, value(batch, AzMonitorMetricsFactory.SERIES_EMITTED, 0), 0);
+        assertEquals(3, value(batch, AzMonitorMetricsFactory.SKIPPED_SERIES, 0), 0);
+        assertEquals(1, value(batch, AzMonitorMetricsFactory.OVERFLOWED_REPORTS, 0), 0);
+        assertEquals(7, value(batch, AzMonitorMetricsFactory.SPOOL_DEPTH, 0), 0);
+        assertEquals(2, value(batch, AzMonitorMetricsFactory.QUEUED_REPORTS, 0), 0);
+
+        health.recordResponse(200);
+        batch = collect(health, -1, 0);
+        assertEquals(0, value(batch, AzMonitorMetricsFactory.RETRIES, 0), 0);
+        assertEquals(0, value(batch, AzMonitorMetricsFactory.BYTES_ENCODED, 0), 0);
+        assertEquals(1, value(batch, AzMonitorMetricsFactory.HTTP_RESPONSES, SeriesKeys.component("status:200")), 0);
+        // without a spool there is no depth
+        assertEquals(-1, find(batch, AzMonitorMetricsFactory.SPOOL_DEPTH, 0));
+
+        batch = collect(health, -1, 0);
+        assertEquals(-1, find(batch, AzMonitorMetricsFactory.HTTP_RESPONSES, SeriesKeys.component("status:200")));
+    }
+
+    private static MetricBatch collect(ReporterHealth health, long spoolDepth, int queuedReports) {
+        final MetricBatch batch = new MetricBatch();
+        batch.clear("t");
+        health.collect(batch, spoolDepth, queuedReports);
+        return batch;
+    }
+
+    private static double value(MetricBatch batch, MetricDescriptor<?> metric, long component) {
+        return batch.max(row(batch, metric, component));
+    }
+
+    private static int row(MetricBatch batch, MetricDescriptor<?> metric, long component) {
+        final int row = find(batch, metric, component);
+        if (row < 0) {
+            throw new AssertionError("No " + metric + " row");
+        }
+        return row;
+    }
+
+    private static int find(MetricBatch batch, MetricDescriptor<?> metric, long component) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.metricId(row) == metric.getId() && batch.component(row) == component) {
+                return row;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReportingPlanTest {
+
+    @Test
+    public void testRoutedGroupsExcludeDefaultRoute() {
+        final ReportingPlan plan = new ReportingPlan("authority", Arrays.asList(
+                route("default", "a"), route("east", "b", "c"), route("west", "c", "d")),
+                "instance", null, ComponentFilter.ALL, DerivedMetrics.NONE);
+        assertEquals(new HashSet<>(Arrays.asList("b", "c", "d")), plan.getRoutedGroupIds());
+        assertEquals("default", plan.getRoutes().get(0).getName());
+        assertNull(plan.getEnabledMetrics());
+    }
+
+    @Test
+    public void testWithoutRoutedDestinations() {
+        final ReportingPlan plan = new ReportingPlan("authority", Collections.singletonList(route("default")),
+                "instance", null, ComponentFilter.ALL, DerivedMetrics.NONE);
+        assertTrue(plan.getRoutedGroupIds().isEmpty());
+    }
+
+    @Test
+    public void testEnabledMetricsAreCopied() {
+        final boolean[] enabled = {true, false};
+        final ReportingPlan plan = new ReportingPlan("authority", Collections.singletonList(route("default")),
+                "instance", enabled, ComponentFilter.ALL, DerivedMetrics.NONE);
+        enabled[1] = true;
+        assertTrue(plan.getEnabledMetrics()[0]);
+        assertFalse(plan.getEnabledMetrics()[1]);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRoutesAreImmutable() {
+        new ReportingPlan("authority", Collections.singletonList(route("default")), "instance", null,
+                ComponentFilter.ALL, DerivedMetrics.NONE).getRoutes().clear();
+    }
+
+    private static ReportingPlan.Route route(String name, String... groupIds) {
+        return new ReportingPlan.Route(name, Arrays.asList(groupIds), "https://" + name + "/metrics", "/" + name,
+                "tenant", "client", "secret");
+    }
+}
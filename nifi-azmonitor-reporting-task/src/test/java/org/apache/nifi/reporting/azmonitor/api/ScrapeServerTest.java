@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ScrapeServerTest {
+
+    private ScrapeServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ScrapeServer("127.0.0.1", 0);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testEmptyBeforeFirstReport() throws IOException {
+        final HttpURLConnection connection = request("GET", ScrapeServer.PROMETHEUS_PATH);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("", body(connection));
+    }
+
+    @Test
+    public void testServesLatestReport() throws IOException {
+        publish("first 1\n", "{\"first\":1}\n");
+        publish("second 2\n", "{\"second\":2}\n");
+
+        HttpURLConnection connection = request("GET", ScrapeServer.PROMETHEUS_PATH);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(ScrapeServer.PROMETHEUS_CONTENT_TYPE, connection.getContentType());
+        assertEquals("second 2\n", body(connection));
+
+        connection = request("GET", ScrapeServer.NDJSON_PATH + "?ignored=true");
+        assertEquals(ScrapeServer.NDJSON_CONTENT_TYPE, connection.getContentType());
+        assertEquals("{\"second\":2}\n", body(connection));
+
+        // scraping does not consume the snapshot
+        assertEquals("second 2\n", body(request("GET", ScrapeServer.PROMETHEUS_PATH)));
+    }
+
+    @Test
+    public void testHeadHasLengthWithoutBody() throws IOException {
+        publish("metric 1\n", "");
+        final HttpURLConnection connection = request("HEAD", ScrapeServer.PROMETHEUS_PATH);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(9, connection.getContentLengthLong());
+        assertEquals("", body(connection));
+    }
+
+    @Test
+    public void testOtherRequestsAreRejected() throws IOException {
+        HttpURLConnection connection = request("POST", ScrapeServer.PROMETHEUS_PATH);
+        assertEquals(405, connection.getResponseCode());
+        assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+
+        connection = request("GET", "/other");
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    @Test
+    public void testClosedServerStopsListening() throws IOException {
+        final int port = server.getPort();
+        server.close();
+        try {
+            new URL("http://127.0.0.1:" + port + ScrapeServer.PROMETHEUS_PATH).openConnection().connect();
+            fail("still listening");
+        } catch (ConnectException e) {
+            // expected
+        }
+        // publishing after closing is ignored
+        publish("late 1\n", "");
+    }
+
+    /**
+     * Publishes a report; requests are served on the same event loop, so they see it.
+     */
+    private void publish(String prometheus, String ndjson) {
+        server.publish(buffer(prometheus), buffer(ndjson));
+    }
+
+    private static PayloadBuffer buffer(String content) {
+        final PayloadBuffer buffer = new PayloadBuffer(64);
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+        return buffer;
+    }
+
+    private HttpURLConnection request(String method, String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            final byte[] chunk = new byte[256];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                body.write(chunk, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
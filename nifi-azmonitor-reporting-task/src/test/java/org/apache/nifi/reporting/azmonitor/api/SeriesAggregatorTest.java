@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.reporting.azmonitor.metrics.SeriesKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SeriesAggregatorTest {
+
+    private static final String[] NAMES = {"ComponentName"};
+    private static final long PROCESSOR = SeriesKeys.component("processor");
+
+    @Test
+    public void testFoldsSamplesOfSameSeries() {
+        final SeriesAggregator aggregator = new SeriesAggregator(4);
+        aggregator.fold(sample(5, 1));
+        aggregator.fold(sample(2, 3));
+        aggregator.fold(sample(4, 4));
+        assertEquals(2, aggregator.size());
+
+        final MetricBatch target = new MetricBatch();
+        aggregator.drain(target);
+        assertEquals(2, target.size());
+        assertAggregate(target, 0, 2, 5, 11, 3, 4);
+        assertAggregate(target, 1, 1, 4, 8, 3, 4);
+        assertEquals(PROCESSOR, target.component(0));
+        assertEquals(0, target.component(1));
+        assertEquals(SeriesKeys.series(PROCESSOR, 1), target.key(0));
+    }
+
+    @Test
+    public void testKeepsLatestDimensionValues() {
+        final SeriesAggregator aggregator = new SeriesAggregator(4);
+        aggregator.fold(named("before", 1));
+        aggregator.fold(named("after", 2));
+
+        final MetricBatch target = new MetricBatch();
+        aggregator.drain(target);
+        assertEquals(1, target.size());
+        assertArrayEquals(NAMES, target.dimNames(0));
+        assertArrayEquals(new String[]{"after"}, target.dimValues(0));
+    }
+
+    @Test
+    public void testDrainStartsNewWindow() {
+        final SeriesAggregator aggregator = new SeriesAggregator(4);
+        aggregator.fold(sample(5, 1));
+        aggregator.drain(new MetricBatch());
+        assertEquals(0, aggregator.size());
+
+        // only the series sampled in this window are reported
+        final MetricBatch sample = new MetricBatch();
+        sample.clear("t");
+        sample.add(2, 7);
+        aggregator.fold(sample);
+        final MetricBatch target = new MetricBatch();
+        aggregator.drain(target);
+        assertEquals(1, target.size());
+        assertAggregate(target, 0, 7, 7, 7, 1, 7);
+    }
+
+    @Test
+    public void testGrowsBeyondExpectedSeries() {
+        final SeriesAggregator aggregator = new SeriesAggregator(2);
+        for (int round = 0; round < 2; round++) {
+            final MetricBatch sample = new MetricBatch();
+            sample.clear("t");
+            for (int metric = 0; metric < 100; metric++) {
+                sample.add(metric, metric + round);
+            }
+            aggregator.fold(sample);
+        }
+        assertEquals(100, aggregator.size());
+
+        final MetricBatch target = new MetricBatch();
+        aggregator.drain(target);
+        for (int metric = 0; metric < 100; metric++) {
+            assertEquals(metric, target.metricId(metric));
+            assertAggregate(target, metric, metric, metric + 1, 2 * metric + 1, 2, metric + 1);
+        }
+    }
+
+    private static MetricBatch sample(double component, double global) {
+        final MetricBatch sample = new MetricBatch();
+        sample.clear("t");
+        sample.add(1, PROCESSOR, NAMES, new String[]{"p"}, component);
+        sample.add(2, global);
+        return sample;
+    }
+
+    private static MetricBatch named(String name, double value) {
+        final MetricBatch sample = new MetricBatch();
+        sample.clear("t");
+        sample.add(1, PROCESSOR, NAMES, new String[]{name}, value);
+        return sample;
+    }
+
+    private static void assertAggregate(MetricBatch batch, int row, double min, double max, double sum, long count, double last) {
+        assertEquals(min, batch.min(row), 0);
+        assertEquals(max, batch.max(row), 0);
+        assertEquals(sum, batch.sum(row), 0);
+        assertEquals(count, batch.count(row));
+        assertEquals(last, batch.last(row), 0);
+    }
+}
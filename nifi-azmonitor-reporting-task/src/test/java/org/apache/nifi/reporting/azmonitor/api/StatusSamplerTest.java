@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.api;
+
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.reporting.azmonitor.metrics.MetricBatch;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class StatusSamplerTest {
+
+    private final MockComponentLog logger = new MockComponentLog("sampler", this);
+
+    @Test
+    public void testFlushTakesFinalSampleAndStartsNewWindow() {
+        final AtomicInteger value = new AtomicInteger();
+        try (StatusSampler sampler = new StatusSampler(batch -> batch.add(1, value.incrementAndGet()), logger)) {
+            sampler.sample();
+            sampler.sample();
+
+            final MetricBatch target = new MetricBatch();
+            sampler.flush(target);
+            // two samples plus the one taken by the flush
+            assertEquals(1, target.size());
+            assertEquals(1, target.min(0), 0);
+            assertEquals(3, target.max(0), 0);
+            assertEquals(6, target.sum(0), 0);
+            assertEquals(3, target.count(0));
+            assertEquals(3, target.last(0), 0);
+
+            final MetricBatch next = new MetricBatch();
+            sampler.flush(next);
+            assertEquals(1, next.count(0));
+            assertEquals(4, next.last(0), 0);
+        }
+    }
+
+    @Test
+    public void testSamplesCarryTheirTime() {
+        final String[] times = new String[1];
+        try (StatusSampler sampler = new StatusSampler(batch -> times[0] = batch.getTime(), logger)) {
+            sampler.sample();
+            assertNotNull(OffsetDateTime.parse(times[0]));
+        }
+    }
+
+    @Test
+    public void testPartitionsAreAggregatedSeparately() {
+        try (StatusSampler sampler = new StatusSampler(2, samples -> {
+            samples[0].add(1, 10);
+            samples[1].add(1, 20);
+            samples[1].add(2, 30);
+        }, logger)) {
+            final MetricBatch[] targets = {new MetricBatch(), new MetricBatch()};
+            sampler.flush(targets);
+            assertEquals(1, targets[0].size());
+            assertEquals(10, targets[0].last(0), 0);
+            assertEquals(2, targets[1].size());
+            assertEquals(20, targets[1].last(0), 0);
+
+            try {
+                sampler.flush(new MetricBatch());
+                fail("Each partition needs a target");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSamplesInBackgroundAndLogsFailures() throws InterruptedException {
+        final AtomicInteger samples = new AtomicInteger();
+        try (StatusSampler sampler = new StatusSampler(batch -> {
+            if (samples.incrementAndGet() == 1) {
+                throw new IllegalStateException("status unavailable");
+            }
+        }, logger)) {
+            sampler.start(10);
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (samples.get() < 3) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Expected sampling to go on after a failure, got " + samples.get() + " samples");
+                }
+                Thread.sleep(10);
+            }
+        }
+        assertFalse(logger.getWarnMessages().isEmpty());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testKeepsExactSummary() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(30);
+        histogram.record(10);
+        histogram.record(-5);
+        histogram.record(1000);
+
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+        assertEquals(4, snapshot.getCount());
+        assertEquals(1040, snapshot.getSum());
+        // negative durations count as 0
+        assertEquals(0, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(1000, snapshot.valueAt(100));
+    }
+
+    @Test
+    public void testDrainStartsNewInterval() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(7);
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+        histogram.drainTo(snapshot);
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.valueAt(50));
+    }
+
+    @Test
+    public void testPercentilesWithinBucketWidth() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Random random = new Random(42);
+        final List<Long> values = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            final long value = (long) Math.exp(random.nextDouble() * 20);
+            values.add(value);
+            histogram.record(value);
+        }
+        values.sort(null);
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            final long exact = values.get((int) Math.ceil(percentile / 100 * values.size()) - 1);
+            final long estimate = snapshot.valueAt(percentile);
+            assertTrue(percentile + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(percentile + ": " + estimate + " > " + exact, estimate <= exact + Math.max(1, exact / 8));
+        }
+    }
+
+    @Test
+    public void testBucketBounds() {
+        // the buckets are contiguous up to the one holding the largest long
+        final int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertTrue(last < LatencyHistogram.BUCKETS);
+        long previous = -1;
+        for (int bucket = 0; bucket <= last; bucket++) {
+            final long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(upper > previous);
+            assertEquals(bucket, LatencyHistogram.bucket(upper));
+            assertEquals(bucket, LatencyHistogram.bucket(previous + 1));
+            previous = upper;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 10000; i++) {
+                    histogram.record(i + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+        assertEquals(40000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(10003, snapshot.getMax());
+        assertEquals(4 * 50005000L + 10000 * (0 + 1 + 2 + 3), snapshot.getSum());
+    }
+}
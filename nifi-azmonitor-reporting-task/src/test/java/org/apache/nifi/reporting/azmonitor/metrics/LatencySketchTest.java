@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencySketchTest {
+
+    @Test
+    public void testEmpty() {
+        final LatencySketch sketch = new LatencySketch();
+        assertEquals(0, sketch.getCount());
+        assertEquals(0, sketch.getMin());
+        assertEquals(0, sketch.getMax());
+        assertEquals(0, sketch.valueAt(99));
+    }
+
+    @Test
+    public void testAggregatesAreExact() {
+        final LatencySketch sketch = new LatencySketch();
+        sketch.add(10, 1);
+        sketch.add(20, 3);
+        sketch.add(-5, 1);
+        assertEquals(5, sketch.getCount());
+        assertEquals(70, sketch.getSum(), 0);
+        assertEquals(0, sketch.getMin());
+        assertEquals(20, sketch.getMax());
+        // the weight counts towards the percentiles as well
+        assertEquals(20, sketch.valueAt(50));
+    }
+
+    @Test
+    public void testRelativeError() {
+        final LatencySketch sketch = new LatencySketch();
+        for (long value = 1; value <= 10000; value++) {
+            sketch.add(value, 1);
+        }
+        for (double percentile : new double[]{1, 10, 50, 90, 95, 99, 99.9}) {
+            final long exact = (long) Math.ceil(percentile / 100 * 10000);
+            final long estimate = sketch.valueAt(percentile);
+            assertTrue(percentile + ": " + estimate, estimate >= exact && estimate <= exact * 1.125 + 1);
+        }
+        assertEquals(10000, sketch.valueAt(100));
+    }
+
+    @Test
+    public void testWideRangeKeepsUpperPercentiles() {
+        final LatencySketch sketch = new LatencySketch();
+        final Random random = new Random(7);
+        final long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // 1 ms up to about 12 days: far more buckets than are kept
+            values[i] = (long) Math.pow(2, random.nextDouble() * 30);
+            sketch.add(values[i], 1);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(values[0], sketch.getMin());
+        assertEquals(values[values.length - 1], sketch.getMax());
+        for (double percentile : new double[]{90, 95, 99}) {
+            final long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            final long estimate = sketch.valueAt(percentile);
+            assertTrue(percentile + ": " + estimate, estimate >= exact && estimate <= exact * 1.125 + 1);
+        }
+        // the folded low buckets still answer within min and max
+        assertTrue(sketch.valueAt(1) >= values[0]);
+    }
+
+    @Test
+    public void testReset() {
+        final LatencySketch sketch = new LatencySketch();
+        sketch.add(1000, 1);
+        sketch.add(1, 1);
+        sketch.reset();
+        assertEquals(0, sketch.getCount());
+        assertEquals(0, sketch.getSum(), 0);
+
+        sketch.add(500, 2);
+        assertEquals(2, sketch.getCount());
+        assertEquals(500, sketch.getMin());
+        assertEquals(500, sketch.getMax());
+        assertEquals(500, sketch.valueAt(50));
+    }
+}
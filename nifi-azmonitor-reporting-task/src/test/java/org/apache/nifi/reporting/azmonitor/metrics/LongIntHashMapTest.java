@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        assertEquals(LongIntHashMap.MISSING, map.get(42));
+        assertEquals(LongIntHashMap.MISSING, map.put(42, 1));
+        assertEquals(1, map.put(42, 2));
+        assertEquals(2, map.get(42));
+        assertEquals(1, map.size());
+        assertEquals(2, map.remove(42));
+        assertEquals(LongIntHashMap.MISSING, map.remove(42));
+        assertEquals(LongIntHashMap.MISSING, map.get(42));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testZeroKey() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        assertEquals(LongIntHashMap.MISSING, map.get(0));
+        map.put(0, 7);
+        map.put(1, 8);
+        assertEquals(7, map.get(0));
+        assertEquals(2, map.size());
+        assertEquals(7, map.remove(0));
+        assertEquals(LongIntHashMap.MISSING, map.get(0));
+        assertEquals(8, map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testGrowsBeyondExpectedSize() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(SeriesKeys.component("c" + i), i);
+        }
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(SeriesKeys.component("c" + i)));
+        }
+    }
+
+    @Test
+    public void testRemovalKeepsCollidingKeysReachable() {
+        // small consecutive keys collide a lot in a small table, which exercises the backward shift
+        final LongIntHashMap map = new LongIntHashMap(16);
+        final Map<Long, Integer> expected = new HashMap<>();
+        final Random random = new Random(7);
+        for (int op = 0; op < 200_000; op++) {
+            final long key = random.nextInt(64) - 8;
+            if (random.nextInt(3) == 0) {
+                final Integer removed = expected.remove(key);
+                assertEquals(removed == null ? LongIntHashMap.MISSING : removed, map.remove(key));
+            } else {
+                final int value = random.nextInt(1000);
+                final Integer previous = expected.put(key, value);
+                assertEquals(previous == null ? LongIntHashMap.MISSING : previous, map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -8; key < 56; key++) {
+            final Integer value = expected.get(key);
+            assertEquals(value == null ? LongIntHashMap.MISSING : value, map.get(key));
+        }
+    }
+
+    @Test
+    public void testClear() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        map.put(0, 1);
+        map.put(5, 2);
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(LongIntHashMap.MISSING, map.get(0));
+        assertEquals(LongIntHashMap.MISSING, map.get(5));
+        map.put(5, 3);
+        assertEquals(3, map.get(5));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingSketchTest {
+
+    @Test
+    public void testExactWithinCapacity() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(4);
+        sketch.offer(1, 5);
+        sketch.offer(2, 3);
+        sketch.offer(1, 2);
+        assertEquals(2, sketch.size());
+        assertEquals(7, sketch.estimate(1), 0);
+        assertEquals(7, sketch.lowerBound(1), 0);
+        assertEquals(3, sketch.estimate(2), 0);
+        assertEquals(0, sketch.estimate(3), 0);
+    }
+
+    @Test
+    public void testEvictsLightestKey() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(2);
+        sketch.offer(1, 5);
+        sketch.offer(2, 3);
+        sketch.offer(3, 1);
+
+        // key 3 takes the place of key 2 and inherits its weight as error
+        assertEquals(2, sketch.size());
+        assertEquals(0, sketch.estimate(2), 0);
+        assertEquals(4, sketch.estimate(3), 0);
+        assertEquals(1, sketch.lowerBound(3), 0);
+        assertEquals(5, sketch.estimate(1), 0);
+
+        // key 3 is still the lightest, so a returning key 2 replaces it
+        sketch.offer(2, 1);
+        assertEquals(0, sketch.estimate(3), 0);
+        assertEquals(5, sketch.estimate(2), 0);
+        assertEquals(1, sketch.lowerBound(2), 0);
+        assertEquals(5, sketch.estimate(1), 0);
+    }
+
+    @Test
+    public void testErrorBound() {
+        final int capacity = 50;
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(capacity);
+        final Map<Long, Double> truth = new HashMap<>();
+        final Random random = new Random(11);
+        double total = 0;
+        for (int i = 0; i < 100_000; i++) {
+            // skewed keys: a few are heavy, most are rare
+            final long key = (long) Math.floor(Math.pow(random.nextDouble(), 4) * 5000);
+            final double weight = 1 + random.nextInt(10);
+            sketch.offer(key, weight);
+            truth.merge(key, weight, Double::sum);
+            total += weight;
+        }
+        final double bound = total / capacity;
+        for (Map.Entry<Long, Double> entry : truth.entrySet()) {
+            final double estimate = sketch.estimate(entry.getKey());
+            if (entry.getValue() > bound) {
+                assertTrue("heavy key " + entry.getKey() + " is monitored", estimate > 0);
+            }
+            if (estimate > 0) {
+                assertTrue(estimate >= entry.getValue());
+                assertTrue(estimate - entry.getValue() <= bound);
+                assertTrue(sketch.lowerBound(entry.getKey()) <= entry.getValue() + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testTop() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(8);
+        sketch.offer(1, 10);
+        sketch.offer(2, 30);
+        sketch.offer(3, 20);
+        sketch.offer(4, 20);
+        sketch.offer(5, 1);
+
+        final LongIntHashMap top = new LongIntHashMap(4);
+        assertEquals(2, sketch.top(2, top, new double[sketch.capacity()]));
+        assertEquals(2, top.size());
+        assertTrue(top.get(2) != LongIntHashMap.MISSING);
+        // one of the tied keys fills the last place
+        assertTrue(top.get(3) != LongIntHashMap.MISSING ^ top.get(4) != LongIntHashMap.MISSING);
+
+        top.clear();
+        assertEquals(5, sketch.top(10, top, new double[sketch.capacity()]));
+        assertEquals(0, new SpaceSavingSketch(2).top(1, top, new double[2]));
+    }
+
+    @Test
+    public void testDecay() {
+        final SpaceSavingSketch sketch = new SpaceSavingSketch(1);
+        sketch.offer(1, 8);
+        sketch.offer(2, 2);
+        sketch.decay(0.5);
+        assertEquals(5, sketch.estimate(2), 0);
+        assertEquals(1, sketch.lowerBound(2), 0);
+        // after decaying a new key can take over with less weight than before
+        sketch.offer(3, 1);
+        assertEquals(6, sketch.estimate(3), 0);
+        assertEquals(0, sketch.estimate(2), 0);
+    }
+}
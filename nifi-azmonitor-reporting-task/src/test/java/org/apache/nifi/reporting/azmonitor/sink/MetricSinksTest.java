@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.nifi.reporting.azmonitor.AzMonitorSink;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReportPipeline;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricSinksTest {
+
+    @Test
+    public void testRegisteredSinksAreLoaded() {
+        final Map<String, MetricSink> sinks = MetricSinks.load(getClass().getClassLoader());
+        assertEquals(Arrays.asList(AzMonitorSink.NAME, NdjsonFileSink.NAME, NoopMetricSink.NAME, ScrapeEndpointSink.NAME),
+                new ArrayList<>(sinks.keySet()));
+        for (Map.Entry<String, MetricSink> sink : sinks.entrySet()) {
+            assertEquals(sink.getKey(), sink.getValue().getName());
+            assertTrue(sink.getKey(), !sink.getValue().getDescription().isEmpty());
+        }
+    }
+
+    @Test
+    public void testEveryLoadCreatesNewInstances() {
+        final ClassLoader classLoader = getClass().getClassLoader();
+        assertNotSame(MetricSinks.load(classLoader).get(NoopMetricSink.NAME), MetricSinks.load(classLoader).get(NoopMetricSink.NAME));
+    }
+
+    @Test
+    public void testNoopSinkCountsReportsAndSeries() throws InterruptedException {
+        final NoopMetricSink sink = new NoopMetricSink();
+        sink.open(null);
+        final ReportPipeline pipeline = new ReportPipeline(NoopMetricSink.NAME, 2, 4, ReportPipeline.OverflowPolicy.DROP_OLDEST,
+                sink::publish, sink::spill, new ReporterHealth(), new MockComponentLog("sink", this));
+        pipeline.start();
+        for (int r = 0; r < 3; r++) {
+            final PendingReport report = pipeline.acquire();
+            report.start("t", 0, System.nanoTime());
+            report.getBatches()[0].add(0, r);
+            report.getBatches()[1].add(0, r);
+            report.getBatches()[1].add(1, r);
+            pipeline.submit(report);
+        }
+        pipeline.close();
+        assertEquals(3, sink.getReports());
+        assertEquals(9, sink.getSeries());
+        assertEquals(-1, sink.pendingRecords());
+
+        // counting starts over when the sink is opened again
+        sink.open(null);
+        assertEquals(0, sink.getReports());
+    }
+}
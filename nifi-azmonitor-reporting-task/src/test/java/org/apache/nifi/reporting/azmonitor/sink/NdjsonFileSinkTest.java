@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReportPipeline;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.apache.nifi.util.MockPropertyValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NdjsonFileSinkTest {
+
+    private static final String TASK_ID = "task";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockComponentLog logger = new MockComponentLog(TASK_ID, this);
+
+    @Test
+    public void testRequiresDirectory() {
+        final ValidationContext context = mock(ValidationContext.class);
+        when(context.getProperty(NdjsonFileSink.FILE_DIRECTORY)).thenReturn(new MockPropertyValue(null));
+        assertEquals(1, new NdjsonFileSink().validate(context).size());
+        when(context.getProperty(NdjsonFileSink.FILE_DIRECTORY)).thenReturn(new MockPropertyValue("logs"));
+        assertTrue(new NdjsonFileSink().validate(context).isEmpty());
+    }
+
+    @Test
+    public void testAppendsOneLinePerMetric() throws Exception {
+        final NdjsonFileSink sink = open("1 MB", "5");
+        publish(sink, 101, 102);
+        sink.close();
+        // reopening appends to the same file
+        final NdjsonFileSink reopened = open("1 MB", "5");
+        publish(reopened, 103);
+        reopened.close();
+
+        final List<String> lines = lines(0);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("101"));
+        assertTrue(lines.get(1).contains("102"));
+        assertTrue(lines.get(2).contains("103"));
+        assertTrue(lines.get(2).contains("\"node-1\""));
+        assertFalse(Files.exists(file(1)));
+    }
+
+    @Test
+    public void testRollsOverKeepingNewestFiles() throws Exception {
+        // every line is larger than the maximum size, so every report after the first one rolls over
+        final NdjsonFileSink sink = open("10 B", "2");
+        for (int value = 101; value <= 104; value++) {
+            publish(sink, value);
+        }
+        sink.close();
+
+        assertTrue(lines(0).get(0).contains("104"));
+        assertTrue(lines(1).get(0).contains("103"));
+        assertTrue(lines(2).get(0).contains("102"));
+        assertEquals(1, lines(0).size());
+        assertFalse(Files.exists(file(3)));
+    }
+
+    @Test
+    public void testRollsOverWithoutKeepingFiles() throws Exception {
+        final NdjsonFileSink sink = open("10 B", "0");
+        publish(sink, 101);
+        publish(sink, 102);
+        sink.close();
+
+        assertEquals(1, lines(0).size());
+        assertTrue(lines(0).get(0).contains("102"));
+        assertFalse(Files.exists(file(1)));
+    }
+
+    @Test
+    public void testClosedSinkIgnoresReports() throws Exception {
+        final NdjsonFileSink sink = open("1 MB", "5");
+        sink.close();
+        publish(sink, 101);
+        assertTrue(lines(0).isEmpty());
+    }
+
+    private NdjsonFileSink open(String maxSize, String maxRolled) throws IOException {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(NdjsonFileSink.FILE_DIRECTORY, folder.getRoot().getAbsolutePath());
+        properties.put(NdjsonFileSink.FILE_MAX_SIZE, maxSize);
+        properties.put(NdjsonFileSink.FILE_MAX_ROLLED, maxRolled);
+        final NdjsonFileSink sink = new NdjsonFileSink();
+        sink.open(new MetricSinkContext(TASK_ID, new MockConfigurationContext(properties, null), null,
+                new ReporterHealth(), logger));
+        return sink;
+    }
+
+    /**
+     * Publishes a report with one batch per value, each with one series.
+     */
+    private void publish(NdjsonFileSink sink, double... values) {
+        // reports come from a pipeline; this one is not started, the report is published on the calling thread
+        final ReportPipeline pipeline = new ReportPipeline(NdjsonFileSink.NAME, values.length, 1,
+                ReportPipeline.OverflowPolicy.DROP_OLDEST, sink::publish, sink::spill, new ReporterHealth(), logger);
+        final PendingReport report = pipeline.acquire();
+        report.start("2019-06-01T00:00:00Z", 0, System.nanoTime());
+        report.setNode("node-1");
+        for (int b = 0; b < values.length; b++) {
+            report.getBatches()[b].add(AzMonitorMetricsFactory.OVERFLOWED_REPORTS.getId(), values[b]);
+        }
+        sink.publish(report);
+    }
+
+    private Path file(int number) {
+        return folder.getRoot().toPath().resolve(number == 0 ? TASK_ID + ".ndjson" : TASK_ID + "." + number + ".ndjson");
+    }
+
+    private List<String> lines(int number) throws IOException {
+        final List<String> lines = Files.readAllLines(file(number), StandardCharsets.UTF_8);
+        lines.removeIf(String::isEmpty);
+        return lines;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.reporting.azmonitor.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.reporting.azmonitor.api.AzMonitorMetricsFactory;
+import org.apache.nifi.reporting.azmonitor.api.PendingReport;
+import org.apache.nifi.reporting.azmonitor.api.ReportPipeline;
+import org.apache.nifi.reporting.azmonitor.api.ReporterHealth;
+import org.apache.nifi.reporting.azmonitor.api.ScrapeServer;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeEndpointSinkTest {
+
+    private final MockComponentLog logger = new MockComponentLog("task", this);
+
+    @Test
+    public void testServesEveryBatchOfLatestReport() throws IOException {
+        final Map<PropertyDescriptor, String> properties = new HashMap<>();
+        properties.put(ScrapeEndpointSink.SCRAPE_PORT, "0");
+        properties.put(ScrapeEndpointSink.SCRAPE_ADDRESS, "127.0.0.1");
+        final ScrapeEndpointSink sink = new ScrapeEndpointSink();
+        sink.open(new MetricSinkContext("task", new MockConfigurationContext(properties, null), null, new ReporterHealth(), logger));
+        try {
+            // reports come from a pipeline; this one is not started, the report is published on the calling thread
+            final ReportPipeline pipeline = new ReportPipeline(ScrapeEndpointSink.NAME, 2, 1,
+                    ReportPipeline.OverflowPolicy.DROP_OLDEST, sink::publish, sink::spill, new ReporterHealth(), logger);
+            final PendingReport report = pipeline.acquire();
+            report.start("2019-06-01T00:00:00Z", 1559347200000L, System.nanoTime());
+            report.setNode("node-1");
+            report.getBatches()[0].add(AzMonitorMetricsFactory.BYTES_ENCODED.getId(), 11);
+            report.getBatches()[1].add(AzMonitorMetricsFactory.RETRIES.getId(), 12);
+            sink.publish(report);
+
+            final String prometheus = get(sink.getPort(), ScrapeServer.PROMETHEUS_PATH);
+            assertTrue(prometheus, prometheus.contains("reporter_health_bytes_encoded{Node=\"node-1\"} 11 1559347200000\n"));
+            assertTrue(prometheus, prometheus.contains("reporter_health_retries{Node=\"node-1\"} 12 1559347200000\n"));
+            final String ndjson = get(sink.getPort(), ScrapeServer.NDJSON_PATH);
+            assertEquals(ndjson, 2, ndjson.split("\n").length);
+            assertTrue(ndjson, ndjson.contains("\"node-1\""));
+        } finally {
+            sink.close();
+        }
+        assertEquals(-1, sink.getPort());
+    }
+
+    private static String get(int port, String path) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = new URL("http://127.0.0.1:" + port + path).openStream()) {
+            final byte[] chunk = new byte[256];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                body.write(chunk, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}